@@ -33,7 +33,6 @@ public class WalletNameResolver {
 
     private DNSSECResolver resolver;
     private TLSAValidator tlsaValidator;
-    private int backupDnsServerIndex = 0;
 
     /**
      * Setup a new WalletNameResolver with default DNSSECResolver and TLSAValidator
@@ -108,17 +107,14 @@ public class WalletNameResolver {
 
         String availableCurrencies;
 
+        // The DNSSECResolver's UpstreamPool already fails over between servers, a failure here is final
         try {
             availableCurrencies = this.resolver.resolve(String.format("_wallet.%s", DNSUtil.ensureDot(this.preprocessWalletName(label))), Type.TXT);
-            if (availableCurrencies == null || availableCurrencies.equals("")) {
-                throw new WalletNameDoesNotExistException("No Wallet Name Currency List Present");
-            }
         } catch (DNSSECException e) {
-            if (this.backupDnsServerIndex >= this.resolver.getBackupDnsServers().size()) {
-                throw new WalletNameLookupException(e.getMessage(), e);
-            }
-            this.resolver.useBackupDnsServer(this.backupDnsServerIndex++);
-            return this.getAvailableCurrencies(label);
+            throw new WalletNameLookupException(e.getMessage(), e);
+        }
+        if (availableCurrencies == null || availableCurrencies.equals("")) {
+            throw new WalletNameDoesNotExistException("No Wallet Name Currency List Present");
         }
 
         return new ArrayList<String>(Arrays.asList(availableCurrencies.split(" ")));
@@ -145,17 +141,14 @@ public class WalletNameResolver {
             throw new WalletNameLookupException("Wallet Name Label Must Non-Empty");
         }
 
+        // The DNSSECResolver's UpstreamPool already fails over between servers, a failure here is final
         try {
             resolved = this.resolver.resolve(String.format("_%s._wallet.%s", currency, DNSUtil.ensureDot(this.preprocessWalletName(label))), Type.TXT);
-            if (resolved == null || resolved.equals("")) {
-                throw new WalletNameCurrencyUnavailableException("Currency Not Available in Wallet Name");
-            }
         } catch (DNSSECException e) {
-            if (this.backupDnsServerIndex >= this.resolver.getBackupDnsServers().size()) {
-                throw new WalletNameLookupException(e.getMessage(), e);
-            }
-            this.resolver.useBackupDnsServer(this.backupDnsServerIndex++);
-            return this.resolve(label, currency, validateTLSA);
+            throw new WalletNameLookupException(e.getMessage(), e);
+        }
+        if (resolved == null || resolved.equals("")) {
+            throw new WalletNameCurrencyUnavailableException("Currency Not Available in Wallet Name");
         }
         byte[] decodeResult = BaseEncoding.base64().decode(resolved);
         try {
@@ -164,7 +157,6 @@ public class WalletNameResolver {
         } catch (MalformedURLException e) { /* This is not a URL */ }
 
         try {
-            this.backupDnsServerIndex = 0;
             return new BitcoinURI(resolved);
         } catch (BitcoinURIParseException e) {
             try {
@@ -0,0 +1,364 @@
+package com.netki.dnssec;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.xbill.DNS.RRSIGRecord;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.RRset;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Type;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache of DNSSEC validated answers.
+ *
+ * Entries expire once the TTL of the cached RRsets has passed (clamped by the expiration of their RRSIGs). Negative
+ * answers are cached for the SOA minimum TTL as described in RFC 2308. When the cache is full the least recently used
+ * entries are evicted. AnswerCache objects are thread safe.
+ *
+ * Answers are held on-heap. See OffHeapAnswerCache for very large caches.
+ */
+public class AnswerCache {
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 10000;
+    public static final long DEFAULT_MAXIMUM_TTL = TimeUnit.DAYS.toSeconds(1);
+    public static final long DEFAULT_MAXIMUM_NEGATIVE_TTL = TimeUnit.HOURS.toSeconds(3);
+
+    // Fraction of an answer's lifetime used as the refresh-ahead window scale
+    private static final double REFRESH_AHEAD_WINDOW = 0.1;
+
+    private final Cache<CacheKey, CachedAnswer> cache;
+    private final Ticker ticker;
+    private final long maximumTtl;
+    private final long maximumNegativeTtl;
+    private volatile long staleRetention = 0;
+
+    /**
+     * Create an AnswerCache with default size and TTL limits
+     */
+    public AnswerCache() {
+        this(DEFAULT_MAXIMUM_SIZE, DEFAULT_MAXIMUM_TTL);
+    }
+
+    /**
+     * AnswerCache Constructor
+     *
+     * @param maximumSize Maximum number of answers to hold (0 disables caching)
+     * @param maximumTtl Maximum number of seconds an answer may be cached, regardless of its TTL
+     */
+    public AnswerCache(int maximumSize, long maximumTtl) {
+        this(maximumSize, maximumTtl, Ticker.systemTicker());
+    }
+
+    /**
+     * AnswerCache Constructor (used for unit testing)
+     *
+     * @param maximumSize Maximum number of answers to hold (0 disables caching)
+     * @param maximumTtl Maximum number of seconds an answer may be cached, regardless of its TTL
+     * @param ticker Time source used for expiration
+     */
+    public AnswerCache(int maximumSize, long maximumTtl, Ticker ticker) {
+        this(CacheBuilder.newBuilder().maximumSize(maximumSize).<CacheKey, CachedAnswer>build(), maximumTtl, ticker);
+    }
+
+    /**
+     * Constructor for subclasses storing answers outside of a Guava Cache
+     *
+     * Subclasses must override lookup(), store(), storeIfAbsent(), replace(), remove(), entries(), clear() and size().
+     *
+     * @param maximumTtl Maximum number of seconds an answer may be cached, regardless of its TTL
+     * @param ticker Time source used for expiration
+     */
+    protected AnswerCache(long maximumTtl, Ticker ticker) {
+        this(null, maximumTtl, ticker);
+    }
+
+    private AnswerCache(Cache<CacheKey, CachedAnswer> cache, long maximumTtl, Ticker ticker) {
+        this.cache = cache;
+        this.maximumTtl = maximumTtl;
+        this.maximumNegativeTtl = Math.min(maximumTtl, DEFAULT_MAXIMUM_NEGATIVE_TTL);
+        this.ticker = ticker;
+    }
+
+    /**
+     * Get an unexpired answer
+     *
+     * @param key Query to look up
+     * @return Cached answer or null if absent or expired
+     */
+    public CachedAnswer get(CacheKey key) {
+        CachedAnswer answer = lookup(key);
+        if (answer == null) {
+            return null;
+        }
+        long now = now();
+        if (answer.isExpired(now)) {
+            if (now >= answer.getStaleSince() + this.staleRetention) {
+                remove(key, answer);
+            }
+            return null;
+        }
+        return answer;
+    }
+
+    /**
+     * Get an expired answer that may still be served stale (RFC 8767)
+     *
+     * @param key Query to look up
+     * @param maximumStaleness Maximum milliseconds since the answer's original TTL expired
+     * @return Expired answer or null if absent, unexpired, or stale for longer than maximumStaleness
+     */
+    public CachedAnswer getStale(CacheKey key, long maximumStaleness) {
+        CachedAnswer answer = lookup(key);
+        long now = now();
+        if (answer == null || !answer.isExpired(now) || now >= answer.getStaleSince() + maximumStaleness) {
+            return null;
+        }
+        return answer;
+    }
+
+    /**
+     * Serve an expired answer stale for a short time (RFC 8767), unless it was replaced in the meantime
+     *
+     * @param key Query the answer belongs to
+     * @param answer Expired answer returned by getStale()
+     * @param staleTtl Milliseconds the stale answer is served before upstream resolution is attempted again
+     */
+    public void putStale(CacheKey key, CachedAnswer answer, long staleTtl) {
+        replace(key, answer, answer.asStale(now(), staleTtl));
+    }
+
+    /**
+     * Set how long expired answers are retained so they can be served stale
+     *
+     * @param staleRetention Milliseconds to keep answers after their TTL expired
+     */
+    public void setStaleRetention(long staleRetention) {
+        this.staleRetention = staleRetention;
+    }
+
+    /**
+     * Cache a validated answer
+     *
+     * @param key Query the answer belongs to
+     * @param value Resolved value string
+     * @param sets Validated RRsets the answer was built from
+     * @param fetchMillis Time in milliseconds it took to resolve and validate the answer
+     */
+    public void put(CacheKey key, String value, RRset[] sets, long fetchMillis) {
+        long ttl = this.maximumTtl * 1000;
+        for (RRset set : sets) {
+            ttl = Math.min(ttl, ttlMillis(set));
+        }
+        if (ttl <= 0) {
+            return;
+        }
+        long now = now();
+        store(key, new CachedAnswer(value, Rcode.NOERROR, toRecords(sets), now, now + ttl, fetchMillis));
+    }
+
+    /**
+     * Cache a validated denial of existence (RFC 2308)
+     *
+     * The answer is cached for the lesser of the SOA record's TTL and its minimum field. Responses without an SOA
+     * record in the authority section are not cached.
+     *
+     * @param key Query the answer belongs to
+     * @param rcode Response code of the denial (NXDOMAIN, or NOERROR for NODATA)
+     * @param answerSets Validated answer section RRsets (e.g. a CNAME chain leading to the denial)
+     * @param authoritySets Validated authority section RRsets holding the SOA and denial proof
+     * @param fetchMillis Time in milliseconds it took to resolve and validate the answer
+     */
+    public void putNegative(CacheKey key, int rcode, RRset[] answerSets, RRset[] authoritySets, long fetchMillis) {
+        long ttl = -1;
+        for (RRset set : authoritySets) {
+            if (set.getType() == Type.SOA) {
+                SOARecord soa = (SOARecord) set.first();
+                ttl = Math.min(this.maximumNegativeTtl, Math.min(set.getTTL(), soa.getMinimum())) * 1000;
+            }
+        }
+        if (ttl < 0) {
+            return;
+        }
+
+        for (RRset set : answerSets) {
+            ttl = Math.min(ttl, ttlMillis(set));
+        }
+        for (RRset set : authoritySets) {
+            ttl = Math.min(ttl, ttlMillis(set));
+        }
+        if (ttl <= 0) {
+            return;
+        }
+        long now = now();
+        store(key, new CachedAnswer(null, rcode, toRecords(authoritySets), now, now + ttl, fetchMillis));
+    }
+
+    /**
+     * Should an answer that was just hit be refreshed ahead of its expiration?
+     *
+     * Uses probabilistic early expiration: the chance of a refresh rises exponentially as the answer approaches
+     * expiration, on a scale set by the larger of the answer's fetch time and a tenth of its lifetime. Each hit draws
+     * independently, so hot answers are refreshed shortly before they expire, and not all at the same moment.
+     *
+     * @param answer Answer that was hit
+     * @param beta Refresh eagerness (1.0 is the default, larger values refresh earlier)
+     * @return Should the answer be refreshed now?
+     */
+    public boolean isRefreshDue(CachedAnswer answer, double beta) {
+        long lifetime = answer.getExpiresAt() - answer.getStoredAt();
+        double window = Math.max(answer.getFetchMillis(), lifetime * REFRESH_AHEAD_WINDOW) * beta;
+        return now() - window * Math.log(1.0 - Math.random()) >= answer.getExpiresAt();
+    }
+
+    /**
+     * Get a copy of all unexpired answers, excluding answers being served stale
+     *
+     * @return Unexpired answers by query
+     */
+    public Map<CacheKey, CachedAnswer> entries() {
+        long now = now();
+        Map<CacheKey, CachedAnswer> entries = new HashMap<CacheKey, CachedAnswer>();
+        for (Map.Entry<CacheKey, CachedAnswer> entry : this.cache.asMap().entrySet()) {
+            if (!entry.getValue().isExpired(now) && !entry.getValue().isStale()) {
+                entries.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Restore a previously cached answer (e.g. from a CacheSnapshot), unless the query already has an answer
+     *
+     * @param key Query the answer belongs to
+     * @param answer Answer, with times on this cache's clock
+     */
+    public void restore(CacheKey key, CachedAnswer answer) {
+        if (!answer.isExpired(now())) {
+            storeIfAbsent(key, answer);
+        }
+    }
+
+    /**
+     * Remove all cached answers
+     */
+    public void clear() {
+        this.cache.invalidateAll();
+    }
+
+    /**
+     * Get the number of cached answers (including any expired answers not yet removed)
+     *
+     * @return Number of cached answers
+     */
+    public long size() {
+        return this.cache.size();
+    }
+
+    /**
+     * Get the stored answer for a query, whether or not it has expired
+     *
+     * @param key Query to look up
+     * @return Stored answer or null if absent
+     */
+    protected CachedAnswer lookup(CacheKey key) {
+        return this.cache.getIfPresent(key);
+    }
+
+    /**
+     * Store an answer, replacing any answer stored for the query
+     *
+     * @param key Query the answer belongs to
+     * @param answer Answer to store
+     */
+    protected void store(CacheKey key, CachedAnswer answer) {
+        this.cache.put(key, answer);
+    }
+
+    /**
+     * Store an answer unless an answer is already stored for the query
+     *
+     * @param key Query the answer belongs to
+     * @param answer Answer to store
+     */
+    protected void storeIfAbsent(CacheKey key, CachedAnswer answer) {
+        this.cache.asMap().putIfAbsent(key, answer);
+    }
+
+    /**
+     * Replace a stored answer, unless it was replaced or removed since it was looked up
+     *
+     * @param key Query the answer belongs to
+     * @param oldAnswer Answer returned by lookup()
+     * @param newAnswer Answer to store
+     */
+    protected void replace(CacheKey key, CachedAnswer oldAnswer, CachedAnswer newAnswer) {
+        this.cache.asMap().replace(key, oldAnswer, newAnswer);
+    }
+
+    /**
+     * Remove a stored answer, unless it was replaced since it was looked up
+     *
+     * @param key Query the answer belongs to
+     * @param answer Answer returned by lookup()
+     */
+    protected void remove(CacheKey key, CachedAnswer answer) {
+        this.cache.asMap().remove(key, answer);
+    }
+
+    /**
+     * Get the current time of this cache's clock
+     *
+     * @return Current time in milliseconds
+     */
+    long now() {
+        return TimeUnit.NANOSECONDS.toMillis(this.ticker.read());
+    }
+
+    /**
+     * Get the number of milliseconds an RRset may be cached: its TTL, clamped by the earliest RRSIG expiration
+     *
+     * @param set RRset to inspect
+     * @return Cacheable lifetime in milliseconds
+     */
+    static long ttlMillis(RRset set) {
+        long ttl = set.getTTL() * 1000;
+        long wallClock = System.currentTimeMillis();
+
+        Iterator<?> sigs = set.sigs();
+        while (sigs.hasNext()) {
+            RRSIGRecord sig = (RRSIGRecord) sigs.next();
+            ttl = Math.min(ttl, sig.getExpire().getTime() - wallClock);
+        }
+        return ttl;
+    }
+
+    /**
+     * Flatten RRsets, including their RRSIGs, into a record array
+     *
+     * @param sets RRsets to flatten
+     * @return Records and signatures of all given RRsets
+     */
+    static Record[] toRecords(RRset[] sets) {
+        List<Record> records = new ArrayList<Record>();
+        for (RRset set : sets) {
+            Iterator<?> rrs = set.rrs();
+            while (rrs.hasNext()) {
+                records.add((Record) rrs.next());
+            }
+            Iterator<?> sigs = set.sigs();
+            while (sigs.hasNext()) {
+                records.add((Record) sigs.next());
+            }
+        }
+        return records.toArray(new Record[records.size()]);
+    }
+}
@@ -0,0 +1,62 @@
+package com.netki.dnssec;
+
+import org.xbill.DNS.Name;
+
+/**
+ * Key identifying a cached DNSSEC answer by query name, type and class.
+ *
+ * CacheKey objects are immutable.
+ */
+public final class CacheKey {
+
+    private final Name name;
+    private final int type;
+    private final int dclass;
+
+    /**
+     * CacheKey Constructor
+     *
+     * @param name Query name
+     * @param type Query type (org.xbill.DNS.Type)
+     * @param dclass Query class (org.xbill.DNS.DClass)
+     */
+    public CacheKey(Name name, int type, int dclass) {
+        this.name = name;
+        this.type = type;
+        this.dclass = dclass;
+    }
+
+    public Name getName() {
+        return this.name;
+    }
+
+    public int getType() {
+        return this.type;
+    }
+
+    public int getDClass() {
+        return this.dclass;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof CacheKey)) return false;
+
+        CacheKey other = (CacheKey) o;
+        return this.type == other.type && this.dclass == other.dclass && this.name.equals(other.name);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = this.name.hashCode();
+        result = 31 * result + this.type;
+        result = 31 * result + this.dclass;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return this.name + "/" + this.type + "/" + this.dclass;
+    }
+}
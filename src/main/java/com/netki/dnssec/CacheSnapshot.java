@@ -0,0 +1,185 @@
+package com.netki.dnssec;
+
+import com.google.common.io.Files;
+import org.xbill.DNS.RRSIGRecord;
+import org.xbill.DNS.Record;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Memory-mapped snapshot file of validated answers and DNSKEY/DS keys, used to start resolvers warm after a restart.
+ *
+ * Answer deadlines are stored as wall clock times. On load, entries whose TTL or RRSIGs have expired in the meantime
+ * are skipped, and the remaining entries keep only their remaining lifetime. Snapshot contents are trusted as
+ * validated, so the file must only be writable by the resolving process.
+ */
+public class CacheSnapshot {
+
+    private static final int MAGIC = 0x444E5353;
+    private static final int VERSION = 2;
+
+    private final File file;
+
+    /**
+     * CacheSnapshot Constructor
+     *
+     * @param file Snapshot file
+     */
+    public CacheSnapshot(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Restore unexpired entries from the snapshot file. Entries already present in the caches are kept.
+     *
+     * @param answerCache AnswerCache to restore validated answers into
+     * @param keyChainCache KeyChainCache to restore DNSKEY/DS keys into
+     * @return Number of unexpired entries read (0 if the snapshot file does not exist)
+     * @throws IOException Thrown if the snapshot file cannot be read or is malformed
+     */
+    public int load(AnswerCache answerCache, KeyChainCache keyChainCache) throws IOException {
+        if (!this.file.isFile()) {
+            return 0;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (buffer.remaining() < 16 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Unsupported Cache Snapshot: " + this.file);
+            }
+
+            long wallClock = System.currentTimeMillis();
+            long answerOffset = answerCache.now() - wallClock;
+            long keyOffset = keyChainCache.now() - wallClock;
+            int restored = 0;
+
+            int answers = buffer.getInt();
+            for (int i = 0; i < answers; i++) {
+                Map.Entry<CacheKey, CachedAnswer> entry = CachedAnswerCodec.decode(buffer, answerOffset);
+                CachedAnswer answer = entry.getValue();
+                long expiresAt = Math.min(answer.getExpiresAt(), signaturesExpireAt(answer.getRecords(), answerOffset));
+                if (expiresAt < answer.getExpiresAt()) {
+                    answer = new CachedAnswer(answer.getValue(), answer.getRcode(), answer.getRecords(),
+                            answer.getStoredAt(), expiresAt, answer.getFetchMillis());
+                }
+                if (!answer.isExpired(answerCache.now())) {
+                    answerCache.restore(entry.getKey(), answer);
+                    restored++;
+                }
+            }
+
+            int keys = buffer.getInt();
+            for (int i = 0; i < keys; i++) {
+                CacheKey key = CachedAnswerCodec.readKey(buffer);
+                long expiresAt = buffer.getLong() + keyOffset;
+                Record[] records = CachedAnswerCodec.readRecords(buffer);
+                expiresAt = Math.min(expiresAt, signaturesExpireAt(records, keyOffset));
+                if (keyChainCache.now() < expiresAt) {
+                    keyChainCache.restore(key, records, expiresAt);
+                    restored++;
+                }
+            }
+            return restored;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated Cache Snapshot: " + this.file);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Write all unexpired entries of the caches to the snapshot file, replacing any previous snapshot
+     *
+     * @param answerCache AnswerCache holding validated answers
+     * @param keyChainCache KeyChainCache holding DNSKEY/DS keys
+     * @throws IOException Thrown if the snapshot file cannot be written
+     */
+    public void write(AnswerCache answerCache, KeyChainCache keyChainCache) throws IOException {
+        long wallClock = System.currentTimeMillis();
+
+        List<byte[]> answers = new ArrayList<byte[]>();
+        long answerOffset = wallClock - answerCache.now();
+        for (Map.Entry<CacheKey, CachedAnswer> entry : answerCache.entries().entrySet()) {
+            answers.add(CachedAnswerCodec.encode(entry.getKey(), entry.getValue(), answerOffset));
+        }
+
+        List<byte[]> keys = new ArrayList<byte[]>();
+        long keyOffset = wallClock - keyChainCache.now();
+        for (Map.Entry<CacheKey, KeyChainCache.Entry> entry : keyChainCache.entries().entrySet()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+            DataOutputStream out = new DataOutputStream(bytes);
+            CachedAnswerCodec.writeKey(out, entry.getKey());
+            out.writeLong(entry.getValue().expiresAt + keyOffset);
+            CachedAnswerCodec.writeRecords(out, entry.getValue().records);
+            keys.add(bytes.toByteArray());
+        }
+
+        long size = 16;
+        for (byte[] answer : answers) {
+            size += answer.length;
+        }
+        for (byte[] key : keys) {
+            size += key.length;
+        }
+
+        File tmp = new File(this.file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.setLength(size);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC).putInt(VERSION);
+            put(buffer, answers);
+            put(buffer, keys);
+            buffer.force();
+        } finally {
+            raf.close();
+        }
+
+        if (!tmp.renameTo(this.file)) {
+            Files.copy(tmp, this.file);
+            if (!tmp.delete()) {
+                tmp.deleteOnExit();
+            }
+        }
+    }
+
+    private static void put(ByteBuffer buffer, List<byte[]> entries) {
+        buffer.putInt(entries.size());
+        for (byte[] entry : entries) {
+            buffer.put(entry);
+        }
+    }
+
+    /**
+     * Get the earliest RRSIG expiration of a set of records
+     *
+     * @param records Records to inspect
+     * @param clockOffset Milliseconds added to the wall clock expiration times
+     * @return Earliest expiration, or Long.MAX_VALUE if there are no RRSIGs
+     */
+    private static long signaturesExpireAt(Record[] records, long clockOffset) {
+        long expiresAt = Long.MAX_VALUE;
+        for (Record record : records) {
+            if (record instanceof RRSIGRecord) {
+                expiresAt = Math.min(expiresAt, ((RRSIGRecord) record).getExpire().getTime() + clockOffset);
+            }
+        }
+        return expiresAt;
+    }
+}
@@ -0,0 +1,128 @@
+package com.netki.dnssec;
+
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+
+/**
+ * A DNSSEC validated answer held in an AnswerCache.
+ *
+ * Positive answers carry the resolved value. Negative answers (RFC 2308 NXDOMAIN or NODATA) carry no value, only the
+ * response code and the authority records proving the denial.
+ *
+ * CachedAnswer objects are immutable.
+ */
+public final class CachedAnswer {
+
+    private final String value;
+    private final int rcode;
+    private final Record[] records;
+    private final long storedAt;
+    private final long expiresAt;
+    private final long fetchMillis;
+    private final long staleSince;
+
+    /**
+     * CachedAnswer Constructor
+     *
+     * @param value Resolved value string returned to callers (null for negative answers)
+     * @param rcode Response code (org.xbill.DNS.Rcode) of the validated response
+     * @param records Validated records the answer was taken from
+     * @param storedAt Time (AnswerCache clock, in milliseconds) at which this answer was cached
+     * @param expiresAt Time (AnswerCache clock, in milliseconds) at which this answer expires
+     * @param fetchMillis Time in milliseconds it took to resolve and validate this answer
+     */
+    public CachedAnswer(String value, int rcode, Record[] records, long storedAt, long expiresAt, long fetchMillis) {
+        this(value, rcode, records, storedAt, expiresAt, fetchMillis, 0);
+    }
+
+    CachedAnswer(String value, int rcode, Record[] records, long storedAt, long expiresAt, long fetchMillis, long staleSince) {
+        this.value = value;
+        this.rcode = rcode;
+        this.records = records;
+        this.storedAt = storedAt;
+        this.expiresAt = expiresAt;
+        this.fetchMillis = fetchMillis;
+        this.staleSince = staleSince;
+    }
+
+    /**
+     * Create a copy of this answer to be served stale (RFC 8767) for a short time after upstream resolution failed
+     *
+     * @param now Current time (AnswerCache clock, in milliseconds)
+     * @param staleTtl Milliseconds the stale copy may be served before upstream resolution is attempted again
+     * @return Stale copy of this answer
+     */
+    public CachedAnswer asStale(long now, long staleTtl) {
+        return new CachedAnswer(this.value, this.rcode, this.records, now, now + staleTtl, this.fetchMillis, getStaleSince());
+    }
+
+    /**
+     * Is this a stale copy of an expired answer?
+     *
+     * @return Is this answer being served stale?
+     */
+    public boolean isStale() {
+        return this.staleSince != 0;
+    }
+
+    /**
+     * Get the time at which this answer's original TTL expired (for stale answers) or will expire
+     *
+     * @return Time (AnswerCache clock, in milliseconds) after which this answer is stale
+     */
+    public long getStaleSince() {
+        return isStale() ? this.staleSince : this.expiresAt;
+    }
+
+    public String getValue() {
+        return this.value;
+    }
+
+    public int getRcode() {
+        return this.rcode;
+    }
+
+    /**
+     * Is this a cached denial of existence (NXDOMAIN or NODATA)?
+     *
+     * @return Is this answer negative?
+     */
+    public boolean isNegative() {
+        return this.value == null;
+    }
+
+    /**
+     * Is this a cached NXDOMAIN?
+     *
+     * @return Does the queried name not exist?
+     */
+    public boolean isNxDomain() {
+        return this.rcode == Rcode.NXDOMAIN;
+    }
+
+    public Record[] getRecords() {
+        return this.records.clone();
+    }
+
+    public long getStoredAt() {
+        return this.storedAt;
+    }
+
+    public long getExpiresAt() {
+        return this.expiresAt;
+    }
+
+    public long getFetchMillis() {
+        return this.fetchMillis;
+    }
+
+    /**
+     * Has this answer outlived its TTL?
+     *
+     * @param now Current time (AnswerCache clock, in milliseconds)
+     * @return Is this answer expired?
+     */
+    public boolean isExpired(long now) {
+        return now >= this.expiresAt;
+    }
+}
@@ -0,0 +1,178 @@
+package com.netki.dnssec;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of cached answers and records.
+ *
+ * Records are kept in DNS wire format. Times are shifted by a clock offset while encoding and decoding, so an answer
+ * can be moved between clocks (e.g. from an AnswerCache's ticker to the wall clock of a snapshot file). All values
+ * are big-endian, matching ByteBuffer defaults.
+ */
+final class CachedAnswerCodec {
+
+    private static final int NO_VALUE = -1;
+
+    private CachedAnswerCodec() {
+    }
+
+    /**
+     * Encode a cached answer together with the query it answers
+     *
+     * @param key Query the answer belongs to
+     * @param answer Answer to encode
+     * @param clockOffset Milliseconds added to the answer's times
+     * @return Encoded answer
+     */
+    static byte[] encode(CacheKey key, CachedAnswer answer, long clockOffset) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            writeKey(out, key);
+            out.writeShort(answer.getRcode());
+            if (answer.getValue() == null) {
+                out.writeInt(NO_VALUE);
+            } else {
+                byte[] value = answer.getValue().getBytes(Charsets.UTF_8);
+                out.writeInt(value.length);
+                out.write(value);
+            }
+            out.writeLong(answer.getStoredAt() + clockOffset);
+            out.writeLong(answer.getExpiresAt() + clockOffset);
+            out.writeLong(answer.getFetchMillis());
+            out.writeLong(answer.isStale() ? answer.getStaleSince() + clockOffset : 0);
+            writeRecords(out, answer.getRecords());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode an answer written by encode()
+     *
+     * @param buffer Buffer positioned at the encoded answer, advanced past it
+     * @param clockOffset Milliseconds added to the answer's times
+     * @return Query and answer
+     * @throws IOException Thrown if the encoded answer is malformed
+     */
+    static Map.Entry<CacheKey, CachedAnswer> decode(ByteBuffer buffer, long clockOffset) throws IOException {
+        try {
+            CacheKey key = readKey(buffer);
+            int rcode = buffer.getShort() & 0xFFFF;
+            String value = null;
+            int valueLength = buffer.getInt();
+            if (valueLength != NO_VALUE) {
+                value = new String(readBytes(buffer, valueLength), Charsets.UTF_8);
+            }
+            long storedAt = buffer.getLong() + clockOffset;
+            long expiresAt = buffer.getLong() + clockOffset;
+            long fetchMillis = buffer.getLong();
+            long staleSince = buffer.getLong();
+            if (staleSince != 0) {
+                staleSince += clockOffset;
+            }
+            Record[] records = readRecords(buffer);
+            return Maps.immutableEntry(key, new CachedAnswer(value, rcode, records, storedAt, expiresAt, fetchMillis, staleSince));
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated cache entry");
+        }
+    }
+
+    /**
+     * Write a query (name, type and class)
+     *
+     * @param out Stream to write to
+     * @param key Query to write
+     * @throws IOException Thrown if the stream cannot be written
+     */
+    static void writeKey(DataOutputStream out, CacheKey key) throws IOException {
+        byte[] name = key.getName().toWire();
+        out.writeShort(name.length);
+        out.write(name);
+        out.writeShort(key.getType());
+        out.writeShort(key.getDClass());
+    }
+
+    /**
+     * Read a query written by writeKey()
+     *
+     * @param buffer Buffer positioned at the query, advanced past it
+     * @return Query
+     * @throws IOException Thrown if the query is malformed
+     */
+    static CacheKey readKey(ByteBuffer buffer) throws IOException {
+        Name name = new Name(readBytes(buffer, buffer.getShort() & 0xFFFF));
+        int type = buffer.getShort() & 0xFFFF;
+        int dclass = buffer.getShort() & 0xFFFF;
+        return new CacheKey(name, type, dclass);
+    }
+
+    /**
+     * Encode a query in canonical (lower case) form, so equal queries have equal encodings
+     *
+     * @param key Query to encode
+     * @return Encoded query
+     */
+    static byte[] canonicalKey(CacheKey key) {
+        byte[] name = key.getName().toWireCanonical();
+        byte[] bytes = new byte[name.length + 4];
+        System.arraycopy(name, 0, bytes, 0, name.length);
+        bytes[name.length] = (byte) (key.getType() >>> 8);
+        bytes[name.length + 1] = (byte) key.getType();
+        bytes[name.length + 2] = (byte) (key.getDClass() >>> 8);
+        bytes[name.length + 3] = (byte) key.getDClass();
+        return bytes;
+    }
+
+    /**
+     * Write records in DNS wire format
+     *
+     * @param out Stream to write to
+     * @param records Records to write
+     * @throws IOException Thrown if the stream cannot be written
+     */
+    static void writeRecords(DataOutputStream out, Record[] records) throws IOException {
+        out.writeShort(records.length);
+        for (Record record : records) {
+            byte[] wire = record.toWire(Section.ANSWER);
+            out.writeShort(wire.length);
+            out.write(wire);
+        }
+    }
+
+    /**
+     * Read records written by writeRecords()
+     *
+     * @param buffer Buffer positioned at the records, advanced past them
+     * @return Records
+     * @throws IOException Thrown if a record is malformed
+     */
+    static Record[] readRecords(ByteBuffer buffer) throws IOException {
+        Record[] records = new Record[buffer.getShort() & 0xFFFF];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = Record.fromWire(readBytes(buffer, buffer.getShort() & 0xFFFF), Section.ANSWER);
+        }
+        return records;
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer, int length) throws IOException {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Truncated cache entry");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
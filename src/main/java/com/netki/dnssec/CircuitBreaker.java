@@ -0,0 +1,184 @@
+package com.netki.dnssec;
+
+import com.google.common.base.Ticker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker of one upstream DNS server.
+ *
+ * While CLOSED, the outcomes of the most recent queries are kept, and the circuit opens once at least minimumQueries
+ * were sent and the ratio of failures reaches failureRatio. While OPEN, queries are sent elsewhere. Once the open
+ * duration elapses the circuit is HALF_OPEN, and at most halfOpenProbes queries at a time are let through: a failure
+ * opens the circuit again for twice as long, and halfOpenProbes successes close it. CircuitBreaker objects are thread
+ * safe.
+ */
+class CircuitBreaker {
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    static final int WINDOW = 20;
+
+    private final Ticker ticker;
+    private final long initialOpenDuration;
+    private final long maximumOpenDuration;
+    private double failureRatio;
+    private int minimumQueries;
+    private int halfOpenProbes;
+
+    private State state = State.CLOSED;
+    private final boolean[] failures = new boolean[WINDOW];
+    private int next = 0;
+    private int queries = 0;
+    private int failed = 0;
+    private long openDuration;
+    private long openUntil;
+    private int probesInFlight = 0;
+    private int probeSuccesses = 0;
+
+    /**
+     * CircuitBreaker Constructor
+     *
+     * @param ticker Time source
+     * @param failureRatio Ratio of failed queries opening the circuit, between 0 and 1
+     * @param minimumQueries Number of queries needed before the circuit can open
+     * @param halfOpenProbes Number of queries let through at a time while half-open, and of successes closing it
+     * @param initialOpenDuration Milliseconds the circuit stays open at first
+     * @param maximumOpenDuration Longest milliseconds the circuit stays open
+     */
+    CircuitBreaker(Ticker ticker, double failureRatio, int minimumQueries, int halfOpenProbes,
+                   long initialOpenDuration, long maximumOpenDuration) {
+        this.ticker = ticker;
+        this.initialOpenDuration = initialOpenDuration;
+        this.maximumOpenDuration = maximumOpenDuration;
+        this.openDuration = initialOpenDuration;
+        configure(failureRatio, minimumQueries, halfOpenProbes);
+    }
+
+    /**
+     * Change the thresholds of the circuit breaker
+     *
+     * @param failureRatio Ratio of failed queries opening the circuit, between 0 and 1
+     * @param minimumQueries Number of queries needed before the circuit can open
+     * @param halfOpenProbes Number of queries let through at a time while half-open, and of successes closing it
+     */
+    synchronized void configure(double failureRatio, int minimumQueries, int halfOpenProbes) {
+        if (failureRatio <= 0 || failureRatio > 1 || minimumQueries < 1 || minimumQueries > WINDOW || halfOpenProbes < 1) {
+            throw new IllegalArgumentException("Invalid circuit breaker thresholds");
+        }
+        this.failureRatio = failureRatio;
+        this.minimumQueries = minimumQueries;
+        this.halfOpenProbes = halfOpenProbes;
+    }
+
+    /**
+     * Get the state of the circuit, moving from OPEN to HALF_OPEN once the open duration elapsed
+     *
+     * @return State
+     */
+    synchronized State getState() {
+        if (this.state == State.OPEN && this.ticker.read() - this.openUntil >= 0) {
+            this.state = State.HALF_OPEN;
+            this.probesInFlight = 0;
+            this.probeSuccesses = 0;
+        }
+        return this.state;
+    }
+
+    /**
+     * Check whether a query may be sent, taking a probe permit while half-open. The outcome of a permitted query must
+     * be reported with onSuccess(), onFailure() or release().
+     *
+     * @return true if the query may be sent
+     */
+    synchronized boolean tryAcquire() {
+        switch (getState()) {
+            case CLOSED:
+                return true;
+            case HALF_OPEN:
+                if (this.probesInFlight < this.halfOpenProbes) {
+                    this.probesInFlight++;
+                    return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Return a probe permit without an outcome, for a cancelled query or one whose outcome says nothing about the server
+     */
+    synchronized void release() {
+        this.probesInFlight = Math.max(0, this.probesInFlight - 1);
+    }
+
+    /**
+     * Record a successful query. A success while open, from a query sent because every circuit was open, counts as a
+     * half-open probe.
+     *
+     * @return true if the circuit closed
+     */
+    synchronized boolean onSuccess() {
+        if (getState() == State.CLOSED) {
+            record(false);
+            return false;
+        }
+        release();
+        this.state = State.HALF_OPEN;
+        if (++this.probeSuccesses < this.halfOpenProbes) {
+            return false;
+        }
+        this.state = State.CLOSED;
+        this.openDuration = this.initialOpenDuration;
+        this.next = 0;
+        this.queries = 0;
+        this.failed = 0;
+        return true;
+    }
+
+    /**
+     * Record a failed query
+     *
+     * @return true if the circuit opened from CLOSED
+     */
+    synchronized boolean onFailure() {
+        switch (getState()) {
+            case CLOSED:
+                record(true);
+                if (this.queries < this.minimumQueries || this.failed < this.failureRatio * this.queries) {
+                    return false;
+                }
+                open(this.initialOpenDuration);
+                return true;
+            case HALF_OPEN:
+                open(Math.min(this.openDuration * 2, this.maximumOpenDuration));
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    private void record(boolean failure) {
+        if (this.queries == WINDOW) {
+            if (this.failures[this.next]) {
+                this.failed--;
+            }
+        } else {
+            this.queries++;
+        }
+        this.failures[this.next] = failure;
+        if (failure) {
+            this.failed++;
+        }
+        this.next = (this.next + 1) % WINDOW;
+    }
+
+    private void open(long duration) {
+        this.state = State.OPEN;
+        this.openDuration = duration;
+        this.openUntil = this.ticker.read() + TimeUnit.MILLISECONDS.toNanos(duration);
+        this.probesInFlight = 0;
+        this.probeSuccesses = 0;
+    }
+}
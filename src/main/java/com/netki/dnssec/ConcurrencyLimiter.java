@@ -0,0 +1,151 @@
+package com.netki.dnssec;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adaptive limit on the queries in flight to one upstream DNS server, following the latency gradient.
+ *
+ * Each answered query moves the limit towards limit * gradient + sqrt(limit), where the gradient is the server's
+ * no-load latency (the lowest latency of recent queries) times LATENCY_TOLERANCE over the query's latency, capped at
+ * 1. While latency stays within the tolerance the limit grows, and once queries queue up at the server the limit
+ * shrinks in proportion, so queries in flight settle near the point where the server's latency starts climbing. A
+ * query timing out shrinks the limit by BACKOFF_RATIO.
+ *
+ * Slots are handed out by strict Priority: a query never takes a slot while a query of higher priority is waiting for
+ * one, and lower priorities may only fill their capacity share of the limit. ConcurrencyLimiter objects are thread
+ * safe.
+ */
+class ConcurrencyLimiter {
+
+    static final int INITIAL_LIMIT = 20;
+    static final int MINIMUM_LIMIT = 1;
+    static final int MAXIMUM_LIMIT = 1000;
+
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double MINIMUM_GRADIENT = 0.5;
+    private static final double SMOOTHING = 0.2;
+    private static final double BACKOFF_RATIO = 0.9;
+    // Queries after which the no-load latency is re-measured, so it follows route changes
+    private static final int BASELINE_WINDOW = 100;
+
+    private double limit = INITIAL_LIMIT;
+    private int inFlight = 0;
+    private long baselineLatency = Long.MAX_VALUE;
+    private long windowMinimum = Long.MAX_VALUE;
+    private int windowSamples = 0;
+    private final int[] waiting = new int[Priority.values().length];
+
+    /**
+     * Take a slot if one is free for the given priority
+     *
+     * @param priority Priority of the query
+     * @return true if a slot was taken
+     */
+    synchronized boolean tryAcquire(Priority priority) {
+        if (!hasCapacity(priority)) {
+            return false;
+        }
+        this.inFlight++;
+        return true;
+    }
+
+    /**
+     * Take a slot, waiting for one to free up for the given priority
+     *
+     * @param priority Priority of the query
+     * @param timeoutMillis Longest time to wait in milliseconds
+     * @return true if a slot was taken, false if none freed up in time
+     * @throws InterruptedException Thrown if interrupted while waiting
+     */
+    synchronized boolean acquire(Priority priority, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.waiting[priority.ordinal()]++;
+        try {
+            while (!hasCapacity(priority)) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+            this.inFlight++;
+            return true;
+        } finally {
+            this.waiting[priority.ordinal()]--;
+            // Lower priorities may proceed once this query stops waiting
+            notifyAll();
+        }
+    }
+
+    /**
+     * Take a slot regardless of the limit, for queries that must be sent anyway
+     */
+    synchronized void forceAcquire() {
+        this.inFlight++;
+    }
+
+    /**
+     * Free the slot of a query that was answered
+     *
+     * @param latencyNanos Latency of the query in nanoseconds
+     */
+    synchronized void onSuccess(long latencyNanos) {
+        this.windowMinimum = Math.min(this.windowMinimum, latencyNanos);
+        if (++this.windowSamples >= BASELINE_WINDOW || this.baselineLatency == Long.MAX_VALUE) {
+            this.baselineLatency = this.windowMinimum;
+            this.windowMinimum = Long.MAX_VALUE;
+            this.windowSamples = 0;
+        }
+
+        double gradient = Math.max(MINIMUM_GRADIENT,
+                Math.min(1.0, LATENCY_TOLERANCE * this.baselineLatency / Math.max(1, latencyNanos)));
+        // Only grow a limit that is in use
+        double queueAllowance = this.inFlight >= this.limit / 2 ? Math.sqrt(this.limit) : 0;
+        double target = this.limit * gradient + queueAllowance;
+        this.limit = Math.max(MINIMUM_LIMIT, Math.min(MAXIMUM_LIMIT, (1 - SMOOTHING) * this.limit + SMOOTHING * target));
+        release();
+    }
+
+    /**
+     * Free the slot of a query that timed out
+     */
+    synchronized void onDropped() {
+        this.limit = Math.max(MINIMUM_LIMIT, this.limit * BACKOFF_RATIO);
+        release();
+    }
+
+    /**
+     * Free the slot of a query without adjusting the limit
+     */
+    synchronized void release() {
+        this.inFlight = Math.max(0, this.inFlight - 1);
+        notifyAll();
+    }
+
+    /**
+     * Get the current limit
+     *
+     * @return Number of queries allowed in flight
+     */
+    synchronized int getLimit() {
+        return (int) this.limit;
+    }
+
+    /**
+     * Get the number of queries in flight
+     *
+     * @return Number of queries in flight
+     */
+    synchronized int getInFlight() {
+        return this.inFlight;
+    }
+
+    private boolean hasCapacity(Priority priority) {
+        for (int i = 0; i < priority.ordinal(); i++) {
+            if (this.waiting[i] > 0) {
+                return false;
+            }
+        }
+        return this.inFlight < Math.max(MINIMUM_LIMIT, (int) (this.limit * priority.getCapacityShare()));
+    }
+}
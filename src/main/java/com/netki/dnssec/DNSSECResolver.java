@@ -1,19 +1,30 @@
 package com.netki.dnssec;
 
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.netki.dns.DNSBootstrapService;
 import com.netki.dns.DNSUtil;
 import com.netki.exceptions.DNSSECException;
+import com.netki.exceptions.DNSSECOverloadedException;
 import org.jitsi.dnssec.validator.ValidatingResolver;
 import org.xbill.DNS.*;
 
-import java.io.ByteArrayInputStream;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.UnknownHostException;
-import java.util.Arrays;
-import java.util.Iterator;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * DNSSECResolver Objects are both re-usable and thread safe.
@@ -23,9 +34,59 @@ public class DNSSECResolver {
 
     private final List<InetAddress> dnsServers;
     private SimpleResolver simpleResolver;
-    private ValidatingResolver validatingResolver;
+    private volatile ResolverShard[] shards;
+    private boolean pinned = false;
+    private volatile boolean upstreamsChanged = false;
+    private boolean pooledUdp = false;
+    private boolean persistentTcp = true;
+    private List<String> encryptedDnsServers = Collections.emptyList();
+    private SSLSocketFactory tlsSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+    private boolean iterative = false;
+    private final DelegationCache delegationCache = new DelegationCache();
+    private boolean hedging = false;
+    private double hedgePercentile = UpstreamPool.DEFAULT_HEDGE_PERCENTILE;
+    private double maximumHedgeRate = UpstreamPool.DEFAULT_MAXIMUM_HEDGE_RATE;
+    private double failureRatio = UpstreamPool.DEFAULT_FAILURE_RATIO;
+    private int halfOpenProbes = UpstreamPool.DEFAULT_HALF_OPEN_PROBES;
+    private boolean concurrencyLimiting = false;
+    private long queueTimeout = UpstreamPool.DEFAULT_QUEUE_TIMEOUT;
+    private AnswerCache answerCache = new AnswerCache();
+    private NsecCache nsecCache = new NsecCache();
+    private volatile boolean aggressiveNsec = true;
+    private TrustAnchorManager trustAnchorManager = TrustAnchorManager.getInstance();
 
-    private static final String ROOT = ". IN DS 19036 8 2 49AAC11D7B6F6446702E54A1607371607A1A41855200FD2CE1CDDE32F24E8FB5";
+    // Refresh-ahead of hot cached answers
+    private static final int REFRESH_THREADS = 2;
+    private static final int REFRESH_QUEUE_SIZE = 1000;
+    private volatile boolean refreshAhead = false;
+    private volatile double refreshAheadBeta = 1.0;
+    private Executor refreshExecutor;
+    private final ConcurrentMap<CacheKey, Boolean> refreshing = new ConcurrentHashMap<CacheKey, Boolean>();
+
+    // Workers resolving cache misses for resolveAsync()
+    public static final int DEFAULT_ASYNC_THREADS = 64;
+    private int asyncThreads = DEFAULT_ASYNC_THREADS;
+    private Executor asyncExecutor;
+
+    // Workers resolving cache misses for resolveAll()
+    public static final int DEFAULT_BATCH_IN_FLIGHT = 64;
+    private Executor batchExecutor;
+
+    // Single-flight: concurrent misses for the same query share one upstream resolution
+    private final ConcurrentMap<CacheKey, Flight> inFlight = new ConcurrentHashMap<CacheKey, Flight>();
+    private final AtomicLong coalescedRequests = new AtomicLong();
+
+    // Serve-stale (RFC 8767)
+    private static final long STALE_ANSWER_TTL = TimeUnit.SECONDS.toMillis(30);
+    private volatile long maximumStaleness = 0;
+
+    // Name of the upstream resolving from the root name servers, see setIterative()
+    public static final String ITERATIVE_SERVER = "iterative";
+
+    // Persistent cache snapshots
+    public static final long DEFAULT_SNAPSHOT_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+    private CacheSnapshot cacheSnapshot;
+    private ScheduledExecutorService snapshotScheduler;
 
     // Setup Backup DNS Server List with Google Public DNS Servers as defaults
     private List<String> backupDnsServers = Arrays.asList("8.8.8.8", "8.8.4.4");
@@ -42,39 +103,651 @@ public class DNSSECResolver {
 
         this.selectedDnsServer = this.dnsServers.get(0).getHostAddress();
         this.simpleResolver = new SimpleResolver(this.selectedDnsServer);
-        this.validatingResolver = new ValidatingResolver(this.simpleResolver);
+        this.shards = new ResolverShard[]{new ResolverShard(configure(newUpstreamPool()))};
+    }
+
+    /**
+     * DNSSECResolver Constructor, restoring cached answers and keys from a snapshot file that is kept up to date
+     * every 5 minutes
+     *
+     * @param dnsBootstrapService DNSBootstrapService to provide DNS servers for lookups
+     * @param cacheSnapshotFile Cache snapshot file (see setCacheSnapshot())
+     * @throws UnknownHostException Thrown if system DNS servers are not available or invalid
+     */
+    public DNSSECResolver(DNSBootstrapService dnsBootstrapService, File cacheSnapshotFile) throws UnknownHostException {
+        this(dnsBootstrapService);
+        setCacheSnapshot(cacheSnapshotFile, DEFAULT_SNAPSHOT_INTERVAL);
     }
 
     /**
      * Set SimpleResolver to use (used for unit testing)
+     *
+     * Unless encrypted DNS servers are set or resolution is iterative, all queries are sent to the SimpleResolver's
+     * server, instead of the pool of system and backup DNS servers. The ValidatingResolver, and the DNSKEY/DS keys it
+     * has already validated, are kept. With persistent TCP enabled, the SimpleResolver is set to ignore truncation and
+     * truncated responses are retried over a persistent connection.
+     *
      * @param sr SimpleResolver to use
      */
-    public void setSimpleResolver(SimpleResolver sr) {
+    public synchronized void setSimpleResolver(SimpleResolver sr) {
         this.simpleResolver = sr;
-        this.validatingResolver = new ValidatingResolver(sr);
+        this.pinned = true;
+        rebuildUpstreamPools();
+    }
+
+    /**
+     * Send queries to DNS servers over pools of long-lived UDP channels (see DatagramTransport) instead of a new UDP
+     * socket per query
+     *
+     * @param pooledUdp Whether to use pooled UDP channels
+     */
+    public synchronized void setPooledUdp(boolean pooledUdp) {
+        this.pooledUdp = pooledUdp;
+        rebuildUpstreamPools();
+    }
+
+    /**
+     * Retry truncated responses over a persistent, pipelined TCP connection to each DNS server (see TcpTransport)
+     * instead of a new TCP connection per truncated response. Enabled by default; pooled UDP channels always use a
+     * persistent TCP connection.
+     *
+     * @param persistentTcp Whether to keep persistent TCP connections
+     */
+    public synchronized void setPersistentTcp(boolean persistentTcp) {
+        this.persistentTcp = persistentTcp;
+        if (!persistentTcp) {
+            this.simpleResolver.setIgnoreTruncation(false);
+        }
+        rebuildUpstreamPools();
+    }
+
+    /**
+     * Send all queries to DNS servers over encrypted transports instead of the system and backup DNS servers, given
+     * as URIs: tls://host[:port] for DNS-over-TLS (see TlsTransport), authenticating the server by host, and
+     * https://host[:port]/path for DNS-over-HTTPS (see HttpsTransport). Plain http URIs are only accepted for loopback
+     * servers. Queries never fall back to unencrypted servers while encrypted servers are set; an empty list restores
+     * the system and backup DNS servers.
+     *
+     * @param encryptedDnsServers List of DNS server URIs
+     */
+    public synchronized void setEncryptedDnsServers(List<String> encryptedDnsServers) {
+        for (String server : encryptedDnsServers) {
+            encryptedServerUri(server);
+        }
+        this.encryptedDnsServers = Collections.unmodifiableList(new ArrayList<String>(encryptedDnsServers));
+        rebuildUpstreamPools();
+    }
+
+    /**
+     * Get Encrypted DNS Server List
+     * @return List of DNS server URIs, empty if queries go to the system and backup DNS servers
+     */
+    public synchronized List<String> getEncryptedDnsServers() {
+        return this.encryptedDnsServers;
+    }
+
+    /**
+     * Set SSLSocketFactory opening DNS-over-TLS and DNS-over-HTTPS connections, e.g. trusting a private CA (used for
+     * unit testing)
+     *
+     * @param tlsSocketFactory SSLSocketFactory to use
+     */
+    public synchronized void setTlsSocketFactory(SSLSocketFactory tlsSocketFactory) {
+        this.tlsSocketFactory = tlsSocketFactory;
+        rebuildUpstreamPools();
+    }
+
+    /**
+     * Resolve queries iteratively from the root name servers (see IterativeResolver) instead of through the system
+     * and backup DNS servers. Delegations, name server addresses and round-trip times are kept in a DelegationCache
+     * shared by all shards, so once warm a lookup under a known zone is one query to the zone's closest name server.
+     * Encrypted DNS servers take precedence. Disabled by default.
+     *
+     * @param iterative Whether to resolve iteratively
+     */
+    public synchronized void setIterative(boolean iterative) {
+        this.iterative = iterative;
+        rebuildUpstreamPools();
+    }
+
+    /**
+     * Get the DelegationCache used when resolving iteratively
+     *
+     * @return DelegationCache in use
+     */
+    public DelegationCache getDelegationCache() {
+        return this.delegationCache;
+    }
+
+    /**
+     * Hedge slow DNS queries: a query not answered within the hedge percentile of recent query latencies is also sent
+     * to the next best DNS server, and the first usable answer is used. Disabled by default.
+     *
+     * @param hedging Whether to hedge slow queries
+     */
+    public synchronized void setHedging(boolean hedging) {
+        this.hedging = hedging;
+        for (ResolverShard shard : this.shards) {
+            shard.getUpstreamPool().setHedging(this.hedging, this.hedgePercentile, this.maximumHedgeRate);
+        }
+    }
+
+    /**
+     * Set the percentile of recent query latencies after which a query is hedged (default 0.95)
+     *
+     * @param hedgePercentile Percentile between 0 and 1
+     */
+    public synchronized void setHedgePercentile(double hedgePercentile) {
+        for (ResolverShard shard : this.shards) {
+            shard.getUpstreamPool().setHedging(this.hedging, hedgePercentile, this.maximumHedgeRate);
+        }
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    /**
+     * Set the largest fraction of queries that may be hedged (default 0.05)
+     *
+     * @param maximumHedgeRate Fraction between 0 and 1
+     */
+    public synchronized void setMaximumHedgeRate(double maximumHedgeRate) {
+        for (ResolverShard shard : this.shards) {
+            shard.getUpstreamPool().setHedging(this.hedging, this.hedgePercentile, maximumHedgeRate);
+        }
+        this.maximumHedgeRate = maximumHedgeRate;
+    }
+
+    /**
+     * Set the thresholds of the DNS servers' circuit breakers (see CircuitBreaker)
+     *
+     * @param failureRatio Ratio of a server's recent queries failing that stops queries to it (default 0.5)
+     * @param halfOpenProbes Number of queries let through at a time to a stopped server once its circuit is half-open,
+     * and of successes resuming queries to it (default 3)
+     */
+    public synchronized void setCircuitBreaker(double failureRatio, int halfOpenProbes) {
+        for (ResolverShard shard : this.shards) {
+            shard.getUpstreamPool().setCircuitBreaker(failureRatio, halfOpenProbes);
+        }
+        this.failureRatio = failureRatio;
+        this.halfOpenProbes = halfOpenProbes;
+    }
+
+    /**
+     * Limit the queries in flight to each DNS server adaptively, from the servers' latency (see ConcurrencyLimiter).
+     * Queries exceeding the limits wait up to the queue timeout, and then fail with a DNSSECOverloadedException.
+     * Disabled by default.
+     *
+     * @param concurrencyLimiting Whether to limit queries in flight
+     */
+    public synchronized void setConcurrencyLimiting(boolean concurrencyLimiting) {
+        this.concurrencyLimiting = concurrencyLimiting;
+        for (ResolverShard shard : this.shards) {
+            shard.getUpstreamPool().setConcurrencyLimiting(this.concurrencyLimiting, this.queueTimeout);
+        }
+    }
+
+    /**
+     * Set the longest time a query waits for a DNS server below its concurrency limit (default 1 second)
+     *
+     * @param queueTimeout Milliseconds, 0 to fail right away
+     */
+    public synchronized void setQueueTimeout(long queueTimeout) {
+        for (ResolverShard shard : this.shards) {
+            shard.getUpstreamPool().setConcurrencyLimiting(this.concurrencyLimiting, queueTimeout);
+        }
+        this.queueTimeout = queueTimeout;
+    }
+
+    /**
+     * Split resolution over independent shards, each with its own DNS server transports (UpstreamPool) and
+     * ValidatingResolver, so lookups on many cores do not contend on one transport and validator. Shards share only
+     * the answer, NSEC, DNSKEY/DS key and trust anchor caches, which are thread safe. A lookup is sent through the
+     * shard of its parent zone (see resolveAll()), so each zone's keys are validated once per shard. Defaults to 1
+     * shard; shards already in use keep their state.
+     *
+     * @param shards Number of shards, for example the number of cores
+     */
+    public synchronized void setShards(int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        ResolverShard[] previous = this.shards;
+        ResolverShard[] resized = new ResolverShard[shards];
+        for (int i = 0; i < shards; i++) {
+            resized[i] = i < previous.length ? previous[i] : new ResolverShard(configure(newUpstreamPool()));
+        }
+        this.shards = resized;
+        for (int i = shards; i < previous.length; i++) {
+            previous[i].close();
+        }
+    }
+
+    /**
+     * Get the number of shards
+     *
+     * @return Number of shards
+     */
+    public int getShards() {
+        return this.shards.length;
+    }
+
+    /**
+     * Get the pool of DNS servers queries are sent to, of the first shard
+     *
+     * @return UpstreamPool in use
+     */
+    public synchronized UpstreamPool getUpstreamPool() {
+        return this.shards[0].getUpstreamPool();
+    }
+
+    /**
+     * Send queries of every shard to a new pool of DNS servers, closing the previous pools
+     */
+    private synchronized void rebuildUpstreamPools() {
+        for (ResolverShard shard : this.shards) {
+            shard.setUpstreamPool(configure(newUpstreamPool()));
+        }
+    }
+
+    /**
+     * Apply the hedging, circuit breaker and concurrency limit settings to a new pool of DNS servers
+     *
+     * @param upstreamPool UpstreamPool to configure
+     * @return upstreamPool
+     */
+    private UpstreamPool configure(UpstreamPool upstreamPool) {
+        upstreamPool.setHedging(this.hedging, this.hedgePercentile, this.maximumHedgeRate);
+        upstreamPool.setCircuitBreaker(this.failureRatio, this.halfOpenProbes);
+        upstreamPool.setConcurrencyLimiting(this.concurrencyLimiting, this.queueTimeout);
+        return upstreamPool;
+    }
+
+    /**
+     * Get the shard resolving a name
+     *
+     * @param name Name being resolved
+     * @return ResolverShard
+     */
+    private ResolverShard shardFor(Name name) {
+        ResolverShard[] shards = this.shards;
+        if (shards.length == 1) {
+            return shards[0];
+        }
+        return shards[(batchZone(name).hashCode() & Integer.MAX_VALUE) % shards.length];
+    }
+
+    /**
+     * Create the pool of DNS servers: the SimpleResolver's server if one was set, otherwise the system DNS servers
+     * followed by the backup DNS servers
+     *
+     * @return UpstreamPool
+     */
+    private UpstreamPool newUpstreamPool() {
+        Map<String, Resolver> servers = new LinkedHashMap<String, Resolver>();
+        if (!this.encryptedDnsServers.isEmpty()) {
+            for (String server : this.encryptedDnsServers) {
+                servers.put(server, encryptedResolver(encryptedServerUri(server)));
+            }
+            return new UpstreamPool(servers);
+        }
+        if (this.iterative) {
+            servers.put(ITERATIVE_SERVER, new IterativeResolver(this.delegationCache));
+            return new UpstreamPool(servers);
+        }
+        if (this.pinned) {
+            servers.put(this.selectedDnsServer, upstreamResolver(this.simpleResolver, false));
+            return new UpstreamPool(servers);
+        }
+
+        List<String> names = new ArrayList<String>();
+        for (InetAddress dnsServer : this.dnsServers) {
+            names.add(dnsServer.getHostAddress());
+        }
+        names.addAll(this.backupDnsServers);
+        for (String name : names) {
+            if (!servers.containsKey(name)) {
+                try {
+                    servers.put(name, upstreamResolver(new SimpleResolver(name), true));
+                } catch (UnknownHostException ignore) {
+                }
+            }
+        }
+        if (servers.isEmpty()) {
+            servers.put(this.selectedDnsServer, upstreamResolver(this.simpleResolver, false));
+        }
+        return new UpstreamPool(servers);
+    }
+
+    /**
+     * Get the Resolver used to reach an encrypted DNS server
+     *
+     * @param uri DNS server URI (see setEncryptedDnsServers())
+     * @return TlsTransport or HttpsTransport for the server
+     */
+    private Resolver encryptedResolver(URI uri) {
+        if ("tls".equals(uri.getScheme())) {
+            String host = uri.getHost().replace("[", "").replace("]", "");
+            int port = uri.getPort() != -1 ? uri.getPort() : TlsTransport.DEFAULT_PORT;
+            return new TlsTransport(new InetSocketAddress(host, port), host, this.tlsSocketFactory,
+                    TcpTransport.DEFAULT_IDLE_TIMEOUT);
+        }
+        try {
+            return new HttpsTransport(uri.toURL(), this.tlsSocketFactory);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid DNS server URI: " + uri);
+        }
+    }
+
+    /**
+     * Parse an encrypted DNS server URI
+     *
+     * @param server DNS server URI (see setEncryptedDnsServers())
+     * @return Parsed URI
+     * @throws IllegalArgumentException Thrown if the URI is invalid or not an encrypted transport
+     */
+    static URI encryptedServerUri(String server) {
+        URI uri = URI.create(server);
+        if (uri.getHost() == null) {
+            throw new IllegalArgumentException("DNS server URI has no host: " + server);
+        }
+        String scheme = uri.getScheme();
+        if ("http".equals(scheme)) {
+            if (!HttpsTransport.isLoopbackHost(uri.getHost())) {
+                throw new IllegalArgumentException("Unencrypted DNS server URI: " + server);
+            }
+        } else if (!"tls".equals(scheme) && !"https".equals(scheme)) {
+            throw new IllegalArgumentException("Unsupported DNS server URI: " + server);
+        }
+        return uri;
+    }
+
+    /**
+     * Get the Resolver used to reach the server of a SimpleResolver
+     *
+     * @param sr SimpleResolver for a DNS server
+     * @param owned Whether sr was created with default settings for the pool, so it may be replaced by a
+     * SimpleTransport giving each query its own timeout. A SimpleResolver set with setSimpleResolver() is used as is.
+     * @return DatagramTransport for the server if pooled UDP is enabled and its channels can be opened, otherwise sr or
+     * its SimpleTransport, retrying truncated responses over a TcpTransport if persistent TCP is enabled
+     */
+    private Resolver upstreamResolver(SimpleResolver sr, boolean owned) {
+        if (this.pooledUdp) {
+            try {
+                return new DatagramTransport(sr.getAddress(), DatagramTransport.DEFAULT_CHANNELS,
+                        DatagramTransport.DEFAULT_QUERIES_PER_CHANNEL);
+            } catch (IOException ignore) {
+            }
+        }
+        Resolver udp = owned ? new SimpleTransport(sr.getAddress()) : sr;
+        if (this.persistentTcp) {
+            return new TcpFallbackResolver(udp, new TcpTransport(sr.getAddress(), TcpTransport.DEFAULT_IDLE_TIMEOUT));
+        }
+        return udp;
+    }
+
+    /**
+     * Send queries of every shard to a pool of DNS servers (used for unit testing)
+     *
+     * @param upstreamPool UpstreamPool to use, only one shard may use it
+     */
+    synchronized void setUpstreamPool(UpstreamPool upstreamPool) {
+        if (this.shards.length != 1) {
+            throw new IllegalStateException("UpstreamPool can only be set on one shard");
+        }
+        this.shards[0].setUpstreamPool(upstreamPool);
     }
 
     /**
      * Set ValidatingResolver to use (used for unit testing)
      * @param vr ValidatingResolver to use
      */
-    public void setValidatingResolver(ValidatingResolver vr) {
-        this.validatingResolver = vr;
+    public synchronized void setValidatingResolver(ValidatingResolver vr) {
+        for (ResolverShard shard : this.shards) {
+            shard.setValidatingResolver(vr);
+        }
+    }
+
+    /**
+     * Set AnswerCache to use for validated answers
+     * @param answerCache AnswerCache to use
+     */
+    public void setAnswerCache(AnswerCache answerCache) {
+        answerCache.setStaleRetention(this.maximumStaleness);
+        this.answerCache = answerCache;
+    }
+
+    /**
+     * Get AnswerCache used for validated answers
+     * @return AnswerCache in use
+     */
+    public AnswerCache getAnswerCache() {
+        return this.answerCache;
+    }
+
+    /**
+     * Get the number of requests that were answered by joining an identical query already being resolved upstream,
+     * instead of sending their own
+     * @return Number of coalesced requests
+     */
+    public long getCoalescedRequests() {
+        return this.coalescedRequests.get();
+    }
+
+    /**
+     * Get the number of distinct queries currently being resolved upstream
+     * @return Number of in-flight queries
+     */
+    public int getInFlightQueries() {
+        return this.inFlight.size();
+    }
+
+    /**
+     * Set NsecCache holding validated NSEC/NSEC3 records (used for unit testing)
+     * @param nsecCache NsecCache to use
+     */
+    public void setNsecCache(NsecCache nsecCache) {
+        this.nsecCache = nsecCache;
+    }
+
+    /**
+     * Enable or disable aggressive use of validated NSEC/NSEC3 records (RFC 8198), enabled by default
+     *
+     * When enabled, queries for names that the denial proofs of earlier NXDOMAIN or NODATA answers already cover are
+     * answered locally, without an upstream query.
+     *
+     * @param aggressiveNsec Synthesize negative answers from cached NSEC/NSEC3 records?
+     */
+    public void setAggressiveNsec(boolean aggressiveNsec) {
+        this.aggressiveNsec = aggressiveNsec;
+    }
+
+    /**
+     * Enable or disable refresh-ahead of cached answers
+     *
+     * When enabled, a cache hit on an answer nearing expiration may re-resolve it in the background, so popular
+     * names are refreshed before they expire instead of making a caller wait for a full DNSSEC resolution.
+     *
+     * @param refreshAhead Refresh hot answers ahead of expiration?
+     */
+    public void setRefreshAhead(boolean refreshAhead) {
+        this.refreshAhead = refreshAhead;
+    }
+
+    /**
+     * Set refresh-ahead eagerness
+     * @param beta Refresh eagerness (default 1.0, larger values refresh earlier)
+     */
+    public void setRefreshAheadBeta(double beta) {
+        this.refreshAheadBeta = beta;
+    }
+
+    /**
+     * Set Executor running background refreshes (used for unit testing)
+     * @param executor Executor to use
+     */
+    public synchronized void setRefreshExecutor(Executor executor) {
+        this.refreshExecutor = executor;
+    }
+
+    /**
+     * Set Executor resolving cache misses for resolveAsync() (defaults to a pool of daemon threads, see
+     * setAsyncThreads())
+     * @param executor Executor to use
+     */
+    public synchronized void setAsyncExecutor(Executor executor) {
+        this.asyncExecutor = executor;
+    }
+
+    /**
+     * Set the number of cache misses resolveAsync() resolves at once, when using the default Executor. Each miss holds
+     * a worker thread while the ValidatingResolver, which validates synchronously, runs; further misses queue until a
+     * worker is free. Idle workers exit. Defaults to DEFAULT_ASYNC_THREADS.
+     *
+     * @param asyncThreads Number of worker threads
+     */
+    public synchronized void setAsyncThreads(int asyncThreads) {
+        if (asyncThreads < 1) {
+            throw new IllegalArgumentException("At least one worker thread is required");
+        }
+        this.asyncThreads = asyncThreads;
+        if (this.asyncExecutor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) this.asyncExecutor;
+            if (asyncThreads > pool.getMaximumPoolSize()) {
+                pool.setMaximumPoolSize(asyncThreads);
+                pool.setCorePoolSize(asyncThreads);
+            } else {
+                pool.setCorePoolSize(asyncThreads);
+                pool.setMaximumPoolSize(asyncThreads);
+            }
+        }
+    }
+
+    /**
+     * Set Executor resolving cache misses for resolveAll() (defaults to a cached pool of daemon threads)
+     * @param executor Executor to use
+     */
+    public synchronized void setBatchExecutor(Executor executor) {
+        this.batchExecutor = executor;
+    }
+
+    /**
+     * Enable serve-stale (RFC 8767)
+     *
+     * When upstream resolution fails (timeout, SERVFAIL or validation failure), the last validated answer is returned
+     * if it expired less than maximumStaleness milliseconds ago. A stale answer is then served for 30 seconds without
+     * contacting upstream, while refresh attempts continue in the background.
+     *
+     * @param maximumStaleness Maximum milliseconds past expiration an answer may be served (0 disables serve-stale)
+     */
+    public void setServeStale(long maximumStaleness) {
+        this.maximumStaleness = maximumStaleness;
+        this.answerCache.setStaleRetention(maximumStaleness);
+    }
+
+    /**
+     * Persist validated answers and DNSKEY/DS keys to a memory-mapped snapshot file, so a restarted process resumes
+     * with a warm cache.
+     *
+     * Unexpired entries are restored from the file immediately (a missing or unreadable file is ignored), and the
+     * file is rewritten every snapshotInterval milliseconds. The file is trusted as validated, so it must only be
+     * writable by this process.
+     *
+     * @param file Cache snapshot file
+     * @param snapshotInterval Milliseconds between snapshots
+     */
+    public synchronized void setCacheSnapshot(File file, long snapshotInterval) {
+        stopCacheSnapshots();
+        this.cacheSnapshot = new CacheSnapshot(file);
+        try {
+            this.cacheSnapshot.load(this.answerCache, KeyChainCache.getInstance());
+        } catch (IOException ignore) {
+            // Start cold, the next snapshot replaces the file
+        }
+
+        this.snapshotScheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("dnssec-cache-snapshot").build()
+        );
+        this.snapshotScheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeCacheSnapshot();
+                } catch (IOException ignore) {
+                    // Retried at the next interval
+                }
+            }
+        }, snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write a cache snapshot now (e.g. before shutdown)
+     *
+     * @throws IOException Thrown if the snapshot file cannot be written
+     */
+    public void writeCacheSnapshot() throws IOException {
+        CacheSnapshot snapshot;
+        synchronized (this) {
+            snapshot = this.cacheSnapshot;
+        }
+        if (snapshot != null) {
+            snapshot.write(this.answerCache, KeyChainCache.getInstance());
+        }
+    }
+
+    /**
+     * Stop periodic cache snapshots
+     */
+    public synchronized void stopCacheSnapshots() {
+        if (this.snapshotScheduler != null) {
+            this.snapshotScheduler.shutdownNow();
+            this.snapshotScheduler = null;
+        }
+    }
+
+    /**
+     * Close the DNS server transports of every shard
+     */
+    public synchronized void close() {
+        for (ResolverShard shard : this.shards) {
+            shard.close();
+        }
+    }
+
+    /**
+     * Set TrustAnchorManager providing the trust anchors used for validation
+     * @param trustAnchorManager TrustAnchorManager to use
+     */
+    public void setTrustAnchorManager(TrustAnchorManager trustAnchorManager) {
+        this.trustAnchorManager = trustAnchorManager;
+    }
+
+    /**
+     * Get TrustAnchorManager providing the trust anchors used for validation
+     * @return TrustAnchorManager in use
+     */
+    public TrustAnchorManager getTrustAnchorManager() {
+        return this.trustAnchorManager;
     }
 
     /**
      * Get Selected DNS Server
-     * @return IP Address String of Selected DNS Server
+     * @return IP Address String of the best ranked DNS Server (or its URI, see setEncryptedDnsServers(), or
+     * ITERATIVE_SERVER, see setIterative()), or of the server set with useBackupDnsServer()
      */
-    public String getSelectedDnsServer() {
-        return this.selectedDnsServer;
+    public synchronized String getSelectedDnsServer() {
+        if ((this.pinned && this.encryptedDnsServers.isEmpty() && !this.iterative) || this.shards == null) {
+            return this.selectedDnsServer;
+        }
+        return this.shards[0].getUpstreamPool().getRankedServers().get(0);
     }
 
     /**
-     * Set Backup Server List
+     * Set Backup Server List, used after the system DNS servers
      * @param backupDnsServers List of Strings containing backup DNS server IP addresses
      */
-    public void setBackupDnsServers(List<String> backupDnsServers) { this.backupDnsServers = backupDnsServers; }
+    public void setBackupDnsServers(List<String> backupDnsServers) {
+        this.backupDnsServers = backupDnsServers;
+        this.upstreamsChanged = true;
+    }
 
     /**
      * Get Backup DNS Server List
@@ -83,22 +756,28 @@ public class DNSSECResolver {
     public List<String> getBackupDnsServers() { return this.backupDnsServers; }
 
     /**
-     * Use Backup DNS Server identified by index
+     * Use Backup DNS Server identified by index for all queries
      * @param index of backup DNS server
+     * @deprecated Queries fail over between the system and backup DNS servers by themselves (see UpstreamPool)
      */
+    @Deprecated
     public void useBackupDnsServer(int index) {
         this.selectedDnsServer = backupDnsServers.get(index);
 
         try {
-            this.simpleResolver = new SimpleResolver(this.selectedDnsServer);
+            setSimpleResolver(new SimpleResolver(this.selectedDnsServer));
         } catch (UnknownHostException ignore) {
         }
-        this.validatingResolver = new ValidatingResolver(this.simpleResolver);
     }
 
     /**
      * Resolve a DNS label of type type (types can be found here: org.xbill.DNS.Type) using DNSSEC
      *
+     * Validated answers are cached for their TTL, so repeated lookups are answered without a network round-trip.
+     * Validated NXDOMAIN and NODATA answers are cached for the SOA minimum TTL (RFC 2308), and their NSEC/NSEC3
+     * records are used to answer queries for other names they prove do not exist (RFC 8198). Concurrent lookups of
+     * the same label and type share one upstream query and its result or error.
+     *
      * @param label - DNS label to resolve using DNSSEC
      * @param type - Integer of DNS RR Type (org.xbill.DNS.Type)
      * @return Resulting value string
@@ -106,46 +785,677 @@ public class DNSSECResolver {
      */
     public String resolve(String label, int type) throws DNSSECException {
 
-        // Setup Resolver
+        return resolve(label, type, Priority.INTERACTIVE);
+    }
+
+    /**
+     * Resolve a DNS label of type type using DNSSEC, with the given priority once the DNS servers' concurrency limits
+     * are reached
+     *
+     * @param label - DNS label to resolve using DNSSEC
+     * @param type - Integer of DNS RR Type (org.xbill.DNS.Type)
+     * @param priority Priority of the lookup
+     * @return Resulting value string
+     * @throws DNSSECException Exception thrown with appropriate message to determine the problem that occurred
+     * @see #resolve(String, int)
+     */
+    public String resolve(String label, int type, Priority priority) throws DNSSECException {
+        Priority previous = Priority.enter(priority);
         try {
-            this.validatingResolver.loadTrustAnchors(new ByteArrayInputStream(ROOT.getBytes("ASCII")));
-        } catch (UnknownHostException e) {
-            throw new DNSSECException("Unknown DNS Host: " + this.selectedDnsServer);
-        } catch (UnsupportedEncodingException e) {
-            throw new DNSSECException("Unsupported Trust Anchor Encoding");
-        } catch (IOException e) {
-            throw new DNSSECException("Resolver Creation Exception: " + e.getMessage());
+            return resolve(new CacheKey(Name.fromConstantString(DNSUtil.ensureDot(label)), type, DClass.IN));
+        } finally {
+            Priority.enter(previous);
         }
+    }
 
-        try {
-            Record qr = Record.newRecord(Name.fromConstantString(DNSUtil.ensureDot(label)), type, DClass.IN);
-            Message response = this.validatingResolver.send(Message.newQuery(qr));
-
-            if (response.getHeader().getFlag(Flags.AD) && response.getRcode() == Rcode.NOERROR) {
-                for (RRset set : response.getSectionRRsets(Section.ANSWER)) {
-                    Iterator<?> iter = set.rrs();
-                    while(iter.hasNext()) {
-                        Record record = (Record)iter.next();
-                        if (record.getType() == type) {
-                            return record.rdataToString().replace("\"","");
+    /**
+     * Resolve many DNS labels of type type using DNSSEC, with up to 64 queries in flight at once
+     *
+     * @param labels DNS labels to resolve using DNSSEC
+     * @param type Integer of DNS RR Type (org.xbill.DNS.Type)
+     * @return Result of each distinct label, in the order given
+     * @throws InterruptedException Thrown if the calling thread is interrupted while waiting for results
+     * @see #resolveAll(Collection, int, int)
+     */
+    public Map<String, ResolveResult> resolveAll(Collection<String> labels, int type) throws InterruptedException {
+        return resolveAll(labels, type, DEFAULT_BATCH_IN_FLIGHT);
+    }
+
+    /**
+     * Resolve many DNS labels of type type using DNSSEC, concurrently
+     *
+     * Cached answers are returned without a query. One label under each parent zone (the label's parent, ignoring
+     * leading underscore labels such as _btc._wallet) is resolved first, so each zone's DNSKEY and DS records are
+     * fetched and validated once and reused by the rest of the batch, along with NSEC/NSEC3 records proving other
+     * labels do not exist. The remaining labels are then resolved. Labels are resolved with BULK priority.
+     *
+     * @param labels DNS labels to resolve using DNSSEC
+     * @param type Integer of DNS RR Type (org.xbill.DNS.Type)
+     * @param maxInFlight Maximum number of labels being resolved at once
+     * @return Result of each distinct label, in the order given
+     * @throws InterruptedException Thrown if the calling thread is interrupted while waiting for results
+     */
+    public Map<String, ResolveResult> resolveAll(Collection<String> labels, int type, int maxInFlight) throws InterruptedException {
+        return resolveAll(labels, type, maxInFlight, Priority.BULK);
+    }
+
+    /**
+     * Resolve many DNS labels of type type using DNSSEC, concurrently, with the given priority once the DNS servers'
+     * concurrency limits are reached
+     *
+     * @param labels DNS labels to resolve using DNSSEC
+     * @param type Integer of DNS RR Type (org.xbill.DNS.Type)
+     * @param maxInFlight Maximum number of labels being resolved at once
+     * @param priority Priority of the lookups
+     * @return Result of each distinct label, in the order given
+     * @throws InterruptedException Thrown if the calling thread is interrupted while waiting for results
+     * @see #resolveAll(Collection, int, int)
+     */
+    public Map<String, ResolveResult> resolveAll(Collection<String> labels, int type, int maxInFlight, Priority priority)
+            throws InterruptedException {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+
+        Map<String, CacheKey> cacheKeys = new LinkedHashMap<String, CacheKey>();
+        ConcurrentMap<String, ResolveResult> results = new ConcurrentHashMap<String, ResolveResult>();
+        List<String> leaders = new ArrayList<String>();
+        List<String> followers = new ArrayList<String>();
+        Set<Name> zones = new HashSet<Name>();
+
+        for (String label : labels) {
+            if (cacheKeys.containsKey(label)) {
+                continue;
+            }
+            CacheKey cacheKey = new CacheKey(Name.fromConstantString(DNSUtil.ensureDot(label)), type, DClass.IN);
+            cacheKeys.put(label, cacheKey);
+
+            CachedAnswer cached = cachedAnswer(cacheKey);
+            if (cached != null) {
+                try {
+                    results.put(label, ResolveResult.success(cachedValue(cached)));
+                } catch (DNSSECException e) {
+                    results.put(label, ResolveResult.failure(e));
+                }
+            } else if (zones.add(batchZone(cacheKey.getName()))) {
+                leaders.add(label);
+            } else {
+                followers.add(label);
+            }
+        }
+
+        resolveBatch(leaders, cacheKeys, maxInFlight, priority, results);
+        resolveBatch(followers, cacheKeys, maxInFlight, priority, results);
+
+        Map<String, ResolveResult> ordered = new LinkedHashMap<String, ResolveResult>();
+        for (String label : cacheKeys.keySet()) {
+            ordered.put(label, results.get(label));
+        }
+        return ordered;
+    }
+
+    /**
+     * Resolve labels on the batch Executor, with at most maxInFlight resolving at once, and wait for all of them
+     *
+     * @param labels Labels to resolve
+     * @param cacheKeys Query of each label
+     * @param maxInFlight Maximum number of labels being resolved at once
+     * @param priority Priority of the lookups
+     * @param results Map the result of each label is put in
+     * @throws InterruptedException Thrown if the calling thread is interrupted while waiting for results
+     */
+    private void resolveBatch(List<String> labels, Map<String, CacheKey> cacheKeys, int maxInFlight,
+                              final Priority priority, final ConcurrentMap<String, ResolveResult> results)
+            throws InterruptedException {
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        final CountDownLatch done = new CountDownLatch(labels.size());
+        Executor executor = getBatchExecutor();
+
+        for (final String label : labels) {
+            final CacheKey cacheKey = cacheKeys.get(label);
+            inFlight.acquire();
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Priority previous = Priority.enter(priority);
+                        try {
+                            results.put(label, ResolveResult.success(resolve(cacheKey)));
+                        } catch (DNSSECException e) {
+                            results.put(label, ResolveResult.failure(e));
+                        } catch (RuntimeException e) {
+                            results.put(label, ResolveResult.failure(new DNSSECException("DNSSEC Lookup Failure: " + e.getMessage())));
+                        } finally {
+                            Priority.enter(previous);
+                            inFlight.release();
+                            done.countDown();
                         }
                     }
+                });
+            } catch (RejectedExecutionException e) {
+                results.put(label, ResolveResult.failure(new DNSSECException("DNSSEC Lookup Failure: " + e.getMessage())));
+                inFlight.release();
+                done.countDown();
+            }
+        }
+        done.await();
+    }
+
+    /**
+     * Get the zone a name is grouped under by resolveAll(): its parent, ignoring leading underscore labels
+     *
+     * @param name Name being resolved
+     * @return Presumed parent zone
+     */
+    static Name batchZone(Name name) {
+        int skip = 0;
+        while (skip < name.labels() - 1 && name.getLabelString(skip).startsWith("_")) {
+            skip++;
+        }
+        if (skip == 0 && name.labels() > 1) {
+            skip = 1;
+        }
+        return new Name(name, skip);
+    }
+
+    private synchronized Executor getBatchExecutor() {
+        if (this.batchExecutor == null) {
+            this.batchExecutor = Executors.newCachedThreadPool(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("dnssec-batch-%d").build());
+        }
+        return this.batchExecutor;
+    }
+
+    /**
+     * Resolve a query from the cache, or upstream
+     *
+     * @param cacheKey Query to resolve
+     * @return Resulting value string
+     * @throws DNSSECException Exception thrown with appropriate message to determine the problem that occurred
+     */
+    private String resolve(CacheKey cacheKey) throws DNSSECException {
+        CachedAnswer cached = cachedAnswer(cacheKey);
+        if (cached != null) {
+            return cachedValue(cached);
+        }
+
+        return fetchShared(cacheKey);
+    }
+
+    /**
+     * Resolve a DNS label of type type using DNSSEC without blocking the calling thread
+     *
+     * Cached answers complete the returned future immediately. Other queries are resolved by a pool of worker threads
+     * (see setAsyncThreads()), and listeners of the returned future run on the thread completing it.
+     *
+     * @param label - DNS label to resolve using DNSSEC
+     * @param type - Integer of DNS RR Type (org.xbill.DNS.Type)
+     * @return Future of the resulting value string, failing with a DNSSECException as resolve() would throw
+     */
+    public ListenableFuture<String> resolveAsync(String label, int type) {
+        return resolveAsync(label, type, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Resolve a DNS label of type type using DNSSEC without blocking the calling thread
+     *
+     * Cached answers complete the returned future immediately, and a query already being resolved completes it with
+     * that query's result, without taking a worker thread. Other queries are resolved by a pool of worker threads (see
+     * setAsyncThreads()), so distinct queries resolved at once are bounded by the number of workers. The returned
+     * future is completed on callbackExecutor, so listeners added with a direct executor run there, or on the
+     * completing thread if callbackExecutor rejects it.
+     *
+     * @param label - DNS label to resolve using DNSSEC
+     * @param type - Integer of DNS RR Type (org.xbill.DNS.Type)
+     * @param callbackExecutor Executor completing the returned future
+     * @return Future of the resulting value string, failing with a DNSSECException as resolve() would throw
+     */
+    public ListenableFuture<String> resolveAsync(String label, int type, final Executor callbackExecutor) {
+        final SettableFuture<String> future = SettableFuture.create();
+        final CacheKey cacheKey = new CacheKey(Name.fromConstantString(DNSUtil.ensureDot(label)), type, DClass.IN);
+
+        CachedAnswer cached = cachedAnswer(cacheKey);
+        if (cached != null) {
+            try {
+                complete(future, callbackExecutor, cachedValue(cached), null);
+            } catch (DNSSECException e) {
+                complete(future, callbackExecutor, null, e);
+            }
+            return future;
+        }
+
+        // Share the result of the same query resolved upstream, unless it was sent with lower priority (see fetchShared())
+        Flight existing = this.inFlight.get(cacheKey);
+        if (existing != null && existing.priority.compareTo(Priority.current()) <= 0) {
+            this.coalescedRequests.incrementAndGet();
+            final SettableFuture<String> shared = existing.future;
+            shared.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        complete(future, callbackExecutor, Uninterruptibles.getUninterruptibly(shared), null);
+                    } catch (ExecutionException e) {
+                        complete(future, callbackExecutor, null, e.getCause());
+                    }
                 }
-                throw new DNSSECException("No Query Answer Received");
+            }, MoreExecutors.directExecutor());
+            return future;
+        }
+
+        try {
+            getAsyncExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        complete(future, callbackExecutor, fetchShared(cacheKey), null);
+                    } catch (DNSSECException e) {
+                        complete(future, callbackExecutor, null, e);
+                    } catch (RuntimeException e) {
+                        complete(future, callbackExecutor, null, e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            complete(future, callbackExecutor, null, new DNSSECException("DNSSEC Lookup Failure: " + e.getMessage()));
+        }
+        return future;
+    }
+
+    /**
+     * Complete a future on an Executor, or on the calling thread if the Executor rejects it (e.g. after shutdown), so
+     * the future never stays pending
+     *
+     * @param future Future to complete
+     * @param executor Executor to complete the future on
+     * @param value Value to set, if failure is null
+     * @param failure Exception to fail the future with, or null
+     */
+    private static void complete(final SettableFuture<String> future, Executor executor, final String value, final Throwable failure) {
+        Runnable completion = new Runnable() {
+            @Override
+            public void run() {
+                if (failure != null) {
+                    future.setException(failure);
+                } else {
+                    future.set(value);
+                }
+            }
+        };
+        try {
+            executor.execute(completion);
+        } catch (RejectedExecutionException e) {
+            completion.run();
+        }
+    }
+
+    private synchronized Executor getAsyncExecutor() {
+        if (this.asyncExecutor == null) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(this.asyncThreads, this.asyncThreads, 60L,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("dnssec-resolve-%d").build());
+            pool.allowCoreThreadTimeOut(true);
+            this.asyncExecutor = pool;
+        }
+        return this.asyncExecutor;
+    }
+
+    /**
+     * Get a cached or locally synthesized answer, scheduling a background refresh if the answer is due for one
+     *
+     * @param cacheKey Query to answer
+     * @return Answer, or null if the query must be resolved upstream
+     */
+    private CachedAnswer cachedAnswer(CacheKey cacheKey) {
+        CachedAnswer cached = this.answerCache.get(cacheKey);
+        if (cached != null) {
+            if (cached.isStale() || (this.refreshAhead && this.answerCache.isRefreshDue(cached, this.refreshAheadBeta))) {
+                scheduleRefresh(cacheKey);
             }
+            return cached;
+        }
+
+        if (this.aggressiveNsec) {
+            return this.nsecCache.synthesize(cacheKey);
+        }
+        return null;
+    }
+
+    /**
+     * Get the value of a cached answer
+     *
+     * @param cached Cached answer
+     * @return Resulting value string, or null for a cached NXDOMAIN
+     * @throws DNSSECException Thrown for a cached NODATA answer
+     */
+    private static String cachedValue(CachedAnswer cached) throws DNSSECException {
+        if (cached.isNegative() && !cached.isNxDomain()) {
+            throw new DNSSECException("No Query Answer Received");
+        }
+        return cached.getValue();
+    }
+
+    /**
+     * Resolve and validate a query upstream, unless the same query is already being resolved, in which case its
+     * result or error is shared. A lookup does not wait for a query sent with lower priority, and resolves the query
+     * itself instead.
+     *
+     * @param cacheKey Query to resolve
+     * @return Resulting value string
+     * @throws DNSSECException Exception thrown with appropriate message to determine the problem that occurred
+     */
+    private String fetchShared(CacheKey cacheKey) throws DNSSECException {
+        Flight flight = new Flight(Priority.current());
+        Flight existing = this.inFlight.putIfAbsent(cacheKey, flight);
+        if (existing != null) {
+            if (existing.priority.compareTo(flight.priority) > 0) {
+                return fetch(cacheKey);
+            }
+            this.coalescedRequests.incrementAndGet();
+            try {
+                return Uninterruptibles.getUninterruptibly(existing.future);
+            } catch (ExecutionException e) {
+                Throwables.propagateIfInstanceOf(e.getCause(), DNSSECException.class);
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+
+        try {
+            String value = fetch(cacheKey);
+            flight.future.set(value);
+            return value;
+        } catch (DNSSECException e) {
+            flight.future.setException(e);
+            throw e;
+        } catch (RuntimeException e) {
+            flight.future.setException(e);
+            throw e;
+        } finally {
+            if (!flight.future.isDone()) {
+                flight.future.setException(new DNSSECException("DNSSEC Lookup Failure"));
+            }
+            this.inFlight.remove(cacheKey, flight);
+        }
+    }
+
+    /**
+     * Query being resolved upstream, shared by identical lookups
+     */
+    private static class Flight {
+        private final SettableFuture<String> future = SettableFuture.create();
+        private final Priority priority;
+
+        private Flight(Priority priority) {
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * Resolve and validate a query upstream, caching the validated answer
+     *
+     * @param cacheKey Query to resolve
+     * @return Resulting value string
+     * @throws DNSSECException Exception thrown with appropriate message to determine the problem that occurred
+     */
+    private String fetch(CacheKey cacheKey) throws DNSSECException {
+        Name name = cacheKey.getName();
+        int type = cacheKey.getType();
+
+        ResolverShard shard = shardFor(name);
+        long start = System.nanoTime();
+        Message response;
+        try {
+            response = sendValidated(shard, name, type);
+        } catch (DNSSECException e) {
+            return serveStale(cacheKey, e);
+        }
+        long fetchMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
 
-            for (RRset set : response.getSectionRRsets(Section.ADDITIONAL)) {
-                if (set.getName().equals(Name.root) && set.getType() == type && set.getDClass() == ValidatingResolver.VALIDATION_REASON_QCLASS) {
-                    String exceptionMessage = ((TXTRecord) set.first()).getStrings().get(0).toString();
-                    throw new DNSSECException(exceptionMessage);
+        boolean authenticated = response.getHeader().getFlag(Flags.AD);
+        int rcode = response.getRcode();
+        completeKeyChain(shard, authenticated);
+
+        if (authenticated && rcode == Rcode.NOERROR) {
+            RRset[] answerSets = response.getSectionRRsets(Section.ANSWER);
+            for (RRset set : answerSets) {
+                Iterator<?> iter = set.rrs();
+                while(iter.hasNext()) {
+                    Record record = (Record)iter.next();
+                    if (record.getType() == type) {
+                        String value = record.rdataToString().replace("\"","");
+                        this.answerCache.put(cacheKey, value, answerSets, fetchMillis);
+                        return value;
+                    }
                 }
             }
 
-        } catch (IOException e) {
-            throw new DNSSECException("DNSSEC Lookup Failure: " + e.getMessage());
+            // Validated NODATA
+            RRset[] authoritySets = response.getSectionRRsets(Section.AUTHORITY);
+            this.answerCache.putNegative(cacheKey, rcode, answerSets, authoritySets, fetchMillis);
+            this.nsecCache.put(authoritySets);
+            throw new DNSSECException("No Query Answer Received");
+        }
+
+        if (authenticated && rcode == Rcode.NXDOMAIN) {
+            RRset[] authoritySets = response.getSectionRRsets(Section.AUTHORITY);
+            this.answerCache.putNegative(cacheKey, rcode, response.getSectionRRsets(Section.ANSWER), authoritySets, fetchMillis);
+            this.nsecCache.put(authoritySets);
+            return null;
+        }
+
+        String validationFailure = validationFailure(response, type);
+        if (validationFailure != null) {
+            return serveStale(cacheKey, new DNSSECException(validationFailure));
+        }
+
+        // Upstream failure without a validation failure reason, stale answers may be served (RFC 8767)
+        if (rcode == Rcode.SERVFAIL) {
+            return serveStale(cacheKey, null);
         }
 
         // No Valid Positive Response Returned and No Validating Failure Reason Negative DNS/DNSSEC Response Returned
         return null;
     }
+
+    /**
+     * Handle an upstream resolution failure, serving the last validated answer if serve-stale allows it
+     *
+     * @param cacheKey Query that failed
+     * @param failure Exception describing the failure, or null if the failure returns a null value
+     * @return Stale value string, or null if no stale answer is available and failure is null
+     * @throws DNSSECException The given failure, if no stale answer is available
+     */
+    private String serveStale(CacheKey cacheKey, DNSSECException failure) throws DNSSECException {
+        CachedAnswer stale = this.maximumStaleness > 0 ? this.answerCache.getStale(cacheKey, this.maximumStaleness) : null;
+        if (stale == null) {
+            if (failure != null) {
+                throw failure;
+            }
+            return null;
+        }
+
+        this.answerCache.putStale(cacheKey, stale, STALE_ANSWER_TTL);
+        return cachedValue(stale);
+    }
+
+    /**
+     * Re-resolve a cached answer in the background, unless a refresh of it is already running
+     *
+     * @param cacheKey Query to refresh
+     */
+    private void scheduleRefresh(final CacheKey cacheKey) {
+        if (this.refreshing.putIfAbsent(cacheKey, Boolean.TRUE) != null) {
+            return;
+        }
+        try {
+            getRefreshExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    Priority previous = Priority.enter(Priority.BACKGROUND);
+                    try {
+                        fetchShared(cacheKey);
+                    } catch (DNSSECException ignore) {
+                        // Cached answer stays in place until it expires
+                    } finally {
+                        Priority.enter(previous);
+                        refreshing.remove(cacheKey);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.refreshing.remove(cacheKey);
+        }
+    }
+
+    private synchronized Executor getRefreshExecutor() {
+        if (this.refreshExecutor == null) {
+            this.refreshExecutor = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(REFRESH_QUEUE_SIZE),
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("dnssec-refresh-%d").build(),
+                    new ThreadPoolExecutor.AbortPolicy());
+            ((ThreadPoolExecutor) this.refreshExecutor).allowCoreThreadTimeOut(true);
+        }
+        return this.refreshExecutor;
+    }
+
+    /**
+     * Resolve the DNSSEC validated RRset of type type for a name, bypassing the AnswerCache
+     *
+     * @param name DNS name to resolve
+     * @param type Integer of DNS RR Type (org.xbill.DNS.Type)
+     * @return Validated answer RRset or null if no validated answer of this type exists
+     * @throws DNSSECException Exception thrown if the lookup fails
+     */
+    RRset resolveRRset(Name name, int type) throws DNSSECException {
+        ResolverShard shard = shardFor(name);
+        Message response = sendValidated(shard, name, type);
+        boolean authenticated = response.getHeader().getFlag(Flags.AD);
+        completeKeyChain(shard, authenticated);
+        if (!authenticated || response.getRcode() != Rcode.NOERROR) {
+            return null;
+        }
+        for (RRset set : response.getSectionRRsets(Section.ANSWER)) {
+            if (set.getName().equals(name) && set.getType() == type) {
+                return set;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Send a query through the ValidatingResolver of a shard
+     *
+     * An answer failing validation is re-sent to the next best DNS server, in case the first server's answer was
+     * spoofed or stripped of its signatures, until an answer validates or every server was tried (see
+     * UpstreamPool.retryLookup()). Callers must pass the response's AD flag to completeKeyChain() once they have read
+     * it.
+     *
+     * @param shard Shard to send the query through
+     * @param name DNS name to query
+     * @param type Integer of DNS RR Type (org.xbill.DNS.Type)
+     * @return Response returned by the ValidatingResolver
+     * @throws DNSSECException Exception thrown if trust anchors cannot be loaded or the query fails,
+     * DNSSECOverloadedException if the DNS servers were at their concurrency limits
+     */
+    private Message sendValidated(ResolverShard shard, Name name, int type) throws DNSSECException {
+        if (this.upstreamsChanged) {
+            refreshUpstreamPool();
+        }
+        ValidatingResolver resolver = prepareValidatingResolver(shard);
+        UpstreamPool pool = shard.getUpstreamPool();
+        pool.pollRejected();
+        Record qr = Record.newRecord(name, type, DClass.IN);
+        boolean retried = false;
+        boolean validated = false;
+        pool.beginLookup();
+        try {
+            while (true) {
+                Message response;
+                try {
+                    response = resolver.send(Message.newQuery(qr));
+                } catch (IOException e) {
+                    shard.getKeyChainResolver().discard();
+                    throw new DNSSECException("DNSSEC Lookup Failure: " + e.getMessage());
+                }
+
+                // The ValidatingResolver turns upstream failures into SERVFAIL answers
+                if (pool.pollRejected()) {
+                    shard.getKeyChainResolver().discard();
+                    throw new DNSSECOverloadedException("DNSSEC Lookup Rejected: DNS Servers Overloaded");
+                }
+                if (validationFailure(response, type) == null || !pool.retryLookup()) {
+                    // Servers that failed validation are only blamed if another server's answer validated
+                    validated = retried && response.getHeader().getFlag(Flags.AD);
+                    return response;
+                }
+                retried = true;
+                shard.getKeyChainResolver().discard();
+            }
+        } finally {
+            pool.endLookup(validated);
+        }
+    }
+
+    /**
+     * Get the reason a response failed DNSSEC validation
+     *
+     * @param response Response returned by the ValidatingResolver
+     * @param type Integer of DNS RR Type (org.xbill.DNS.Type) queried
+     * @return Validation failure reason, or null if the response did not fail validation
+     */
+    private static String validationFailure(Message response, int type) {
+        for (RRset set : response.getSectionRRsets(Section.ADDITIONAL)) {
+            if (set.getName().equals(Name.root) && set.getType() == type && set.getDClass() == ValidatingResolver.VALIDATION_REASON_QCLASS) {
+                return ((TXTRecord) set.first()).getStrings().get(0).toString();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Rebuild the pool of DNS servers after the backup DNS servers changed
+     */
+    private synchronized void refreshUpstreamPool() {
+        if (this.upstreamsChanged) {
+            this.upstreamsChanged = false;
+            if (!this.pinned) {
+                rebuildUpstreamPools();
+            }
+        }
+    }
+
+    /**
+     * Share the DNSKEY/DS keys fetched for the last query with other resolvers, if the query validated as secure
+     *
+     * @param shard Shard the query was sent through
+     * @param secure Did the response validate (AD flag set)?
+     */
+    private void completeKeyChain(ResolverShard shard, boolean secure) {
+        if (secure) {
+            shard.getKeyChainResolver().commit();
+        } else {
+            shard.getKeyChainResolver().discard();
+        }
+    }
+
+    /**
+     * Get the current ValidatingResolver of a shard, loading the current trust anchors into it if it does not hold
+     * them yet.
+     *
+     * Anchors are only loaded when the ValidatingResolver or the TrustAnchorManager's anchors change, not per query.
+     *
+     * @param shard Shard to get the ValidatingResolver of
+     * @return ValidatingResolver holding the current trust anchors
+     * @throws DNSSECException Exception thrown if trust anchors cannot be loaded
+     */
+    private ValidatingResolver prepareValidatingResolver(ResolverShard shard) throws DNSSECException {
+        try {
+            return shard.getValidatingResolver(this.trustAnchorManager.getTrustAnchors());
+        } catch (UnknownHostException e) {
+            throw new DNSSECException("Unknown DNS Host: " + this.selectedDnsServer);
+        } catch (UnsupportedEncodingException e) {
+            throw new DNSSECException("Unsupported Trust Anchor Encoding");
+        } catch (IOException e) {
+            throw new DNSSECException("Resolver Creation Exception: " + e.getMessage());
+        }
+    }
 }
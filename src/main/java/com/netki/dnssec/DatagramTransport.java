@@ -0,0 +1,526 @@
+package com.netki.dnssec;
+
+import org.xbill.DNS.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Resolver sending queries to one upstream DNS server over a small pool of long-lived, connected UDP channels.
+ *
+ * Unlike SimpleResolver, which opens a new socket per query, many queries are outstanding on each channel at once
+ * and are matched to their responses by message ID. For spoofing resistance every query gets a fresh random ID,
+ * channels are bound to random source ports and are replaced with newly bound channels after a number of queries,
+ * and responses are only accepted from the upstream server for the question that was asked. A single selector
+ * thread receives all responses into a reused buffer.
+ *
+ * Truncated responses are retried over a persistent TcpTransport connection. DatagramTransport objects are thread safe; close() releases the channels.
+ */
+public class DatagramTransport implements TimeoutResolver, Closeable {
+
+    public static final int DEFAULT_CHANNELS = 4;
+    public static final int DEFAULT_QUERIES_PER_CHANNEL = 10000;
+
+    private static final int DEFAULT_PORT = 53;
+    private static final int DEFAULT_TIMEOUT_MILLIS = 10000;
+    private static final int MAXIMUM_UDP_SIZE = 65535;
+    private static final int SWEEP_INTERVAL_MILLIS = 20;
+    private static final int PORT_BIND_ATTEMPTS = 10;
+
+    private static final SecureRandom random = new SecureRandom();
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private volatile InetSocketAddress address;
+    private final int queriesPerChannel;
+    private final Selector selector;
+    private final AtomicReferenceArray<Slot> slots;
+    private final Thread selectorThread;
+    private volatile boolean running = true;
+
+    private volatile OPTRecord queryOpt;
+    private volatile TSIG tsig;
+    private volatile boolean tcp = false;
+    private volatile boolean ignoreTruncation = false;
+    private volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private final TcpTransport tcpTransport;
+
+    /**
+     * Create a DatagramTransport with default pool size
+     *
+     * @param server Host name or IP address of the upstream DNS server
+     * @throws IOException Thrown if the server is unknown or channels cannot be opened
+     */
+    public DatagramTransport(String server) throws IOException {
+        this(new InetSocketAddress(InetAddress.getByName(server), DEFAULT_PORT), DEFAULT_CHANNELS, DEFAULT_QUERIES_PER_CHANNEL);
+    }
+
+    /**
+     * DatagramTransport Constructor
+     *
+     * @param address Address of the upstream DNS server
+     * @param channels Number of UDP channels
+     * @param queriesPerChannel Number of queries sent on a channel before it is replaced by one on a new random port
+     * @throws IOException Thrown if channels cannot be opened
+     */
+    public DatagramTransport(InetSocketAddress address, int channels, int queriesPerChannel) throws IOException {
+        this.address = address;
+        this.queriesPerChannel = queriesPerChannel;
+        this.selector = Selector.open();
+        this.slots = new AtomicReferenceArray<Slot>(channels);
+        for (int i = 0; i < channels; i++) {
+            this.slots.set(i, openSlot());
+        }
+        this.tcpTransport = new TcpTransport(address, TcpTransport.DEFAULT_IDLE_TIMEOUT);
+
+        this.selectorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                selectLoop();
+            }
+        }, "dns-udp-transport-" + threadCount.incrementAndGet());
+        this.selectorThread.setDaemon(true);
+        this.selectorThread.start();
+    }
+
+    /**
+     * Get the upstream DNS server address
+     *
+     * @return Upstream address
+     */
+    public InetSocketAddress getAddress() {
+        return this.address;
+    }
+
+    @Override
+    public Message send(Message query) throws IOException {
+        return send(query, this.timeoutMillis);
+    }
+
+    @Override
+    public Message send(Message query, long timeoutMillis) throws IOException {
+        if (this.tcp) {
+            return this.tcpTransport.send(query);
+        }
+
+        Pending pending = sendUdp(query, timeoutMillis, null, null);
+        try {
+            if (!pending.latch.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                pending.slot.pending.remove(pending.id, pending);
+                throw new SocketTimeoutException("DNS query timed out");
+            }
+        } catch (InterruptedException e) {
+            pending.slot.pending.remove(pending.id, pending);
+            Thread.currentThread().interrupt();
+            throw new IOException("DNS query interrupted");
+        }
+        if (pending.error != null) {
+            throw pending.error;
+        }
+        if (pending.response.getHeader().getFlag(Flags.TC) && !this.ignoreTruncation) {
+            return this.tcpTransport.send(query);
+        }
+        return pending.response;
+    }
+
+    @Override
+    public Object sendAsync(final Message query, final ResolverListener listener) {
+        final Object id = new Object();
+        if (this.tcp) {
+            sendTcpAsync(id, query, listener);
+            return id;
+        }
+        try {
+            sendUdp(query, this.timeoutMillis, id, listener);
+        } catch (IOException e) {
+            listener.handleException(id, e);
+        }
+        return id;
+    }
+
+    /**
+     * Close all channels and the TCP connection, and stop the selector thread. Outstanding queries fail.
+     */
+    public void close() {
+        this.tcpTransport.close();
+        this.running = false;
+        this.selector.wakeup();
+    }
+
+    /**
+     * Get the number of queries awaiting a response
+     *
+     * @return Number of outstanding queries
+     */
+    public int getOutstandingQueries() {
+        int outstanding = 0;
+        for (int i = 0; i < this.slots.length(); i++) {
+            outstanding += this.slots.get(i).pending.size();
+        }
+        return outstanding;
+    }
+
+    /**
+     * Send a query on a random channel, under a random message ID unused on that channel
+     */
+    private Pending sendUdp(Message query, long timeoutMillis, Object listenerId, ResolverListener listener)
+            throws IOException {
+        if (!this.running) {
+            throw new IOException("DNS transport closed");
+        }
+
+        OPTRecord opt = this.queryOpt;
+        TSIG tsig = this.tsig;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        Slot slot;
+        Pending pending;
+        int id;
+        while (true) {
+            slot = this.slots.get(random.nextInt(this.slots.length()));
+            do {
+                id = random.nextInt(0x10000);
+                // The request is complete before the query is published, receive() may match a response right away
+                Message request = (Message) query.clone();
+                if (opt != null && request.getOPT() == null) {
+                    request.addRecord(opt, Section.ADDITIONAL);
+                }
+                request.getHeader().setID(id);
+                if (tsig != null) {
+                    tsig.apply(request, null);
+                }
+                pending = new Pending(slot, id, query, request, listenerId, listener, deadline);
+            } while (slot.pending.putIfAbsent(id, pending) != null);
+            // rotate() retires a slot before checking it for outstanding queries, so a slot still in service here is
+            // not closed until this query completes. A retired slot was already replaced, retry on its replacement.
+            if (!slot.retired) {
+                break;
+            }
+            slot.pending.remove(id, pending);
+        }
+
+        try {
+            byte[] wire = pending.request.toWire(Message.MAXLENGTH);
+            if (slot.channel.write(ByteBuffer.wrap(wire)) != wire.length) {
+                throw new IOException("DNS query not sent, socket buffer full");
+            }
+        } catch (IOException e) {
+            slot.pending.remove(id, pending);
+            throw e;
+        }
+
+        if (slot.queries.incrementAndGet() == this.queriesPerChannel) {
+            this.selector.wakeup();
+        }
+        return pending;
+    }
+
+    private void sendTcpAsync(final Object id, final Message query, final ResolverListener listener) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.receiveMessage(id, tcpTransport.send(query));
+                } catch (Exception e) {
+                    listener.handleException(id, e);
+                }
+            }
+        }, "dns-tcp-fallback");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void selectLoop() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAXIMUM_UDP_SIZE);
+        while (this.running) {
+            try {
+                this.selector.select(SWEEP_INTERVAL_MILLIS);
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        receive((Slot) key.attachment(), buffer);
+                    }
+                }
+                sweep();
+                rotate();
+            } catch (Exception ignore) {
+                // Selector and listener failures must not stop the selector thread, outstanding queries time out
+            }
+        }
+
+        for (int i = 0; i < this.slots.length(); i++) {
+            closeSlot(this.slots.get(i), new IOException("DNS transport closed"));
+        }
+        for (SelectionKey key : this.selector.keys()) {
+            closeSlot((Slot) key.attachment(), new IOException("DNS transport closed"));
+        }
+        try {
+            this.selector.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    private void receive(Slot slot, ByteBuffer buffer) {
+        while (true) {
+            buffer.clear();
+            try {
+                if (slot.channel.receive(buffer) == null) {
+                    return;
+                }
+            } catch (IOException e) {
+                // e.g. ICMP port unreachable, queries on this channel time out or are retried
+                return;
+            }
+            buffer.flip();
+            if (buffer.remaining() < Header.LENGTH) {
+                continue;
+            }
+
+            int id = ((buffer.get(0) & 0xFF) << 8) | (buffer.get(1) & 0xFF);
+            Pending pending = slot.pending.get(id);
+            if (pending == null) {
+                continue;
+            }
+
+            byte[] wire = new byte[buffer.remaining()];
+            buffer.get(wire);
+            Message response;
+            try {
+                response = new Message(wire);
+            } catch (IOException e) {
+                continue;
+            }
+            Record question = response.getQuestion();
+            if (question == null || !question.equals(pending.request.getQuestion())) {
+                // Not an answer to the question asked under this ID
+                continue;
+            }
+
+            TSIG tsig = this.tsig;
+            if (tsig != null && tsig.verify(response, wire, pending.request.getTSIG()) != Rcode.NOERROR) {
+                // Unsigned or forged response, keep waiting for the authentic one until the query times out
+                continue;
+            }
+            if (slot.pending.remove(id, pending)) {
+                response.getHeader().setID(pending.query.getHeader().getID());
+                pending.complete(response, null);
+                if (pending.listener != null && response.getHeader().getFlag(Flags.TC) && !this.ignoreTruncation) {
+                    sendTcpAsync(pending.listenerId, pending.query, pending.listener);
+                } else if (pending.listener != null) {
+                    pending.listener.receiveMessage(pending.listenerId, response);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fail queries that have passed their deadline
+     */
+    private void sweep() {
+        long now = System.nanoTime();
+        for (SelectionKey key : this.selector.keys()) {
+            Slot slot = (Slot) key.attachment();
+            for (Map.Entry<Integer, Pending> entry : slot.pending.entrySet()) {
+                Pending pending = entry.getValue();
+                if (now - pending.deadline >= 0 && slot.pending.remove(entry.getKey(), pending)) {
+                    pending.fail(new SocketTimeoutException("DNS query timed out"));
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace channels that sent their share of queries with channels on new random ports, and close replaced
+     * channels once they have no outstanding queries
+     */
+    private void rotate() throws IOException {
+        synchronized (this.slots) {
+            for (int i = 0; i < this.slots.length(); i++) {
+                Slot slot = this.slots.get(i);
+                if (slot.queries.get() >= this.queriesPerChannel) {
+                    this.slots.set(i, openSlot());
+                    slot.retired = true;
+                }
+            }
+        }
+        for (SelectionKey key : this.selector.keys()) {
+            Slot slot = (Slot) key.attachment();
+            if (slot.retired && slot.pending.isEmpty()) {
+                closeSlot(slot, null);
+            }
+        }
+    }
+
+    /**
+     * Open a channel connected to the upstream server and bound to a random local port
+     */
+    private Slot openSlot() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    int port = attempt < PORT_BIND_ATTEMPTS ? 1024 + random.nextInt(65536 - 1024) : 0;
+                    channel.socket().bind(new InetSocketAddress(port));
+                    break;
+                } catch (IOException e) {
+                    if (attempt >= PORT_BIND_ATTEMPTS) {
+                        throw e;
+                    }
+                }
+            }
+            channel.connect(this.address);
+            channel.configureBlocking(false);
+            Slot slot = new Slot(channel);
+            channel.register(this.selector, SelectionKey.OP_READ, slot);
+            return slot;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void closeSlot(Slot slot, IOException error) {
+        try {
+            slot.channel.close();
+        } catch (IOException ignore) {
+        }
+        for (Pending pending : slot.pending.values()) {
+            if (slot.pending.remove(pending.id, pending)) {
+                pending.fail(error != null ? error : new IOException("DNS transport channel closed"));
+            }
+        }
+    }
+
+    /**
+     * Set the port of the upstream DNS server. The channels are replaced with channels connected to the new port,
+     * queries in flight on the replaced channels still complete.
+     */
+    @Override
+    public void setPort(int port) {
+        synchronized (this.slots) {
+            if (port == this.address.getPort()) {
+                return;
+            }
+            this.address = new InetSocketAddress(this.address.getAddress(), port);
+            for (int i = 0; i < this.slots.length() && this.running; i++) {
+                Slot slot = this.slots.get(i);
+                // Registering a channel may block while the selector thread is selecting
+                this.selector.wakeup();
+                try {
+                    this.slots.set(i, openSlot());
+                    slot.retired = true;
+                } catch (IOException e) {
+                    // Leave the channel to rotate(), which replaces it once a new channel can be opened
+                    slot.queries.set(this.queriesPerChannel);
+                }
+            }
+        }
+        this.tcpTransport.setPort(port);
+    }
+
+    @Override
+    public void setTCP(boolean flag) {
+        this.tcp = flag;
+    }
+
+    @Override
+    public void setIgnoreTruncation(boolean flag) {
+        this.ignoreTruncation = flag;
+    }
+
+    @Override
+    public void setEDNS(int level) {
+        setEDNS(level, 0, 0, null);
+    }
+
+    @Override
+    public void setEDNS(int level, int payloadSize, int flags, List options) {
+        if (level != 0 && level != -1) {
+            throw new IllegalArgumentException("invalid EDNS level - must be 0 or -1");
+        }
+        this.queryOpt = level == -1 ? null : new OPTRecord(payloadSize == 0 ? 1280 : payloadSize, 0, level, flags, options);
+        this.tcpTransport.setEDNS(level, payloadSize, flags, options);
+    }
+
+    @Override
+    public void setTSIGKey(TSIG key) {
+        this.tsig = key;
+        this.tcpTransport.setTSIGKey(key);
+    }
+
+    @Override
+    public void setTimeout(int secs, int msecs) {
+        // The TcpTransport keeps its own timeout, a TCP query can take longer than a UDP round-trip
+        this.timeoutMillis = secs * 1000L + msecs;
+    }
+
+    @Override
+    public void setTimeout(int secs) {
+        setTimeout(secs, 0);
+    }
+
+    private static class Slot {
+        private final DatagramChannel channel;
+        private final ConcurrentMap<Integer, Pending> pending = new ConcurrentHashMap<Integer, Pending>();
+        private final AtomicInteger queries = new AtomicInteger();
+        private volatile boolean retired = false;
+
+        private Slot(DatagramChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private static class Pending {
+        private final Slot slot;
+        private final int id;
+        private final Message query;
+        private final Message request;
+        private final Object listenerId;
+        private final ResolverListener listener;
+        private final long deadline;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile Message response;
+        private volatile IOException error;
+
+        private Pending(Slot slot, int id, Message query, Message request, Object listenerId, ResolverListener listener,
+                        long deadline) {
+            this.slot = slot;
+            this.id = id;
+            this.query = query;
+            this.request = request;
+            this.listenerId = listenerId;
+            this.listener = listener;
+            this.deadline = deadline;
+        }
+
+        private void complete(Message response, IOException error) {
+            this.response = response;
+            this.error = error;
+            this.latch.countDown();
+        }
+
+        private void fail(IOException error) {
+            complete(null, error);
+            if (this.listener != null) {
+                this.listener.handleException(this.listenerId, error);
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.netki.dnssec;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.xbill.DNS.Name;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache of the delegations learned by an IterativeResolver: the name servers of each zone, the addresses of
+ * the name servers, and the round-trip times of the name server addresses.
+ *
+ * Delegations and addresses expire once the TTL of their NS and A records has passed, clamped to the maximum TTL.
+ * Round-trip times are kept until a server has not been queried for RTT_LIFETIME. When the cache is full the least
+ * recently used entries are evicted. DelegationCache objects are thread safe.
+ */
+public class DelegationCache {
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 10000;
+    public static final long DEFAULT_MAXIMUM_TTL = TimeUnit.DAYS.toSeconds(1);
+    public static final long RTT_LIFETIME = TimeUnit.MINUTES.toMillis(10);
+
+    private final Cache<Name, Expiring<List<Name>>> delegations;
+    private final Cache<Name, Expiring<List<InetAddress>>> addresses;
+    private final Cache<InetAddress, RttEstimator> rtts;
+    private final Ticker ticker;
+    private final long maximumTtl;
+
+    /**
+     * Create a DelegationCache with default size and TTL limits
+     */
+    public DelegationCache() {
+        this(DEFAULT_MAXIMUM_SIZE, DEFAULT_MAXIMUM_TTL, Ticker.systemTicker());
+    }
+
+    /**
+     * DelegationCache Constructor
+     *
+     * @param maximumSize Maximum number of delegations, and of name server addresses, to hold
+     * @param maximumTtl Maximum number of seconds a delegation or address may be cached, regardless of its TTL
+     * @param ticker Time source used for expiration
+     */
+    public DelegationCache(int maximumSize, long maximumTtl, Ticker ticker) {
+        this.delegations = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+        this.addresses = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+        this.rtts = CacheBuilder.newBuilder().maximumSize(maximumSize).ticker(ticker)
+                .expireAfterAccess(RTT_LIFETIME, TimeUnit.MILLISECONDS).build();
+        this.ticker = ticker;
+        this.maximumTtl = maximumTtl;
+    }
+
+    /**
+     * Cache the name servers a zone is delegated to
+     *
+     * @param zone Delegated zone
+     * @param nameServers Names of the zone's name servers
+     * @param ttl TTL of the NS records in seconds
+     */
+    public void putDelegation(Name zone, List<Name> nameServers, long ttl) {
+        this.delegations.put(zone, new Expiring<List<Name>>(Collections.unmodifiableList(nameServers), expiry(ttl)));
+    }
+
+    /**
+     * Get the name servers of a zone
+     *
+     * @param zone Zone
+     * @return Names of the zone's name servers, or null if the delegation is absent or expired
+     */
+    public List<Name> getNameServers(Name zone) {
+        return get(this.delegations, zone);
+    }
+
+    /**
+     * Get the closest enclosing zone of a name with a cached delegation
+     *
+     * @param name Name being resolved
+     * @return The name itself or its closest ancestor with an unexpired delegation, or the root if there is none
+     */
+    public Name getClosestZone(Name name) {
+        for (int skip = 0; skip < name.labels() - 1; skip++) {
+            Name zone = skip == 0 ? name : new Name(name, skip);
+            if (getNameServers(zone) != null) {
+                return zone;
+            }
+        }
+        return Name.root;
+    }
+
+    /**
+     * Cache the addresses of a name server
+     *
+     * @param nameServer Name of the name server
+     * @param addresses Addresses of the name server
+     * @param ttl TTL of the address records in seconds
+     */
+    public void putAddresses(Name nameServer, List<InetAddress> addresses, long ttl) {
+        this.addresses.put(nameServer,
+                new Expiring<List<InetAddress>>(Collections.unmodifiableList(addresses), expiry(ttl)));
+    }
+
+    /**
+     * Get the addresses of a name server
+     *
+     * @param nameServer Name of the name server
+     * @return Addresses of the name server, or null if absent or expired
+     */
+    public List<InetAddress> getAddresses(Name nameServer) {
+        return get(this.addresses, nameServer);
+    }
+
+    /**
+     * Get the round-trip time estimate of a name server address, creating one if it is not cached
+     *
+     * @param address Name server address
+     * @return RttEstimator of the address
+     */
+    RttEstimator getRtt(InetAddress address) {
+        try {
+            return this.rtts.get(address, new Callable<RttEstimator>() {
+                @Override
+                public RttEstimator call() {
+                    return new RttEstimator();
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Get the number of cached delegations, including expired ones not evicted yet
+     *
+     * @return Number of delegations
+     */
+    public long size() {
+        return this.delegations.size();
+    }
+
+    /**
+     * Remove all delegations, addresses and round-trip times
+     */
+    public void clear() {
+        this.delegations.invalidateAll();
+        this.addresses.invalidateAll();
+        this.rtts.invalidateAll();
+    }
+
+    private <K, V> V get(Cache<K, Expiring<V>> cache, K key) {
+        Expiring<V> entry = cache.getIfPresent(key);
+        if (entry == null) {
+            return null;
+        }
+        if (this.ticker.read() - entry.expiresAt >= 0) {
+            cache.asMap().remove(key, entry);
+            return null;
+        }
+        return entry.value;
+    }
+
+    private long expiry(long ttl) {
+        return this.ticker.read() + TimeUnit.SECONDS.toNanos(Math.max(0, Math.min(ttl, this.maximumTtl)));
+    }
+
+    private static class Expiring<V> {
+        private final V value;
+        private final long expiresAt;
+
+        private Expiring(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.netki.dnssec;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.xbill.DNS.DNSKEYRecord;
+import org.xbill.DNS.DNSSEC;
+import org.xbill.DNS.Name;
+
+import java.security.PublicKey;
+import java.util.Arrays;
+
+/**
+ * Bounded, process-wide cache of decoded DNSKEY public keys.
+ *
+ * dnsjava decodes a DNSKEY's JCA PublicKey once per record object, and every DNSKEY fetched from upstream is a new
+ * record object. DNSKEY records passing through a KeyChainResolver are therefore replaced with records carrying the
+ * PublicKey decoded the first time the key (owner, key tag, algorithm and key data) was seen, so repeat validations
+ * under the same zone, by any DNSSECResolver, skip key decoding. DnskeyCache objects are thread safe.
+ */
+public class DnskeyCache {
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 10000;
+
+    private static DnskeyCache ourInstance = null;
+
+    private final Cache<Key, PublicKey> cache;
+
+    /**
+     * DnskeyCache Constructor
+     *
+     * @param maximumSize Maximum number of public keys to hold
+     */
+    public DnskeyCache(int maximumSize) {
+        this.cache = CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build();
+    }
+
+    /**
+     * Get the process-wide DnskeyCache
+     *
+     * @return Instance of DnskeyCache
+     */
+    public static synchronized DnskeyCache getInstance() {
+        if (ourInstance == null) {
+            ourInstance = new DnskeyCache(DEFAULT_MAXIMUM_SIZE);
+        }
+        return ourInstance;
+    }
+
+    /**
+     * Get an equal DNSKEY record (same owner, class, TTL and data) whose PublicKey is already decoded
+     *
+     * @param record DNSKEY record
+     * @return Record with decoded PublicKey, or the given record if its key cannot be decoded
+     */
+    public DNSKEYRecord decoded(DNSKEYRecord record) {
+        if (record instanceof DecodedDNSKEYRecord) {
+            return record;
+        }
+
+        Key key = new Key(record);
+        PublicKey publicKey = this.cache.getIfPresent(key);
+        if (publicKey == null) {
+            try {
+                publicKey = record.getPublicKey();
+            } catch (DNSSEC.DNSSECException e) {
+                // Unsupported algorithm or malformed key, left for the validator to reject
+                return record;
+            }
+            this.cache.put(key, publicKey);
+        }
+        return new DecodedDNSKEYRecord(record, publicKey);
+    }
+
+    /**
+     * Get hit and miss statistics
+     *
+     * @return Cache statistics
+     */
+    public CacheStats stats() {
+        return this.cache.stats();
+    }
+
+    /**
+     * Remove all cached public keys
+     */
+    public void clear() {
+        this.cache.invalidateAll();
+    }
+
+    /**
+     * Get the number of cached public keys
+     *
+     * @return Number of cached public keys
+     */
+    public long size() {
+        return this.cache.size();
+    }
+
+    /**
+     * DNSKEY record created with an already decoded PublicKey
+     */
+    static final class DecodedDNSKEYRecord extends DNSKEYRecord {
+
+        private static final long serialVersionUID = 1L;
+
+        private DecodedDNSKEYRecord(DNSKEYRecord record, PublicKey publicKey) {
+            super(record.getName(), record.getDClass(), record.getTTL(), record.getFlags(), record.getProtocol(),
+                    record.getAlgorithm(), record.getKey());
+            this.publicKey = publicKey;
+        }
+    }
+
+    private static final class Key {
+        private final Name owner;
+        private final int footprint;
+        private final int algorithm;
+        private final byte[] data;
+
+        private Key(DNSKEYRecord record) {
+            this.owner = record.getName();
+            this.footprint = record.getFootprint();
+            this.algorithm = record.getAlgorithm();
+            this.data = record.rdataToWireCanonical();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return this.footprint == other.footprint && this.algorithm == other.algorithm
+                    && this.owner.equals(other.owner) && Arrays.equals(this.data, other.data);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.owner.hashCode() + this.footprint;
+        }
+    }
+}
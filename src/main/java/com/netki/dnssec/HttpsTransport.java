@@ -0,0 +1,293 @@
+package com.netki.dnssec;
+
+import com.google.common.net.InetAddresses;
+import org.xbill.DNS.*;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolver sending queries to one upstream DNS server over DNS-over-HTTPS (RFC 8484).
+ *
+ * Each query is POSTed to the server's URI template as an application/dns-message body, with message ID 0 so HTTP
+ * caches can share responses. Connections are HTTP/1.1 keep-alive connections from the JVM's connection cache, so a
+ * query reuses an idle connection to the server instead of a new TCP and TLS handshake; concurrent queries each use
+ * their own connection, as HTTP/1.1 cannot multiplex them. Connections are opened through one SSLSocketFactory, whose
+ * client session cache resumes TLS sessions, and the server's certificate is checked against the URI's host name.
+ * Plain http URIs are accepted for servers on the loopback interface, such as a local DNS-over-HTTPS proxy.
+ *
+ * Query timeouts may be set close to the server's round-trip time (see UpstreamPool), so connecting is bounded by a
+ * separate connect timeout. HttpURLConnection runs the TLS handshake under the read timeout, so unless a keep-alive
+ * connection is likely idle in the connection cache, the read timeout is raised to the connect timeout as well.
+ *
+ * HttpsTransport objects are thread safe.
+ */
+public class HttpsTransport implements TimeoutResolver {
+
+    public static final String CONTENT_TYPE = "application/dns-message";
+
+    private static final int DEFAULT_TIMEOUT_MILLIS = 10000;
+    // HttpURLConnection's defaults for idle keep-alive connections kept per server, and how long they are kept
+    private static final int KEEP_ALIVE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final URL url;
+    private final SSLSocketFactory socketFactory;
+
+    private volatile OPTRecord queryOpt;
+    private volatile TSIG tsig;
+    private volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private volatile long connectTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private final Deque<Long> idleConnections = new ArrayDeque<Long>();
+
+    /**
+     * Create an HttpsTransport using the default SSLSocketFactory
+     *
+     * @param url URI template of the upstream DNS server, e.g. https://dns.example/dns-query
+     */
+    public HttpsTransport(URL url) {
+        this(url, (SSLSocketFactory) SSLSocketFactory.getDefault());
+    }
+
+    /**
+     * HttpsTransport Constructor
+     *
+     * @param url URI template of the upstream DNS server, e.g. https://dns.example/dns-query
+     * @param socketFactory SSLSocketFactory opening TLS connections, sharing its TLS sessions between them
+     * @throws IllegalArgumentException Thrown if the URI is not https, or http to a server not on the loopback interface
+     */
+    public HttpsTransport(URL url, SSLSocketFactory socketFactory) {
+        if ("http".equals(url.getProtocol())) {
+            if (!isLoopbackHost(url.getHost())) {
+                throw new IllegalArgumentException("Unencrypted DNS-over-HTTPS URI: " + url);
+            }
+        } else if (!"https".equals(url.getProtocol())) {
+            throw new IllegalArgumentException("Unsupported DNS-over-HTTPS URI: " + url);
+        }
+        this.url = url;
+        this.socketFactory = socketFactory;
+    }
+
+    /**
+     * Get the URI template of the upstream DNS server
+     *
+     * @return URI template
+     */
+    public URL getUrl() {
+        return this.url;
+    }
+
+    @Override
+    public Message send(Message query) throws IOException {
+        return send(query, this.timeoutMillis);
+    }
+
+    @Override
+    public Message send(Message query, long timeoutMillis) throws IOException {
+        Message request = (Message) query.clone();
+        request.getHeader().setID(0);
+        if (request.getOPT() == null && this.queryOpt != null) {
+            request.addRecord(this.queryOpt, Section.ADDITIONAL);
+        }
+        TSIG tsig = this.tsig;
+        if (tsig != null) {
+            tsig.apply(request, null);
+        }
+        byte[] body = request.toWire(Message.MAXLENGTH);
+
+        HttpURLConnection connection = (HttpURLConnection) this.url.openConnection();
+        if (connection instanceof HttpsURLConnection && this.socketFactory != null) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(this.socketFactory);
+        }
+        int timeout = (int) Math.min(timeoutMillis, Integer.MAX_VALUE);
+        int connectTimeout = (int) Math.min(this.connectTimeoutMillis, Integer.MAX_VALUE);
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(takeIdleConnection() ? timeout : Math.max(timeout, connectTimeout));
+        connection.setUseCaches(false);
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", CONTENT_TYPE);
+        connection.setRequestProperty("Accept", CONTENT_TYPE);
+        connection.setFixedLengthStreamingMode(body.length);
+
+        byte[] wire;
+        try {
+            OutputStream out = connection.getOutputStream();
+            out.write(body);
+            out.close();
+
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                // Read the error body, so the connection can be reused
+                InputStream error = connection.getErrorStream();
+                if (error != null) {
+                    readFully(error);
+                }
+                throw new IOException("DNS-over-HTTPS server returned HTTP " + status);
+            }
+            wire = readFully(connection.getInputStream());
+            releaseConnection();
+            String contentType = connection.getContentType();
+            if (contentType == null || !contentType.toLowerCase(Locale.US).startsWith(CONTENT_TYPE)) {
+                throw new IOException("DNS-over-HTTPS server returned " + contentType);
+            }
+        } catch (SocketTimeoutException e) {
+            connection.disconnect();
+            throw e;
+        }
+
+        Message response = new Message(wire);
+        Record question = response.getQuestion();
+        if (question == null || !question.equals(request.getQuestion())) {
+            throw new WireParseException("DNS-over-HTTPS response does not answer the query");
+        }
+        if (tsig != null && tsig.verify(response, wire, request.getTSIG()) != Rcode.NOERROR) {
+            throw new WireParseException("DNS-over-HTTPS response failed TSIG verification");
+        }
+        response.getHeader().setID(query.getHeader().getID());
+        return response;
+    }
+
+    @Override
+    public Object sendAsync(final Message query, final ResolverListener listener) {
+        final Object id = new Object();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.receiveMessage(id, send(query));
+                } catch (Exception e) {
+                    listener.handleException(id, e);
+                }
+            }
+        }, "dns-https-send");
+        thread.setDaemon(true);
+        thread.start();
+        return id;
+    }
+
+    /**
+     * Check whether a URI host names the loopback interface, without resolving it
+     *
+     * @param host URI host, IPv6 addresses may be in brackets
+     * @return true for localhost and loopback addresses
+     */
+    static boolean isLoopbackHost(String host) {
+        host = host.replace("[", "").replace("]", "");
+        return host.equals("localhost")
+                || (InetAddresses.isInetAddress(host) && InetAddresses.forString(host).isLoopbackAddress());
+    }
+
+    /**
+     * Check whether a query likely reuses an idle keep-alive connection, by the times recent queries returned their
+     * connection to the JVM's connection cache
+     */
+    private boolean takeIdleConnection() {
+        long now = System.nanoTime();
+        synchronized (this.idleConnections) {
+            Long released = this.idleConnections.pollLast();
+            if (released != null && now - released < KEEP_ALIVE_NANOS) {
+                return true;
+            }
+            // The most recently released connection expired, so did all others
+            this.idleConnections.clear();
+            return false;
+        }
+    }
+
+    /**
+     * Record a connection returned to the JVM's connection cache
+     */
+    private void releaseConnection() {
+        synchronized (this.idleConnections) {
+            if (this.idleConnections.size() >= KEEP_ALIVE_CONNECTIONS) {
+                this.idleConnections.pollFirst();
+            }
+            this.idleConnections.addLast(System.nanoTime());
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (out.size() + read > Message.MAXLENGTH) {
+                    throw new WireParseException("DNS-over-HTTPS response too long");
+                }
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Ignored, the port is part of the URI template. Ports set for plain DNS, e.g. re-applied by KeyChainResolver to
+     * every upstream, must not move DNS-over-HTTPS queries to another port.
+     */
+    @Override
+    public void setPort(int port) {
+    }
+
+    @Override
+    public void setTCP(boolean flag) {
+        // Always HTTPS
+    }
+
+    @Override
+    public void setIgnoreTruncation(boolean flag) {
+        // Responses over HTTPS are never truncated
+    }
+
+    @Override
+    public void setEDNS(int level) {
+        setEDNS(level, 0, 0, null);
+    }
+
+    @Override
+    public void setEDNS(int level, int payloadSize, int flags, List options) {
+        if (level != 0 && level != -1) {
+            throw new IllegalArgumentException("invalid EDNS level - must be 0 or -1");
+        }
+        this.queryOpt = level == -1 ? null : new OPTRecord(payloadSize == 0 ? 1280 : payloadSize, 0, level, flags, options);
+    }
+
+    @Override
+    public void setTSIGKey(TSIG key) {
+        this.tsig = key;
+    }
+
+    @Override
+    public void setTimeout(int secs, int msecs) {
+        this.timeoutMillis = secs * 1000L + msecs;
+    }
+
+    @Override
+    public void setTimeout(int secs) {
+        setTimeout(secs, 0);
+    }
+
+    /**
+     * Set the timeout for connecting to the server, including the TLS handshake. It is not changed by setTimeout().
+     *
+     * @param millis Connect timeout in milliseconds
+     */
+    public void setConnectTimeout(long millis) {
+        this.connectTimeoutMillis = millis;
+    }
+}
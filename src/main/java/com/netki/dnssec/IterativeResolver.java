@@ -0,0 +1,387 @@
+package com.netki.dnssec;
+
+import org.xbill.DNS.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Resolver answering queries itself, starting from the root name servers and following referrals down to the
+ * authoritative servers of the queried zone, instead of forwarding them to a recursive DNS server.
+ *
+ * Referrals are kept in a DelegationCache: the name servers of each zone, their addresses from in-bailiwick glue or
+ * from resolving them, and the round-trip time of each address. A query starts at the closest enclosing zone with a
+ * cached delegation and is sent to the zone's name server address with the lowest smoothed round-trip time, so once
+ * the cache is warm a lookup under a known zone is a single query to that zone's closest server. Queries are sent
+ * with the DO bit, so answers carry the RRSIGs and NSEC records the ValidatingResolver needs, and DS queries are sent
+ * to the parent zone. Answers that are CNAMEs are followed to their target.
+ *
+ * Name servers are queried over IPv4 with a new SimpleResolver per query, retrying truncated responses over TCP.
+ * IterativeResolver objects are thread safe.
+ */
+public class IterativeResolver implements Resolver {
+
+    static final int MAXIMUM_REFERRALS = 16;
+    static final int MAXIMUM_DEPTH = 4;
+    static final int MAXIMUM_CNAMES = 8;
+    static final int SERVER_ATTEMPTS = 3;
+
+    private static final int DEFAULT_TIMEOUT_MILLIS = 2000;
+
+    // IPv4 addresses of a.root-servers.net to m.root-servers.net
+    static final String[] ROOT_SERVERS = {
+            "198.41.0.4", "199.9.14.201", "192.33.4.12", "199.7.91.13", "192.203.230.10", "192.5.5.241",
+            "192.112.36.4", "198.97.190.53", "192.36.148.17", "192.58.128.30", "193.0.14.129", "199.7.83.42",
+            "202.12.27.33"
+    };
+
+    private final DelegationCache delegationCache;
+    private final List<InetAddress> rootServers;
+
+    private volatile OPTRecord queryOpt = new OPTRecord(1232, 0, 0, ExtendedFlags.DO);
+    private volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    /**
+     * Create an IterativeResolver starting from the root name servers
+     *
+     * @param delegationCache DelegationCache to keep referrals in
+     */
+    public IterativeResolver(DelegationCache delegationCache) {
+        this(delegationCache, rootServers());
+    }
+
+    /**
+     * IterativeResolver Constructor (used for unit testing)
+     *
+     * @param delegationCache DelegationCache to keep referrals in
+     * @param rootServers Addresses of the root name servers
+     */
+    public IterativeResolver(DelegationCache delegationCache, List<InetAddress> rootServers) {
+        this.delegationCache = delegationCache;
+        this.rootServers = Collections.unmodifiableList(new ArrayList<InetAddress>(rootServers));
+    }
+
+    /**
+     * Get the DelegationCache referrals are kept in
+     *
+     * @return DelegationCache
+     */
+    public DelegationCache getDelegationCache() {
+        return this.delegationCache;
+    }
+
+    @Override
+    public Message send(Message query) throws IOException {
+        Record question = query.getQuestion();
+        if (question == null) {
+            throw new WireParseException("DNS query has no question");
+        }
+        Message response = resolve(question.getName(), question.getType(), question.getDClass(), 0);
+        response.getHeader().setID(query.getHeader().getID());
+        return response;
+    }
+
+    /**
+     * Resolve a name iteratively, following CNAMEs
+     */
+    private Message resolve(Name name, int type, int dclass, int depth) throws IOException {
+        Message response = resolveOnce(name, type, dclass, depth);
+        Name target = name;
+        for (int i = 0; i < MAXIMUM_CNAMES && type != Type.CNAME; i++) {
+            target = cnameTarget(response, target, type);
+            if (target == null) {
+                return response;
+            }
+            Message next = resolveOnce(target, type, dclass, depth);
+            for (Record record : next.getSectionArray(Section.ANSWER)) {
+                response.addRecord(record, Section.ANSWER);
+            }
+            for (Record record : response.getSectionArray(Section.AUTHORITY)) {
+                response.removeRecord(record, Section.AUTHORITY);
+            }
+            for (Record record : next.getSectionArray(Section.AUTHORITY)) {
+                response.addRecord(record, Section.AUTHORITY);
+            }
+            response.getHeader().setRcode(next.getRcode());
+        }
+        return response;
+    }
+
+    /**
+     * Resolve a name iteratively, from its closest cached delegation down to an answer
+     */
+    private Message resolveOnce(Name name, int type, int dclass, int depth) throws IOException {
+        // DS records are served by the parent zone
+        Name zone = this.delegationCache.getClosestZone(type == Type.DS && name.labels() > 1 ? new Name(name, 1) : name);
+        for (int referral = 0; referral < MAXIMUM_REFERRALS; referral++) {
+            if (!zone.equals(Name.root) && this.delegationCache.getNameServers(zone) == null) {
+                // The delegation expired meanwhile
+                zone = Name.root;
+            }
+            Message response = query(zone, name, type, dclass, depth);
+            Name child = referral(response, zone, name, type);
+            if (child == null) {
+                return response;
+            }
+            zone = child;
+        }
+        throw new IOException("Too many referrals resolving " + name);
+    }
+
+    /**
+     * Send a query to the name servers of a zone, by increasing round-trip time
+     */
+    private Message query(Name zone, Name name, int type, int dclass, int depth) throws IOException {
+        Message query = Message.newQuery(Record.newRecord(name, type, dclass));
+        query.getHeader().unsetFlag(Flags.RD);
+        query.addRecord(this.queryOpt, Section.ADDITIONAL);
+
+        IOException failure = new IOException("No name server addresses for " + zone);
+        List<InetAddress> servers = serverAddresses(zone, depth);
+        for (int i = 0; i < Math.min(SERVER_ATTEMPTS, servers.size()); i++) {
+            InetAddress server = servers.get(i);
+            RttEstimator rtt = this.delegationCache.getRtt(server);
+            long start = System.nanoTime();
+            try {
+                Resolver resolver = serverResolver(server);
+                long timeout = rtt.getTimeout(this.timeoutMillis);
+                resolver.setTimeout((int) (timeout / 1000), (int) (timeout % 1000));
+                Message response = resolver.send(query);
+                rtt.sample(System.nanoTime() - start);
+
+                int rcode = response.getRcode();
+                if (rcode == Rcode.SERVFAIL || rcode == Rcode.REFUSED || rcode == Rcode.NOTIMP) {
+                    // Lame or failing server, try the next one
+                    failure = new IOException("Name server " + server.getHostAddress() + " returned " + Rcode.string(rcode));
+                    continue;
+                }
+                return response;
+            } catch (SocketTimeoutException e) {
+                rtt.backoff();
+                failure = e;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Get the addresses of a zone's name servers by increasing round-trip time, resolving name servers without glue
+     */
+    private List<InetAddress> serverAddresses(Name zone, int depth) {
+        List<Name> nameServers = zone.equals(Name.root) ? null : this.delegationCache.getNameServers(zone);
+        List<InetAddress> addresses = new ArrayList<InetAddress>();
+        if (nameServers == null) {
+            addresses.addAll(this.rootServers);
+        } else {
+            for (Name nameServer : nameServers) {
+                List<InetAddress> cached = this.delegationCache.getAddresses(nameServer);
+                if (cached != null) {
+                    addresses.addAll(cached);
+                }
+            }
+            for (int i = 0; i < nameServers.size() && addresses.isEmpty() && depth < MAXIMUM_DEPTH; i++) {
+                addresses.addAll(resolveAddresses(nameServers.get(i), depth + 1));
+            }
+        }
+
+        // Unmeasured servers first, so each is tried once, then by smoothed round-trip time
+        Collections.shuffle(addresses);
+        Collections.sort(addresses, new Comparator<InetAddress>() {
+            @Override
+            public int compare(InetAddress a, InetAddress b) {
+                return Double.compare(delegationCache.getRtt(a).getSmoothedRtt(), delegationCache.getRtt(b).getSmoothedRtt());
+            }
+        });
+        return addresses;
+    }
+
+    /**
+     * Resolve and cache the IPv4 addresses of a name server
+     */
+    private List<InetAddress> resolveAddresses(Name nameServer, int depth) {
+        List<InetAddress> addresses = new ArrayList<InetAddress>();
+        try {
+            Message response = resolve(nameServer, Type.A, DClass.IN, depth);
+            long ttl = Long.MAX_VALUE;
+            for (Record record : response.getSectionArray(Section.ANSWER)) {
+                if (record instanceof ARecord) {
+                    addresses.add(((ARecord) record).getAddress());
+                    ttl = Math.min(ttl, record.getTTL());
+                }
+            }
+            if (!addresses.isEmpty()) {
+                this.delegationCache.putAddresses(nameServer, addresses, ttl);
+            }
+        } catch (IOException ignore) {
+            // Try the zone's next name server
+        }
+        return addresses;
+    }
+
+    /**
+     * Check whether a response refers the query to a child zone, caching the delegation and its in-bailiwick glue
+     *
+     * @return Child zone, or null if the response is an answer
+     */
+    private Name referral(Message response, Name zone, Name name, int type) {
+        if (response.getRcode() != Rcode.NOERROR || response.getHeader().getFlag(Flags.AA)
+                || response.getSectionArray(Section.ANSWER).length > 0) {
+            return null;
+        }
+
+        for (RRset rrset : response.getSectionRRsets(Section.AUTHORITY)) {
+            Name child = rrset.getName();
+            if (rrset.getType() != Type.NS || child.equals(zone) || !child.subdomain(zone) || !name.subdomain(child)
+                    || (type == Type.DS && child.equals(name))) {
+                continue;
+            }
+
+            List<Name> nameServers = new ArrayList<Name>();
+            for (Iterator<?> it = rrset.rrs(); it.hasNext(); ) {
+                nameServers.add(((NSRecord) it.next()).getTarget());
+            }
+            this.delegationCache.putDelegation(child, nameServers, rrset.getTTL());
+
+            // Only trust glue the referring zone is authoritative for
+            for (RRset glue : response.getSectionRRsets(Section.ADDITIONAL)) {
+                if (glue.getType() != Type.A || !nameServers.contains(glue.getName()) || !glue.getName().subdomain(zone)) {
+                    continue;
+                }
+                List<InetAddress> addresses = new ArrayList<InetAddress>();
+                for (Iterator<?> it = glue.rrs(); it.hasNext(); ) {
+                    addresses.add(((ARecord) it.next()).getAddress());
+                }
+                this.delegationCache.putAddresses(glue.getName(), addresses, glue.getTTL());
+            }
+            return child;
+        }
+        return null;
+    }
+
+    /**
+     * Get the target of a CNAME answering a query that has no answer of the queried type
+     *
+     * @return CNAME target, or null if the response answers the query
+     */
+    private static Name cnameTarget(Message response, Name name, int type) {
+        if (response.getRcode() != Rcode.NOERROR) {
+            return null;
+        }
+        Name target = null;
+        for (Record record : response.getSectionArray(Section.ANSWER)) {
+            if (record.getName().equals(name) && record.getType() == type) {
+                return null;
+            }
+            if (record.getName().equals(name) && record instanceof CNAMERecord) {
+                target = ((CNAMERecord) record).getTarget();
+            }
+        }
+        if (target == null) {
+            return null;
+        }
+        // The target may already be answered in the same response
+        for (Record record : response.getSectionArray(Section.ANSWER)) {
+            if (record.getName().equals(target)) {
+                return cnameTarget(response, target, type);
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Get a Resolver sending queries to one name server address
+     *
+     * @param address Name server address
+     * @return Resolver for the address
+     * @throws IOException Thrown if the Resolver cannot be created
+     */
+    Resolver serverResolver(InetAddress address) throws IOException {
+        return new SimpleResolver(address.getHostAddress());
+    }
+
+    private static List<InetAddress> rootServers() {
+        List<InetAddress> servers = new ArrayList<InetAddress>();
+        for (String server : ROOT_SERVERS) {
+            try {
+                servers.add(InetAddress.getByName(server));
+            } catch (IOException ignore) {
+            }
+        }
+        return servers;
+    }
+
+    @Override
+    public Object sendAsync(final Message query, final ResolverListener listener) {
+        final Object id = new Object();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.receiveMessage(id, send(query));
+                } catch (Exception e) {
+                    listener.handleException(id, e);
+                }
+            }
+        }, "dns-iterative-send");
+        thread.setDaemon(true);
+        thread.start();
+        return id;
+    }
+
+    @Override
+    public void setPort(int port) {
+        // Ignored, authoritative name servers are always queried on port 53. A port set for a forwarding upstream is
+        // re-applied by KeyChainResolver when switching to iterative mode and must not redirect these queries.
+    }
+
+    @Override
+    public void setTCP(boolean flag) {
+        // Truncated responses are retried over TCP
+    }
+
+    @Override
+    public void setIgnoreTruncation(boolean flag) {
+        // Truncated responses are retried over TCP
+    }
+
+    @Override
+    public void setEDNS(int level) {
+        setEDNS(level, 0, 0, null);
+    }
+
+    @Override
+    public void setEDNS(int level, int payloadSize, int flags, List options) {
+        if (level != 0 && level != -1) {
+            throw new IllegalArgumentException("invalid EDNS level - must be 0 or -1");
+        }
+        // EDNS and the DO bit stay on, as DNSSEC records are only returned to queries with the DO bit set
+        if (level == 0) {
+            this.queryOpt = new OPTRecord(payloadSize == 0 ? 1232 : payloadSize, 0, level, flags | ExtendedFlags.DO,
+                    options);
+        }
+    }
+
+    @Override
+    public void setTSIGKey(TSIG key) {
+        // Ignored, a TSIG key is shared with one forwarding upstream and cannot apply to public authoritative servers,
+        // which would reject signed queries. KeyChainResolver re-applies it when switching to iterative mode.
+    }
+
+    @Override
+    public void setTimeout(int secs, int msecs) {
+        this.timeoutMillis = secs * 1000L + msecs;
+    }
+
+    @Override
+    public void setTimeout(int secs) {
+        setTimeout(secs, 0);
+    }
+}
@@ -0,0 +1,147 @@
+package com.netki.dnssec;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.xbill.DNS.RRset;
+import org.xbill.DNS.Record;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide cache of DNSKEY and DS RRsets (with their RRSIGs) that were part of a successfully validated chain of
+ * trust.
+ *
+ * The cache is shared by every DNSSECResolver, so a zone's keys fetched once are served to all resolvers, regardless
+ * of which upstream DNS server they use. Entries expire with the RRset TTL, clamped by RRSIG expiration and a maximum
+ * TTL. KeyChainCache objects are thread safe.
+ */
+public class KeyChainCache {
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 10000;
+    public static final long DEFAULT_MAXIMUM_TTL = TimeUnit.DAYS.toSeconds(1);
+
+    private static KeyChainCache ourInstance = null;
+
+    private final Cache<CacheKey, Entry> cache;
+    private final Ticker ticker;
+    private final long maximumTtl;
+
+    /**
+     * KeyChainCache Constructor
+     *
+     * @param maximumSize Maximum number of RRsets to hold
+     * @param maximumTtl Maximum number of seconds an RRset may be cached, regardless of its TTL
+     * @param ticker Time source used for expiration
+     */
+    public KeyChainCache(int maximumSize, long maximumTtl, Ticker ticker) {
+        this.cache = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+        this.maximumTtl = maximumTtl;
+        this.ticker = ticker;
+    }
+
+    /**
+     * Get the process-wide KeyChainCache
+     *
+     * @return Instance of KeyChainCache
+     */
+    public static synchronized KeyChainCache getInstance() {
+        if (ourInstance == null) {
+            ourInstance = new KeyChainCache(DEFAULT_MAXIMUM_SIZE, DEFAULT_MAXIMUM_TTL, Ticker.systemTicker());
+        }
+        return ourInstance;
+    }
+
+    /**
+     * Get the unexpired records (RRset and RRSIGs) cached for a DNSKEY or DS query
+     *
+     * @param key DNSKEY or DS query
+     * @return Cached records or null if absent or expired
+     */
+    public Record[] get(CacheKey key) {
+        Entry entry = this.cache.getIfPresent(key);
+        if (entry == null) {
+            return null;
+        }
+        if (now() >= entry.expiresAt) {
+            this.cache.asMap().remove(key, entry);
+            return null;
+        }
+        return entry.records;
+    }
+
+    /**
+     * Cache a DNSKEY or DS RRset that was part of a validated chain of trust
+     *
+     * @param set RRset, including its RRSIGs
+     */
+    public void put(RRset set) {
+        long ttl = Math.min(this.maximumTtl * 1000, AnswerCache.ttlMillis(set));
+        if (ttl <= 0) {
+            return;
+        }
+        CacheKey key = new CacheKey(set.getName(), set.getType(), set.getDClass());
+        this.cache.put(key, new Entry(AnswerCache.toRecords(new RRset[]{set}), now() + ttl));
+    }
+
+    /**
+     * Get a copy of all unexpired entries, for writing a CacheSnapshot
+     *
+     * @return Unexpired entries by query
+     */
+    Map<CacheKey, Entry> entries() {
+        long now = now();
+        Map<CacheKey, Entry> entries = new HashMap<CacheKey, Entry>();
+        for (Map.Entry<CacheKey, Entry> entry : this.cache.asMap().entrySet()) {
+            if (now < entry.getValue().expiresAt) {
+                entries.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Restore an entry read from a CacheSnapshot, unless the query already has an entry
+     *
+     * @param key DNSKEY or DS query
+     * @param records Cached records (RRset and RRSIGs)
+     * @param expiresAt Time (this cache's clock, in milliseconds) at which the entry expires
+     */
+    void restore(CacheKey key, Record[] records, long expiresAt) {
+        if (now() < expiresAt) {
+            this.cache.asMap().putIfAbsent(key, new Entry(records, expiresAt));
+        }
+    }
+
+    /**
+     * Remove all cached RRsets
+     */
+    public void clear() {
+        this.cache.invalidateAll();
+    }
+
+    /**
+     * Get the number of cached RRsets (including any expired RRsets not yet removed)
+     *
+     * @return Number of cached RRsets
+     */
+    public long size() {
+        return this.cache.size();
+    }
+
+    long now() {
+        return TimeUnit.NANOSECONDS.toMillis(this.ticker.read());
+    }
+
+    static final class Entry {
+        final Record[] records;
+        final long expiresAt;
+
+        private Entry(Record[] records, long expiresAt) {
+            this.records = records;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
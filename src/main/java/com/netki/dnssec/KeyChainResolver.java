@@ -0,0 +1,231 @@
+package com.netki.dnssec;
+
+import org.xbill.DNS.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Resolver placed between a ValidatingResolver and the upstream Resolver that answers DNSKEY and DS queries from the
+ * shared KeyChainCache.
+ *
+ * DNSKEY and DS RRsets fetched from upstream are held per thread until the ValidatingResolver's answer is known:
+ * commit() publishes them to the KeyChainCache once the answer validated as secure, discard() drops them otherwise.
+ * The upstream Resolver can be replaced at any time without losing cached keys; resolver settings made through this
+ * object (such as the EDNS DO bit requested by the ValidatingResolver) are applied to each new upstream Resolver.
+ * DNSKEY records are handed to the ValidatingResolver with their PublicKey already decoded (see DnskeyCache).
+ */
+public class KeyChainResolver implements Resolver {
+
+    private final KeyChainCache keyChainCache;
+    private final DnskeyCache dnskeyCache;
+    private volatile Resolver delegate;
+
+    // Settings applied to every upstream Resolver
+    private Integer port;
+    private Boolean tcp;
+    private Boolean ignoreTruncation;
+    private int ednsLevel = -1;
+    private int ednsPayloadSize;
+    private int ednsFlags;
+    private List ednsOptions;
+    private TSIG tsigKey;
+    private Integer timeoutMillis;
+
+    private final ThreadLocal<List<RRset>> pending = new ThreadLocal<List<RRset>>() {
+        @Override
+        protected List<RRset> initialValue() {
+            return new ArrayList<RRset>();
+        }
+    };
+
+    /**
+     * KeyChainResolver Constructor
+     *
+     * @param delegate Upstream Resolver
+     * @param keyChainCache KeyChainCache shared with other resolvers
+     */
+    public KeyChainResolver(Resolver delegate, KeyChainCache keyChainCache) {
+        this(delegate, keyChainCache, DnskeyCache.getInstance());
+    }
+
+    /**
+     * KeyChainResolver Constructor
+     *
+     * @param delegate Upstream Resolver
+     * @param keyChainCache KeyChainCache shared with other resolvers
+     * @param dnskeyCache DnskeyCache providing decoded DNSKEY public keys
+     */
+    public KeyChainResolver(Resolver delegate, KeyChainCache keyChainCache, DnskeyCache dnskeyCache) {
+        this.delegate = delegate;
+        this.keyChainCache = keyChainCache;
+        this.dnskeyCache = dnskeyCache;
+    }
+
+    /**
+     * Set upstream Resolver
+     * @param delegate Upstream Resolver to send queries to
+     */
+    public synchronized void setDelegate(Resolver delegate) {
+        if (this.port != null) delegate.setPort(this.port);
+        if (this.tcp != null) delegate.setTCP(this.tcp);
+        if (this.ignoreTruncation != null) delegate.setIgnoreTruncation(this.ignoreTruncation);
+        if (this.ednsLevel >= 0) delegate.setEDNS(this.ednsLevel, this.ednsPayloadSize, this.ednsFlags, this.ednsOptions);
+        if (this.tsigKey != null) delegate.setTSIGKey(this.tsigKey);
+        if (this.timeoutMillis != null) delegate.setTimeout(this.timeoutMillis / 1000, this.timeoutMillis % 1000);
+        this.delegate = delegate;
+    }
+
+    /**
+     * Get upstream Resolver
+     * @return Upstream Resolver queries are sent to
+     */
+    public Resolver getDelegate() {
+        return this.delegate;
+    }
+
+    /**
+     * Publish the DNSKEY and DS RRsets fetched by this thread to the KeyChainCache
+     */
+    public void commit() {
+        List<RRset> sets = this.pending.get();
+        for (RRset set : sets) {
+            this.keyChainCache.put(set);
+        }
+        sets.clear();
+    }
+
+    /**
+     * Drop the DNSKEY and DS RRsets fetched by this thread
+     */
+    public void discard() {
+        this.pending.get().clear();
+    }
+
+    @Override
+    public Message send(Message query) throws IOException {
+        Record question = query.getQuestion();
+        if (question == null || (question.getType() != Type.DNSKEY && question.getType() != Type.DS)) {
+            return this.delegate.send(query);
+        }
+
+        Record[] cached = this.keyChainCache.get(new CacheKey(question.getName(), question.getType(), question.getDClass()));
+        if (cached != null) {
+            return cachedResponse(query, cached);
+        }
+
+        Message response = this.delegate.send(query);
+        if (question.getType() == Type.DNSKEY) {
+            Record[] answers = response.getSectionArray(Section.ANSWER);
+            response.removeAllRecords(Section.ANSWER);
+            for (Record record : answers) {
+                response.addRecord(decoded(record), Section.ANSWER);
+            }
+        }
+        if (response.getRcode() == Rcode.NOERROR) {
+            for (RRset set : response.getSectionRRsets(Section.ANSWER)) {
+                if (set.getName().equals(question.getName()) && set.getType() == question.getType() && set.sigs().hasNext()) {
+                    this.pending.get().add(set);
+                }
+            }
+        }
+        return response;
+    }
+
+    @Override
+    public Object sendAsync(final Message query, final ResolverListener listener) {
+        final Object id = new Object();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.receiveMessage(id, send(query));
+                } catch (Exception e) {
+                    listener.handleException(id, e);
+                } finally {
+                    discard();
+                }
+            }
+        }, "key-chain-resolver");
+        thread.setDaemon(true);
+        thread.start();
+        return id;
+    }
+
+    private Message cachedResponse(Message query, Record[] records) {
+        Message response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.getHeader().setFlag(Flags.RA);
+        if (query.getHeader().getFlag(Flags.RD)) {
+            response.getHeader().setFlag(Flags.RD);
+        }
+        if (query.getHeader().getFlag(Flags.CD)) {
+            response.getHeader().setFlag(Flags.CD);
+        }
+        response.addRecord(query.getQuestion(), Section.QUESTION);
+        for (Record record : records) {
+            response.addRecord(decoded(record), Section.ANSWER);
+        }
+        return response;
+    }
+
+    /**
+     * Replace a DNSKEY record with an equal record whose PublicKey is already decoded
+     *
+     * @param record Record
+     * @return Record to pass on to the ValidatingResolver
+     */
+    private Record decoded(Record record) {
+        return record instanceof DNSKEYRecord ? this.dnskeyCache.decoded((DNSKEYRecord) record) : record;
+    }
+
+    @Override
+    public synchronized void setPort(int port) {
+        this.port = port;
+        this.delegate.setPort(port);
+    }
+
+    @Override
+    public synchronized void setTCP(boolean flag) {
+        this.tcp = flag;
+        this.delegate.setTCP(flag);
+    }
+
+    @Override
+    public synchronized void setIgnoreTruncation(boolean flag) {
+        this.ignoreTruncation = flag;
+        this.delegate.setIgnoreTruncation(flag);
+    }
+
+    @Override
+    public void setEDNS(int level) {
+        setEDNS(level, 0, 0, null);
+    }
+
+    @Override
+    public synchronized void setEDNS(int level, int payloadSize, int flags, List options) {
+        this.ednsLevel = level;
+        this.ednsPayloadSize = payloadSize;
+        this.ednsFlags = flags;
+        this.ednsOptions = options;
+        this.delegate.setEDNS(level, payloadSize, flags, options);
+    }
+
+    @Override
+    public synchronized void setTSIGKey(TSIG key) {
+        this.tsigKey = key;
+        this.delegate.setTSIGKey(key);
+    }
+
+    @Override
+    public synchronized void setTimeout(int secs, int msecs) {
+        this.timeoutMillis = secs * 1000 + msecs;
+        this.delegate.setTimeout(secs, msecs);
+    }
+
+    @Override
+    public void setTimeout(int secs) {
+        setTimeout(secs, 0);
+    }
+}
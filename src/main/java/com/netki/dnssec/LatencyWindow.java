@@ -0,0 +1,90 @@
+package com.netki.dnssec;
+
+import java.util.Arrays;
+
+/**
+ * Latencies of the most recent queries, for latency percentiles. A percentile is computed by sorting the window, so
+ * it is cached and only recomputed once a twentieth of the window was replaced. LatencyWindow objects are thread safe.
+ */
+class LatencyWindow {
+
+    private static final int REFRESH_FRACTION = 20;
+
+    private final long[] samples;
+    private final int refreshInterval;
+    private int next = 0;
+    private int count = 0;
+    private long recorded = 0;
+
+    private double cachedPercentile = Double.NaN;
+    private long cachedLatency = -1;
+    private long cachedAt = 0;
+    private boolean refreshing = false;
+
+    /**
+     * LatencyWindow Constructor
+     *
+     * @param size Number of most recent latencies kept
+     */
+    LatencyWindow(int size) {
+        this.samples = new long[size];
+        this.refreshInterval = Math.max(1, size / REFRESH_FRACTION);
+    }
+
+    /**
+     * Add a latency
+     *
+     * @param latencyNanos Latency in nanoseconds
+     */
+    synchronized void record(long latencyNanos) {
+        this.samples[this.next] = latencyNanos;
+        this.next = (this.next + 1) % this.samples.length;
+        this.count = Math.min(this.count + 1, this.samples.length);
+        this.recorded++;
+    }
+
+    /**
+     * Get the number of latencies kept
+     *
+     * @return Number of latencies
+     */
+    synchronized int size() {
+        return this.count;
+    }
+
+    /**
+     * Get a latency percentile. The last percentile computed is returned until a twentieth of the window was replaced,
+     * or while another thread recomputes it.
+     *
+     * @param percentile Percentile between 0 and 1
+     * @return Latency in nanoseconds below which the given fraction of kept latencies fall, or -1 if none are kept
+     */
+    long percentile(double percentile) {
+        long[] sorted;
+        long snapshot;
+        synchronized (this) {
+            if (this.count == 0) {
+                return -1;
+            }
+            if (percentile == this.cachedPercentile
+                    && (this.refreshing || this.recorded - this.cachedAt < this.refreshInterval)) {
+                return this.cachedLatency;
+            }
+            this.refreshing = true;
+            snapshot = this.recorded;
+            sorted = Arrays.copyOf(this.samples, this.count);
+        }
+
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        long latency = sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+
+        synchronized (this) {
+            this.cachedPercentile = percentile;
+            this.cachedLatency = latency;
+            this.cachedAt = snapshot;
+            this.refreshing = false;
+        }
+        return latency;
+    }
+}
@@ -0,0 +1,127 @@
+package com.netki.dnssec;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.xbill.DNS.NSEC3Record;
+import org.xbill.DNS.Name;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Bounded, process-wide memo of NSEC3 name hashes (RFC 5155).
+ *
+ * Hashing a name costs one digest per NSEC3 iteration, and denial proofs for missing names under the same zone hash
+ * the same closest encloser and wildcard names over and over. Hashes are keyed by name, hash algorithm, salt and
+ * iteration count, so a zone re-signed with new parameters never reuses old hashes. Nsec3HashCache objects are thread
+ * safe.
+ */
+public class Nsec3HashCache {
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 100000;
+
+    private static Nsec3HashCache ourInstance = null;
+
+    private final Cache<Key, byte[]> cache;
+
+    /**
+     * Nsec3HashCache Constructor
+     *
+     * @param maximumSize Maximum number of hashes to hold
+     */
+    public Nsec3HashCache(int maximumSize) {
+        this.cache = CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build();
+    }
+
+    /**
+     * Get the process-wide Nsec3HashCache
+     *
+     * @return Instance of Nsec3HashCache
+     */
+    public static synchronized Nsec3HashCache getInstance() {
+        if (ourInstance == null) {
+            ourInstance = new Nsec3HashCache(DEFAULT_MAXIMUM_SIZE);
+        }
+        return ourInstance;
+    }
+
+    /**
+     * Hash a name with the hash algorithm, salt and iterations of an NSEC3 record
+     *
+     * @param parameters NSEC3 record holding the zone's hash parameters
+     * @param name Name to hash
+     * @return Hash of the name
+     * @throws NoSuchAlgorithmException Thrown if the hash algorithm is not supported
+     */
+    public byte[] hash(NSEC3Record parameters, Name name) throws NoSuchAlgorithmException {
+        Key key = new Key(name, parameters.getHashAlgorithm(), parameters.getIterations(), parameters.getSalt());
+        byte[] hash = this.cache.getIfPresent(key);
+        if (hash == null) {
+            hash = parameters.hashName(name);
+            this.cache.put(key, hash);
+        }
+        return hash.clone();
+    }
+
+    /**
+     * Get hit and miss statistics
+     *
+     * @return Cache statistics
+     */
+    public CacheStats stats() {
+        return this.cache.stats();
+    }
+
+    /**
+     * Remove all cached hashes
+     */
+    public void clear() {
+        this.cache.invalidateAll();
+    }
+
+    /**
+     * Get the number of cached hashes
+     *
+     * @return Number of cached hashes
+     */
+    public long size() {
+        return this.cache.size();
+    }
+
+    private static final class Key {
+        private final Name name;
+        private final int hashAlgorithm;
+        private final int iterations;
+        private final byte[] salt;
+
+        private Key(Name name, int hashAlgorithm, int iterations, byte[] salt) {
+            this.name = name;
+            this.hashAlgorithm = hashAlgorithm;
+            this.iterations = iterations;
+            this.salt = salt;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return this.hashAlgorithm == other.hashAlgorithm && this.iterations == other.iterations
+                    && this.name.equals(other.name) && Arrays.equals(this.salt, other.salt);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = this.name.hashCode();
+            result = 31 * result + this.hashAlgorithm;
+            result = 31 * result + this.iterations;
+            result = 31 * result + Arrays.hashCode(this.salt);
+            return result;
+        }
+    }
+}
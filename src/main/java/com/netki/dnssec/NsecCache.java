@@ -0,0 +1,459 @@
+package com.netki.dnssec;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.primitives.UnsignedBytes;
+import org.xbill.DNS.*;
+import org.xbill.DNS.utils.base32;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of DNSSEC validated NSEC and NSEC3 records, used to synthesize NXDOMAIN and NODATA answers for names the
+ * cached denial proofs already cover, without asking upstream (RFC 8198).
+ *
+ * Records are kept per zone, in canonical (NSEC) or hash (NSEC3) order, for the lesser of their TTL and the zone's
+ * SOA minimum. Wildcard expansion is never synthesized, and NSEC3 opt-out ranges are never used to deny a name.
+ * NsecCache objects are thread safe.
+ */
+public class NsecCache {
+
+    public static final int DEFAULT_MAXIMUM_ZONES = 1000;
+    public static final int DEFAULT_MAXIMUM_RECORDS_PER_ZONE = 10000;
+
+    private static final Name WILDCARD = Name.fromConstantString("*");
+    private static final base32 BASE32HEX = new base32(base32.Alphabet.BASE32HEX, false, false);
+
+    private final Cache<Name, Zone> zones;
+    private final Ticker ticker;
+    private final int maximumRecordsPerZone;
+    private final Nsec3HashCache nsec3HashCache;
+
+    /**
+     * Create an NsecCache with default size limits
+     */
+    public NsecCache() {
+        this(DEFAULT_MAXIMUM_ZONES, DEFAULT_MAXIMUM_RECORDS_PER_ZONE, Nsec3HashCache.getInstance(), Ticker.systemTicker());
+    }
+
+    /**
+     * NsecCache Constructor
+     *
+     * @param maximumZones Maximum number of zones to hold denial proofs for
+     * @param maximumRecordsPerZone Maximum number of NSEC or NSEC3 records to hold per zone
+     * @param ticker Time source used for expiration
+     */
+    public NsecCache(int maximumZones, int maximumRecordsPerZone, Ticker ticker) {
+        this(maximumZones, maximumRecordsPerZone, Nsec3HashCache.getInstance(), ticker);
+    }
+
+    /**
+     * NsecCache Constructor
+     *
+     * @param maximumZones Maximum number of zones to hold denial proofs for
+     * @param maximumRecordsPerZone Maximum number of NSEC or NSEC3 records to hold per zone
+     * @param nsec3HashCache Memo of NSEC3 name hashes (null to hash every name)
+     * @param ticker Time source used for expiration
+     */
+    public NsecCache(int maximumZones, int maximumRecordsPerZone, Nsec3HashCache nsec3HashCache, Ticker ticker) {
+        this.zones = CacheBuilder.newBuilder().maximumSize(maximumZones).build();
+        this.maximumRecordsPerZone = maximumRecordsPerZone;
+        this.nsec3HashCache = nsec3HashCache;
+        this.ticker = ticker;
+    }
+
+    /**
+     * Cache the NSEC and NSEC3 records of a validated negative response
+     *
+     * Records are only cached together with the zone's SOA record, which bounds their negative TTL.
+     *
+     * @param authoritySets Validated authority section RRsets of an NXDOMAIN or NODATA response
+     */
+    public void put(RRset[] authoritySets) {
+        RRset soaSet = null;
+        for (RRset set : authoritySets) {
+            if (set.getType() == Type.SOA) {
+                soaSet = set;
+            }
+        }
+        if (soaSet == null) {
+            return;
+        }
+
+        SOARecord soa = (SOARecord) soaSet.first();
+        long negativeTtl = Math.min(AnswerCache.DEFAULT_MAXIMUM_NEGATIVE_TTL, Math.min(soaSet.getTTL(), soa.getMinimum())) * 1000;
+        long now = now();
+
+        Zone zone = null;
+        for (RRset set : authoritySets) {
+            if ((set.getType() != Type.NSEC && set.getType() != Type.NSEC3) || !set.getName().subdomain(soaSet.getName())) {
+                continue;
+            }
+            long ttl = Math.min(negativeTtl, Math.min(AnswerCache.ttlMillis(set), AnswerCache.ttlMillis(soaSet)));
+            if (ttl <= 0) {
+                continue;
+            }
+            if (zone == null) {
+                zone = getZone(soaSet.getName());
+            }
+            Entry entry = new Entry(set.first(), AnswerCache.toRecords(new RRset[]{set}), now + ttl);
+            zone.put(entry, new Entry(soa, AnswerCache.toRecords(new RRset[]{soaSet}), now + ttl), now, this.maximumRecordsPerZone);
+        }
+    }
+
+    /**
+     * Synthesize a negative answer from cached denial proofs
+     *
+     * @param key Query to answer
+     * @return NXDOMAIN or NODATA answer (times on this cache's clock), or null if the cached proofs do not cover the
+     * query
+     */
+    public CachedAnswer synthesize(CacheKey key) {
+        Name name = key.getName();
+        for (int labels = name.labels(); labels > 0; labels--) {
+            Name ancestor = labels == name.labels() ? name : new Name(name, name.labels() - labels);
+            Zone zone = this.zones.getIfPresent(ancestor);
+            if (zone != null) {
+                return zone.synthesize(name, key.getType(), now());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Remove all cached denial proofs
+     */
+    public void clear() {
+        this.zones.invalidateAll();
+    }
+
+    /**
+     * Get the number of zones holding cached denial proofs
+     *
+     * @return Number of zones
+     */
+    public long size() {
+        return this.zones.size();
+    }
+
+    private Zone getZone(Name apex) {
+        synchronized (this.zones) {
+            Zone zone = this.zones.getIfPresent(apex);
+            if (zone == null) {
+                zone = new Zone(apex);
+                this.zones.put(apex, zone);
+            }
+            return zone;
+        }
+    }
+
+    private long now() {
+        return TimeUnit.NANOSECONDS.toMillis(this.ticker.read());
+    }
+
+    /**
+     * Hash a name with the parameters of an NSEC3 record
+     *
+     * @param nsec3 NSEC3 record holding the zone's hash parameters
+     * @param name Name to hash
+     * @return Hash, or null if the hash algorithm is not supported
+     */
+    private byte[] hashName(NSEC3Record nsec3, Name name) {
+        try {
+            return this.nsec3HashCache != null ? this.nsec3HashCache.hash(nsec3, name) : nsec3.hashName(name);
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Is a target strictly between an owner and the next owner, in an order that wraps around after the last owner?
+     *
+     * @param ownerToNext Comparison of owner to next
+     * @param ownerToTarget Comparison of owner to target
+     * @param targetToNext Comparison of target to next
+     * @return Is target covered?
+     */
+    private static boolean covers(int ownerToNext, int ownerToTarget, int targetToNext) {
+        if (ownerToNext < 0) {
+            return ownerToTarget < 0 && targetToNext < 0;
+        }
+        return ownerToTarget < 0 || targetToNext < 0;
+    }
+
+    private static Name commonAncestor(Name a, Name b) {
+        int labels = Math.min(a.labels(), b.labels());
+        while (labels > 1) {
+            Name ancestor = new Name(a, a.labels() - labels);
+            if (ancestor.equals(new Name(b, b.labels() - labels))) {
+                return ancestor;
+            }
+            labels--;
+        }
+        return Name.root;
+    }
+
+    /**
+     * Is an existing name a delegation point or DNAME, below which the zone's denial proofs do not apply?
+     */
+    private static boolean isCut(boolean hasNs, boolean hasSoa, boolean hasDname) {
+        return (hasNs && !hasSoa) || hasDname;
+    }
+
+    private static class Entry {
+        private final Record record;
+        private final Record[] records;
+        private final long expiresAt;
+
+        private Entry(Record record, Record[] records, long expiresAt) {
+            this.record = record;
+            this.records = records;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private class Zone {
+        private final Name apex;
+        private final TreeMap<Name, Entry> nsecs = new TreeMap<Name, Entry>();
+        private final TreeMap<byte[], Entry> nsec3s = new TreeMap<byte[], Entry>(UnsignedBytes.lexicographicalComparator());
+        private NSEC3Record nsec3Parameters;
+        private Entry soa;
+
+        private Zone(Name apex) {
+            this.apex = apex;
+        }
+
+        private synchronized void put(Entry entry, Entry soa, long now, int maximumRecords) {
+            if (this.nsecs.size() + this.nsec3s.size() >= maximumRecords) {
+                purge(now);
+            }
+            if (this.nsecs.size() + this.nsec3s.size() >= maximumRecords) {
+                return;
+            }
+            this.soa = soa;
+
+            if (entry.record instanceof NSECRecord) {
+                this.nsecs.put(entry.record.getName(), entry);
+                return;
+            }
+
+            NSEC3Record nsec3 = (NSEC3Record) entry.record;
+            if (nsec3.getName().labels() != this.apex.labels() + 1) {
+                return;
+            }
+            if (this.nsec3Parameters == null || nsec3.getHashAlgorithm() != this.nsec3Parameters.getHashAlgorithm()
+                    || nsec3.getIterations() != this.nsec3Parameters.getIterations()
+                    || !Arrays.equals(nsec3.getSalt(), this.nsec3Parameters.getSalt())) {
+                // Zone was re-signed with new NSEC3 parameters
+                this.nsec3s.clear();
+                this.nsec3Parameters = nsec3;
+            }
+            try {
+                this.nsec3s.put(BASE32HEX.fromString(nsec3.getName().getLabelString(0)), entry);
+            } catch (RuntimeException ignore) {
+                // Owner label is not a base32hex hash
+            }
+        }
+
+        private void purge(long now) {
+            for (Iterator<Entry> it = this.nsecs.values().iterator(); it.hasNext(); ) {
+                if (now >= it.next().expiresAt) {
+                    it.remove();
+                }
+            }
+            for (Iterator<Entry> it = this.nsec3s.values().iterator(); it.hasNext(); ) {
+                if (now >= it.next().expiresAt) {
+                    it.remove();
+                }
+            }
+        }
+
+        private synchronized CachedAnswer synthesize(Name name, int type, long now) {
+            if (this.soa == null || now >= this.soa.expiresAt) {
+                return null;
+            }
+            if (!this.nsecs.isEmpty()) {
+                return synthesizeNsec(name, type, now);
+            }
+            if (!this.nsec3s.isEmpty()) {
+                return synthesizeNsec3(name, type, now);
+            }
+            return null;
+        }
+
+        private CachedAnswer synthesizeNsec(Name name, int type, long now) {
+            Entry entry = floor(name, now);
+            if (entry == null) {
+                return null;
+            }
+            NSECRecord nsec = (NSECRecord) entry.record;
+
+            if (nsec.getName().equals(name)) {
+                if (nsec.hasType(type) || nsec.hasType(Type.CNAME)) {
+                    return null;
+                }
+                boolean cut = nsec.hasType(Type.NS) && !nsec.hasType(Type.SOA);
+                if ((cut && type != Type.DS) || (type == Type.DS && nsec.hasType(Type.SOA))) {
+                    // The child zone (or, for DS, the parent zone) is authoritative for this query
+                    return null;
+                }
+                return answer(Rcode.NOERROR, Collections.singletonList(entry), now);
+            }
+
+            if (!coversName(nsec, name) || nsec.getNext().subdomain(name) || (name.subdomain(nsec.getName())
+                    && isCut(nsec.hasType(Type.NS), nsec.hasType(Type.SOA), nsec.hasType(Type.DNAME)))) {
+                // Not covered, an empty non-terminal, or below a zone cut
+                return null;
+            }
+
+            // The source of synthesis (RFC 4592) must not exist either
+            Name closestEncloser = commonAncestor(name, nsec.getName());
+            Name nextAncestor = commonAncestor(name, nsec.getNext());
+            if (nextAncestor.labels() > closestEncloser.labels()) {
+                closestEncloser = nextAncestor;
+            }
+            Name wildcard;
+            try {
+                wildcard = Name.concatenate(WILDCARD, closestEncloser);
+            } catch (NameTooLongException e) {
+                return null;
+            }
+            Entry wildcardEntry = floor(wildcard, now);
+            if (wildcardEntry == null || wildcardEntry.record.getName().equals(wildcard)
+                    || !coversName((NSECRecord) wildcardEntry.record, wildcard)) {
+                return null;
+            }
+
+            List<Entry> proof = new ArrayList<Entry>();
+            proof.add(entry);
+            if (wildcardEntry != entry) {
+                proof.add(wildcardEntry);
+            }
+            return answer(Rcode.NXDOMAIN, proof, now);
+        }
+
+        private CachedAnswer synthesizeNsec3(Name name, int type, long now) {
+            if (!name.subdomain(this.apex)) {
+                return null;
+            }
+
+            // Find the closest encloser: the longest existing ancestor of name
+            Name nextCloser = null;
+            for (int strip = 0; strip <= name.labels() - this.apex.labels(); strip++) {
+                Name candidate = strip == 0 ? name : new Name(name, strip);
+                byte[] hash = hashName(this.nsec3Parameters, candidate);
+                if (hash == null) {
+                    return null;
+                }
+                Entry match = match(hash, now);
+                if (match == null) {
+                    nextCloser = candidate;
+                    continue;
+                }
+
+                NSEC3Record nsec3 = (NSEC3Record) match.record;
+                if (strip == 0) {
+                    if (nsec3.hasType(type) || nsec3.hasType(Type.CNAME)) {
+                        return null;
+                    }
+                    boolean cut = nsec3.hasType(Type.NS) && !nsec3.hasType(Type.SOA);
+                    if ((cut && type != Type.DS) || (type == Type.DS && nsec3.hasType(Type.SOA))) {
+                        return null;
+                    }
+                    return answer(Rcode.NOERROR, Collections.singletonList(match), now);
+                }
+                if (isCut(nsec3.hasType(Type.NS), nsec3.hasType(Type.SOA), nsec3.hasType(Type.DNAME))) {
+                    return null;
+                }
+
+                Entry nextCloserEntry = cover(hashName(this.nsec3Parameters, nextCloser), now);
+                Name wildcard;
+                try {
+                    wildcard = Name.concatenate(WILDCARD, candidate);
+                } catch (NameTooLongException e) {
+                    return null;
+                }
+                Entry wildcardEntry = cover(hashName(this.nsec3Parameters, wildcard), now);
+                if (nextCloserEntry == null || wildcardEntry == null) {
+                    return null;
+                }
+
+                List<Entry> proof = new ArrayList<Entry>();
+                proof.add(match);
+                proof.add(nextCloserEntry);
+                if (wildcardEntry != nextCloserEntry) {
+                    proof.add(wildcardEntry);
+                }
+                return answer(Rcode.NXDOMAIN, proof, now);
+            }
+            return null;
+        }
+
+        private Entry floor(Name name, long now) {
+            Map.Entry<Name, Entry> floor = this.nsecs.floorEntry(name);
+            if (floor == null) {
+                // Wrap around to the last NSEC of the zone
+                floor = this.nsecs.lastEntry();
+            }
+            return now < floor.getValue().expiresAt ? floor.getValue() : null;
+        }
+
+        private boolean coversName(NSECRecord nsec, Name name) {
+            Name owner = nsec.getName();
+            Name next = nsec.getNext();
+            return covers(owner.compareTo(next), owner.compareTo(name), name.compareTo(next));
+        }
+
+        /**
+         * Get the NSEC3 record whose owner hash equals hash
+         */
+        private Entry match(byte[] hash, long now) {
+            Entry entry = this.nsec3s.get(hash);
+            return entry != null && now < entry.expiresAt ? entry : null;
+        }
+
+        /**
+         * Get the NSEC3 record whose range covers hash, unless it is an opt-out range
+         */
+        private Entry cover(byte[] hash, long now) {
+            if (hash == null) {
+                return null;
+            }
+            Map.Entry<byte[], Entry> floor = this.nsec3s.lowerEntry(hash);
+            if (floor == null) {
+                floor = this.nsec3s.lastEntry();
+            }
+            Entry entry = floor.getValue();
+            NSEC3Record nsec3 = (NSEC3Record) entry.record;
+            if (now >= entry.expiresAt || (nsec3.getFlags() & NSEC3Record.Flags.OPT_OUT) != 0) {
+                return null;
+            }
+
+            Comparator<byte[]> order = UnsignedBytes.lexicographicalComparator();
+            byte[] owner = floor.getKey();
+            byte[] next = nsec3.getNext();
+            return covers(order.compare(owner, next), order.compare(owner, hash), order.compare(hash, next))
+                    ? entry : null;
+        }
+
+        private CachedAnswer answer(int rcode, List<Entry> proof, long now) {
+            List<Record> records = new ArrayList<Record>(Arrays.asList(this.soa.records));
+            long expiresAt = this.soa.expiresAt;
+            for (Entry entry : proof) {
+                records.addAll(Arrays.asList(entry.records));
+                expiresAt = Math.min(expiresAt, entry.expiresAt);
+            }
+            return new CachedAnswer(null, rcode, records.toArray(new Record[records.size()]), now, expiresAt, 0);
+        }
+    }
+}
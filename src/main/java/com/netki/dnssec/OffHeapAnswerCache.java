@@ -0,0 +1,383 @@
+package com.netki.dnssec;
+
+import com.google.common.base.Ticker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * AnswerCache storing validated answers off-heap, in DNS wire format, within a hard byte budget.
+ *
+ * Answers are appended to a ring of direct ByteBuffer slabs. When the ring wraps, the oldest slab is reused and every
+ * answer in it is evicted. Answers are found through an open-addressed index of primitive arrays, and only decoded
+ * into Record objects on a hit. Even caches of millions of answers therefore add little to the Java heap or to GC
+ * pause times.
+ *
+ * Slabs count against the JVM's direct memory limit (-XX:MaxDirectMemorySize). OffHeapAnswerCache objects are thread
+ * safe.
+ */
+public class OffHeapAnswerCache extends AnswerCache {
+
+    public static final long DEFAULT_MAXIMUM_BYTES = 256L * 1024 * 1024;
+    public static final int DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+
+    // Entry layout: [int length][int hash][short key length][canonical key][encoded answer]
+    private static final int ENTRY_HEADER_SIZE = 10;
+
+    private static final long EMPTY = -1L;
+    private static final long REMOVED = -2L;
+    private static final int INITIAL_INDEX_CAPACITY = 1024;
+    private static final double MAXIMUM_INDEX_LOAD = 0.7;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final int slabSize;
+    private final ByteBuffer[] slabs;
+    private final int[] slabEnds;
+    private int writeSlab = 0;
+
+    // Open-addressed index: slab address ((slab << 32) | offset) and key hash of each entry
+    private long[] addresses;
+    private int[] hashes;
+    private int entries = 0;
+    private int usedSlots = 0;
+
+    /**
+     * Create an OffHeapAnswerCache with the default TTL limit
+     *
+     * @param maximumBytes Maximum number of bytes of off-heap memory to use
+     */
+    public OffHeapAnswerCache(long maximumBytes) {
+        this(maximumBytes, DEFAULT_MAXIMUM_TTL);
+    }
+
+    /**
+     * OffHeapAnswerCache Constructor
+     *
+     * @param maximumBytes Maximum number of bytes of off-heap memory to use
+     * @param maximumTtl Maximum number of seconds an answer may be cached, regardless of its TTL
+     */
+    public OffHeapAnswerCache(long maximumBytes, long maximumTtl) {
+        this(maximumBytes, DEFAULT_SLAB_SIZE, maximumTtl, Ticker.systemTicker());
+    }
+
+    /**
+     * OffHeapAnswerCache Constructor (used for unit testing)
+     *
+     * @param maximumBytes Maximum number of bytes of off-heap memory to use
+     * @param slabSize Size in bytes of each slab (reduced so the budget holds at least two slabs)
+     * @param maximumTtl Maximum number of seconds an answer may be cached, regardless of its TTL
+     * @param ticker Time source used for expiration
+     */
+    public OffHeapAnswerCache(long maximumBytes, int slabSize, long maximumTtl, Ticker ticker) {
+        super(maximumTtl, ticker);
+        this.slabSize = (int) Math.min(slabSize, maximumBytes / 2);
+        if (this.slabSize <= ENTRY_HEADER_SIZE) {
+            throw new IllegalArgumentException("Maximum bytes too small: " + maximumBytes);
+        }
+        int slabCount = (int) Math.min(Integer.MAX_VALUE, maximumBytes / this.slabSize);
+        this.slabs = new ByteBuffer[slabCount];
+        this.slabEnds = new int[slabCount];
+        this.addresses = newIndex(INITIAL_INDEX_CAPACITY);
+        this.hashes = new int[INITIAL_INDEX_CAPACITY];
+    }
+
+    @Override
+    protected CachedAnswer lookup(CacheKey key) {
+        byte[] keyBytes = CachedAnswerCodec.canonicalKey(key);
+        byte[] payload;
+        this.lock.readLock().lock();
+        try {
+            int slot = find(hash(key), keyBytes);
+            if (slot < 0) {
+                return null;
+            }
+            payload = readPayload(this.addresses[slot]);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+        return decode(payload).getValue();
+    }
+
+    @Override
+    protected void store(CacheKey key, CachedAnswer answer) {
+        put(key, answer, false);
+    }
+
+    @Override
+    protected void storeIfAbsent(CacheKey key, CachedAnswer answer) {
+        put(key, answer, true);
+    }
+
+    @Override
+    protected void replace(CacheKey key, CachedAnswer oldAnswer, CachedAnswer newAnswer) {
+        byte[] keyBytes = CachedAnswerCodec.canonicalKey(key);
+        byte[] oldPayload = CachedAnswerCodec.encode(key, oldAnswer, 0);
+        this.lock.writeLock().lock();
+        try {
+            int slot = find(hash(key), keyBytes);
+            if (slot >= 0 && Arrays.equals(oldPayload, readPayload(this.addresses[slot]))) {
+                put(key, newAnswer, false);
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    protected void remove(CacheKey key, CachedAnswer answer) {
+        byte[] keyBytes = CachedAnswerCodec.canonicalKey(key);
+        byte[] payload = CachedAnswerCodec.encode(key, answer, 0);
+        this.lock.writeLock().lock();
+        try {
+            int slot = find(hash(key), keyBytes);
+            if (slot >= 0 && Arrays.equals(payload, readPayload(this.addresses[slot]))) {
+                removeSlot(slot);
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<CacheKey, CachedAnswer> entries() {
+        Map<Integer, byte[]> payloads = new HashMap<Integer, byte[]>();
+        this.lock.readLock().lock();
+        try {
+            for (int slot = 0; slot < this.addresses.length; slot++) {
+                if (this.addresses[slot] >= 0) {
+                    payloads.put(slot, readPayload(this.addresses[slot]));
+                }
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+
+        long now = now();
+        Map<CacheKey, CachedAnswer> entries = new HashMap<CacheKey, CachedAnswer>();
+        for (byte[] payload : payloads.values()) {
+            Map.Entry<CacheKey, CachedAnswer> entry = decode(payload);
+            if (!entry.getValue().isExpired(now) && !entry.getValue().isStale()) {
+                entries.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public void clear() {
+        this.lock.writeLock().lock();
+        try {
+            Arrays.fill(this.slabEnds, 0);
+            this.writeSlab = 0;
+            this.addresses = newIndex(INITIAL_INDEX_CAPACITY);
+            this.hashes = new int[INITIAL_INDEX_CAPACITY];
+            this.entries = 0;
+            this.usedSlots = 0;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public long size() {
+        this.lock.readLock().lock();
+        try {
+            return this.entries;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the number of bytes of off-heap memory allocated for slabs
+     *
+     * @return Allocated bytes
+     */
+    public long getAllocatedBytes() {
+        this.lock.readLock().lock();
+        try {
+            long allocated = 0;
+            for (ByteBuffer slab : this.slabs) {
+                if (slab != null) {
+                    allocated += slab.capacity();
+                }
+            }
+            return allocated;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Append an answer to the current slab and index it
+     *
+     * @param key Query the answer belongs to
+     * @param answer Answer to store
+     * @param onlyIfAbsent Keep an answer already stored for the query?
+     */
+    private void put(CacheKey key, CachedAnswer answer, boolean onlyIfAbsent) {
+        int hash = hash(key);
+        byte[] keyBytes = CachedAnswerCodec.canonicalKey(key);
+        byte[] payload = CachedAnswerCodec.encode(key, answer, 0);
+        int length = ENTRY_HEADER_SIZE + keyBytes.length + payload.length;
+        if (length > this.slabSize) {
+            return;
+        }
+
+        this.lock.writeLock().lock();
+        try {
+            if (onlyIfAbsent && find(hash, keyBytes) >= 0) {
+                return;
+            }
+
+            if (this.slabEnds[this.writeSlab] + length > this.slabSize) {
+                this.writeSlab = (this.writeSlab + 1) % this.slabs.length;
+                evictSlab(this.writeSlab);
+            }
+            if (this.slabs[this.writeSlab] == null) {
+                this.slabs[this.writeSlab] = ByteBuffer.allocateDirect(this.slabSize);
+            }
+            int offset = this.slabEnds[this.writeSlab];
+            ByteBuffer slab = this.slabs[this.writeSlab];
+            slab.position(offset);
+            slab.putInt(length).putInt(hash).putShort((short) keyBytes.length).put(keyBytes).put(payload);
+            this.slabEnds[this.writeSlab] = offset + length;
+
+            int slot = find(hash, keyBytes);
+            if (slot >= 0) {
+                removeSlot(slot);
+            }
+            insert(hash, ((long) this.writeSlab << 32) | offset);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Find the index slot of a query
+     *
+     * @param hash Hash of the query
+     * @param keyBytes Canonical encoding of the query
+     * @return Index slot, or -1 if the query is not stored
+     */
+    private int find(int hash, byte[] keyBytes) {
+        int mask = this.addresses.length - 1;
+        for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+            long address = this.addresses[slot];
+            if (address == EMPTY) {
+                return -1;
+            }
+            if (address != REMOVED && this.hashes[slot] == hash && keyEquals(address, keyBytes)) {
+                return slot;
+            }
+        }
+    }
+
+    private void insert(int hash, long address) {
+        if (this.usedSlots + 1 > this.addresses.length * MAXIMUM_INDEX_LOAD) {
+            rehash(this.entries + 1 > this.addresses.length * MAXIMUM_INDEX_LOAD / 2 ? this.addresses.length * 2 : this.addresses.length);
+        }
+        int mask = this.addresses.length - 1;
+        int slot = spread(hash) & mask;
+        while (this.addresses[slot] >= 0) {
+            slot = (slot + 1) & mask;
+        }
+        if (this.addresses[slot] == EMPTY) {
+            this.usedSlots++;
+        }
+        this.addresses[slot] = address;
+        this.hashes[slot] = hash;
+        this.entries++;
+    }
+
+    private void removeSlot(int slot) {
+        this.addresses[slot] = REMOVED;
+        this.entries--;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldAddresses = this.addresses;
+        int[] oldHashes = this.hashes;
+        this.addresses = newIndex(capacity);
+        this.hashes = new int[capacity];
+        this.entries = 0;
+        this.usedSlots = 0;
+        for (int slot = 0; slot < oldAddresses.length; slot++) {
+            if (oldAddresses[slot] >= 0) {
+                insert(oldHashes[slot], oldAddresses[slot]);
+            }
+        }
+    }
+
+    /**
+     * Remove every entry of a slab from the index, so the slab can be reused
+     *
+     * @param slabIndex Slab to evict
+     */
+    private void evictSlab(int slabIndex) {
+        ByteBuffer slab = this.slabs[slabIndex];
+        int mask = this.addresses.length - 1;
+        for (int offset = 0; offset < this.slabEnds[slabIndex]; offset += slab.getInt(offset)) {
+            long address = ((long) slabIndex << 32) | offset;
+            for (int slot = spread(slab.getInt(offset + 4)) & mask; this.addresses[slot] != EMPTY; slot = (slot + 1) & mask) {
+                if (this.addresses[slot] == address) {
+                    removeSlot(slot);
+                    break;
+                }
+            }
+        }
+        this.slabEnds[slabIndex] = 0;
+    }
+
+    private boolean keyEquals(long address, byte[] keyBytes) {
+        ByteBuffer slab = this.slabs[(int) (address >>> 32)];
+        int offset = (int) address;
+        if (slab.getShort(offset + 8) != keyBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (slab.get(offset + ENTRY_HEADER_SIZE + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] readPayload(long address) {
+        ByteBuffer slab = this.slabs[(int) (address >>> 32)].duplicate();
+        int offset = (int) address;
+        int payloadOffset = offset + ENTRY_HEADER_SIZE + slab.getShort(offset + 8);
+        byte[] payload = new byte[offset + slab.getInt(offset) - payloadOffset];
+        slab.position(payloadOffset);
+        slab.get(payload);
+        return payload;
+    }
+
+    private static Map.Entry<CacheKey, CachedAnswer> decode(byte[] payload) {
+        try {
+            return CachedAnswerCodec.decode(ByteBuffer.wrap(payload), 0);
+        } catch (IOException e) {
+            // Payloads are only ever written by CachedAnswerCodec.encode()
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long[] newIndex(int capacity) {
+        long[] index = new long[capacity];
+        Arrays.fill(index, EMPTY);
+        return index;
+    }
+
+    private static int hash(CacheKey key) {
+        return key.hashCode();
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
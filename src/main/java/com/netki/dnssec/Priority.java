@@ -0,0 +1,58 @@
+package com.netki.dnssec;
+
+/**
+ * Priority of a DNSSEC lookup, when the DNS servers' concurrency limits are reached (see ConcurrencyLimiter).
+ *
+ * A lookup never waits for a server while a lookup of higher priority is waiting for it, and lower priorities may
+ * only fill part of a server's concurrency limit, so the rest stays free for interactive lookups.
+ */
+public enum Priority {
+
+    /** User-facing lookups, such as a wallet name resolved at checkout */
+    INTERACTIVE(1.0),
+
+    /** Batch work, such as re-verifying many wallet names with resolveAll() */
+    BULK(0.8),
+
+    /** Work nobody waits for, such as refreshing cached answers ahead of expiry */
+    BACKGROUND(0.5);
+
+    private static final ThreadLocal<Priority> CURRENT = new ThreadLocal<Priority>();
+
+    private final double capacityShare;
+
+    Priority(double capacityShare) {
+        this.capacityShare = capacityShare;
+    }
+
+    /**
+     * Get the fraction of a concurrency limit lookups of this priority may fill
+     *
+     * @return Fraction between 0 and 1
+     */
+    double getCapacityShare() {
+        return this.capacityShare;
+    }
+
+    /**
+     * Get the priority of the lookup running on this thread
+     *
+     * @return Priority, INTERACTIVE if none was set
+     */
+    static Priority current() {
+        Priority priority = CURRENT.get();
+        return priority != null ? priority : INTERACTIVE;
+    }
+
+    /**
+     * Set the priority of the lookup running on this thread
+     *
+     * @param priority Priority
+     * @return Previous priority, to restore once the lookup is done
+     */
+    static Priority enter(Priority priority) {
+        Priority previous = current();
+        CURRENT.set(priority);
+        return previous;
+    }
+}
@@ -0,0 +1,69 @@
+package com.netki.dnssec;
+
+import com.netki.exceptions.DNSSECException;
+
+/**
+ * Outcome of resolving one label of a DNSSECResolver.resolveAll() batch: the value resolve() would return, or the
+ * DNSSECException it would throw.
+ */
+public class ResolveResult {
+
+    private final String value;
+    private final DNSSECException error;
+
+    private ResolveResult(String value, DNSSECException error) {
+        this.value = value;
+        this.error = error;
+    }
+
+    /**
+     * Create a successful result
+     *
+     * @param value Resulting value string, or null for NXDOMAIN
+     * @return ResolveResult
+     */
+    public static ResolveResult success(String value) {
+        return new ResolveResult(value, null);
+    }
+
+    /**
+     * Create a failed result
+     *
+     * @param error Exception resolve() would have thrown
+     * @return ResolveResult
+     */
+    public static ResolveResult failure(DNSSECException error) {
+        return new ResolveResult(null, error);
+    }
+
+    /**
+     * Check whether the label was resolved
+     *
+     * @return true if resolution succeeded
+     */
+    public boolean isSuccess() {
+        return this.error == null;
+    }
+
+    /**
+     * Get the resulting value string
+     *
+     * @return Resulting value string, or null for NXDOMAIN
+     * @throws DNSSECException Thrown if resolution failed
+     */
+    public String getValue() throws DNSSECException {
+        if (this.error != null) {
+            throw this.error;
+        }
+        return this.value;
+    }
+
+    /**
+     * Get the resolution failure
+     *
+     * @return Exception resolve() would have thrown, or null if resolution succeeded
+     */
+    public DNSSECException getError() {
+        return this.error;
+    }
+}
@@ -0,0 +1,108 @@
+package com.netki.dnssec;
+
+import org.jitsi.dnssec.validator.ValidatingResolver;
+
+import java.io.IOException;
+
+/**
+ * One of a DNSSECResolver's independent transport and validator pairs: an UpstreamPool, the KeyChainResolver in
+ * front of it and the ValidatingResolver using them.
+ *
+ * Shards only share the caches of the DNSSECResolver, the KeyChainCache, DnskeyCache and TrustAnchorManager, which are
+ * thread safe, so queries on different shards never wait for each other. ResolverShard objects are thread safe.
+ */
+class ResolverShard {
+
+    private final KeyChainResolver keyChainResolver;
+    private volatile UpstreamPool upstreamPool;
+    private volatile ValidatingResolver validatingResolver;
+
+    // ValidatingResolver most recently loaded with trust anchors, and the anchors it was loaded with
+    private volatile ValidatingResolver anchoredResolver;
+    private volatile TrustAnchors anchoredTrustAnchors;
+
+    /**
+     * ResolverShard Constructor
+     *
+     * @param upstreamPool UpstreamPool to send queries to
+     */
+    ResolverShard(UpstreamPool upstreamPool) {
+        this.upstreamPool = upstreamPool;
+        this.keyChainResolver = new KeyChainResolver(upstreamPool, KeyChainCache.getInstance());
+        this.validatingResolver = new ValidatingResolver(this.keyChainResolver);
+    }
+
+    /**
+     * Get the pool of DNS servers queries are sent to
+     *
+     * @return UpstreamPool in use
+     */
+    UpstreamPool getUpstreamPool() {
+        return this.upstreamPool;
+    }
+
+    /**
+     * Send queries to a new pool of DNS servers, closing the previous pool. The ValidatingResolver, and the DNSKEY/DS
+     * keys it has already validated, are kept.
+     *
+     * @param upstreamPool UpstreamPool to use
+     */
+    synchronized void setUpstreamPool(UpstreamPool upstreamPool) {
+        UpstreamPool previous = this.upstreamPool;
+        this.upstreamPool = upstreamPool;
+        this.keyChainResolver.setDelegate(upstreamPool);
+        if (previous != null && previous != upstreamPool) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Get the KeyChainResolver between the ValidatingResolver and the UpstreamPool
+     *
+     * @return KeyChainResolver
+     */
+    KeyChainResolver getKeyChainResolver() {
+        return this.keyChainResolver;
+    }
+
+    /**
+     * Set ValidatingResolver to use
+     *
+     * @param validatingResolver ValidatingResolver to use
+     */
+    void setValidatingResolver(ValidatingResolver validatingResolver) {
+        this.validatingResolver = validatingResolver;
+    }
+
+    /**
+     * Get the ValidatingResolver, loading the given trust anchors into it if it does not hold them yet.
+     *
+     * Anchors are only loaded when the ValidatingResolver or the anchors change, not per query.
+     *
+     * @param anchors Current trust anchors
+     * @return ValidatingResolver holding the trust anchors
+     * @throws IOException Thrown if the trust anchors cannot be loaded
+     */
+    ValidatingResolver getValidatingResolver(TrustAnchors anchors) throws IOException {
+        ValidatingResolver resolver = this.validatingResolver;
+        if (resolver == this.anchoredResolver && anchors == this.anchoredTrustAnchors) {
+            return resolver;
+        }
+
+        synchronized (this) {
+            if (resolver != this.anchoredResolver || anchors != this.anchoredTrustAnchors) {
+                resolver.loadTrustAnchors(anchors.openStream());
+                this.anchoredTrustAnchors = anchors;
+                this.anchoredResolver = resolver;
+            }
+        }
+        return resolver;
+    }
+
+    /**
+     * Close the UpstreamPool
+     */
+    void close() {
+        this.upstreamPool.close();
+    }
+}
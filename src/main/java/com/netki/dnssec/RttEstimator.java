@@ -0,0 +1,78 @@
+package com.netki.dnssec;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Smoothed round-trip time and retransmission timeout of one upstream DNS server, computed as TCP does (RFC 6298).
+ *
+ * The timeout is the smoothed RTT plus four times its mean deviation, clamped between MINIMUM_TIMEOUT and a maximum,
+ * and doubles with each timeout in a row until the server answers again. Before the first answer the timeout is
+ * INITIAL_TIMEOUT. RttEstimator objects are thread safe.
+ */
+class RttEstimator {
+
+    static final long INITIAL_TIMEOUT = TimeUnit.SECONDS.toMillis(1);
+    static final long MINIMUM_TIMEOUT = 50;
+
+    private static final double ALPHA = 0.125;
+    private static final double BETA = 0.25;
+    private static final int MAXIMUM_BACKOFFS = 6;
+
+    private double smoothedRtt = -1;
+    private double rttVariance;
+    private int backoffs = 0;
+
+    /**
+     * Add a round-trip time measurement, resetting the timeout backoff
+     *
+     * @param rttNanos Round-trip time in nanoseconds
+     */
+    synchronized void sample(long rttNanos) {
+        double rtt = rttNanos / 1e6;
+        if (this.smoothedRtt < 0) {
+            this.smoothedRtt = rtt;
+            this.rttVariance = rtt / 2;
+        } else {
+            this.rttVariance = (1 - BETA) * this.rttVariance + BETA * Math.abs(this.smoothedRtt - rtt);
+            this.smoothedRtt = (1 - ALPHA) * this.smoothedRtt + ALPHA * rtt;
+        }
+        this.backoffs = 0;
+    }
+
+    /**
+     * Double the timeout after a query timed out
+     */
+    synchronized void backoff() {
+        this.backoffs = Math.min(this.backoffs + 1, MAXIMUM_BACKOFFS);
+    }
+
+    /**
+     * Get the retransmission timeout
+     *
+     * @param maximumTimeout Longest timeout to return, in milliseconds
+     * @return Timeout in milliseconds
+     */
+    synchronized long getTimeout(long maximumTimeout) {
+        double timeout = this.smoothedRtt < 0 ? INITIAL_TIMEOUT : this.smoothedRtt + 4 * this.rttVariance;
+        timeout = Math.max(timeout, MINIMUM_TIMEOUT) * (1 << this.backoffs);
+        return Math.max(1, Math.min((long) Math.ceil(timeout), maximumTimeout));
+    }
+
+    /**
+     * Check whether the server answered at least once
+     *
+     * @return true if a round-trip time was measured
+     */
+    synchronized boolean isMeasured() {
+        return this.smoothedRtt >= 0;
+    }
+
+    /**
+     * Get the smoothed round-trip time
+     *
+     * @return Smoothed round-trip time in milliseconds, or -1 if none was measured
+     */
+    synchronized double getSmoothedRtt() {
+        return this.smoothedRtt;
+    }
+}
@@ -0,0 +1,142 @@
+package com.netki.dnssec;
+
+import org.xbill.DNS.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * Resolver sending each query to one upstream DNS server with a new SimpleResolver, configured with the settings of
+ * this Resolver and the query's own timeout.
+ *
+ * A SimpleResolver opens a new socket per query anyway, so a SimpleResolver per query costs little, and concurrent
+ * queries to the server no longer share one timeout (see TimeoutResolver).
+ *
+ * SimpleTransport objects are thread safe.
+ */
+class SimpleTransport implements TimeoutResolver {
+
+    private static final int DEFAULT_TIMEOUT_MILLIS = 10000;
+
+    private volatile InetSocketAddress address;
+    private volatile boolean tcp = false;
+    private volatile boolean ignoreTruncation = false;
+    private volatile Edns edns;
+    private volatile TSIG tsig;
+    private volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    /**
+     * SimpleTransport Constructor
+     *
+     * @param address Address of the upstream DNS server
+     */
+    SimpleTransport(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    /**
+     * Get the upstream DNS server address
+     *
+     * @return Upstream address
+     */
+    InetSocketAddress getAddress() {
+        return this.address;
+    }
+
+    @Override
+    public Message send(Message query) throws IOException {
+        return send(query, this.timeoutMillis);
+    }
+
+    @Override
+    public Message send(Message query, long timeoutMillis) throws IOException {
+        return newResolver(timeoutMillis).send(query);
+    }
+
+    @Override
+    public Object sendAsync(Message query, ResolverListener listener) {
+        try {
+            return newResolver(this.timeoutMillis).sendAsync(query, listener);
+        } catch (IOException e) {
+            Object id = new Object();
+            listener.handleException(id, e);
+            return id;
+        }
+    }
+
+    private SimpleResolver newResolver(long timeoutMillis) throws IOException {
+        InetSocketAddress address = this.address;
+        // An address literal, so no name is looked up
+        SimpleResolver resolver = new SimpleResolver(address.getAddress().getHostAddress());
+        resolver.setPort(address.getPort());
+        resolver.setTCP(this.tcp);
+        resolver.setIgnoreTruncation(this.ignoreTruncation);
+        Edns edns = this.edns;
+        if (edns != null) {
+            resolver.setEDNS(edns.level, edns.payloadSize, edns.flags, edns.options);
+        }
+        if (this.tsig != null) {
+            resolver.setTSIGKey(this.tsig);
+        }
+        resolver.setTimeout((int) (timeoutMillis / 1000), (int) (timeoutMillis % 1000));
+        return resolver;
+    }
+
+    @Override
+    public void setPort(int port) {
+        this.address = new InetSocketAddress(this.address.getAddress(), port);
+    }
+
+    @Override
+    public void setTCP(boolean flag) {
+        this.tcp = flag;
+    }
+
+    @Override
+    public void setIgnoreTruncation(boolean flag) {
+        this.ignoreTruncation = flag;
+    }
+
+    @Override
+    public void setEDNS(int level) {
+        setEDNS(level, 0, 0, null);
+    }
+
+    @Override
+    public void setEDNS(int level, int payloadSize, int flags, List options) {
+        if (level != 0 && level != -1) {
+            throw new IllegalArgumentException("invalid EDNS level - must be 0 or -1");
+        }
+        this.edns = new Edns(level, payloadSize, flags, options);
+    }
+
+    @Override
+    public void setTSIGKey(TSIG key) {
+        this.tsig = key;
+    }
+
+    @Override
+    public void setTimeout(int secs, int msecs) {
+        this.timeoutMillis = secs * 1000L + msecs;
+    }
+
+    @Override
+    public void setTimeout(int secs) {
+        setTimeout(secs, 0);
+    }
+
+    private static class Edns {
+        private final int level;
+        private final int payloadSize;
+        private final int flags;
+        private final List options;
+
+        private Edns(int level, int payloadSize, int flags, List options) {
+            this.level = level;
+            this.payloadSize = payloadSize;
+            this.flags = flags;
+            this.options = options;
+        }
+    }
+}
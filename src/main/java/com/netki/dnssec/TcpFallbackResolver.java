@@ -0,0 +1,147 @@
+package com.netki.dnssec;
+
+import org.xbill.DNS.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Resolver sending queries over UDP with a SimpleResolver or SimpleTransport, and retrying truncated responses over a
+ * persistent TcpTransport connection instead of a new TCP connection per truncated response.
+ *
+ * Query timeouts passed to send(Message, long) apply to the UDP query only. With a SimpleResolver they are set on
+ * it, and so shared with the queries in flight.
+ */
+class TcpFallbackResolver implements TimeoutResolver, Closeable {
+
+    private final Resolver udp;
+    private final TcpTransport tcp;
+    private volatile boolean tcpOnly = false;
+    private volatile boolean ignoreTruncation = false;
+
+    /**
+     * TcpFallbackResolver Constructor
+     *
+     * @param udp SimpleResolver or SimpleTransport to send UDP queries with, set to ignore truncation
+     * @param tcp TcpTransport to the same server
+     */
+    TcpFallbackResolver(Resolver udp, TcpTransport tcp) {
+        this.udp = udp;
+        this.tcp = tcp;
+        this.udp.setIgnoreTruncation(true);
+    }
+
+    /**
+     * Get the TcpTransport truncated responses are retried with
+     *
+     * @return TcpTransport
+     */
+    TcpTransport getTcpTransport() {
+        return this.tcp;
+    }
+
+    /**
+     * Close the TcpTransport connection
+     */
+    @Override
+    public void close() {
+        this.tcp.close();
+    }
+
+    @Override
+    public Message send(Message query) throws IOException {
+        if (this.tcpOnly) {
+            return this.tcp.send(query);
+        }
+        return fallBack(query, this.udp.send(query));
+    }
+
+    @Override
+    public Message send(Message query, long timeoutMillis) throws IOException {
+        if (this.tcpOnly) {
+            return this.tcp.send(query);
+        }
+        if (this.udp instanceof TimeoutResolver) {
+            return fallBack(query, ((TimeoutResolver) this.udp).send(query, timeoutMillis));
+        }
+        this.udp.setTimeout((int) (timeoutMillis / 1000), (int) (timeoutMillis % 1000));
+        return fallBack(query, this.udp.send(query));
+    }
+
+    /**
+     * Retry a query over TCP if its UDP response was truncated
+     */
+    private Message fallBack(Message query, Message response) throws IOException {
+        if (response.getHeader().getFlag(Flags.TC) && !this.ignoreTruncation) {
+            return this.tcp.send(query);
+        }
+        return response;
+    }
+
+    @Override
+    public Object sendAsync(final Message query, final ResolverListener listener) {
+        final Object id = new Object();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.receiveMessage(id, send(query));
+                } catch (Exception e) {
+                    listener.handleException(id, e);
+                }
+            }
+        }, "dns-tcp-fallback");
+        thread.setDaemon(true);
+        thread.start();
+        return id;
+    }
+
+    @Override
+    public void setPort(int port) {
+        this.udp.setPort(port);
+        this.tcp.setPort(port);
+    }
+
+    @Override
+    public void setTCP(boolean flag) {
+        this.tcpOnly = flag;
+    }
+
+    @Override
+    public void setIgnoreTruncation(boolean flag) {
+        this.ignoreTruncation = flag;
+    }
+
+    @Override
+    public void setEDNS(int level) {
+        this.udp.setEDNS(level);
+        this.tcp.setEDNS(level);
+    }
+
+    @Override
+    public void setEDNS(int level, int payloadSize, int flags, List options) {
+        this.udp.setEDNS(level, payloadSize, flags, options);
+        this.tcp.setEDNS(level, payloadSize, flags, options);
+    }
+
+    @Override
+    public void setTSIGKey(TSIG key) {
+        this.udp.setTSIGKey(key);
+        this.tcp.setTSIGKey(key);
+    }
+
+    /**
+     * Set the UDP query timeout. The TcpTransport keeps its own timeout, as UDP timeouts may be set close to the
+     * server's round-trip time (see UpstreamPool) and a TCP query can take longer.
+     */
+    @Override
+    public void setTimeout(int secs, int msecs) {
+        this.udp.setTimeout(secs, msecs);
+    }
+
+    @Override
+    public void setTimeout(int secs) {
+        this.udp.setTimeout(secs);
+    }
+}
@@ -0,0 +1,475 @@
+package com.netki.dnssec;
+
+import org.xbill.DNS.*;
+
+import java.io.DataInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolver sending queries to one upstream DNS server over a persistent, pipelined TCP connection (RFC 7766).
+ *
+ * Queries from all threads share one connection and are matched to their responses by message ID, so responses may
+ * arrive in any order and a query costs one round-trip instead of a new TCP handshake. Queries carry the
+ * edns-tcp-keepalive option (RFC 7828); the connection is kept open while idle for the timeout the server returns,
+ * or DEFAULT_IDLE_TIMEOUT, with TCP keepalives enabled, and is re-established when closed by either side. Opening a
+ * connection is bounded by its own connect timeout, as query timeouts may be set close to the server's round-trip time
+ * (see UpstreamPool) and a TCP or TLS handshake takes longer than a query.
+ *
+ * TcpTransport objects are thread safe; close() closes the connection.
+ */
+public class TcpTransport implements TimeoutResolver, Closeable {
+
+    public static final long DEFAULT_IDLE_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+    private static final int DEFAULT_PORT = 53;
+    private static final int DEFAULT_TIMEOUT_MILLIS = 10000;
+    private static final int EDNS_TCP_KEEPALIVE = 11;
+    private static final int CONNECT_ATTEMPTS = 2;
+    // Read timeout while waiting for responses on a connection the server asked to close once idle
+    private static final int IDLE_POLL_MILLIS = 100;
+
+    private static final SecureRandom random = new SecureRandom();
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private volatile InetSocketAddress address;
+    private final long idleTimeoutMillis;
+    private Connection connection;
+    private volatile boolean closed = false;
+
+    private volatile OPTRecord queryOpt;
+    private volatile TSIG tsig;
+    private volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private volatile long connectTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    /**
+     * Create a TcpTransport with the default idle timeout
+     *
+     * @param server Host name or IP address of the upstream DNS server
+     * @throws IOException Thrown if the server is unknown
+     */
+    public TcpTransport(String server) throws IOException {
+        this(new InetSocketAddress(InetAddress.getByName(server), DEFAULT_PORT), DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * TcpTransport Constructor. The connection is opened by the first query.
+     *
+     * @param address Address of the upstream DNS server
+     * @param idleTimeoutMillis Longest time to keep an idle connection open, unless the server asks for less
+     */
+    public TcpTransport(InetSocketAddress address, long idleTimeoutMillis) {
+        this.address = address;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Get the upstream DNS server address
+     *
+     * @return Upstream address
+     */
+    public InetSocketAddress getAddress() {
+        return this.address;
+    }
+
+    @Override
+    public Message send(Message query) throws IOException {
+        return send(query, this.timeoutMillis);
+    }
+
+    @Override
+    public Message send(Message query, long timeoutMillis) throws IOException {
+        IOException failure = null;
+        for (int attempt = 0; attempt < CONNECT_ATTEMPTS; attempt++) {
+            Connection connection = connection();
+            Pending pending = connection.send(query);
+            try {
+                if (!pending.latch.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    connection.pending.remove(pending.id, pending);
+                    throw new SocketTimeoutException("DNS query timed out");
+                }
+            } catch (InterruptedException e) {
+                connection.pending.remove(pending.id, pending);
+                Thread.currentThread().interrupt();
+                throw new IOException("DNS query interrupted");
+            }
+            if (pending.response != null) {
+                return pending.response;
+            }
+            // The connection closed before the response arrived, e.g. the server closed it while idle (RFC 7766 6.2.1)
+            failure = pending.error;
+        }
+        throw failure;
+    }
+
+    @Override
+    public Object sendAsync(final Message query, final ResolverListener listener) {
+        final Object id = new Object();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.receiveMessage(id, send(query));
+                } catch (Exception e) {
+                    listener.handleException(id, e);
+                }
+            }
+        }, "dns-tcp-send");
+        thread.setDaemon(true);
+        thread.start();
+        return id;
+    }
+
+    /**
+     * Close the connection. Outstanding queries fail.
+     */
+    public synchronized void close() {
+        this.closed = true;
+        if (this.connection != null) {
+            this.connection.close(new IOException("DNS transport closed"));
+            this.connection = null;
+        }
+    }
+
+    /**
+     * Check whether a connection to the server is open
+     *
+     * @return true if a connection is open
+     */
+    public synchronized boolean isConnected() {
+        return this.connection != null && !this.connection.closed;
+    }
+
+    /**
+     * Open a socket connected to the server
+     *
+     * @param timeoutMillis Longest time to wait for the connection in milliseconds
+     * @return Connected socket
+     * @throws IOException Thrown if the connection cannot be opened
+     */
+    Socket openSocket(int timeoutMillis) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(this.address, timeoutMillis);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * Get the open connection, or open a new one
+     */
+    private synchronized Connection connection() throws IOException {
+        if (this.closed) {
+            throw new IOException("DNS transport closed");
+        }
+        if (this.connection == null || this.connection.closed) {
+            this.connection = new Connection();
+        }
+        return this.connection;
+    }
+
+    /**
+     * Get the query OPT record carrying the edns-tcp-keepalive option
+     */
+    private OPTRecord keepaliveOpt(OPTRecord opt) {
+        List<EDNSOption> options = new ArrayList<EDNSOption>();
+        if (opt == null) {
+            opt = new OPTRecord(1280, 0, 0);
+        } else {
+            for (Object option : opt.getOptions()) {
+                if (((EDNSOption) option).getCode() != EDNS_TCP_KEEPALIVE) {
+                    options.add((EDNSOption) option);
+                }
+            }
+        }
+        options.add(new GenericEDNSOption(EDNS_TCP_KEEPALIVE, new byte[0]));
+        return new OPTRecord(opt.getPayloadSize(), opt.getExtendedRcode(), opt.getVersion(), opt.getFlags(), options);
+    }
+
+    /**
+     * Get the idle timeout the server asked for with the edns-tcp-keepalive option, in milliseconds
+     *
+     * @return Idle timeout, or -1 if the response does not carry one
+     */
+    static long keepaliveTimeout(Message response) {
+        OPTRecord opt = response.getOPT();
+        if (opt == null) {
+            return -1;
+        }
+        for (Object option : opt.getOptions(EDNS_TCP_KEEPALIVE)) {
+            try {
+                // Code, length and timeout in units of 100 milliseconds
+                byte[] wire = ((EDNSOption) option).toWire();
+                if (wire.length == 6) {
+                    return (((wire[4] & 0xFF) << 8) | (wire[5] & 0xFF)) * 100L;
+                }
+            } catch (IOException ignore) {
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Set the port of the upstream DNS server. The open connection is closed, queries in flight on it are resent on a
+     * connection to the new port.
+     */
+    @Override
+    public synchronized void setPort(int port) {
+        if (port == this.address.getPort()) {
+            return;
+        }
+        this.address = new InetSocketAddress(this.address.getAddress(), port);
+        if (this.connection != null) {
+            this.connection.close(new IOException("DNS server port changed"));
+            this.connection = null;
+        }
+    }
+
+    @Override
+    public void setTCP(boolean flag) {
+        // Always TCP
+    }
+
+    @Override
+    public void setIgnoreTruncation(boolean flag) {
+        // Responses over TCP are never truncated
+    }
+
+    @Override
+    public void setEDNS(int level) {
+        setEDNS(level, 0, 0, null);
+    }
+
+    @Override
+    public void setEDNS(int level, int payloadSize, int flags, List options) {
+        if (level != 0 && level != -1) {
+            throw new IllegalArgumentException("invalid EDNS level - must be 0 or -1");
+        }
+        this.queryOpt = level == -1 ? null : new OPTRecord(payloadSize == 0 ? 1280 : payloadSize, 0, level, flags, options);
+    }
+
+    @Override
+    public void setTSIGKey(TSIG key) {
+        this.tsig = key;
+    }
+
+    @Override
+    public void setTimeout(int secs, int msecs) {
+        this.timeoutMillis = secs * 1000L + msecs;
+    }
+
+    @Override
+    public void setTimeout(int secs) {
+        setTimeout(secs, 0);
+    }
+
+    /**
+     * Set the timeout for opening a connection, including the TLS handshake of a TlsTransport. It is not changed by
+     * setTimeout().
+     *
+     * @param millis Connect timeout in milliseconds
+     */
+    public void setConnectTimeout(long millis) {
+        this.connectTimeoutMillis = millis;
+    }
+
+    private class Connection implements Runnable {
+        private final Socket socket;
+        private final OutputStream out;
+        private final ConcurrentMap<Integer, Pending> pending = new ConcurrentHashMap<Integer, Pending>();
+        private volatile boolean closed = false;
+        private volatile long idleTimeout = idleTimeoutMillis;
+        private volatile long lastActivity = System.nanoTime();
+
+        private Connection() throws IOException {
+            this.socket = openSocket((int) Math.min(connectTimeoutMillis, Integer.MAX_VALUE));
+            try {
+                this.out = this.socket.getOutputStream();
+            } catch (IOException e) {
+                this.socket.close();
+                throw e;
+            }
+
+            Thread reader = new Thread(this, "dns-tcp-transport-" + threadCount.incrementAndGet());
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Write a query under a random message ID unused on this connection
+         */
+        private Pending send(Message query) throws IOException {
+            OPTRecord opt = query.getOPT();
+            OPTRecord keepalive = keepaliveOpt(opt != null ? opt : queryOpt);
+            TSIG tsig = TcpTransport.this.tsig;
+
+            Pending pending;
+            int id;
+            do {
+                id = random.nextInt(0x10000);
+                // The request is complete before the query is published, receive() may match a response right away
+                Message request = (Message) query.clone();
+                if (opt != null) {
+                    request.removeRecord(request.getOPT(), Section.ADDITIONAL);
+                }
+                request.addRecord(keepalive, Section.ADDITIONAL);
+                request.getHeader().setID(id);
+                if (tsig != null) {
+                    tsig.apply(request, null);
+                }
+                pending = new Pending(id, query, request);
+            } while (this.pending.putIfAbsent(id, pending) != null);
+            if (this.closed && this.pending.remove(id, pending)) {
+                pending.complete(null, new IOException("DNS connection closed"));
+                return pending;
+            }
+
+            byte[] wire = pending.request.toWire(Message.MAXLENGTH);
+            byte[] frame = new byte[wire.length + 2];
+            frame[0] = (byte) (wire.length >>> 8);
+            frame[1] = (byte) wire.length;
+            System.arraycopy(wire, 0, frame, 2, wire.length);
+            try {
+                synchronized (this.out) {
+                    this.out.write(frame);
+                    this.out.flush();
+                }
+            } catch (IOException e) {
+                close(e);
+            }
+            this.lastActivity = System.nanoTime();
+            return pending;
+        }
+
+        @Override
+        public void run() {
+            try {
+                DataInputStream in = new DataInputStream(this.socket.getInputStream());
+                while (!this.closed) {
+                    long idleTimeout = this.idleTimeout;
+                    if (idleTimeout <= 0 && this.pending.isEmpty()) {
+                        // The server asked for the connection to be closed once its queries are answered (RFC 7828)
+                        close(new IOException("DNS connection idle"));
+                        break;
+                    }
+                    this.socket.setSoTimeout(idleTimeout > 0 ? (int) Math.min(idleTimeout, Integer.MAX_VALUE)
+                            : IDLE_POLL_MILLIS);
+
+                    // Only a timeout before the first byte of a frame is an idle check, the stream is still in sync
+                    int first;
+                    try {
+                        first = in.read();
+                    } catch (SocketTimeoutException e) {
+                        long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.lastActivity);
+                        if (this.pending.isEmpty() && idle >= idleTimeout) {
+                            close(new IOException("DNS connection idle"));
+                        }
+                        continue;
+                    }
+                    if (first < 0) {
+                        throw new EOFException("DNS connection closed by server");
+                    }
+
+                    // A timeout part way through a frame cannot be recovered from, and closes the connection
+                    this.socket.setSoTimeout(DEFAULT_TIMEOUT_MILLIS);
+                    int length = (first << 8) | in.readUnsignedByte();
+                    byte[] wire = new byte[length];
+                    in.readFully(wire);
+                    this.lastActivity = System.nanoTime();
+                    receive(wire);
+                }
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        private void receive(byte[] wire) {
+            if (wire.length < Header.LENGTH) {
+                return;
+            }
+            int id = ((wire[0] & 0xFF) << 8) | (wire[1] & 0xFF);
+            Pending pending = this.pending.get(id);
+            if (pending == null) {
+                return;
+            }
+
+            Message response;
+            try {
+                response = new Message(wire);
+            } catch (IOException e) {
+                return;
+            }
+            Record question = response.getQuestion();
+            if (question == null || !question.equals(pending.request.getQuestion())) {
+                return;
+            }
+
+            TSIG tsig = TcpTransport.this.tsig;
+            if (tsig != null && tsig.verify(response, wire, pending.request.getTSIG()) != Rcode.NOERROR) {
+                // Unsigned or forged response, keep waiting for the authentic one until the query times out
+                return;
+            }
+            long keepalive = keepaliveTimeout(response);
+            if (keepalive >= 0) {
+                this.idleTimeout = Math.min(keepalive, idleTimeoutMillis);
+            }
+            if (this.pending.remove(id, pending)) {
+                response.getHeader().setID(pending.query.getHeader().getID());
+                pending.complete(response, null);
+            }
+        }
+
+        private void close(IOException error) {
+            this.closed = true;
+            try {
+                this.socket.close();
+            } catch (IOException ignore) {
+            }
+            for (Pending pending : this.pending.values()) {
+                if (this.pending.remove(pending.id, pending)) {
+                    pending.complete(null, error);
+                }
+            }
+        }
+    }
+
+    private static class Pending {
+        private final int id;
+        private final Message query;
+        private final Message request;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile Message response;
+        private volatile IOException error;
+
+        private Pending(int id, Message query, Message request) {
+            this.id = id;
+            this.query = query;
+            this.request = request;
+        }
+
+        private void complete(Message response, IOException error) {
+            this.response = response;
+            this.error = error;
+            this.latch.countDown();
+        }
+    }
+}
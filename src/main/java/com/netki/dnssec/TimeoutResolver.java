@@ -0,0 +1,25 @@
+package com.netki.dnssec;
+
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Resolver;
+
+import java.io.IOException;
+
+/**
+ * Resolver taking the timeout of each query with the query, instead of one timeout shared by all queries in flight.
+ *
+ * UpstreamPool derives every query's timeout from the server's round-trip time and backs it off on retransmits, so
+ * a timeout set with setTimeout() by one query would also apply to the other queries to the same server.
+ */
+interface TimeoutResolver extends Resolver {
+
+    /**
+     * Send a query and wait for the response
+     *
+     * @param query Query
+     * @param timeoutMillis Longest time to wait for the response in milliseconds
+     * @return Response
+     * @throws IOException Thrown if the query failed, SocketTimeoutException if no response arrived in time
+     */
+    Message send(Message query, long timeoutMillis) throws IOException;
+}
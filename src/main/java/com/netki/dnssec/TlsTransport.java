@@ -0,0 +1,158 @@
+package com.netki.dnssec;
+
+import com.google.common.net.InetAddresses;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Resolver sending queries to one upstream DNS server over DNS-over-TLS (RFC 7858).
+ *
+ * Queries are pipelined over one persistent TLS connection the same way TcpTransport pipelines them over TCP, so once
+ * connected a query costs one round-trip. Connections are re-established through the same SSLSocketFactory, whose
+ * client session cache resumes the previous TLS session instead of running a full handshake.
+ *
+ * The server's certificate must chain to a certificate trusted by the SSLSocketFactory and carry the authentication
+ * name, a host name or IP address, among its subject alternative names (the strict privacy profile of RFC 8310).
+ *
+ * TlsTransport objects are thread safe; close() closes the connection.
+ */
+public class TlsTransport extends TcpTransport {
+
+    public static final int DEFAULT_PORT = 853;
+
+    private static final int SAN_DNS_NAME = 2;
+    private static final int SAN_IP_ADDRESS = 7;
+
+    private final String authenticationName;
+    private final SSLSocketFactory socketFactory;
+
+    /**
+     * Create a TlsTransport on the default port, authenticating the server by its host name or IP address
+     *
+     * @param server Host name or IP address of the upstream DNS server
+     * @throws IOException Thrown if the server is unknown
+     */
+    public TlsTransport(String server) throws IOException {
+        this(new InetSocketAddress(InetAddress.getByName(server), DEFAULT_PORT), server,
+                (SSLSocketFactory) SSLSocketFactory.getDefault(), DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * TlsTransport Constructor. The connection is opened by the first query.
+     *
+     * @param address Address of the upstream DNS server
+     * @param authenticationName Host name or IP address the server's certificate must be issued for
+     * @param socketFactory SSLSocketFactory opening TLS connections, sharing its TLS sessions between them
+     * @param idleTimeoutMillis Longest time to keep an idle connection open, unless the server asks for less
+     */
+    public TlsTransport(InetSocketAddress address, String authenticationName, SSLSocketFactory socketFactory,
+                        long idleTimeoutMillis) {
+        super(address, idleTimeoutMillis);
+        if (authenticationName == null || socketFactory == null) {
+            throw new IllegalArgumentException("Authentication name and SSLSocketFactory are required");
+        }
+        this.authenticationName = authenticationName;
+        this.socketFactory = socketFactory;
+    }
+
+    /**
+     * Get the name the server's certificate must be issued for
+     *
+     * @return Authentication name
+     */
+    public String getAuthenticationName() {
+        return this.authenticationName;
+    }
+
+    /**
+     * Ignored, the DNS-over-TLS port is part of the server's configuration. Ports set for plain DNS, e.g. re-applied
+     * by KeyChainResolver to every upstream, must not move the connection off the TLS port.
+     */
+    @Override
+    public void setPort(int port) {
+    }
+
+    @Override
+    Socket openSocket(int timeoutMillis) throws IOException {
+        Socket tcp = super.openSocket(timeoutMillis);
+        try {
+            // Sessions are cached by peer host and port, so reconnects resume the previous session
+            SSLSocket tls = (SSLSocket) this.socketFactory.createSocket(tcp, this.authenticationName,
+                    getAddress().getPort(), true);
+            tls.setSoTimeout(timeoutMillis);
+            tls.startHandshake();
+
+            Certificate[] chain = tls.getSession().getPeerCertificates();
+            if (chain.length == 0 || !(chain[0] instanceof X509Certificate)
+                    || !matchesName((X509Certificate) chain[0], this.authenticationName)) {
+                tls.close();
+                throw new SSLPeerUnverifiedException("DNS server certificate not issued for " + this.authenticationName);
+            }
+            return tls;
+        } catch (IOException e) {
+            tcp.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Check whether a certificate was issued for a host name or IP address, by its subject alternative names. A
+     * wildcard only matches the whole leftmost label of a host name.
+     *
+     * @param certificate Server certificate
+     * @param name Host name or IP address
+     * @return true if one of the subject alternative names matches
+     */
+    static boolean matchesName(X509Certificate certificate, String name) {
+        Collection<List<?>> alternativeNames;
+        try {
+            alternativeNames = certificate.getSubjectAlternativeNames();
+        } catch (CertificateParsingException e) {
+            return false;
+        }
+        if (alternativeNames == null) {
+            return false;
+        }
+
+        boolean address = InetAddresses.isInetAddress(name);
+        String host = name.toLowerCase(Locale.US);
+        if (host.endsWith(".")) {
+            host = host.substring(0, host.length() - 1);
+        }
+        for (List<?> alternativeName : alternativeNames) {
+            int type = (Integer) alternativeName.get(0);
+            String value = String.valueOf(alternativeName.get(1));
+            if (address && type == SAN_IP_ADDRESS && InetAddresses.isInetAddress(value)
+                    && InetAddresses.forString(value).equals(InetAddresses.forString(name))) {
+                return true;
+            }
+            if (!address && type == SAN_DNS_NAME && matchesHost(value.toLowerCase(Locale.US), host)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchesHost(String pattern, String host) {
+        if (pattern.endsWith(".")) {
+            pattern = pattern.substring(0, pattern.length() - 1);
+        }
+        if (!pattern.startsWith("*.")) {
+            return pattern.equals(host);
+        }
+        int dot = host.indexOf('.');
+        return dot > 0 && host.substring(dot + 1).equals(pattern.substring(2));
+    }
+}
@@ -0,0 +1,250 @@
+package com.netki.dnssec;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netki.exceptions.DNSSECException;
+import org.xbill.DNS.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide holder of the DNSSEC trust anchors used by DNSSECResolver.
+ *
+ * The current TrustAnchors are immutable and swapped atomically, so resolvers never block on anchor updates. Automated
+ * updates follow RFC 5011: a new SEP key seen in the validated DNSKEY RRset of an anchored zone becomes trusted once it
+ * has been continuously present for the add hold-down time, and a trusted key is removed once it is published with the
+ * REVOKE bit set and self-signs the DNSKEY RRset.
+ *
+ * TrustAnchorManager objects are thread safe.
+ */
+public class TrustAnchorManager {
+
+    public static final long DEFAULT_REFRESH_INTERVAL = TimeUnit.HOURS.toMillis(12);
+    public static final long ADD_HOLD_DOWN_TIME = TimeUnit.DAYS.toMillis(30);
+
+    private static TrustAnchorManager ourInstance = null;
+
+    private volatile TrustAnchors trustAnchors;
+    private volatile File anchorFile;
+    private long holdDownTime = ADD_HOLD_DOWN_TIME;
+
+    // First time each pending (not yet trusted) SEP key was seen, keyed by zone, algorithm and key data
+    private final Map<String, Long> pendingKeys = new HashMap<String, Long>();
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * TrustAnchorManager Constructor
+     *
+     * @param trustAnchors Initial trust anchors
+     */
+    public TrustAnchorManager(TrustAnchors trustAnchors) {
+        this.trustAnchors = trustAnchors;
+    }
+
+    /**
+     * Get the process-wide TrustAnchorManager, initialized with the IANA root zone trust anchors
+     *
+     * @return Instance of TrustAnchorManager
+     */
+    public static synchronized TrustAnchorManager getInstance() {
+        if (ourInstance == null) {
+            ourInstance = new TrustAnchorManager(TrustAnchors.getDefault());
+        }
+        return ourInstance;
+    }
+
+    /**
+     * Get the current trust anchors
+     *
+     * @return Current TrustAnchors
+     */
+    public TrustAnchors getTrustAnchors() {
+        return this.trustAnchors;
+    }
+
+    /**
+     * Replace the current trust anchors
+     *
+     * @param trustAnchors TrustAnchors to use
+     */
+    public void setTrustAnchors(TrustAnchors trustAnchors) {
+        this.trustAnchors = trustAnchors;
+    }
+
+    /**
+     * Load trust anchors from a master file. Anchors changed by automated updates are written back to this file.
+     *
+     * @param file File containing DS and/or DNSKEY records in master file format
+     * @throws IOException Thrown if the file cannot be read or parsed
+     */
+    public void loadTrustAnchors(File file) throws IOException {
+        this.trustAnchors = TrustAnchors.fromFile(file);
+        this.anchorFile = file;
+    }
+
+    /**
+     * Set the RFC 5011 add hold-down time (used for unit testing)
+     *
+     * @param holdDownTime Milliseconds a new key must be seen before it is trusted
+     */
+    public synchronized void setHoldDownTime(long holdDownTime) {
+        this.holdDownTime = holdDownTime;
+    }
+
+    /**
+     * Start RFC 5011 automated trust anchor updates on a background thread
+     *
+     * @param resolver DNSSECResolver used to fetch the DNSKEY RRsets of anchored zones
+     * @param refreshInterval Milliseconds between DNSKEY RRset refreshes
+     */
+    public synchronized void startAutomatedUpdates(final DNSSECResolver resolver, long refreshInterval) {
+        if (this.scheduler != null) {
+            return;
+        }
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("trust-anchor-updater").build()
+        );
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refresh(resolver);
+            }
+        }, 0, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop automated trust anchor updates
+     */
+    public synchronized void stopAutomatedUpdates() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+            this.scheduler = null;
+        }
+    }
+
+    /**
+     * Fetch the validated DNSKEY RRset of every anchored zone and apply RFC 5011 updates
+     *
+     * @param resolver DNSSECResolver used to fetch the DNSKEY RRsets
+     */
+    void refresh(DNSSECResolver resolver) {
+        Set<Name> zones = new LinkedHashSet<Name>();
+        for (Record anchor : this.trustAnchors.getRecords()) {
+            zones.add(anchor.getName());
+        }
+
+        for (Name zone : zones) {
+            try {
+                RRset keySet = resolver.resolveRRset(zone, Type.DNSKEY);
+                if (keySet != null) {
+                    processKeySet(zone, keySet, System.currentTimeMillis());
+                }
+            } catch (DNSSECException e) {
+                // Keep current anchors, try again on next refresh
+            }
+        }
+    }
+
+    /**
+     * Apply RFC 5011 state changes for a validated DNSKEY RRset
+     *
+     * @param zone Anchored zone the RRset belongs to
+     * @param keySet DNSSEC validated DNSKEY RRset
+     * @param now Current time in milliseconds
+     */
+    synchronized void processKeySet(Name zone, RRset keySet, long now) {
+        TrustAnchors updated = this.trustAnchors;
+        Set<String> seen = new HashSet<String>();
+
+        Iterator<?> rrs = keySet.rrs();
+        while (rrs.hasNext()) {
+            Record record = (Record) rrs.next();
+            if (!(record instanceof DNSKEYRecord)) continue;
+
+            DNSKEYRecord key = (DNSKEYRecord) record;
+            if ((key.getFlags() & DNSKEYRecord.Flags.SEP_KEY) == 0) continue;
+
+            if ((key.getFlags() & DNSKEYRecord.Flags.REVOKE) != 0) {
+                DNSKEYRecord unrevoked = new DNSKEYRecord(key.getName(), key.getDClass(), key.getTTL(),
+                        key.getFlags() & ~DNSKEYRecord.Flags.REVOKE, key.getProtocol(), key.getAlgorithm(), key.getKey());
+                if (updated.isTrusted(unrevoked) && isSelfSigned(keySet, key)) {
+                    TrustAnchors remaining = updated.withoutKey(unrevoked);
+                    if (hasAnchorFor(remaining, zone)) {
+                        updated = remaining;
+                    }
+                }
+                continue;
+            }
+
+            if (updated.isTrusted(key)) continue;
+
+            String id = zone + "/" + key.getAlgorithm() + "/" + BaseEncoding.base64().encode(key.getKey());
+            seen.add(id);
+
+            Long firstSeen = this.pendingKeys.get(id);
+            if (firstSeen == null) {
+                this.pendingKeys.put(id, now);
+            } else if (now - firstSeen >= this.holdDownTime) {
+                updated = updated.withKey(key);
+                this.pendingKeys.remove(id);
+            }
+        }
+
+        // Pending keys that disappeared from the RRset restart their hold-down
+        String prefix = zone + "/";
+        Iterator<String> pending = this.pendingKeys.keySet().iterator();
+        while (pending.hasNext()) {
+            String id = pending.next();
+            if (id.startsWith(prefix) && !seen.contains(id)) {
+                pending.remove();
+            }
+        }
+
+        if (updated != this.trustAnchors) {
+            this.trustAnchors = updated;
+            persist(updated);
+        }
+    }
+
+    private void persist(TrustAnchors anchors) {
+        File file = this.anchorFile;
+        if (file == null) {
+            return;
+        }
+        try {
+            anchors.writeTo(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static boolean hasAnchorFor(TrustAnchors anchors, Name zone) {
+        for (Record anchor : anchors.getRecords()) {
+            if (anchor.getName().equals(zone)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSelfSigned(RRset keySet, DNSKEYRecord key) {
+        Iterator<?> sigs = keySet.sigs();
+        while (sigs.hasNext()) {
+            RRSIGRecord sig = (RRSIGRecord) sigs.next();
+            if (sig.getFootprint() != key.getFootprint() || sig.getAlgorithm() != key.getAlgorithm()) continue;
+            try {
+                DNSSEC.verify(keySet, sig, key);
+                return true;
+            } catch (DNSSEC.DNSSECException e) {
+                // Try next signature
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,218 @@
+package com.netki.dnssec;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.xbill.DNS.*;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable set of DNSSEC trust anchors (DS or DNSKEY records).
+ *
+ * Anchors are parsed once when the TrustAnchors object is created, so they can be loaded into any number of
+ * ValidatingResolvers without being parsed again.
+ */
+public final class TrustAnchors {
+
+    // IANA Root Zone KSK Trust Anchors (KSK-2010, KSK-2017 and KSK-2024)
+    private static final String ROOT =
+            ". IN DS 19036 8 2 49AAC11D7B6F6446702E54A1607371607A1A41855200FD2CE1CDDE32F24E8FB5\n" +
+            ". IN DS 20326 8 2 E06D44B80B8F1D39A95C0B0D7C65D08458E880409BBC683457104237C7F8EC8D\n" +
+            ". IN DS 38696 8 2 683D2D0ACB8C9B712A1948B27F741219298D0A450D612C483AF444A4C0FB2B16\n";
+
+    private static final TrustAnchors DEFAULT;
+
+    static {
+        try {
+            DEFAULT = fromString(ROOT);
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError("Unable to parse default trust anchors: " + e.getMessage());
+        }
+    }
+
+    private final List<Record> records;
+    private final byte[] encoded;
+
+    private TrustAnchors(List<Record> records) {
+        this.records = Collections.unmodifiableList(new ArrayList<Record>(records));
+
+        StringBuilder sb = new StringBuilder();
+        for (Record record : this.records) {
+            sb.append(record.toString()).append('\n');
+        }
+        this.encoded = sb.toString().getBytes(Charsets.US_ASCII);
+    }
+
+    /**
+     * Get the IANA root zone trust anchors
+     *
+     * @return Default root zone trust anchors
+     */
+    public static TrustAnchors getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Parse trust anchors from master file formatted text
+     *
+     * @param anchors DS and/or DNSKEY records in master file format
+     * @return Parsed TrustAnchors
+     * @throws IOException Thrown if the anchors cannot be parsed or contain records other than DS or DNSKEY
+     */
+    public static TrustAnchors fromString(String anchors) throws IOException {
+        return fromStream(new ByteArrayInputStream(anchors.getBytes(Charsets.US_ASCII)));
+    }
+
+    /**
+     * Parse trust anchors from a master file
+     *
+     * @param file File containing DS and/or DNSKEY records in master file format
+     * @return Parsed TrustAnchors
+     * @throws IOException Thrown if the file cannot be read or parsed
+     */
+    public static TrustAnchors fromFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return fromStream(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Parse trust anchors from a master file formatted stream
+     *
+     * @param in Stream containing DS and/or DNSKEY records in master file format
+     * @return Parsed TrustAnchors
+     * @throws IOException Thrown if the stream cannot be read or parsed
+     */
+    public static TrustAnchors fromStream(InputStream in) throws IOException {
+        List<Record> records = new ArrayList<Record>();
+        Master master = new Master(in, Name.root, 0);
+
+        Record record;
+        while ((record = master.nextRecord()) != null) {
+            if (record.getType() != Type.DS && record.getType() != Type.DNSKEY) {
+                throw new IOException("Trust anchors can only be DS or DNSKEY records: " + record);
+            }
+            records.add(record);
+        }
+
+        if (records.isEmpty()) {
+            throw new IOException("No trust anchors found");
+        }
+        return new TrustAnchors(records);
+    }
+
+    /**
+     * Get the trust anchor records
+     *
+     * @return Unmodifiable list of DS and DNSKEY trust anchor records
+     */
+    public List<Record> getRecords() {
+        return this.records;
+    }
+
+    /**
+     * Open a master file formatted stream of these anchors, suitable for ValidatingResolver.loadTrustAnchors()
+     *
+     * @return Stream of trust anchors
+     */
+    public InputStream openStream() {
+        return new ByteArrayInputStream(this.encoded);
+    }
+
+    /**
+     * Write these anchors to a master file, replacing it atomically where the filesystem allows
+     *
+     * @param file File to write
+     * @throws IOException Thrown if the file cannot be written
+     */
+    public void writeTo(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Files.write(this.encoded, tmp);
+        if (!tmp.renameTo(file)) {
+            Files.copy(tmp, file);
+            if (!tmp.delete()) {
+                tmp.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Is the given key trusted by these anchors?
+     *
+     * @param key DNSKEY to check
+     * @return Does an anchor match the key, either as a DNSKEY or as a DS digest of it?
+     */
+    public boolean isTrusted(DNSKEYRecord key) {
+        for (Record anchor : this.records) {
+            if (!anchor.getName().equals(key.getName())) continue;
+
+            if (anchor instanceof DNSKEYRecord) {
+                DNSKEYRecord anchorKey = (DNSKEYRecord) anchor;
+                if (anchorKey.getAlgorithm() == key.getAlgorithm() && Arrays.equals(anchorKey.getKey(), key.getKey())) {
+                    return true;
+                }
+            } else if (anchor instanceof DSRecord && matches((DSRecord) anchor, key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Create a copy of these anchors that also trusts the given key (added as a SHA-256 DS record)
+     *
+     * @param key DNSKEY to trust
+     * @return New TrustAnchors including the key
+     */
+    public TrustAnchors withKey(DNSKEYRecord key) {
+        if (isTrusted(key)) {
+            return this;
+        }
+        List<Record> updated = new ArrayList<Record>(this.records);
+        updated.add(new DSRecord(key.getName(), key.getDClass(), 0, DSRecord.Digest.SHA256, key));
+        return new TrustAnchors(updated);
+    }
+
+    /**
+     * Create a copy of these anchors that no longer trusts the given key
+     *
+     * @param key DNSKEY to remove
+     * @return New TrustAnchors without any anchor matching the key
+     */
+    public TrustAnchors withoutKey(DNSKEYRecord key) {
+        List<Record> updated = new ArrayList<Record>();
+        for (Record anchor : this.records) {
+            if (!anchor.getName().equals(key.getName())) {
+                updated.add(anchor);
+            } else if (anchor instanceof DNSKEYRecord) {
+                if (!Arrays.equals(((DNSKEYRecord) anchor).getKey(), key.getKey())) updated.add(anchor);
+            } else if (!matches((DSRecord) anchor, key)) {
+                updated.add(anchor);
+            }
+        }
+        if (updated.size() == this.records.size()) {
+            return this;
+        }
+        return new TrustAnchors(updated);
+    }
+
+    private static boolean matches(DSRecord ds, DNSKEYRecord key) {
+        if (ds.getAlgorithm() != key.getAlgorithm() || ds.getFootprint() != key.getFootprint()) {
+            return false;
+        }
+        try {
+            DSRecord computed = new DSRecord(key.getName(), key.getDClass(), 0, ds.getDigestID(), key);
+            return Arrays.equals(computed.getDigest(), ds.getDigest());
+        } catch (IllegalArgumentException e) {
+            // Unsupported digest type
+            return false;
+        }
+    }
+}
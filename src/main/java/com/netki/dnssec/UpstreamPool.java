@@ -0,0 +1,889 @@
+package com.netki.dnssec;
+
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.xbill.DNS.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolver spreading queries over several upstream DNS servers, ranked by health.
+ *
+ * Each server's latency and error rate are tracked as moving averages, and every query goes to the best ranked
+ * server. A query that times out, fails or is answered with SERVFAIL or REFUSED is retried on the next best server, so
+ * failover is scoped to that query and never switches servers for other callers. SERVFAIL is not held against the
+ * server, as it is often specific to the name queried, e.g. a broken zone or expired signatures at its authoritative
+ * servers. Servers that have not answered yet rank by their configured order.
+ *
+ * Each server has a CircuitBreaker, opening once half of its recent queries failed. Queries skip servers with an open
+ * circuit, so a failing server costs no timeouts, unless every circuit is open. Once the circuit is half-open a few
+ * queries are let through, and the server is also probed in the background with a root NS query; if they fail the
+ * circuit opens again for twice as long.
+ *
+ * With concurrency limiting enabled, each server has an adaptive limit on queries in flight (see ConcurrencyLimiter).
+ * Queries skip servers at their limit; when every server is at its limit a query waits up to the queue timeout for
+ * the best server and is otherwise rejected (see pollRejected()), so a traffic spike cannot push the servers past the
+ * point where their latency climbs. Slots are handed out by the Priority of the lookup sending the query, and only
+ * interactive queries are hedged.
+ *
+ * Each server's query timeout is derived from its smoothed round-trip time (see RttEstimator), so a lost packet to a
+ * nearby server is retransmitted after a few milliseconds instead of the full query timeout, which only bounds the
+ * per-server timeouts. A query timing out is retransmitted once to the same server with a doubled timeout before
+ * failing over. Servers reached through a TimeoutResolver get the timeout with each query, so one query's backed off
+ * timeout does not change the timeouts of other queries in flight to the server. Transports over TCP, TLS and HTTPS bound opening a connection by a separate connect timeout, so a
+ * reconnect is not failed by a timeout sized for one round-trip.
+ *
+ * Callers validating answers, such as DNSSECResolver, wrap each lookup in beginLookup() and endLookup(). When an
+ * answer fails validation, retryLookup() excludes the servers that answered the lookup so far, so re-sending it
+ * reaches the next best server. Those servers are counted as failed only if another server's answer validates, so a
+ * zone failing validation everywhere is not held against any server.
+ *
+ * With hedging enabled, a query that has not been answered within a percentile of recent query latencies is also
+ * sent to the next best server, and the first usable answer is returned while the other query is cancelled. Within a
+ * lookup the other query is kept instead until endLookup(), and answers the lookup's retry if the first answer
+ * failed validation, so a fast spoofed or unsigned answer does not cost a second round-trip. A token bucket caps
+ * hedged queries at a fraction of all queries, so hedging cannot double upstream load.
+ *
+ * UpstreamPool objects are thread safe; close() closes the servers' transports.
+ */
+public class UpstreamPool implements Resolver, Closeable {
+
+    // Circuit breakers
+    public static final double DEFAULT_FAILURE_RATIO = 0.5;
+    public static final int DEFAULT_MINIMUM_QUERIES = 3;
+    public static final int DEFAULT_HALF_OPEN_PROBES = 3;
+    public static final long INITIAL_BACKOFF = TimeUnit.SECONDS.toMillis(5);
+    public static final long MAXIMUM_BACKOFF = TimeUnit.MINUTES.toMillis(5);
+
+    // Latency (ms) assumed for servers that have not answered yet, so a slow first server is eventually tried elsewhere
+    private static final double UNMEASURED_LATENCY = 500;
+    private static final long DEFAULT_MAXIMUM_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+    private static final int RETRANSMITS = 1;
+    private static final double ERROR_WEIGHT = 0.2;
+    private static final double MINIMUM_SUCCESS_RATE = 0.05;
+
+    // Hedged queries
+    public static final double DEFAULT_HEDGE_PERCENTILE = 0.95;
+    public static final double DEFAULT_MAXIMUM_HEDGE_RATE = 0.05;
+    private static final int LATENCY_WINDOW = 1000;
+    private static final int HEDGE_MINIMUM_SAMPLES = 20;
+    private static final double HEDGE_BURST = 10;
+
+    // Concurrency limits
+    public static final long DEFAULT_QUEUE_TIMEOUT = TimeUnit.SECONDS.toMillis(1);
+
+    private final List<Upstream> upstreams;
+    private final Ticker ticker;
+    private volatile long maximumTimeout = DEFAULT_MAXIMUM_TIMEOUT;
+    private ScheduledExecutorService probeScheduler;
+
+    private final LatencyWindow latencies = new LatencyWindow(LATENCY_WINDOW);
+    private volatile boolean hedging = false;
+    private volatile double hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+    private volatile double maximumHedgeRate = DEFAULT_MAXIMUM_HEDGE_RATE;
+    private final Object hedgeLock = new Object();
+    private double hedgeTokens = 0;
+    private final AtomicLong hedgedQueries = new AtomicLong();
+    private ExecutorService hedgeExecutor;
+
+    private volatile boolean concurrencyLimiting = false;
+    private volatile long queueTimeout = DEFAULT_QUEUE_TIMEOUT;
+    private final AtomicLong rejectedQueries = new AtomicLong();
+    private final ThreadLocal<Boolean> rejected = new ThreadLocal<Boolean>();
+
+    // Servers answering the current lookup of each thread, see beginLookup()
+    private final ThreadLocal<Lookup> lookup = new ThreadLocal<Lookup>();
+
+    /**
+     * UpstreamPool Constructor
+     *
+     * @param servers Server names and the Resolvers reaching them, in order of preference
+     */
+    public UpstreamPool(Map<String, Resolver> servers) {
+        this(servers, Ticker.systemTicker());
+    }
+
+    /**
+     * UpstreamPool Constructor (used for unit testing)
+     *
+     * @param servers Server names and the Resolvers reaching them, in order of preference
+     * @param ticker Time source
+     */
+    public UpstreamPool(Map<String, Resolver> servers, Ticker ticker) {
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("UpstreamPool requires at least one server");
+        }
+        this.ticker = ticker;
+        List<Upstream> upstreams = new ArrayList<Upstream>();
+        for (Map.Entry<String, Resolver> server : servers.entrySet()) {
+            upstreams.add(new Upstream(upstreams.size(), server.getKey(), server.getValue()));
+        }
+        this.upstreams = Collections.unmodifiableList(upstreams);
+    }
+
+    /**
+     * Get the names of the servers, best ranked first
+     *
+     * @return Server names
+     */
+    public List<String> getRankedServers() {
+        List<String> servers = new ArrayList<String>();
+        for (Upstream upstream : ranked()) {
+            servers.add(upstream.name);
+        }
+        return servers;
+    }
+
+    /**
+     * Get the number of servers
+     *
+     * @return Number of servers
+     */
+    public int size() {
+        return this.upstreams.size();
+    }
+
+    /**
+     * Check whether a server is in rotation
+     *
+     * @param server Server name
+     * @return true if the server is in rotation, false if its circuit is open
+     */
+    public boolean isAvailable(String server) {
+        for (Upstream upstream : this.upstreams) {
+            if (upstream.name.equals(server)) {
+                return upstream.breaker.getState() != CircuitBreaker.State.OPEN;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Set the thresholds of the servers' circuit breakers
+     *
+     * @param failureRatio Ratio of a server's recent queries failing that opens its circuit, between 0 and 1
+     * @param halfOpenProbes Number of queries let through at a time once the circuit is half-open, and of successes
+     * closing it
+     */
+    public void setCircuitBreaker(double failureRatio, int halfOpenProbes) {
+        for (Upstream upstream : this.upstreams) {
+            upstream.breaker.configure(failureRatio, DEFAULT_MINIMUM_QUERIES, halfOpenProbes);
+        }
+    }
+
+    /**
+     * Get the current query timeout of a server
+     *
+     * @param server Server name
+     * @return Timeout in milliseconds, or -1 if the server is not in the pool
+     */
+    public long getTimeout(String server) {
+        for (Upstream upstream : this.upstreams) {
+            if (upstream.name.equals(server)) {
+                return upstream.rtt.getTimeout(this.maximumTimeout);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Enable or disable hedged queries
+     *
+     * @param hedging Whether to hedge slow queries
+     * @param percentile Percentile of recent query latencies after which a query is hedged, between 0 and 1
+     * @param maximumRate Largest fraction of queries that may be hedged, between 0 and 1
+     */
+    public void setHedging(boolean hedging, double percentile, double maximumRate) {
+        if (percentile <= 0 || percentile > 1 || maximumRate < 0 || maximumRate > 1) {
+            throw new IllegalArgumentException("Hedge percentile and rate must be between 0 and 1");
+        }
+        this.hedgePercentile = percentile;
+        this.maximumHedgeRate = maximumRate;
+        this.hedging = hedging;
+    }
+
+    /**
+     * Get the number of queries that were hedged
+     *
+     * @return Number of hedged queries
+     */
+    public long getHedgedQueries() {
+        return this.hedgedQueries.get();
+    }
+
+    /**
+     * Enable or disable adaptive concurrency limits
+     *
+     * @param concurrencyLimiting Whether to limit the queries in flight to each server
+     * @param queueTimeout Longest time in milliseconds a query waits for a server below its limit, 0 to reject it
+     * right away
+     */
+    public void setConcurrencyLimiting(boolean concurrencyLimiting, long queueTimeout) {
+        if (queueTimeout < 0) {
+            throw new IllegalArgumentException("Queue timeout must not be negative");
+        }
+        this.queueTimeout = queueTimeout;
+        this.concurrencyLimiting = concurrencyLimiting;
+    }
+
+    /**
+     * Get the current concurrency limit of a server
+     *
+     * @param server Server name
+     * @return Number of queries allowed in flight, or -1 if the server is not in the pool
+     */
+    public int getConcurrencyLimit(String server) {
+        for (Upstream upstream : this.upstreams) {
+            if (upstream.name.equals(server)) {
+                return upstream.limiter.getLimit();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the number of queries rejected because every server was at its concurrency limit
+     *
+     * @return Number of rejected queries
+     */
+    public long getRejectedQueries() {
+        return this.rejectedQueries.get();
+    }
+
+    /**
+     * Check whether the last query sent by this thread was rejected because every server was at its concurrency
+     * limit, and clear that state. Resolvers sending queries through this pool, such as the ValidatingResolver, may
+     * turn the rejection into an answer, so callers check this after each query.
+     *
+     * @return true if the last query was rejected
+     */
+    public boolean pollRejected() {
+        Boolean rejected = this.rejected.get();
+        this.rejected.remove();
+        return rejected != null && rejected;
+    }
+
+    /**
+     * Start a lookup on this thread: the servers answering the queries sent by this thread are tracked until
+     * endLookup(), so the lookup can be retried elsewhere if its answer fails validation
+     */
+    public void beginLookup() {
+        this.lookup.set(new Lookup());
+    }
+
+    /**
+     * Exclude the servers that answered this thread's lookup from its remaining queries, so re-sending the lookup
+     * reaches the next best server. Call after the lookup's answer failed validation.
+     *
+     * @return true if the lookup may be re-sent, false if no other server is left or no lookup was started
+     */
+    public boolean retryLookup() {
+        Lookup lookup = this.lookup.get();
+        if (lookup == null || lookup.answered.isEmpty()) {
+            return false;
+        }
+        Set<Upstream> excluded = new HashSet<Upstream>(lookup.excluded);
+        excluded.addAll(lookup.answered);
+        if (excluded.size() >= this.upstreams.size()) {
+            return false;
+        }
+        lookup.excluded.addAll(lookup.answered);
+        lookup.answered.clear();
+        return true;
+    }
+
+    /**
+     * End this thread's lookup
+     *
+     * @param validated Did the lookup's answer validate? If so, the servers excluded by retryLookup() are counted as
+     * failed, as their answers failed validation where another server's did not.
+     */
+    public void endLookup(boolean validated) {
+        Lookup lookup = this.lookup.get();
+        this.lookup.remove();
+        if (lookup == null) {
+            return;
+        }
+        for (Future<Reply> alternate : lookup.alternates.values()) {
+            alternate.cancel(true);
+        }
+        if (validated) {
+            for (Upstream upstream : lookup.excluded) {
+                upstream.failure();
+            }
+        }
+    }
+
+    @Override
+    public Message send(Message query) throws IOException {
+        Lookup lookup = this.lookup.get();
+        Reply reply = lookup != null ? alternate(lookup, query) : null;
+        if (reply == null) {
+            reply = send(query, lookup);
+        }
+        if (lookup != null && reply.upstream != null) {
+            lookup.answered.add(reply.upstream);
+        }
+        return reply.response;
+    }
+
+    private Reply send(Message query, Lookup lookup) throws IOException {
+        try {
+            List<Upstream> ranked = ranked();
+            if (lookup != null) {
+                ranked.removeAll(lookup.excluded);
+            }
+            if (!this.hedging || ranked.size() < 2 || Priority.current() != Priority.INTERACTIVE) {
+                return send(query, ranked);
+            }
+
+            synchronized (this.hedgeLock) {
+                this.hedgeTokens = Math.min(this.hedgeTokens + this.maximumHedgeRate, HEDGE_BURST);
+            }
+            if (this.latencies.size() < HEDGE_MINIMUM_SAMPLES) {
+                return send(query, ranked);
+            }
+            return sendHedged(query, ranked, this.latencies.percentile(this.hedgePercentile), lookup);
+        } catch (UpstreamSaturatedException e) {
+            this.rejectedQueries.incrementAndGet();
+            this.rejected.set(Boolean.TRUE);
+            throw e;
+        }
+    }
+
+    /**
+     * Take the kept answer of a hedged query to the same question sent earlier in the lookup (see sendHedged()),
+     * waiting for it if it is still in flight
+     *
+     * @param lookup Lookup of this thread
+     * @param query Query
+     * @return Answer from a server not excluded from the lookup, or null if there is none
+     * @throws IOException Thrown if interrupted while waiting
+     */
+    private Reply alternate(Lookup lookup, Message query) throws IOException {
+        Record question = query.getQuestion();
+        Future<Reply> alternate = question != null ? lookup.alternates.remove(question) : null;
+        if (alternate == null) {
+            return null;
+        }
+        try {
+            Reply reply = alternate.get();
+            if (reply.upstream == null || lookup.excluded.contains(reply.upstream)) {
+                return null;
+            }
+            reply.response.getHeader().setID(query.getHeader().getID());
+            return reply;
+        } catch (InterruptedException e) {
+            alternate.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("DNS query interrupted");
+        } catch (ExecutionException e) {
+            return null;
+        } catch (CancellationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Send a query to the given servers in turn, until one answers. Servers with an open circuit are skipped, unless
+     * every circuit is open, and so are servers at their concurrency limit.
+     *
+     * @param query Query
+     * @param ranked Servers, best first
+     * @return First usable response, or the last SERVFAIL or REFUSED response if no server gave a usable one
+     * @throws IOException Thrown if no server responded, UpstreamSaturatedException if every server stayed at its
+     * concurrency limit
+     */
+    private Reply send(Message query, List<Upstream> ranked) throws IOException {
+        IOException failure = null;
+        Message failed = null;
+        boolean limiting = this.concurrencyLimiting;
+        Priority priority = Priority.current();
+        Upstream saturated = null;
+        List<Upstream> candidates = ranked;
+
+        // Without any query sent on the first pass, the second pass waits for the best server at its concurrency
+        // limit, or tries every server anyway if every circuit is open
+        for (int pass = 0; pass < 2 && failure == null && failed == null; pass++) {
+            if (pass == 1 && saturated != null) {
+                awaitCapacity(saturated, priority);
+                candidates = Collections.singletonList(saturated);
+            }
+            for (Upstream upstream : candidates) {
+                if (pass == 0) {
+                    if (!upstream.breaker.tryAcquire()) {
+                        continue;
+                    }
+                    if (!limiting) {
+                        upstream.limiter.forceAcquire();
+                    } else if (!upstream.limiter.tryAcquire(priority)) {
+                        upstream.breaker.release();
+                        if (saturated == null) {
+                            saturated = upstream;
+                        }
+                        continue;
+                    }
+                } else if (saturated == null) {
+                    upstream.limiter.forceAcquire();
+                }
+
+                long latency = -1;
+                boolean timedOut = false;
+                try {
+                    for (int attempt = 0; attempt <= RETRANSMITS; attempt++) {
+                        long timeout = upstream.rtt.getTimeout(this.maximumTimeout);
+                        long start = this.ticker.read();
+                        try {
+                            Message response = upstream.send(query, timeout);
+                            if (!isUsable(response)) {
+                                if (response.getRcode() == Rcode.SERVFAIL) {
+                                    // Not the server's fault, queries for other names are unaffected
+                                    upstream.breaker.release();
+                                } else {
+                                    upstream.failure();
+                                }
+                                failed = response;
+                                break;
+                            }
+                            latency = this.ticker.read() - start;
+                            upstream.success(latency);
+                            this.latencies.record(latency);
+                            return new Reply(upstream, response);
+                        } catch (SocketTimeoutException e) {
+                            upstream.rtt.backoff();
+                            timedOut = true;
+                            failure = e;
+                            if (attempt == RETRANSMITS) {
+                                upstream.failure();
+                            }
+                        } catch (IOException e) {
+                            if (Thread.currentThread().isInterrupted()) {
+                                // Cancelled hedged query, not the server's fault
+                                upstream.breaker.release();
+                                throw e;
+                            }
+                            upstream.failure();
+                            failure = e;
+                            break;
+                        }
+                    }
+                } finally {
+                    if (latency >= 0) {
+                        upstream.limiter.onSuccess(latency);
+                    } else if (timedOut) {
+                        upstream.limiter.onDropped();
+                    } else {
+                        upstream.limiter.release();
+                    }
+                }
+            }
+        }
+
+        if (failed != null) {
+            return new Reply(null, failed);
+        }
+        throw failure;
+    }
+
+    /**
+     * Send a query to the given servers in turn, and also to the servers after the best one if no answer arrived
+     * within hedgeDelay and the hedge rate allows it
+     *
+     * @param query Query
+     * @param ranked Servers, best first
+     * @param hedgeDelay Nanoseconds to wait before hedging
+     * @param lookup Lookup of the calling thread keeping the query still in flight once one answered, or null to
+     * cancel it
+     * @return First usable response, or a SERVFAIL or REFUSED response if no server gave a usable one
+     * @throws IOException Thrown if no server responded
+     */
+    private Reply sendHedged(final Message query, final List<Upstream> ranked, long hedgeDelay, Lookup lookup)
+            throws IOException {
+        CompletionService<Reply> completion = new ExecutorCompletionService<Reply>(getHedgeExecutor());
+        List<Future<Reply>> futures = new ArrayList<Future<Reply>>(2);
+        Future<Reply> kept = null;
+        try {
+            futures.add(completion.submit(new Callable<Reply>() {
+                @Override
+                public Reply call() throws IOException {
+                    return send(query, ranked);
+                }
+            }));
+
+            Future<Reply> done = completion.poll(hedgeDelay, TimeUnit.NANOSECONDS);
+            if (done == null && acquireHedgeToken()) {
+                this.hedgedQueries.incrementAndGet();
+                futures.add(completion.submit(new Callable<Reply>() {
+                    @Override
+                    public Reply call() throws IOException {
+                        return send(query, ranked.subList(1, ranked.size()));
+                    }
+                }));
+            }
+
+            IOException failure = null;
+            Reply failed = null;
+            for (int remaining = futures.size(); remaining > 0; remaining--) {
+                Future<Reply> future = done != null ? done : completion.take();
+                done = null;
+                try {
+                    Reply reply = future.get();
+                    if (reply.upstream != null) {
+                        if (lookup != null && remaining > 1 && query.getQuestion() != null) {
+                            kept = futures.get(future == futures.get(0) ? 1 : 0);
+                            Future<Reply> previous = lookup.alternates.put(query.getQuestion(), kept);
+                            if (previous != null) {
+                                previous.cancel(true);
+                            }
+                        }
+                        return reply;
+                    }
+                    failed = reply;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        failure = (IOException) e.getCause();
+                    } else {
+                        throw Throwables.propagate(e.getCause());
+                    }
+                }
+            }
+
+            if (failed != null) {
+                return failed;
+            }
+            throw failure;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("DNS query interrupted");
+        } catch (RejectedExecutionException e) {
+            throw new IOException("DNS query rejected: " + e.getMessage());
+        } finally {
+            for (Future<Reply> future : futures) {
+                if (future != kept) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait for a query slot of a server at its concurrency limit
+     *
+     * @param upstream Server
+     * @param priority Priority of the query
+     * @throws IOException UpstreamSaturatedException if no slot freed up within the queue timeout
+     */
+    private void awaitCapacity(Upstream upstream, Priority priority) throws IOException {
+        try {
+            if (this.queueTimeout > 0 && upstream.limiter.acquire(priority, this.queueTimeout)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("DNS query interrupted");
+        }
+        throw new UpstreamSaturatedException("DNS servers at their concurrency limit, best " + upstream.name + " at "
+                + upstream.limiter.getLimit() + " queries in flight");
+    }
+
+    private boolean acquireHedgeToken() {
+        synchronized (this.hedgeLock) {
+            if (this.hedgeTokens < 1) {
+                return false;
+            }
+            this.hedgeTokens--;
+            return true;
+        }
+    }
+
+    private static boolean isUsable(Message response) {
+        int rcode = response.getRcode();
+        return rcode != Rcode.SERVFAIL && rcode != Rcode.REFUSED;
+    }
+
+    private synchronized ExecutorService getHedgeExecutor() {
+        if (this.hedgeExecutor == null) {
+            this.hedgeExecutor = Executors.newCachedThreadPool(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("dns-hedge-%d").build());
+        }
+        return this.hedgeExecutor;
+    }
+
+    @Override
+    public Object sendAsync(final Message query, final ResolverListener listener) {
+        final Object id = new Object();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.receiveMessage(id, send(query));
+                } catch (Exception e) {
+                    listener.handleException(id, e);
+                }
+            }
+        }, "dns-upstream-send");
+        thread.setDaemon(true);
+        thread.start();
+        return id;
+    }
+
+    /**
+     * Probe servers with a half-open circuit, recording the outcome in their circuit breaker
+     */
+    void probe() {
+        for (Upstream upstream : this.upstreams) {
+            if (upstream.breaker.getState() == CircuitBreaker.State.HALF_OPEN) {
+                try {
+                    Message response = upstream.resolver.send(Message.newQuery(Record.newRecord(Name.root, Type.NS, DClass.IN)));
+                    if (isUsable(response)) {
+                        upstream.readmit();
+                        continue;
+                    }
+                } catch (IOException ignore) {
+                }
+                upstream.breaker.onFailure();
+            }
+        }
+    }
+
+    /**
+     * Stop probing and close the servers' transports
+     */
+    public synchronized void close() {
+        if (this.probeScheduler != null) {
+            this.probeScheduler.shutdownNow();
+            this.probeScheduler = null;
+        }
+        if (this.hedgeExecutor != null) {
+            this.hedgeExecutor.shutdown();
+            this.hedgeExecutor = null;
+        }
+        for (Upstream upstream : this.upstreams) {
+            if (upstream.resolver instanceof Closeable) {
+                try {
+                    ((Closeable) upstream.resolver).close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the servers in rotation, best first, followed by servers that are down as a last resort
+     */
+    private List<Upstream> ranked() {
+        // Scores are read once, they may change while sorting
+        List<Ranking> rankings = new ArrayList<Ranking>(this.upstreams.size());
+        for (Upstream upstream : this.upstreams) {
+            rankings.add(new Ranking(upstream));
+        }
+        Collections.sort(rankings);
+
+        List<Upstream> ranked = new ArrayList<Upstream>(rankings.size());
+        for (Ranking ranking : rankings) {
+            ranked.add(ranking.upstream);
+        }
+        return ranked;
+    }
+
+    private synchronized void startProbing() {
+        if (this.probeScheduler == null) {
+            this.probeScheduler = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("dns-upstream-probe-%d").build());
+            this.probeScheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    probe();
+                }
+            }, INITIAL_BACKOFF, INITIAL_BACKOFF, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static class Ranking implements Comparable<Ranking> {
+        private final Upstream upstream;
+        private final boolean down;
+        private final double score;
+
+        private Ranking(Upstream upstream) {
+            this.upstream = upstream;
+            synchronized (upstream) {
+                this.down = upstream.breaker.getState() == CircuitBreaker.State.OPEN;
+                this.score = upstream.score();
+            }
+        }
+
+        @Override
+        public int compareTo(Ranking other) {
+            if (this.down != other.down) {
+                return this.down ? 1 : -1;
+            }
+            int result = Double.compare(this.score, other.score);
+            return result != 0 ? result : this.upstream.index - other.upstream.index;
+        }
+    }
+
+    @Override
+    public void setPort(int port) {
+        for (Upstream upstream : this.upstreams) {
+            upstream.resolver.setPort(port);
+        }
+    }
+
+    @Override
+    public void setTCP(boolean flag) {
+        for (Upstream upstream : this.upstreams) {
+            upstream.resolver.setTCP(flag);
+        }
+    }
+
+    @Override
+    public void setIgnoreTruncation(boolean flag) {
+        for (Upstream upstream : this.upstreams) {
+            upstream.resolver.setIgnoreTruncation(flag);
+        }
+    }
+
+    @Override
+    public void setEDNS(int level) {
+        for (Upstream upstream : this.upstreams) {
+            upstream.resolver.setEDNS(level);
+        }
+    }
+
+    @Override
+    public void setEDNS(int level, int payloadSize, int flags, List options) {
+        for (Upstream upstream : this.upstreams) {
+            upstream.resolver.setEDNS(level, payloadSize, flags, options);
+        }
+    }
+
+    @Override
+    public void setTSIGKey(TSIG key) {
+        for (Upstream upstream : this.upstreams) {
+            upstream.resolver.setTSIGKey(key);
+        }
+    }
+
+    /**
+     * Set the longest query timeout of any server
+     *
+     * @param secs Seconds
+     * @param msecs Milliseconds
+     */
+    @Override
+    public void setTimeout(int secs, int msecs) {
+        this.maximumTimeout = secs * 1000L + msecs;
+    }
+
+    @Override
+    public void setTimeout(int secs) {
+        setTimeout(secs, 0);
+    }
+
+    /**
+     * Response to a query and the server that gave it
+     */
+    private static class Reply {
+        // null if no server gave a usable response
+        private final Upstream upstream;
+        private final Message response;
+
+        private Reply(Upstream upstream, Message response) {
+            this.upstream = upstream;
+            this.response = response;
+        }
+    }
+
+    /**
+     * Servers answering the queries of one lookup, see beginLookup()
+     */
+    private static class Lookup {
+        private final Set<Upstream> answered = new HashSet<Upstream>();
+        private final Set<Upstream> excluded = new HashSet<Upstream>();
+
+        // Hedged queries still in flight after another server answered, by question
+        private final Map<Record, Future<Reply>> alternates = new HashMap<Record, Future<Reply>>();
+    }
+
+    private class Upstream {
+        private final int index;
+        private final String name;
+        private final Resolver resolver;
+        private final RttEstimator rtt = new RttEstimator();
+        private final ConcurrencyLimiter limiter = new ConcurrencyLimiter();
+        private final CircuitBreaker breaker = new CircuitBreaker(ticker, DEFAULT_FAILURE_RATIO,
+                DEFAULT_MINIMUM_QUERIES, DEFAULT_HALF_OPEN_PROBES, INITIAL_BACKOFF, MAXIMUM_BACKOFF);
+        private long appliedTimeout = -1;
+        private double errorRate = 0;
+
+        private Upstream(int index, String name, Resolver resolver) {
+            this.index = index;
+            this.name = name;
+            this.resolver = resolver;
+        }
+
+        /**
+         * Expected latency, inflated by the error rate
+         */
+        private synchronized double score() {
+            double latency = this.rtt.isMeasured() ? this.rtt.getSmoothedRtt() : UNMEASURED_LATENCY;
+            return latency / Math.max(MINIMUM_SUCCESS_RATE, 1 - this.errorRate);
+        }
+
+        /**
+         * Send a query to the server with its own timeout. Resolvers that are not TimeoutResolvers, such as a
+         * SimpleResolver set with DNSSECResolver.setSimpleResolver(), only have a timeout shared by all queries in
+         * flight. Connect timeouts of TcpTransport and HttpsTransport are not affected.
+         */
+        private Message send(Message query, long timeout) throws IOException {
+            if (this.resolver instanceof TimeoutResolver) {
+                return ((TimeoutResolver) this.resolver).send(query, timeout);
+            }
+            synchronized (this) {
+                if (timeout != this.appliedTimeout) {
+                    this.resolver.setTimeout((int) (timeout / 1000), (int) (timeout % 1000));
+                    this.appliedTimeout = timeout;
+                }
+            }
+            return this.resolver.send(query);
+        }
+
+        private void success(long latency) {
+            this.rtt.sample(latency);
+            synchronized (this) {
+                this.errorRate -= ERROR_WEIGHT * this.errorRate;
+            }
+            this.breaker.onSuccess();
+        }
+
+        private void failure() {
+            synchronized (this) {
+                this.errorRate += ERROR_WEIGHT * (1 - this.errorRate);
+            }
+            if (this.breaker.onFailure()) {
+                startProbing();
+            }
+        }
+
+        private void readmit() {
+            if (this.breaker.onSuccess()) {
+                synchronized (this) {
+                    this.errorRate = 0;
+                }
+            }
+        }
+    }
+}
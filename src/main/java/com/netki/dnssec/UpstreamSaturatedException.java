@@ -0,0 +1,15 @@
+package com.netki.dnssec;
+
+import java.io.IOException;
+
+/**
+ * Thrown by UpstreamPool when every DNS server stayed at its concurrency limit for the queue timeout
+ */
+class UpstreamSaturatedException extends IOException {
+
+    private static final long serialVersionUID = -3015832791862410517L;
+
+    UpstreamSaturatedException(String message) {
+        super(message);
+    }
+}
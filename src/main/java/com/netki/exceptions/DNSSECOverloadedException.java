@@ -0,0 +1,11 @@
+package com.netki.exceptions;
+
+public class DNSSECOverloadedException extends DNSSECException {
+
+    private static final long serialVersionUID = -6521339816272440923L;
+
+    public DNSSECOverloadedException(String message) {
+        super(message);
+    }
+
+}
@@ -2,6 +2,7 @@ package com.netki;
 
 import com.netki.dnssec.DNSSECResolver;
 import com.netki.exceptions.DNSSECException;
+import com.netki.exceptions.DNSSECOverloadedException;
 import com.netki.exceptions.WalletNameCurrencyUnavailableException;
 import com.netki.exceptions.WalletNameDoesNotExistException;
 import com.netki.exceptions.WalletNameLookupException;
@@ -47,7 +48,6 @@ public class WalletNameResolverTest {
             // Setup Backup
             doCallRealMethod().when(this.mockResolver).getBackupDnsServers();
             doCallRealMethod().when(this.mockResolver).setBackupDnsServers(any(List.class));
-            doCallRealMethod().when(this.mockResolver).useBackupDnsServer(any(Integer.class));
             this.mockResolver.setBackupDnsServers(Arrays.asList("8.8.8.8", "8.8.4.4"));
 
             this.testObj.setDNSSECResolver(this.mockResolver);
@@ -144,7 +144,7 @@ public class WalletNameResolverTest {
             fail("Expected Exception");
         } catch (WalletNameLookupException e) {
             try {
-                verify(this.mockResolver, times(3)).resolve(eq("_wallet.wallet.domain.com."), eq(Type.TXT));
+                verify(this.mockResolver, times(1)).resolve(eq("_wallet.wallet.domain.com."), eq(Type.TXT));
                 assertEquals("message", e.getMessage());
             } catch(Exception e1) {
                 fail("Unknown Test Failure: " + e.getMessage());
@@ -153,7 +153,7 @@ public class WalletNameResolverTest {
     }
 
     @Test
-    public void getAvailableCurrencies_RetriedException() {
+    public void getAvailableCurrencies_ExceptionNotRetried() {
         try {
             when(this.mockResolver.resolve(eq("_wallet.wallet.domain.com."), eq(Type.TXT))).thenThrow(new DNSSECException("message")).thenReturn("btc ltc");
         } catch (Exception e) {
@@ -161,13 +161,14 @@ public class WalletNameResolverTest {
         }
 
         try {
-            List<String> currencies = this.testObj.getAvailableCurrencies("wallet.domain.com");
-            assertNotNull(currencies);
-            assertEquals(2, currencies.size());
-            assertTrue(currencies.contains("btc"));
-            assertTrue(currencies.contains("ltc"));
-            assertFalse(currencies.contains("dgc"));
-            verify(this.mockResolver, times(2)).resolve(eq("_wallet.wallet.domain.com."), eq(Type.TXT));
+            this.testObj.getAvailableCurrencies("wallet.domain.com");
+            fail("Expected Exception");
+        } catch (WalletNameLookupException e) {
+            assertEquals("message", e.getMessage());
+        }
+
+        try {
+            verify(this.mockResolver, times(1)).resolve(eq("_wallet.wallet.domain.com."), eq(Type.TXT));
         } catch (Exception e) {
             fail("Unknown Test Failure: " + e.getMessage());
         }
@@ -302,7 +303,7 @@ public class WalletNameResolverTest {
         } catch (WalletNameLookupException e) {
             try {
                 assertEquals("message", e.getMessage());
-                verify(this.mockResolver, times(3)).resolve(anyString(), eq(Type.TXT));
+                verify(this.mockResolver, times(1)).resolve(anyString(), eq(Type.TXT));
                 verify(this.mockTlsaValidator, never()).validateTLSA(any(URL.class));
                 verify(this.testObj, never()).processWalletNameUrl(any(URL.class), anyBoolean());
             } catch (Exception e1) {
@@ -314,7 +315,7 @@ public class WalletNameResolverTest {
     }
 
     @Test
-    public void resolve_ResolutionExceptionRetry() {
+    public void resolve_ResolutionExceptionNotRetried() {
         try {
             when(this.mockResolver.resolve(eq("_btc._wallet.wallet.domain.com."), eq(Type.TXT))).thenThrow(new DNSSECException("message")).thenReturn("1CpLXM15vjULK3ZPGUTDMUcGATGR9xGitv");
         } catch (Exception e) {
@@ -322,12 +323,38 @@ public class WalletNameResolverTest {
         }
 
         try {
-            BitcoinURI result = this.testObj.resolve("wallet.domain.com", "btc", true);
-            assertNotNull(result.getAddress());
-            assertEquals("1CpLXM15vjULK3ZPGUTDMUcGATGR9xGitv", result.getAddress().toString());
-            verify(this.mockResolver, times(2)).resolve(anyString(), eq(Type.TXT));
-            verify(this.mockTlsaValidator, never()).validateTLSA(any(URL.class));
-            verify(this.testObj, never()).processWalletNameUrl(any(URL.class), anyBoolean());
+            this.testObj.resolve("wallet.domain.com", "btc", true);
+            fail("Expected WalletNameLookupException");
+        } catch (WalletNameLookupException e) {
+            assertEquals("message", e.getMessage());
+        }
+
+        try {
+            verify(this.mockResolver, times(1)).resolve(anyString(), eq(Type.TXT));
+            verify(this.mockResolver, never()).useBackupDnsServer(anyInt());
+        } catch (Exception e) {
+            fail("Unknown Test Failure: " + e.getMessage());
+        }
+    }
+
+    @Test
+    public void resolve_OverloadNotRetried() {
+        try {
+            when(this.mockResolver.resolve(eq("_btc._wallet.wallet.domain.com."), eq(Type.TXT))).thenThrow(new DNSSECOverloadedException("overloaded")).thenReturn("1CpLXM15vjULK3ZPGUTDMUcGATGR9xGitv");
+        } catch (Exception e) {
+            fail("Failure to Setup Test: " + e.getMessage());
+        }
+
+        try {
+            this.testObj.resolve("wallet.domain.com", "btc", true);
+            fail("Expected WalletNameLookupException");
+        } catch (WalletNameLookupException e) {
+            assertEquals("overloaded", e.getMessage());
+            assertTrue(e.getCause() instanceof DNSSECOverloadedException);
+        }
+
+        try {
+            verify(this.mockResolver, times(1)).resolve(anyString(), eq(Type.TXT));
         } catch (Exception e) {
             fail("Unknown Test Failure: " + e.getMessage());
         }
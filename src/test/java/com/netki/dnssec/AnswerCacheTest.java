@@ -0,0 +1,179 @@
+package com.netki.dnssec;
+
+import com.google.common.base.Ticker;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.*;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AnswerCacheTest {
+
+    private long nanos;
+    private AnswerCache testObj;
+    private CacheKey key;
+    private RRset answerSet;
+
+    @Before
+    public void setUp() throws Exception {
+        Ticker ticker = new Ticker() {
+            @Override
+            public long read() {
+                return nanos;
+            }
+        };
+        this.nanos = 0;
+        this.testObj = new AnswerCache(10, 3600, ticker);
+
+        Name name = new Name("_btc._wallet.domain.com.");
+        this.key = new CacheKey(name, Type.TXT, DClass.IN);
+        this.answerSet = new RRset(new TXTRecord(name, DClass.IN, 300L, "value"));
+    }
+
+    private void advance(long seconds) {
+        this.nanos += TimeUnit.SECONDS.toNanos(seconds);
+    }
+
+    @Test
+    public void putAndGet() {
+        this.testObj.put(this.key, "value", new RRset[]{this.answerSet}, 50L);
+
+        CachedAnswer answer = this.testObj.get(this.key);
+        assertNotNull(answer);
+        assertEquals("value", answer.getValue());
+        assertEquals(1, answer.getRecords().length);
+        assertEquals(300000L, answer.getExpiresAt());
+    }
+
+    @Test
+    public void expiresAfterTtl() {
+        this.testObj.put(this.key, "value", new RRset[]{this.answerSet}, 50L);
+
+        advance(299);
+        assertNotNull(this.testObj.get(this.key));
+
+        advance(1);
+        assertNull(this.testObj.get(this.key));
+        assertEquals(0, this.testObj.size());
+    }
+
+    @Test
+    public void ttlClampedByMaximumTtl() throws Exception {
+        AnswerCache shortCache = new AnswerCache(10, 60);
+        shortCache.put(this.key, "value", new RRset[]{this.answerSet}, 50L);
+
+        CachedAnswer answer = shortCache.get(this.key);
+        assertNotNull(answer);
+        assertTrue(answer.getExpiresAt() - shortCache.now() <= 60000L);
+    }
+
+    @Test
+    public void ttlClampedBySignatureExpiration() throws Exception {
+        long now = System.currentTimeMillis();
+        RRSIGRecord sig = new RRSIGRecord(this.key.getName(), DClass.IN, 300L, Type.TXT, DNSSEC.Algorithm.RSASHA256, 300L,
+                new Date(now + 10000L), new Date(now - 10000L), 12345, new Name("domain.com."), new byte[]{1, 2, 3});
+        this.answerSet.addRR(sig);
+
+        assertTrue(AnswerCache.ttlMillis(this.answerSet) <= 10000L);
+
+        this.testObj.put(this.key, "value", new RRset[]{this.answerSet}, 50L);
+        assertEquals(2, this.testObj.get(this.key).getRecords().length);
+
+        advance(11);
+        assertNull(this.testObj.get(this.key));
+    }
+
+    @Test
+    public void expiredSignatureNotCached() throws Exception {
+        long now = System.currentTimeMillis();
+        RRSIGRecord sig = new RRSIGRecord(this.key.getName(), DClass.IN, 300L, Type.TXT, DNSSEC.Algorithm.RSASHA256, 300L,
+                new Date(now - 1000L), new Date(now - 10000L), 12345, new Name("domain.com."), new byte[]{1, 2, 3});
+        this.answerSet.addRR(sig);
+
+        this.testObj.put(this.key, "value", new RRset[]{this.answerSet}, 50L);
+        assertNull(this.testObj.get(this.key));
+    }
+
+    @Test
+    public void keyIsCaseInsensitive() throws Exception {
+        this.testObj.put(this.key, "value", new RRset[]{this.answerSet}, 50L);
+        CacheKey upper = new CacheKey(new Name("_BTC._WALLET.Domain.COM."), Type.TXT, DClass.IN);
+        assertNotNull(this.testObj.get(upper));
+        assertNull(this.testObj.get(new CacheKey(this.key.getName(), Type.A, DClass.IN)));
+    }
+
+    @Test
+    public void negativeAnswerUsesSoaMinimum() throws Exception {
+        Name zone = new Name("domain.com.");
+        SOARecord soa = new SOARecord(zone, DClass.IN, 3600L, new Name("ns1.domain.com."), new Name("admin.domain.com."),
+                1L, 7200L, 3600L, 1209600L, 60L);
+
+        this.testObj.putNegative(this.key, Rcode.NXDOMAIN, new RRset[0], new RRset[]{new RRset(soa)}, 50L);
+
+        CachedAnswer answer = this.testObj.get(this.key);
+        assertNotNull(answer);
+        assertTrue(answer.isNegative());
+        assertTrue(answer.isNxDomain());
+        assertNull(answer.getValue());
+        assertEquals(60000L, answer.getExpiresAt());
+
+        advance(60);
+        assertNull(this.testObj.get(this.key));
+    }
+
+    @Test
+    public void negativeAnswerWithoutSoaNotCached() {
+        this.testObj.putNegative(this.key, Rcode.NOERROR, new RRset[0], new RRset[0], 50L);
+        assertNull(this.testObj.get(this.key));
+    }
+
+    @Test
+    public void refreshDueNearExpiration() {
+        this.testObj.put(this.key, "value", new RRset[]{this.answerSet}, 50L);
+        CachedAnswer answer = this.testObj.get(this.key);
+
+        // Refresh window scale is 30 seconds (a tenth of the 300 second lifetime)
+        int early = 0;
+        advance(150);
+        for (int i = 0; i < 1000; i++) {
+            if (this.testObj.isRefreshDue(answer, 1.0)) early++;
+        }
+        assertTrue("Refreshed too early: " + early, early < 50);
+
+        int late = 0;
+        advance(147);
+        for (int i = 0; i < 1000; i++) {
+            if (this.testObj.isRefreshDue(answer, 1.0)) late++;
+        }
+        assertTrue("Refreshed too late: " + late, late > 800);
+    }
+
+    @Test
+    public void staleAnswersRetained() {
+        this.testObj.setStaleRetention(60000L);
+        this.testObj.put(this.key, "value", new RRset[]{this.answerSet}, 50L);
+
+        assertNull(this.testObj.getStale(this.key, 60000L));
+
+        advance(330);
+        assertNull(this.testObj.get(this.key));
+        CachedAnswer stale = this.testObj.getStale(this.key, 60000L);
+        assertNotNull(stale);
+        assertNull(this.testObj.getStale(this.key, 10000L));
+
+        // Stale copy is served as a hit for its stale TTL, but keeps its original staleness
+        this.testObj.putStale(this.key, stale, 30000L);
+        CachedAnswer served = this.testObj.get(this.key);
+        assertNotNull(served);
+        assertTrue(served.isStale());
+        assertEquals(300000L, served.getStaleSince());
+
+        advance(30);
+        assertNull(this.testObj.get(this.key));
+        assertNull(this.testObj.getStale(this.key, 60000L));
+        assertEquals(0, this.testObj.size());
+    }
+}
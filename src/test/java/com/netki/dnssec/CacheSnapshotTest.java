@@ -0,0 +1,135 @@
+package com.netki.dnssec;
+
+import com.google.common.base.Ticker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CacheSnapshotTest {
+
+    private long nanos;
+    private Ticker ticker;
+    private File file;
+    private CacheSnapshot testObj;
+    private Name name;
+    private CacheKey key;
+
+    @Before
+    public void setUp() throws Exception {
+        this.ticker = new Ticker() {
+            @Override
+            public long read() {
+                return nanos;
+            }
+        };
+        this.nanos = TimeUnit.SECONDS.toNanos(1000);
+        this.file = File.createTempFile("dnssec-cache", ".snapshot");
+        this.file.delete();
+        this.testObj = new CacheSnapshot(this.file);
+
+        this.name = new Name("_btc._wallet.domain.com.");
+        this.key = new CacheKey(this.name, Type.TXT, DClass.IN);
+    }
+
+    @After
+    public void tearDown() {
+        this.file.delete();
+    }
+
+    private RRset signedSet(Record record, long expiresIn) throws TextParseException {
+        long now = System.currentTimeMillis();
+        RRset set = new RRset(record);
+        set.addRR(new RRSIGRecord(record.getName(), DClass.IN, record.getTTL(), record.getType(),
+                DNSSEC.Algorithm.RSASHA256, record.getTTL(), new Date(now + expiresIn), new Date(now - 10000L), 12345,
+                new Name("domain.com."), new byte[]{1, 2, 3}));
+        return set;
+    }
+
+    @Test
+    public void missingFile() throws Exception {
+        assertEquals(0, this.testObj.load(new AnswerCache(10, 3600, this.ticker), new KeyChainCache(10, 3600, this.ticker)));
+    }
+
+    @Test
+    public void writeAndLoad() throws Exception {
+        AnswerCache answerCache = new AnswerCache(10, 3600, this.ticker);
+        KeyChainCache keyChainCache = new KeyChainCache(10, 3600, this.ticker);
+
+        answerCache.put(this.key, "value", new RRset[]{signedSet(new TXTRecord(this.name, DClass.IN, 300L, "value"), 3600000L)}, 50L);
+
+        CacheKey nxKey = new CacheKey(new Name("missing.domain.com."), Type.TXT, DClass.IN);
+        SOARecord soa = new SOARecord(new Name("domain.com."), DClass.IN, 600L, new Name("ns.domain.com."),
+                new Name("admin.domain.com."), 1L, 3600L, 600L, 86400L, 120L);
+        answerCache.putNegative(nxKey, Rcode.NXDOMAIN, new RRset[0], new RRset[]{new RRset(soa)}, 20L);
+
+        DNSKEYRecord dnskey = new DNSKEYRecord(new Name("domain.com."), DClass.IN, 3600L, 257, DNSKEYRecord.Protocol.DNSSEC,
+                DNSSEC.Algorithm.RSASHA256, new byte[]{3, 1, 0, 1});
+        keyChainCache.put(signedSet(dnskey, 3600000L));
+
+        this.testObj.write(answerCache, keyChainCache);
+        assertTrue(this.file.isFile());
+
+        // Restart 100 seconds later, with a fresh clock
+        this.nanos = TimeUnit.SECONDS.toNanos(100);
+        AnswerCache restoredAnswers = new AnswerCache(10, 3600, this.ticker);
+        KeyChainCache restoredKeys = new KeyChainCache(10, 3600, this.ticker);
+        assertEquals(3, this.testObj.load(restoredAnswers, restoredKeys));
+
+        CachedAnswer answer = restoredAnswers.get(this.key);
+        assertNotNull(answer);
+        assertEquals("value", answer.getValue());
+        assertEquals(2, answer.getRecords().length);
+        assertEquals(50L, answer.getFetchMillis());
+        long remaining = answer.getExpiresAt() - restoredAnswers.now();
+        assertTrue(remaining > 290000L && remaining <= 300000L);
+
+        CachedAnswer nxAnswer = restoredAnswers.get(nxKey);
+        assertNotNull(nxAnswer);
+        assertTrue(nxAnswer.isNxDomain());
+        assertNull(nxAnswer.getValue());
+
+        Record[] keys = restoredKeys.get(new CacheKey(new Name("domain.com."), Type.DNSKEY, DClass.IN));
+        assertNotNull(keys);
+        assertEquals(dnskey, keys[0]);
+    }
+
+    @Test
+    public void loadSkipsExpiredSignatures() throws Exception {
+        AnswerCache answerCache = new AnswerCache(10, 3600, this.ticker);
+        answerCache.put(this.key, "value", new RRset[]{signedSet(new TXTRecord(this.name, DClass.IN, 300L, "value"), 1000L)}, 50L);
+        this.testObj.write(answerCache, new KeyChainCache(10, 3600, this.ticker));
+
+        Thread.sleep(1100L);
+
+        AnswerCache restoredAnswers = new AnswerCache(10, 3600, this.ticker);
+        assertEquals(0, this.testObj.load(restoredAnswers, new KeyChainCache(10, 3600, this.ticker)));
+        assertNull(restoredAnswers.get(this.key));
+    }
+
+    @Test
+    public void loadKeepsExistingAnswers() throws Exception {
+        AnswerCache answerCache = new AnswerCache(10, 3600, this.ticker);
+        answerCache.put(this.key, "old", new RRset[]{new RRset(new TXTRecord(this.name, DClass.IN, 300L, "old"))}, 50L);
+        this.testObj.write(answerCache, new KeyChainCache(10, 3600, this.ticker));
+
+        AnswerCache restoredAnswers = new AnswerCache(10, 3600, this.ticker);
+        restoredAnswers.put(this.key, "new", new RRset[]{new RRset(new TXTRecord(this.name, DClass.IN, 300L, "new"))}, 50L);
+        this.testObj.load(restoredAnswers, new KeyChainCache(10, 3600, this.ticker));
+
+        assertEquals("new", restoredAnswers.get(this.key).getValue());
+    }
+
+    @Test(expected = IOException.class)
+    public void loadRejectsForeignFile() throws Exception {
+        com.google.common.io.Files.write(new byte[64], this.file);
+        this.testObj.load(new AnswerCache(10, 3600, this.ticker), new KeyChainCache(10, 3600, this.ticker));
+    }
+}
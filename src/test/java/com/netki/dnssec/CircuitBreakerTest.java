@@ -0,0 +1,85 @@
+package com.netki.dnssec;
+
+import com.google.common.base.Ticker;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+    private long nanos;
+    private CircuitBreaker testObj;
+
+    @Before
+    public void setUp() {
+        this.nanos = 0;
+        this.testObj = new CircuitBreaker(new Ticker() {
+            @Override
+            public long read() {
+                return nanos;
+            }
+        }, 0.5, 4, 2, 1000, 4000);
+    }
+
+    private void open() {
+        for (int i = 0; i < 4; i++) {
+            this.testObj.onFailure();
+        }
+        assertEquals(CircuitBreaker.State.OPEN, this.testObj.getState());
+    }
+
+    @Test
+    public void opensAfterMinimumQueries() {
+        assertFalse(this.testObj.onFailure());
+        assertFalse(this.testObj.onFailure());
+        this.testObj.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, this.testObj.getState());
+        assertTrue(this.testObj.onFailure());
+        assertFalse(this.testObj.tryAcquire());
+    }
+
+    @Test
+    public void staysClosedBelowFailureRatio() {
+        for (int i = 0; i < 3 * CircuitBreaker.WINDOW; i++) {
+            if (i % 3 == 0) {
+                this.testObj.onFailure();
+            } else {
+                this.testObj.onSuccess();
+            }
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, this.testObj.getState());
+    }
+
+    @Test
+    public void halfOpenLimitsProbes() {
+        open();
+        this.nanos += TimeUnit.MILLISECONDS.toNanos(1000);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, this.testObj.getState());
+
+        assertTrue(this.testObj.tryAcquire());
+        assertTrue(this.testObj.tryAcquire());
+        assertFalse(this.testObj.tryAcquire());
+
+        assertFalse(this.testObj.onSuccess());
+        assertTrue(this.testObj.tryAcquire());
+        assertTrue(this.testObj.onSuccess());
+        assertEquals(CircuitBreaker.State.CLOSED, this.testObj.getState());
+    }
+
+    @Test
+    public void failedProbeDoublesOpenDuration() {
+        open();
+        this.nanos += TimeUnit.MILLISECONDS.toNanos(1000);
+        assertTrue(this.testObj.tryAcquire());
+        this.testObj.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, this.testObj.getState());
+
+        this.nanos += TimeUnit.MILLISECONDS.toNanos(1000);
+        assertEquals(CircuitBreaker.State.OPEN, this.testObj.getState());
+        this.nanos += TimeUnit.MILLISECONDS.toNanos(1000);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, this.testObj.getState());
+    }
+}
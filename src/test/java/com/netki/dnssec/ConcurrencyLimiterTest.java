@@ -0,0 +1,104 @@
+package com.netki.dnssec;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ConcurrencyLimiterTest {
+
+    private final ConcurrencyLimiter testObj = new ConcurrencyLimiter();
+
+    private void fill() {
+        while (this.testObj.tryAcquire(Priority.INTERACTIVE)) {
+        }
+    }
+
+    @Test
+    public void limitsQueriesInFlight() throws Exception {
+        fill();
+        assertEquals(ConcurrencyLimiter.INITIAL_LIMIT, this.testObj.getInFlight());
+        assertFalse(this.testObj.acquire(Priority.INTERACTIVE, 10));
+
+        this.testObj.release();
+        assertTrue(this.testObj.acquire(Priority.INTERACTIVE, 10));
+        assertEquals(ConcurrencyLimiter.INITIAL_LIMIT, this.testObj.getInFlight());
+    }
+
+    @Test
+    public void growsWhileLatencyStable() {
+        for (int i = 0; i < 50; i++) {
+            fill();
+            this.testObj.onSuccess(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        assertTrue(this.testObj.getLimit() > 2 * ConcurrencyLimiter.INITIAL_LIMIT);
+    }
+
+    @Test
+    public void shrinksWhenLatencyClimbs() {
+        fill();
+        this.testObj.onSuccess(TimeUnit.MILLISECONDS.toNanos(10));
+        for (int i = 0; i < 50; i++) {
+            fill();
+            this.testObj.onSuccess(TimeUnit.MILLISECONDS.toNanos(200));
+        }
+        int limit = this.testObj.getLimit();
+        assertTrue(limit < ConcurrencyLimiter.INITIAL_LIMIT / 2);
+        assertTrue(limit >= ConcurrencyLimiter.MINIMUM_LIMIT);
+    }
+
+    @Test
+    public void shrinksOnTimeout() {
+        this.testObj.tryAcquire(Priority.INTERACTIVE);
+        this.testObj.onDropped();
+        assertTrue(this.testObj.getLimit() < ConcurrencyLimiter.INITIAL_LIMIT);
+        assertEquals(0, this.testObj.getInFlight());
+    }
+
+    @Test
+    public void lowerPrioritiesLeaveCapacityForInteractive() {
+        while (this.testObj.tryAcquire(Priority.BACKGROUND)) {
+        }
+        assertEquals(ConcurrencyLimiter.INITIAL_LIMIT / 2, this.testObj.getInFlight());
+        while (this.testObj.tryAcquire(Priority.BULK)) {
+        }
+        assertEquals(ConcurrencyLimiter.INITIAL_LIMIT * 4 / 5, this.testObj.getInFlight());
+        assertTrue(this.testObj.tryAcquire(Priority.INTERACTIVE));
+    }
+
+    @Test
+    public void waitingInteractiveQueryServedBeforeBulk() throws Exception {
+        fill();
+        Thread bulk = waiter(Priority.BULK);
+        Thread interactive = waiter(Priority.INTERACTIVE);
+
+        // The first freed slot goes to the interactive query, which arrived after the bulk one
+        this.testObj.release();
+        interactive.join(5000);
+        assertFalse(interactive.isAlive());
+        assertTrue(bulk.isAlive());
+
+        while (this.testObj.getInFlight() >= ConcurrencyLimiter.INITIAL_LIMIT * 4 / 5) {
+            this.testObj.release();
+        }
+        bulk.join(5000);
+        assertFalse(bulk.isAlive());
+    }
+
+    private Thread waiter(final Priority priority) throws InterruptedException {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    assertTrue(testObj.acquire(priority, TimeUnit.SECONDS.toMillis(5)));
+                } catch (InterruptedException ignore) {
+                }
+            }
+        });
+        thread.start();
+        // Let the thread start waiting
+        Thread.sleep(50);
+        return thread;
+    }
+}
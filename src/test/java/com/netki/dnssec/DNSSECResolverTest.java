@@ -1,5 +1,8 @@
 package com.netki.dnssec;
 
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.netki.dns.DNSBootstrapService;
 import com.netki.exceptions.DNSSECException;
 import org.jitsi.dnssec.validator.ValidatingResolver;
@@ -10,6 +13,9 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
 import org.xbill.DNS.*;
 
 import java.io.IOException;
@@ -18,7 +24,20 @@ import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DNSSECResolverTest {
 
@@ -29,6 +48,7 @@ public class DNSSECResolverTest {
     private Message responseMessage;
     private Header spyHeader;
     private Record answerRecord;
+    private long nanos;
 
     @Before
     public void beforeTest() {
@@ -115,6 +135,564 @@ public class DNSSECResolverTest {
         }
     }
 
+    @Test
+    public void resolveCachedAnswer() {
+        try {
+            assertEquals("\\textresult\\", testObj.resolve("wallet.domain.com", Type.TXT));
+            assertEquals("\\textresult\\", testObj.resolve("wallet.domain.com.", Type.TXT));
+            assertEquals(1, testObj.getAnswerCache().size());
+
+            // Second lookup must be served from cache
+            verify(this.mockValidatingResolver, times(1)).send(any(Message.class));
+            verify(this.answerRecord, times(1)).rdataToString();
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("Unexpected Exception Occurred");
+        }
+    }
+
+    @Test
+    public void resolveCacheDisabled() {
+        testObj.setAnswerCache(new AnswerCache(0, AnswerCache.DEFAULT_MAXIMUM_TTL));
+        try {
+            testObj.resolve("wallet.domain.com", Type.TXT);
+            testObj.resolve("wallet.domain.com", Type.TXT);
+            verify(this.mockValidatingResolver, times(2)).send(any(Message.class));
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("Unexpected Exception Occurred");
+        }
+    }
+
+    @Test
+    public void resolveCachedNxDomain() {
+        this.responseMessage.getHeader().setRcode(Rcode.NXDOMAIN);
+        this.responseMessage.removeAllRecords(Section.ANSWER);
+
+        try {
+            SOARecord soa = new SOARecord(new Name("domain.com."), DClass.IN, 3600L, new Name("ns1.domain.com."),
+                    new Name("admin.domain.com."), 1L, 7200L, 3600L, 1209600L, 300L);
+            this.responseMessage.addRecord(soa, Section.AUTHORITY);
+
+            assertNull(testObj.resolve("wallet.domain.com", Type.TXT));
+            assertNull(testObj.resolve("wallet.domain.com", Type.TXT));
+            verify(this.mockValidatingResolver, times(1)).send(any(Message.class));
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("Unexpected Exception Occurred");
+        }
+    }
+
+    @Test
+    public void resolveAggressiveNsec() {
+        this.responseMessage.getHeader().setRcode(Rcode.NXDOMAIN);
+        this.responseMessage.removeAllRecords(Section.ANSWER);
+
+        try {
+            SOARecord soa = new SOARecord(new Name("domain.com."), DClass.IN, 3600L, new Name("ns1.domain.com."),
+                    new Name("admin.domain.com."), 1L, 7200L, 3600L, 1209600L, 300L);
+            this.responseMessage.addRecord(soa, Section.AUTHORITY);
+            this.responseMessage.addRecord(new NSECRecord(new Name("domain.com."), DClass.IN, 300L,
+                    new Name("zzz.domain.com."), new int[]{Type.SOA, Type.NS, Type.NSEC}), Section.AUTHORITY);
+
+            assertNull(testObj.resolve("wallet.domain.com", Type.TXT));
+            assertNull(testObj.resolve("other.domain.com", Type.TXT));
+            verify(this.mockValidatingResolver, times(1)).send(any(Message.class));
+
+            testObj.setAggressiveNsec(false);
+            assertNull(testObj.resolve("another.domain.com", Type.TXT));
+            verify(this.mockValidatingResolver, times(2)).send(any(Message.class));
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("Unexpected Exception Occurred");
+        }
+    }
+
+    @Test
+    public void resolveAsync() throws Exception {
+        final List<Runnable> callbacks = new ArrayList<Runnable>();
+        Executor callbackExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                callbacks.add(command);
+            }
+        };
+        testObj.setAsyncExecutor(MoreExecutors.sameThreadExecutor());
+
+        ListenableFuture<String> future = testObj.resolveAsync("wallet.domain.com", Type.TXT, callbackExecutor);
+        assertFalse(future.isDone());
+        assertEquals(1, callbacks.size());
+        callbacks.get(0).run();
+        assertEquals("\\textresult\\", future.get());
+
+        // Cached answers complete without a worker
+        Executor rejecting = mock(Executor.class);
+        testObj.setAsyncExecutor(rejecting);
+        assertEquals("\\textresult\\", testObj.resolveAsync("wallet.domain.com", Type.TXT).get());
+        verify(rejecting, never()).execute(any(Runnable.class));
+        verify(this.mockValidatingResolver, times(1)).send(any(Message.class));
+    }
+
+    @Test
+    public void resolveAsyncManyInFlight() throws Exception {
+        final int count = 16;
+        final CountDownLatch sent = new CountDownLatch(count);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(this.mockValidatingResolver.send(any(Message.class))).thenAnswer(new Answer<Message>() {
+            @Override
+            public Message answer(InvocationOnMock invocation) throws Throwable {
+                sent.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return responseMessage;
+            }
+        });
+
+        List<ListenableFuture<String>> futures = new ArrayList<ListenableFuture<String>>();
+        for (int i = 0; i < count; i++) {
+            futures.add(testObj.resolveAsync("wallet" + i + ".domain.com", Type.TXT));
+        }
+        assertTrue("Misses did not run concurrently", sent.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        for (ListenableFuture<String> future : futures) {
+            assertEquals("\\textresult\\", future.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void resolveAsyncSharesQueryInFlight() throws Exception {
+        final CountDownLatch sent = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(this.mockValidatingResolver.send(any(Message.class))).thenAnswer(new Answer<Message>() {
+            @Override
+            public Message answer(InvocationOnMock invocation) throws Throwable {
+                sent.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return responseMessage;
+            }
+        });
+        final ExecutorService workers = Executors.newSingleThreadExecutor();
+        final AtomicInteger executed = new AtomicInteger();
+        testObj.setAsyncExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executed.incrementAndGet();
+                workers.execute(command);
+            }
+        });
+
+        // The second lookup waits for the first one's query instead of for a worker
+        ListenableFuture<String> first = testObj.resolveAsync("wallet.domain.com", Type.TXT);
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        ListenableFuture<String> second = testObj.resolveAsync("wallet.domain.com", Type.TXT);
+        release.countDown();
+
+        assertEquals("\\textresult\\", first.get(5, TimeUnit.SECONDS));
+        assertEquals("\\textresult\\", second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, executed.get());
+        verify(this.mockValidatingResolver, times(1)).send(any(Message.class));
+        assertEquals(1, testObj.getCoalescedRequests());
+        workers.shutdown();
+    }
+
+    @Test
+    public void resolveAsyncCallbackExecutorRejects() throws Exception {
+        testObj.setAsyncExecutor(MoreExecutors.sameThreadExecutor());
+        Executor rejecting = mock(Executor.class);
+        doThrow(new RejectedExecutionException("shut down")).when(rejecting).execute(any(Runnable.class));
+
+        // The future is completed on the resolving thread instead of staying pending
+        ListenableFuture<String> future = testObj.resolveAsync("wallet.domain.com", Type.TXT, rejecting);
+        assertEquals("\\textresult\\", future.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setAsyncThreadsRequiresOneThread() {
+        testObj.setAsyncThreads(0);
+    }
+
+    @Test
+    public void resolveAsyncFailure() throws Exception {
+        this.responseMessage.getHeader().unsetFlag(Flags.AD);
+        this.responseMessage.getHeader().setRcode(Rcode.SERVFAIL);
+        this.responseMessage.addRecord(new TXTRecord(Name.root, ValidatingResolver.VALIDATION_REASON_QCLASS, 0L,
+                "Validation Failed"), Section.ADDITIONAL);
+        testObj.setAsyncExecutor(MoreExecutors.sameThreadExecutor());
+
+        try {
+            testObj.resolveAsync("wallet.domain.com", Type.TXT).get();
+            fail("resolveAsync should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof DNSSECException);
+            assertEquals("Validation Failed", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void resolveAll() throws Exception {
+        final List<Name> queried = new ArrayList<Name>();
+        when(this.mockValidatingResolver.send(any(Message.class))).thenAnswer(new Answer<Message>() {
+            @Override
+            public Message answer(InvocationOnMock invocation) throws Throwable {
+                queried.add(((Message) invocation.getArguments()[0]).getQuestion().getName());
+                return responseMessage;
+            }
+        });
+        testObj.setBatchExecutor(MoreExecutors.sameThreadExecutor());
+        testObj.resolve("_btc._wallet.cached.com", Type.TXT);
+        queried.clear();
+
+        Map<String, ResolveResult> results = testObj.resolveAll(Arrays.asList("_btc._wallet.a.com",
+                "_doge._wallet.a.com", "_btc._wallet.cached.com", "_btc._wallet.b.com", "_btc._wallet.a.com"), Type.TXT);
+
+        assertEquals(Arrays.asList("_btc._wallet.a.com", "_doge._wallet.a.com", "_btc._wallet.cached.com",
+                "_btc._wallet.b.com"), new ArrayList<String>(results.keySet()));
+        for (ResolveResult result : results.values()) {
+            assertTrue(result.isSuccess());
+            assertEquals("\\textresult\\", result.getValue());
+        }
+
+        // One label per zone first, cached label not queried
+        assertEquals(Arrays.asList(new Name("_btc._wallet.a.com."), new Name("_btc._wallet.b.com."),
+                new Name("_doge._wallet.a.com.")), queried);
+    }
+
+    @Test
+    public void resolveAllFailure() throws Exception {
+        this.responseMessage.getHeader().unsetFlag(Flags.AD);
+        this.responseMessage.getHeader().setRcode(Rcode.SERVFAIL);
+        this.responseMessage.addRecord(new TXTRecord(Name.root, ValidatingResolver.VALIDATION_REASON_QCLASS, 0L,
+                "Validation Failed"), Section.ADDITIONAL);
+
+        Map<String, ResolveResult> results = testObj.resolveAll(Arrays.asList("a.domain.com", "b.domain.com"), Type.TXT, 1);
+
+        assertEquals(2, results.size());
+        for (ResolveResult result : results.values()) {
+            assertFalse(result.isSuccess());
+            assertEquals("Validation Failed", result.getError().getMessage());
+        }
+        verify(this.mockValidatingResolver, times(2)).send(any(Message.class));
+    }
+
+    @Test
+    public void batchZone() throws Exception {
+        assertEquals(new Name("domain.com."), DNSSECResolver.batchZone(new Name("_btc._wallet.domain.com.")));
+        assertEquals(new Name("domain.com."), DNSSECResolver.batchZone(new Name("wallet.domain.com.")));
+        assertEquals(Name.root, DNSSECResolver.batchZone(new Name("com.")));
+    }
+
+    @Test
+    public void resolveCoalescesConcurrentQueries() throws Exception {
+        final CountDownLatch sent = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(this.mockValidatingResolver.send(any(Message.class))).thenAnswer(new Answer<Message>() {
+            @Override
+            public Message answer(InvocationOnMock invocation) throws Throwable {
+                sent.countDown();
+                release.await();
+                return responseMessage;
+            }
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Callable<String> lookup = new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return testObj.resolve("wallet.domain.com", Type.TXT);
+                }
+            };
+            Future<String> first = executor.submit(lookup);
+            assertTrue(sent.await(5, TimeUnit.SECONDS));
+            Future<String> second = executor.submit(lookup);
+            while (testObj.getCoalescedRequests() == 0) {
+                Thread.sleep(5);
+            }
+            assertEquals(1, testObj.getInFlightQueries());
+            release.countDown();
+
+            assertEquals("\\textresult\\", first.get(5, TimeUnit.SECONDS));
+            assertEquals("\\textresult\\", second.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+
+        verify(this.mockValidatingResolver, times(1)).send(any(Message.class));
+        assertEquals(1, testObj.getCoalescedRequests());
+        assertEquals(0, testObj.getInFlightQueries());
+    }
+
+    @Test
+    public void resolveInteractiveNotCoalescedBehindBulk() throws Exception {
+        final CountDownLatch sent = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(this.mockValidatingResolver.send(any(Message.class))).thenAnswer(new Answer<Message>() {
+            @Override
+            public Message answer(InvocationOnMock invocation) throws Throwable {
+                if (sent.getCount() > 0) {
+                    sent.countDown();
+                    release.await();
+                }
+                return responseMessage;
+            }
+        });
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> bulk = executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return testObj.resolve("wallet.domain.com", Type.TXT, Priority.BULK);
+                }
+            });
+            assertTrue(sent.await(5, TimeUnit.SECONDS));
+
+            // The interactive lookup sends its own query instead of waiting for the bulk one
+            assertEquals("\\textresult\\", testObj.resolve("wallet.domain.com", Type.TXT, Priority.INTERACTIVE));
+            assertFalse(bulk.isDone());
+            release.countDown();
+            assertEquals("\\textresult\\", bulk.get(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+
+        verify(this.mockValidatingResolver, times(2)).send(any(Message.class));
+        assertEquals(0, testObj.getCoalescedRequests());
+    }
+
+    @Test
+    public void resolveSharded() throws Exception {
+        testObj.setShards(4);
+        assertEquals(4, testObj.getShards());
+        testObj.setValidatingResolver(this.mockValidatingResolver);
+
+        for (int i = 0; i < 8; i++) {
+            assertEquals("\\textresult\\", testObj.resolve("wallet.zone" + i + ".com", Type.TXT));
+        }
+        verify(this.mockValidatingResolver, times(8)).send(any(Message.class));
+
+        testObj.setShards(1);
+        assertEquals(1, testObj.getShards());
+        assertEquals("\\textresult\\", testObj.resolve("wallet.zone8.com", Type.TXT));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setShardsRequiresOneShard() {
+        testObj.setShards(0);
+    }
+
+    @Test
+    public void encryptedDnsServers() {
+        testObj.setEncryptedDnsServers(Arrays.asList("tls://127.0.0.1:8853", "https://dns.example/dns-query"));
+
+        List<String> servers = testObj.getUpstreamPool().getRankedServers();
+        assertEquals(2, servers.size());
+        assertTrue(servers.contains("tls://127.0.0.1:8853"));
+        assertTrue(servers.contains("https://dns.example/dns-query"));
+        assertTrue(servers.contains(testObj.getSelectedDnsServer()));
+
+        testObj.setEncryptedDnsServers(new ArrayList<String>());
+        assertEquals(Arrays.asList("8.8.8.8"), testObj.getUpstreamPool().getRankedServers());
+    }
+
+    @Test
+    public void encryptedDnsServersRejectsUnencrypted() {
+        for (String server : Arrays.asList("udp://8.8.8.8", "http://dns.example/dns-query", "tls:8.8.8.8")) {
+            try {
+                testObj.setEncryptedDnsServers(Arrays.asList(server));
+                fail("Accepted " + server);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        testObj.setEncryptedDnsServers(Arrays.asList("http://127.0.0.1:8080/dns-query"));
+    }
+
+    @Test
+    public void iterative() {
+        testObj.setIterative(true);
+        assertEquals(Arrays.asList(DNSSECResolver.ITERATIVE_SERVER), testObj.getUpstreamPool().getRankedServers());
+        assertEquals(DNSSECResolver.ITERATIVE_SERVER, testObj.getSelectedDnsServer());
+
+        testObj.setIterative(false);
+        assertEquals(Arrays.asList("8.8.8.8"), testObj.getUpstreamPool().getRankedServers());
+    }
+
+    @Test
+    public void resolveCachedNoData() {
+        this.responseMessage.removeAllRecords(Section.ANSWER);
+
+        try {
+            SOARecord soa = new SOARecord(new Name("domain.com."), DClass.IN, 3600L, new Name("ns1.domain.com."),
+                    new Name("admin.domain.com."), 1L, 7200L, 3600L, 1209600L, 300L);
+            this.responseMessage.addRecord(soa, Section.AUTHORITY);
+        } catch (TextParseException e) {
+            fail("Failure to Setup Test: " + e.getMessage());
+        }
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                testObj.resolve("wallet.domain.com", Type.TXT);
+                fail("resolve should throw DNSSEC Exception");
+            } catch (DNSSECException e) {
+                assertEquals("No Query Answer Received", e.getMessage());
+            }
+        }
+
+        try {
+            verify(this.mockValidatingResolver, times(1)).send(any(Message.class));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    public void resolveLoadsTrustAnchorsOnce() {
+        try {
+            testObj.resolve("wallet.domain.com", Type.TXT);
+            testObj.resolve("other.domain.com", Type.TXT);
+            verify(this.mockValidatingResolver, times(2)).send(any(Message.class));
+            verify(this.mockValidatingResolver, times(1)).loadTrustAnchors(any(InputStream.class));
+
+            // Same anchors from another manager are not reloaded, updated anchors are loaded on the next query
+            testObj.setTrustAnchorManager(new TrustAnchorManager(TrustAnchors.getDefault()));
+            testObj.resolve("third.domain.com", Type.TXT);
+            verify(this.mockValidatingResolver, times(1)).loadTrustAnchors(any(InputStream.class));
+
+            TrustAnchorManager manager = new TrustAnchorManager(TrustAnchors.fromString(". IN DS 20326 8 2 E06D44B80B8F1D39A95C0B0D7C65D08458E880409BBC683457104237C7F8EC8D"));
+            testObj.setTrustAnchorManager(manager);
+            testObj.resolve("fourth.domain.com", Type.TXT);
+            verify(this.mockValidatingResolver, times(2)).loadTrustAnchors(any(InputStream.class));
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("Unexpected Exception Occurred");
+        }
+    }
+
+    @Test
+    public void resolveRefreshAhead() {
+        final long[] nanos = {0};
+        testObj.setAnswerCache(new AnswerCache(100, AnswerCache.DEFAULT_MAXIMUM_TTL, new Ticker() {
+            @Override
+            public long read() {
+                return nanos[0];
+            }
+        }));
+        testObj.setRefreshExecutor(MoreExecutors.sameThreadExecutor());
+
+        try {
+            testObj.resolve("wallet.domain.com", Type.TXT);
+
+            // Refresh-ahead disabled: answer served from cache up to expiration
+            nanos[0] = TimeUnit.SECONDS.toNanos(86399);
+            testObj.resolve("wallet.domain.com", Type.TXT);
+            verify(this.mockValidatingResolver, times(1)).send(any(Message.class));
+
+            testObj.setRefreshAhead(true);
+            assertEquals("\\textresult\\", testObj.resolve("wallet.domain.com", Type.TXT));
+            verify(this.mockValidatingResolver, times(2)).send(any(Message.class));
+
+            // Refreshed answer has a new lifetime
+            nanos[0] += TimeUnit.SECONDS.toNanos(10);
+            testObj.resolve("wallet.domain.com", Type.TXT);
+            verify(this.mockValidatingResolver, times(2)).send(any(Message.class));
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("Unexpected Exception Occurred");
+        }
+    }
+
+    @Test
+    public void resolveServeStale() {
+        final long[] nanos = {0};
+        final List<Runnable> refreshes = new ArrayList<Runnable>();
+        testObj.setAnswerCache(new AnswerCache(100, 300, new Ticker() {
+            @Override
+            public long read() {
+                return nanos[0];
+            }
+        }));
+        testObj.setRefreshExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                refreshes.add(command);
+            }
+        });
+        testObj.setServeStale(TimeUnit.HOURS.toMillis(1));
+
+        try {
+            testObj.resolve("wallet.domain.com", Type.TXT);
+            doThrow(new IOException("Timeout")).when(this.mockValidatingResolver).send(any(Message.class));
+
+            // Upstream fails after expiration: stale answer served and refreshed in the background
+            nanos[0] = TimeUnit.SECONDS.toNanos(400);
+            assertEquals("\\textresult\\", testObj.resolve("wallet.domain.com", Type.TXT));
+            verify(this.mockValidatingResolver, times(2)).send(any(Message.class));
+
+            assertEquals("\\textresult\\", testObj.resolve("wallet.domain.com", Type.TXT));
+            verify(this.mockValidatingResolver, times(2)).send(any(Message.class));
+            assertEquals(1, refreshes.size());
+
+            // Stale for longer than allowed
+            nanos[0] = TimeUnit.SECONDS.toNanos(300 + 3600);
+            try {
+                testObj.resolve("wallet.domain.com", Type.TXT);
+                fail("resolve should throw DNSSEC Exception");
+            } catch (DNSSECException e) {
+                assertEquals("DNSSEC Lookup Failure: Timeout", e.getMessage());
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("Unexpected Exception Occurred");
+        }
+    }
+
+    @Test
+    public void resolveServeStaleNotForInsecureAnswer() throws Exception {
+        final long[] nanos = {0};
+        testObj.setAnswerCache(new AnswerCache(100, 300, new Ticker() {
+            @Override
+            public long read() {
+                return nanos[0];
+            }
+        }));
+        testObj.setServeStale(TimeUnit.HOURS.toMillis(1));
+        assertEquals("\\textresult\\", testObj.resolve("wallet.domain.com", Type.TXT));
+
+        // The zone dropped DNSSEC: the insecure answer is not a failure, so the stale answer is not served
+        nanos[0] = TimeUnit.SECONDS.toNanos(400);
+        this.responseMessage.getHeader().unsetFlag(Flags.AD);
+        assertNull(testObj.resolve("wallet.domain.com", Type.TXT));
+
+        // SERVFAIL still serves the stale answer
+        this.responseMessage.getHeader().setRcode(Rcode.SERVFAIL);
+        assertEquals("\\textresult\\", testObj.resolve("wallet.domain.com", Type.TXT));
+    }
+
+    @Test
+    public void resolveServeStaleDisabled() {
+        final long[] nanos = {0};
+        testObj.setAnswerCache(new AnswerCache(100, 300, new Ticker() {
+            @Override
+            public long read() {
+                return nanos[0];
+            }
+        }));
+
+        try {
+            testObj.resolve("wallet.domain.com", Type.TXT);
+            doThrow(new IOException("Timeout")).when(this.mockValidatingResolver).send(any(Message.class));
+
+            nanos[0] = TimeUnit.SECONDS.toNanos(400);
+            testObj.resolve("wallet.domain.com", Type.TXT);
+            fail("resolve should throw DNSSEC Exception");
+        } catch (DNSSECException e) {
+            assertEquals("DNSSEC Lookup Failure: Timeout", e.getMessage());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("Unexpected Exception Occurred");
+        }
+    }
+
     @Test
     public void resolveTrustAnchorUnknownHostException() {
 
@@ -227,6 +805,94 @@ public class DNSSECResolverTest {
         }
     }
 
+    private UpstreamPool upstreamPool(Resolver primary, Resolver backup) {
+        Map<String, Resolver> servers = new LinkedHashMap<String, Resolver>();
+        servers.put("10.0.0.1", primary);
+        servers.put("8.8.8.8", backup);
+        UpstreamPool pool = new UpstreamPool(servers, new Ticker() {
+            @Override
+            public long read() {
+                return nanos;
+            }
+        });
+        testObj.setUpstreamPool(pool);
+        return pool;
+    }
+
+    private Answer<Message> upstreamAnswer(final Message response, final long millis) {
+        return new Answer<Message>() {
+            @Override
+            public Message answer(InvocationOnMock invocation) throws Throwable {
+                nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+                return response;
+            }
+        };
+    }
+
+    @Test
+    public void resolveValidationFailureRecoversOnBackup() throws Exception {
+        Resolver primary = mock(Resolver.class);
+        Resolver backup = mock(Resolver.class);
+        final Message stripped = new Message();
+        when(primary.send(any(Message.class))).thenAnswer(upstreamAnswer(stripped, 10));
+        when(backup.send(any(Message.class))).thenAnswer(upstreamAnswer(new Message(), 11));
+        final UpstreamPool pool = upstreamPool(primary, backup);
+
+        // The primary's answer fails validation, the backup's validates
+        final Message bogus = new Message();
+        bogus.getHeader().setRcode(Rcode.SERVFAIL);
+        bogus.addRecord(new TXTRecord(Name.root, ValidatingResolver.VALIDATION_REASON_QCLASS, 0L,
+                "Validation Failed"), Section.ADDITIONAL);
+        when(this.mockValidatingResolver.send(any(Message.class))).thenAnswer(new Answer<Message>() {
+            @Override
+            public Message answer(InvocationOnMock invocation) throws Throwable {
+                return pool.send((Message) invocation.getArguments()[0]) == stripped ? bogus : responseMessage;
+            }
+        });
+
+        assertEquals("\\textresult\\", testObj.resolve("wallet.domain.com", Type.TXT));
+        verify(this.mockValidatingResolver, times(2)).send(any(Message.class));
+        verify(primary, times(1)).send(any(Message.class));
+        verify(backup, times(1)).send(any(Message.class));
+
+        // The primary is faster, but ranks after the backup once its answer failed validation
+        assertEquals(Arrays.asList("8.8.8.8", "10.0.0.1"), pool.getRankedServers());
+    }
+
+    @Test
+    public void resolveValidationFailureOnEveryServer() throws Exception {
+        Resolver primary = mock(Resolver.class);
+        Resolver backup = mock(Resolver.class);
+        when(primary.send(any(Message.class))).thenAnswer(upstreamAnswer(new Message(), 10));
+        when(backup.send(any(Message.class))).thenAnswer(upstreamAnswer(new Message(), 11));
+        final UpstreamPool pool = upstreamPool(primary, backup);
+
+        final Message bogus = new Message();
+        bogus.getHeader().setRcode(Rcode.SERVFAIL);
+        bogus.addRecord(new TXTRecord(Name.root, ValidatingResolver.VALIDATION_REASON_QCLASS, 0L,
+                "Validation Failed"), Section.ADDITIONAL);
+        when(this.mockValidatingResolver.send(any(Message.class))).thenAnswer(new Answer<Message>() {
+            @Override
+            public Message answer(InvocationOnMock invocation) throws Throwable {
+                pool.send((Message) invocation.getArguments()[0]);
+                return bogus;
+            }
+        });
+
+        try {
+            testObj.resolve("wallet.domain.com", Type.TXT);
+            fail("resolve should throw DNSSEC Exception");
+        } catch (DNSSECException e) {
+            assertEquals("Validation Failed", e.getMessage());
+        }
+
+        // Each server was tried once, and a zone failing validation everywhere is not held against them, so the faster
+        // primary still ranks first
+        verify(primary, times(1)).send(any(Message.class));
+        verify(backup, times(1)).send(any(Message.class));
+        assertEquals(Arrays.asList("10.0.0.1", "8.8.8.8"), pool.getRankedServers());
+    }
+
     @Test
     public void resolveRcodeSRVFAIL() {
 
@@ -0,0 +1,250 @@
+package com.netki.dnssec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DatagramTransportTest {
+
+    private DatagramChannel server;
+    private DatagramTransport testObj;
+
+    @Before
+    public void setUp() throws Exception {
+        this.server = DatagramChannel.open();
+        this.server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        this.server.socket().setSoTimeout(5000);
+        this.testObj = new DatagramTransport((InetSocketAddress) this.server.socket().getLocalSocketAddress(), 2, 3);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.testObj.close();
+        this.server.close();
+    }
+
+    private Message query(String name) throws TextParseException {
+        return Message.newQuery(Record.newRecord(new Name(name), Type.TXT, DClass.IN));
+    }
+
+    private Message answer(Message query, String text) {
+        Message response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.addRecord(query.getQuestion(), Section.QUESTION);
+        response.addRecord(new TXTRecord(query.getQuestion().getName(), DClass.IN, 300L, text), Section.ANSWER);
+        return response;
+    }
+
+    private void reply(Message response, SocketAddress client) throws Exception {
+        this.server.send(ByteBuffer.wrap(response.toWire()), client);
+    }
+
+    private static class Received {
+        private final Message query;
+        private final SocketAddress client;
+
+        private Received(Message query, SocketAddress client) {
+            this.query = query;
+            this.client = client;
+        }
+    }
+
+    private Received receive() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(65535);
+        SocketAddress client = this.server.receive(buffer);
+        buffer.flip();
+        byte[] wire = new byte[buffer.remaining()];
+        buffer.get(wire);
+        return new Received(new Message(wire), client);
+    }
+
+    private Thread answerInReverse(final int count) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    List<Received> received = new ArrayList<Received>();
+                    for (int i = 0; i < count; i++) {
+                        received.add(receive());
+                    }
+                    for (int i = count - 1; i >= 0; i--) {
+                        Received r = received.get(i);
+                        reply(answer(r.query, r.query.getQuestion().getName().toString()), r.client);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void sendRestoresId() throws Exception {
+        Thread server = answerInReverse(1);
+        Message query = query("_btc._wallet.domain.com.");
+
+        Message response = this.testObj.send(query);
+        server.join();
+
+        assertEquals(query.getHeader().getID(), response.getHeader().getID());
+        assertEquals("\"_btc._wallet.domain.com.\"", response.getSectionArray(Section.ANSWER)[0].rdataToString());
+        assertEquals(0, this.testObj.getOutstandingQueries());
+    }
+
+    @Test
+    public void matchesOutOfOrderResponses() throws Exception {
+        final int count = 3;
+        Thread server = answerInReverse(count);
+        final CountDownLatch done = new CountDownLatch(count);
+        final List<String> mismatches = new ArrayList<String>();
+
+        for (int i = 0; i < count; i++) {
+            final Message query = query("name" + i + ".domain.com.");
+            this.testObj.sendAsync(query, new ResolverListener() {
+                @Override
+                public void receiveMessage(Object id, Message m) {
+                    String expected = "\"" + query.getQuestion().getName() + "\"";
+                    if (!expected.equals(m.getSectionArray(Section.ANSWER)[0].rdataToString())) {
+                        synchronized (mismatches) {
+                            mismatches.add(expected);
+                        }
+                    }
+                    done.countDown();
+                }
+
+                @Override
+                public void handleException(Object id, Exception e) {
+                    synchronized (mismatches) {
+                        mismatches.add(e.toString());
+                    }
+                    done.countDown();
+                }
+            });
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        server.join();
+        assertTrue(mismatches.isEmpty());
+    }
+
+    @Test
+    public void ignoresResponseToOtherQuestion() throws Exception {
+        this.testObj.setTimeout(0, 500);
+        final Message query = query("_btc._wallet.domain.com.");
+        Thread server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Received r = receive();
+                    Message spoofed = answer(query("_btc._wallet.evil.com."), "spoofed");
+                    spoofed.getHeader().setID(r.query.getHeader().getID());
+                    reply(spoofed, r.client);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        server.start();
+
+        try {
+            this.testObj.send(query);
+            fail("Expected SocketTimeoutException");
+        } catch (SocketTimeoutException e) {
+            assertEquals(0, this.testObj.getOutstandingQueries());
+        }
+        server.join();
+    }
+
+    @Test
+    public void ignoresResponseWithWrongTsig() throws Exception {
+        final TSIG key = new TSIG(TSIG.HMAC_SHA256, "key.", "c2VjcmV0c2VjcmV0c2VjcmV0c2VjcmV0");
+        final TSIG wrongKey = new TSIG(TSIG.HMAC_SHA256, "key.", "Zm9yZ2VkZm9yZ2VkZm9yZ2VkZm9yZ2Vk");
+        this.testObj.setTSIGKey(key);
+        Thread server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Received r = receive();
+                    Message forged = answer(r.query, "forged");
+                    forged.setTSIG(wrongKey, Rcode.NOERROR, r.query.getTSIG());
+                    reply(forged, r.client);
+                    Message authentic = answer(r.query, "authentic");
+                    authentic.setTSIG(key, Rcode.NOERROR, r.query.getTSIG());
+                    reply(authentic, r.client);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        server.start();
+
+        Message response = this.testObj.send(query("_btc._wallet.domain.com."));
+        server.join();
+
+        assertEquals("\"authentic\"", response.getSectionArray(Section.ANSWER)[0].rdataToString());
+    }
+
+    @Test
+    public void sendsToNewPort() throws Exception {
+        DatagramChannel oldServer = this.server;
+        this.server = DatagramChannel.open();
+        this.server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        this.server.socket().setSoTimeout(5000);
+        try {
+            this.testObj.setPort(this.server.socket().getLocalPort());
+            Thread server = answerInReverse(1);
+            Message response = this.testObj.send(query("_btc._wallet.domain.com."));
+            server.join();
+
+            assertEquals("\"_btc._wallet.domain.com.\"", response.getSectionArray(Section.ANSWER)[0].rdataToString());
+            assertEquals(this.server.socket().getLocalPort(), this.testObj.getAddress().getPort());
+        } finally {
+            oldServer.close();
+        }
+    }
+
+    @Test
+    public void rotatesSourcePorts() throws Exception {
+        Set<SocketAddress> clients = new HashSet<SocketAddress>();
+        for (int i = 0; i < 12; i++) {
+            final Message query = query("name" + i + ".domain.com.");
+            final Received[] received = new Received[1];
+            Thread server = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        received[0] = receive();
+                        reply(answer(received[0].query, "text"), received[0].client);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            server.start();
+            this.testObj.send(query);
+            server.join();
+            clients.add(received[0].client);
+        }
+
+        // 12 queries over 2 channels replaced every 3 queries
+        assertTrue(clients.size() > 2);
+    }
+}
@@ -0,0 +1,79 @@
+package com.netki.dnssec;
+
+import com.google.common.base.Ticker;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.Name;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DelegationCacheTest {
+
+    private DelegationCache testObj;
+    private long nanos;
+
+    @Before
+    public void setUp() {
+        Ticker ticker = new Ticker() {
+            @Override
+            public long read() {
+                return nanos;
+            }
+        };
+        this.nanos = 0;
+        this.testObj = new DelegationCache(10, 3600, ticker);
+    }
+
+    @Test
+    public void closestZone() throws Exception {
+        this.testObj.putDelegation(new Name("com."), Arrays.asList(new Name("a.gtld-servers.net.")), 172800);
+        this.testObj.putDelegation(new Name("domain.com."), Arrays.asList(new Name("ns1.domain.com.")), 300);
+
+        assertEquals(new Name("domain.com."), this.testObj.getClosestZone(new Name("_btc._wallet.domain.com.")));
+        assertEquals(new Name("domain.com."), this.testObj.getClosestZone(new Name("domain.com.")));
+        assertEquals(new Name("com."), this.testObj.getClosestZone(new Name("other.com.")));
+        assertEquals(Name.root, this.testObj.getClosestZone(new Name("domain.org.")));
+        assertEquals(Arrays.asList(new Name("ns1.domain.com.")), this.testObj.getNameServers(new Name("domain.com.")));
+    }
+
+    @Test
+    public void expiresAtTtl() throws Exception {
+        this.testObj.putDelegation(new Name("domain.com."), Arrays.asList(new Name("ns1.domain.com.")), 300);
+        this.testObj.putAddresses(new Name("ns1.domain.com."), Arrays.asList(InetAddress.getByName("192.0.2.1")), 60);
+
+        this.nanos = TimeUnit.SECONDS.toNanos(59);
+        assertNotNull(this.testObj.getAddresses(new Name("ns1.domain.com.")));
+
+        this.nanos = TimeUnit.SECONDS.toNanos(60);
+        assertNull(this.testObj.getAddresses(new Name("ns1.domain.com.")));
+        assertEquals(new Name("domain.com."), this.testObj.getClosestZone(new Name("wallet.domain.com.")));
+
+        this.nanos = TimeUnit.SECONDS.toNanos(300);
+        assertNull(this.testObj.getNameServers(new Name("domain.com.")));
+        assertEquals(Name.root, this.testObj.getClosestZone(new Name("wallet.domain.com.")));
+    }
+
+    @Test
+    public void clampsToMaximumTtl() throws Exception {
+        this.testObj.putDelegation(new Name("com."), Arrays.asList(new Name("a.gtld-servers.net.")), 172800);
+
+        this.nanos = TimeUnit.SECONDS.toNanos(3599);
+        assertNotNull(this.testObj.getNameServers(new Name("com.")));
+        this.nanos = TimeUnit.SECONDS.toNanos(3600);
+        assertNull(this.testObj.getNameServers(new Name("com.")));
+    }
+
+    @Test
+    public void rttExpiresWhenUnused() throws Exception {
+        InetAddress server = InetAddress.getByName("192.0.2.1");
+        this.testObj.getRtt(server).sample(TimeUnit.MILLISECONDS.toNanos(20));
+        assertTrue(this.testObj.getRtt(server).isMeasured());
+
+        this.nanos = TimeUnit.MILLISECONDS.toNanos(DelegationCache.RTT_LIFETIME);
+        assertFalse(this.testObj.getRtt(server).isMeasured());
+    }
+}
@@ -0,0 +1,67 @@
+package com.netki.dnssec;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.*;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class DnskeyCacheTest {
+
+    private DnskeyCache testObj;
+    private KeyPair keyPair;
+    private Name zone;
+
+    @Before
+    public void setUp() throws Exception {
+        this.testObj = new DnskeyCache(10);
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        this.keyPair = generator.generateKeyPair();
+        this.zone = new Name("domain.com.");
+    }
+
+    private DNSKEYRecord dnskey(long ttl) throws Exception {
+        return new DNSKEYRecord(this.zone, DClass.IN, ttl, 257, DNSKEYRecord.Protocol.DNSSEC, DNSSEC.Algorithm.RSASHA256,
+                this.keyPair.getPublic());
+    }
+
+    @Test
+    public void decodesOncePerKey() throws Exception {
+        DNSKEYRecord first = this.testObj.decoded(dnskey(3600L));
+        DNSKEYRecord second = this.testObj.decoded(dnskey(1800L));
+
+        assertSame(first.getPublicKey(), second.getPublicKey());
+        assertEquals(1, this.testObj.size());
+        assertEquals(1, this.testObj.stats().missCount());
+        assertEquals(1, this.testObj.stats().hitCount());
+
+        // Record contents, including TTL, are preserved
+        assertEquals(dnskey(1800L), second);
+        assertEquals(1800L, second.getTTL());
+        assertEquals(dnskey(1800L).getFootprint(), second.getFootprint());
+    }
+
+    @Test
+    public void decodedKeyVerifiesSignatures() throws Exception {
+        DNSKEYRecord key = dnskey(3600L);
+        RRset set = new RRset(new TXTRecord(new Name("_btc._wallet.domain.com."), DClass.IN, 300L, "value"));
+        long now = System.currentTimeMillis();
+        RRSIGRecord sig = DNSSEC.sign(set, key, this.keyPair.getPrivate(), new Date(now - 3600000L), new Date(now + 3600000L));
+
+        DNSSEC.verify(set, sig, this.testObj.decoded(key));
+    }
+
+    @Test
+    public void undecodableKeyReturnedAsIs() throws Exception {
+        DNSKEYRecord key = new DNSKEYRecord(this.zone, DClass.IN, 3600L, 257, DNSKEYRecord.Protocol.DNSSEC, 200,
+                new byte[]{1, 2, 3});
+
+        assertSame(key, this.testObj.decoded(key));
+        assertEquals(0, this.testObj.size());
+    }
+}
@@ -0,0 +1,177 @@
+package com.netki.dnssec;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HttpsTransportTest {
+
+    private HttpServer server;
+    private HttpsTransport testObj;
+    private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile int status = 200;
+    private volatile String contentType = HttpsTransport.CONTENT_TYPE;
+    private volatile TSIG responseKey;
+
+    @Before
+    public void setUp() throws Exception {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 10);
+        this.server.createContext("/dns-query", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                requests.incrementAndGet();
+                byte[] body = answer(exchange);
+                exchange.getResponseHeaders().set("Content-Type", contentType);
+                exchange.sendResponseHeaders(status, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        this.server.start();
+
+        this.testObj = new HttpsTransport(new URL("http://127.0.0.1:" + this.server.getAddress().getPort() + "/dns-query"));
+        this.testObj.setTimeout(5);
+    }
+
+    @After
+    public void tearDown() {
+        this.server.stop(0);
+    }
+
+    /**
+     * Answer an RFC 8484 POST request, or return an empty body if it is not one
+     */
+    private byte[] answer(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        byte[] buffer = new byte[512];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            wire.write(buffer, 0, read);
+        }
+        if (!"POST".equals(exchange.getRequestMethod())
+                || !HttpsTransport.CONTENT_TYPE.equals(exchange.getRequestHeaders().getFirst("Content-Type"))) {
+            return new byte[0];
+        }
+
+        Message query = new Message(wire.toByteArray());
+        if (query.getHeader().getID() != 0) {
+            return new byte[0];
+        }
+        Message response = new Message(0);
+        response.getHeader().setFlag(Flags.QR);
+        response.addRecord(query.getQuestion(), Section.QUESTION);
+        Name name = query.getQuestion().getName();
+        response.addRecord(new TXTRecord(name, DClass.IN, 300L, name.toString()), Section.ANSWER);
+        if (this.responseKey != null) {
+            response.setTSIG(this.responseKey, Rcode.NOERROR, query.getTSIG());
+        }
+        return response.toWire();
+    }
+
+    private Message query(String name) throws TextParseException {
+        return Message.newQuery(Record.newRecord(new Name(name), Type.TXT, DClass.IN));
+    }
+
+    @Test
+    public void sendsDnsMessage() throws Exception {
+        Message query = query("_btc._wallet.domain.com.");
+
+        Message response = this.testObj.send(query);
+
+        assertEquals(query.getHeader().getID(), response.getHeader().getID());
+        assertEquals("\"_btc._wallet.domain.com.\"", response.getSectionArray(Section.ANSWER)[0].rdataToString());
+    }
+
+    @Test
+    public void reusesConnection() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            Message response = this.testObj.send(query("name" + i + ".domain.com."));
+            assertEquals("\"name" + i + ".domain.com.\"", response.getSectionArray(Section.ANSWER)[0].rdataToString());
+        }
+        assertEquals(5, this.requests.get());
+        assertEquals(1, this.clientPorts.size());
+    }
+
+    @Test
+    public void httpErrorFails() throws Exception {
+        this.status = 500;
+        try {
+            this.testObj.send(query("_btc._wallet.domain.com."));
+            fail("HTTP error accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void wrongContentTypeFails() throws Exception {
+        this.contentType = "text/html";
+        try {
+            this.testObj.send(query("_btc._wallet.domain.com."));
+            fail("Response of the wrong content type accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void ignoresPort() throws Exception {
+        this.testObj.setPort(53);
+
+        this.testObj.send(query("_btc._wallet.domain.com."));
+        assertEquals(this.server.getAddress().getPort(), this.testObj.getUrl().getPort());
+    }
+
+    @Test
+    public void verifiesTsig() throws Exception {
+        TSIG key = new TSIG(TSIG.HMAC_SHA256, "key.", "c2VjcmV0c2VjcmV0c2VjcmV0c2VjcmV0");
+        this.testObj.setTSIGKey(key);
+
+        this.responseKey = key;
+        Message response = this.testObj.send(query("_btc._wallet.domain.com."));
+        assertEquals("\"_btc._wallet.domain.com.\"", response.getSectionArray(Section.ANSWER)[0].rdataToString());
+
+        this.responseKey = new TSIG(TSIG.HMAC_SHA256, "key.", "Zm9yZ2VkZm9yZ2VkZm9yZ2VkZm9yZ2Vk");
+        try {
+            this.testObj.send(query("_btc._wallet.domain.com."));
+            fail("Response with a forged TSIG accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsPlainHttpToRemoteServer() throws Exception {
+        new HttpsTransport(new URL("http://dns.example/dns-query"));
+    }
+
+    @Test
+    public void acceptsPlainHttpToLoopback() throws Exception {
+        new HttpsTransport(new URL("http://localhost/dns-query"));
+        new HttpsTransport(new URL("http://[::1]/dns-query"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOtherSchemes() throws Exception {
+        new HttpsTransport(new URL("ftp://127.0.0.1/dns-query"));
+    }
+}
@@ -0,0 +1,213 @@
+package com.netki.dnssec;
+
+import com.google.common.base.Ticker;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class IterativeResolverTest {
+
+    private static final String ROOT = "192.0.2.1";
+    private static final String COM = "192.0.2.2";
+    private static final String DOMAIN = "192.0.2.3";
+    private static final String PROVIDER = "192.0.2.4";
+    private static final String DOMAIN_SECONDARY = "192.0.2.5";
+
+    private DelegationCache delegationCache;
+    private IterativeResolver testObj;
+    private final List<String> queries = Collections.synchronizedList(new ArrayList<String>());
+    private final Set<String> unreachable = Collections.synchronizedSet(new HashSet<String>());
+
+    @Before
+    public void setUp() throws Exception {
+        this.delegationCache = new DelegationCache();
+        this.testObj = new IterativeResolver(this.delegationCache, Arrays.asList(InetAddress.getByName(ROOT))) {
+            @Override
+            Resolver serverResolver(final InetAddress address) {
+                Resolver resolver = mock(Resolver.class);
+                try {
+                    when(resolver.send(any(Message.class))).thenAnswer(new Answer<Message>() {
+                        @Override
+                        public Message answer(InvocationOnMock invocation) throws Throwable {
+                            return respond(address.getHostAddress(), (Message) invocation.getArguments()[0]);
+                        }
+                    });
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                return resolver;
+            }
+        };
+    }
+
+    /**
+     * Answer as the name servers of the root, com., domain.com. (two servers) and provider.com. zones. example.com.
+     * is served by ns.provider.com., which has no glue in the com. zone.
+     */
+    private Message respond(String server, Message query) throws Exception {
+        Record question = query.getQuestion();
+        Name name = question.getName();
+        this.queries.add(server + " " + name + " " + Type.string(question.getType()));
+        if (this.unreachable.contains(server)) {
+            throw new SocketTimeoutException("timed out");
+        }
+        assertFalse(query.getHeader().getFlag(Flags.RD));
+        assertTrue((query.getOPT().getFlags() & ExtendedFlags.DO) != 0);
+
+        Message response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.addRecord(question, Section.QUESTION);
+        if (server.equals(ROOT)) {
+            refer(response, "com.", "a.gtld-servers.com.", COM);
+        } else if (server.equals(COM)) {
+            if (question.getType() == Type.DS && name.equals(new Name("domain.com."))) {
+                answer(response, new DSRecord(name, DClass.IN, 3600L, 12345, DNSSEC.Algorithm.RSASHA256,
+                        DSRecord.Digest.SHA256, new byte[32]));
+            } else if (name.subdomain(new Name("domain.com."))) {
+                refer(response, "domain.com.", "ns1.domain.com.", DOMAIN);
+                refer(response, "domain.com.", "ns2.domain.com.", DOMAIN_SECONDARY);
+            } else if (name.subdomain(new Name("provider.com."))) {
+                refer(response, "provider.com.", "ns1.provider.com.", PROVIDER);
+            } else if (name.subdomain(new Name("example.com."))) {
+                refer(response, "example.com.", "ns.provider.com.", null);
+            }
+        } else if (server.equals(PROVIDER)) {
+            answer(response, new ARecord(name, DClass.IN, 3600L, InetAddress.getByName(DOMAIN)));
+        } else if (name.equals(new Name("alias.domain.com."))) {
+            answer(response, new CNAMERecord(name, DClass.IN, 300L, new Name("_btc._wallet.example.com.")));
+        } else {
+            answer(response, new TXTRecord(name, DClass.IN, 300L, server));
+        }
+        return response;
+    }
+
+    private static void refer(Message response, String zone, String nameServer, String glue) throws Exception {
+        response.addRecord(new NSRecord(new Name(zone), DClass.IN, 172800L, new Name(nameServer)), Section.AUTHORITY);
+        if (glue != null) {
+            response.addRecord(new ARecord(new Name(nameServer), DClass.IN, 172800L, InetAddress.getByName(glue)),
+                    Section.ADDITIONAL);
+        }
+    }
+
+    private static void answer(Message response, Record record) {
+        response.getHeader().setFlag(Flags.AA);
+        response.addRecord(record, Section.ANSWER);
+    }
+
+    private Message query(String name, int type) throws Exception {
+        return this.testObj.send(Message.newQuery(Record.newRecord(new Name(name), type, DClass.IN)));
+    }
+
+    @Test
+    public void followsReferralsThenQueriesClosestZone() throws Exception {
+        Message response = query("_btc._wallet.domain.com.", Type.TXT);
+        assertEquals(Rcode.NOERROR, response.getRcode());
+        assertEquals(1, response.getSectionArray(Section.ANSWER).length);
+        assertEquals(3, this.queries.size());
+        assertTrue(this.queries.get(0).startsWith(ROOT));
+        assertTrue(this.queries.get(1).startsWith(COM));
+        assertEquals(new Name("domain.com."), this.delegationCache.getClosestZone(new Name("other.domain.com.")));
+
+        this.queries.clear();
+        query("_ltc._wallet.domain.com.", Type.TXT);
+        assertEquals(1, this.queries.size());
+        assertFalse(this.queries.get(0).startsWith(ROOT) || this.queries.get(0).startsWith(COM));
+    }
+
+    @Test
+    public void restoresId() throws Exception {
+        Message query = Message.newQuery(Record.newRecord(new Name("_btc._wallet.domain.com."), Type.TXT, DClass.IN));
+        assertEquals(query.getHeader().getID(), this.testObj.send(query).getHeader().getID());
+    }
+
+    @Test
+    public void ignoresForwarderSettingsOnSwitch() throws Exception {
+        KeyChainResolver keyChainResolver = new KeyChainResolver(mock(Resolver.class),
+                new KeyChainCache(100, 3600, Ticker.systemTicker()));
+        keyChainResolver.setPort(5353);
+        keyChainResolver.setTSIGKey(new TSIG(TSIG.HMAC_SHA256, "key.", "c2VjcmV0c2VjcmV0c2VjcmV0c2VjcmV0"));
+
+        keyChainResolver.setDelegate(this.testObj);
+
+        assertEquals(Rcode.NOERROR, query("_btc._wallet.domain.com.", Type.TXT).getRcode());
+    }
+
+    @Test
+    public void sendsDsQueriesToParent() throws Exception {
+        query("_btc._wallet.domain.com.", Type.TXT);
+        this.queries.clear();
+
+        Message response = query("domain.com.", Type.DS);
+        assertEquals(Type.DS, response.getSectionArray(Section.ANSWER)[0].getType());
+        assertEquals(Arrays.asList(COM + " domain.com. DS"), this.queries);
+    }
+
+    @Test
+    public void prefersLowestRtt() throws Exception {
+        query("_btc._wallet.domain.com.", Type.TXT);
+        this.delegationCache.getRtt(InetAddress.getByName(DOMAIN)).sample(TimeUnit.MILLISECONDS.toNanos(80));
+        this.delegationCache.getRtt(InetAddress.getByName(DOMAIN_SECONDARY)).sample(TimeUnit.MILLISECONDS.toNanos(5));
+        this.queries.clear();
+
+        for (int i = 0; i < 3; i++) {
+            query("name" + i + ".domain.com.", Type.TXT);
+        }
+        assertEquals(3, this.queries.size());
+        for (String query : this.queries) {
+            assertTrue(query.startsWith(DOMAIN_SECONDARY));
+        }
+    }
+
+    @Test
+    public void failsOverToNextServer() throws Exception {
+        this.unreachable.add(DOMAIN);
+        this.unreachable.add(DOMAIN_SECONDARY);
+        try {
+            query("_btc._wallet.domain.com.", Type.TXT);
+            fail("Answered with every domain.com. server unreachable");
+        } catch (SocketTimeoutException expected) {
+        }
+
+        this.unreachable.remove(DOMAIN_SECONDARY);
+        Message response = query("_btc._wallet.domain.com.", Type.TXT);
+        assertEquals("\"" + DOMAIN_SECONDARY + "\"", response.getSectionArray(Section.ANSWER)[0].rdataToString());
+    }
+
+    @Test
+    public void resolvesNameServersWithoutGlue() throws Exception {
+        Message response = query("_btc._wallet.example.com.", Type.TXT);
+
+        assertEquals("\"" + DOMAIN + "\"", response.getSectionArray(Section.ANSWER)[0].rdataToString());
+        assertEquals(Arrays.asList(InetAddress.getByName(DOMAIN)),
+                this.delegationCache.getAddresses(new Name("ns.provider.com.")));
+    }
+
+    @Test
+    public void followsCname() throws Exception {
+        Message response = query("alias.domain.com.", Type.TXT);
+
+        Record[] answers = response.getSectionArray(Section.ANSWER);
+        assertEquals(2, answers.length);
+        assertEquals(Type.CNAME, answers[0].getType());
+        assertEquals(new Name("_btc._wallet.example.com."), answers[1].getName());
+    }
+}
@@ -0,0 +1,136 @@
+package com.netki.dnssec;
+
+import com.google.common.base.Ticker;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.*;
+
+import java.security.KeyPairGenerator;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class KeyChainResolverTest {
+
+    private Resolver mockDelegate;
+    private KeyChainCache keyChainCache;
+    private KeyChainResolver testObj;
+    private Message keyResponse;
+    private Name zone;
+
+    @Before
+    public void setUp() throws Exception {
+        this.mockDelegate = mock(Resolver.class);
+        this.keyChainCache = new KeyChainCache(100, 3600, Ticker.systemTicker());
+        this.testObj = new KeyChainResolver(this.mockDelegate, this.keyChainCache);
+        this.zone = new Name("domain.com.");
+
+        DNSKEYRecord key = new DNSKEYRecord(this.zone, DClass.IN, 3600L, 257, DNSKEYRecord.Protocol.DNSSEC,
+                DNSSEC.Algorithm.RSASHA256, new byte[]{3, 1, 0, 1, 1, 2, 3, 4});
+        long now = System.currentTimeMillis();
+        RRSIGRecord sig = new RRSIGRecord(this.zone, DClass.IN, 3600L, Type.DNSKEY, DNSSEC.Algorithm.RSASHA256, 3600L,
+                new Date(now + 3600000L), new Date(now - 3600000L), key.getFootprint(), this.zone, new byte[]{1, 2, 3});
+
+        this.keyResponse = new Message();
+        this.keyResponse.getHeader().setFlag(Flags.QR);
+        this.keyResponse.addRecord(key, Section.ANSWER);
+        this.keyResponse.addRecord(sig, Section.ANSWER);
+
+        when(this.mockDelegate.send(any(Message.class))).thenReturn(this.keyResponse);
+    }
+
+    private Message query(int type) {
+        Message query = Message.newQuery(Record.newRecord(this.zone, type, DClass.IN));
+        query.getHeader().setFlag(Flags.CD);
+        return query;
+    }
+
+    @Test
+    public void committedKeysServedFromCache() throws Exception {
+        this.testObj.send(query(Type.DNSKEY));
+        this.testObj.commit();
+        assertEquals(1, this.keyChainCache.size());
+
+        Message query = query(Type.DNSKEY);
+        Message cached = this.testObj.send(query);
+        verify(this.mockDelegate, times(1)).send(any(Message.class));
+
+        assertEquals(query.getHeader().getID(), cached.getHeader().getID());
+        assertTrue(cached.getHeader().getFlag(Flags.QR));
+        assertTrue(cached.getHeader().getFlag(Flags.CD));
+        assertEquals(query.getQuestion(), cached.getQuestion());
+        RRset[] sets = cached.getSectionRRsets(Section.ANSWER);
+        assertEquals(1, sets.length);
+        assertEquals(Type.DNSKEY, sets[0].getType());
+        assertTrue(sets[0].sigs().hasNext());
+    }
+
+    @Test
+    public void keysHandedOnDecoded() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        Record[] answers = this.keyResponse.getSectionArray(Section.ANSWER);
+        this.keyResponse.removeAllRecords(Section.ANSWER);
+        this.keyResponse.addRecord(new DNSKEYRecord(this.zone, DClass.IN, 3600L, 257, DNSKEYRecord.Protocol.DNSSEC,
+                DNSSEC.Algorithm.RSASHA256, generator.generateKeyPair().getPublic()), Section.ANSWER);
+        this.keyResponse.addRecord(answers[1], Section.ANSWER);
+
+        DnskeyCache dnskeyCache = new DnskeyCache(10);
+        KeyChainResolver resolver = new KeyChainResolver(this.mockDelegate, this.keyChainCache, dnskeyCache);
+
+        Message response = resolver.send(query(Type.DNSKEY));
+        Record key = response.getSectionArray(Section.ANSWER)[0];
+        assertTrue(key instanceof DnskeyCache.DecodedDNSKEYRecord);
+        assertEquals(1, dnskeyCache.size());
+
+        resolver.commit();
+        Message cached = resolver.send(query(Type.DNSKEY));
+        assertSame(((DNSKEYRecord) key).getPublicKey(), ((DNSKEYRecord) cached.getSectionArray(Section.ANSWER)[0]).getPublicKey());
+    }
+
+    @Test
+    public void discardedKeysNotCached() throws Exception {
+        this.testObj.send(query(Type.DNSKEY));
+        this.testObj.discard();
+        this.testObj.commit();
+        assertEquals(0, this.keyChainCache.size());
+
+        this.testObj.send(query(Type.DNSKEY));
+        verify(this.mockDelegate, times(2)).send(any(Message.class));
+    }
+
+    @Test
+    public void otherTypesNotCached() throws Exception {
+        this.testObj.send(query(Type.TXT));
+        this.testObj.commit();
+        this.testObj.send(query(Type.TXT));
+
+        assertEquals(0, this.keyChainCache.size());
+        verify(this.mockDelegate, times(2)).send(any(Message.class));
+    }
+
+    @Test
+    public void cacheSurvivesDelegateSwap() throws Exception {
+        this.testObj.setEDNS(0, 0, ExtendedFlags.DO, null);
+        this.testObj.setIgnoreTruncation(false);
+        this.testObj.send(query(Type.DNSKEY));
+        this.testObj.commit();
+
+        Resolver newDelegate = mock(Resolver.class);
+        this.testObj.setDelegate(newDelegate);
+        assertSame(newDelegate, this.testObj.getDelegate());
+
+        // Settings requested by the ValidatingResolver carry over to the new upstream
+        verify(newDelegate).setEDNS(0, 0, ExtendedFlags.DO, null);
+        verify(newDelegate).setIgnoreTruncation(false);
+
+        this.testObj.send(query(Type.DNSKEY));
+        verify(newDelegate, never()).send(any(Message.class));
+
+        // Shared with other resolvers using the same cache
+        KeyChainResolver other = new KeyChainResolver(newDelegate, this.keyChainCache);
+        other.send(query(Type.DNSKEY));
+        verify(newDelegate, never()).send(any(Message.class));
+    }
+}
@@ -0,0 +1,50 @@
+package com.netki.dnssec;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyWindowTest {
+
+    @Test
+    public void percentiles() {
+        LatencyWindow testObj = new LatencyWindow(100);
+        assertEquals(-1, testObj.percentile(0.95));
+
+        for (int i = 100; i >= 1; i--) {
+            testObj.record(i);
+        }
+        assertEquals(100, testObj.size());
+        assertEquals(50, testObj.percentile(0.5));
+        assertEquals(95, testObj.percentile(0.95));
+        assertEquals(100, testObj.percentile(1));
+    }
+
+    @Test
+    public void keepsMostRecent() {
+        LatencyWindow testObj = new LatencyWindow(10);
+        for (int i = 1; i <= 20; i++) {
+            testObj.record(i * 1000);
+        }
+        assertEquals(10, testObj.size());
+        assertEquals(11000, testObj.percentile(0.01));
+        assertEquals(20000, testObj.percentile(1));
+    }
+
+    @Test
+    public void recomputesPercentileEveryTwentiethOfWindow() {
+        LatencyWindow testObj = new LatencyWindow(100);
+        for (int i = 1; i <= 100; i++) {
+            testObj.record(1000);
+        }
+        assertEquals(1000, testObj.percentile(0.95));
+
+        // 4 new samples are not enough to recompute the cached percentile, the 5th is
+        for (int i = 1; i <= 4; i++) {
+            testObj.record(5000);
+        }
+        assertEquals(1000, testObj.percentile(0.95));
+        testObj.record(5000);
+        assertEquals(5000, testObj.percentile(0.95));
+    }
+}
@@ -0,0 +1,84 @@
+package com.netki.dnssec;
+
+import com.google.common.base.Ticker;
+import com.google.common.primitives.UnsignedBytes;
+import org.xbill.DNS.*;
+import org.xbill.DNS.utils.base32;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures the CPU time spent per denied query synthesized from a cached NSEC3 chain, with and without
+ * Nsec3HashCache, for several NSEC3 iteration counts.
+ *
+ * Run with: java -cp target/test-classes:target/classes:... com.netki.dnssec.Nsec3HashBenchmark [queries]
+ */
+public class Nsec3HashBenchmark {
+
+    private static final String[] CURRENCIES = {"_doge", "_ltc", "_xmr", "_dash", "_zec", "_bch", "_etc", "_xrp"};
+
+    public static void main(String[] args) throws Exception {
+        int queries = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        System.out.println("iterations  uncached us/query  memoized us/query  saved");
+        for (int iterations : new int[]{0, 10, 50, 150}) {
+            NsecCache uncached = newCache(iterations, null);
+            NsecCache memoized = newCache(iterations, new Nsec3HashCache(Nsec3HashCache.DEFAULT_MAXIMUM_SIZE));
+
+            // Warm up
+            run(uncached, queries / 10);
+            run(memoized, queries / 10);
+
+            long start = threads.getCurrentThreadCpuTime();
+            run(uncached, queries);
+            double uncachedMicros = (threads.getCurrentThreadCpuTime() - start) / 1000.0 / queries;
+
+            start = threads.getCurrentThreadCpuTime();
+            run(memoized, queries);
+            double memoizedMicros = (threads.getCurrentThreadCpuTime() - start) / 1000.0 / queries;
+
+            System.out.println(String.format("%10d  %17.2f  %17.2f  %4.0f%%", iterations, uncachedMicros, memoizedMicros,
+                    100 * (1 - memoizedMicros / uncachedMicros)));
+        }
+    }
+
+    private static void run(NsecCache cache, int queries) throws TextParseException {
+        for (int i = 0; i < queries; i++) {
+            CacheKey key = new CacheKey(new Name(CURRENCIES[i % CURRENCIES.length] + "._wallet.domain.com."), Type.TXT, DClass.IN);
+            if (cache.synthesize(key) == null) {
+                throw new IllegalStateException("Denial not synthesized for " + key);
+            }
+        }
+    }
+
+    private static NsecCache newCache(int iterations, Nsec3HashCache hashCache) throws Exception {
+        Name zone = new Name("domain.com.");
+        byte[] salt = new byte[]{(byte) 0xAB, (byte) 0xCD, (byte) 0xEF, 0x01};
+        NSEC3Record parameters = new NSEC3Record(zone, DClass.IN, 3600L, NSEC3Record.Digest.SHA1, 0, iterations, salt,
+                new byte[20], new int[0]);
+
+        List<byte[]> hashes = new ArrayList<byte[]>();
+        for (String name : new String[]{"domain.com.", "_wallet.domain.com.", "_btc._wallet.domain.com.", "_eth._wallet.domain.com."}) {
+            hashes.add(parameters.hashName(new Name(name)));
+        }
+        Collections.sort(hashes, UnsignedBytes.lexicographicalComparator());
+
+        List<RRset> sets = new ArrayList<RRset>();
+        sets.add(new RRset(new SOARecord(zone, DClass.IN, 3600L, new Name("ns1.domain.com."),
+                new Name("admin.domain.com."), 1L, 7200L, 3600L, 1209600L, 3600L)));
+        base32 b32 = new base32(base32.Alphabet.BASE32HEX, false, true);
+        for (int i = 0; i < hashes.size(); i++) {
+            sets.add(new RRset(new NSEC3Record(new Name(b32.toString(hashes.get(i)), zone), DClass.IN, 3600L,
+                    NSEC3Record.Digest.SHA1, 0, iterations, salt, hashes.get((i + 1) % hashes.size()), new int[]{Type.TXT})));
+        }
+
+        NsecCache cache = new NsecCache(10, 100, hashCache, Ticker.systemTicker());
+        cache.put(sets.toArray(new RRset[sets.size()]));
+        return cache;
+    }
+}
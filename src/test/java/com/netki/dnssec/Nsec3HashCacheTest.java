@@ -0,0 +1,62 @@
+package com.netki.dnssec;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.*;
+
+import static org.junit.Assert.*;
+
+public class Nsec3HashCacheTest {
+
+    private Nsec3HashCache testObj;
+    private NSEC3Record parameters;
+
+    @Before
+    public void setUp() throws Exception {
+        this.testObj = new Nsec3HashCache(100);
+        this.parameters = new NSEC3Record(new Name("domain.com."), DClass.IN, 3600L, NSEC3Record.Digest.SHA1, 0, 10,
+                new byte[]{1, 2, 3, 4}, new byte[20], new int[0]);
+    }
+
+    @Test
+    public void hashMatchesNsec3Record() throws Exception {
+        Name name = new Name("_wallet.domain.com.");
+
+        assertArrayEquals(this.parameters.hashName(name), this.testObj.hash(this.parameters, name));
+        assertArrayEquals(this.parameters.hashName(name), this.testObj.hash(this.parameters, name));
+        assertEquals(1, this.testObj.stats().missCount());
+        assertEquals(1, this.testObj.stats().hitCount());
+    }
+
+    @Test
+    public void namesCompareCaseInsensitively() throws Exception {
+        this.testObj.hash(this.parameters, new Name("_wallet.domain.com."));
+        this.testObj.hash(this.parameters, new Name("_WALLET.Domain.com."));
+
+        assertEquals(1, this.testObj.size());
+        assertEquals(1, this.testObj.stats().hitCount());
+    }
+
+    @Test
+    public void parametersArePartOfKey() throws Exception {
+        Name name = new Name("_wallet.domain.com.");
+        NSEC3Record resalted = new NSEC3Record(new Name("domain.com."), DClass.IN, 3600L, NSEC3Record.Digest.SHA1, 0, 10,
+                new byte[]{5, 6, 7, 8}, new byte[20], new int[0]);
+        NSEC3Record moreIterations = new NSEC3Record(new Name("domain.com."), DClass.IN, 3600L, NSEC3Record.Digest.SHA1, 0,
+                11, new byte[]{1, 2, 3, 4}, new byte[20], new int[0]);
+
+        byte[] hash = this.testObj.hash(this.parameters, name);
+        assertFalse(java.util.Arrays.equals(hash, this.testObj.hash(resalted, name)));
+        assertFalse(java.util.Arrays.equals(hash, this.testObj.hash(moreIterations, name)));
+        assertEquals(3, this.testObj.size());
+    }
+
+    @Test
+    public void returnedHashIsCopy() throws Exception {
+        Name name = new Name("_wallet.domain.com.");
+        byte[] hash = this.testObj.hash(this.parameters, name);
+        hash[0]++;
+
+        assertArrayEquals(this.parameters.hashName(name), this.testObj.hash(this.parameters, name));
+    }
+}
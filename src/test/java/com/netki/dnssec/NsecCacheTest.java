@@ -0,0 +1,181 @@
+package com.netki.dnssec;
+
+import com.google.common.base.Ticker;
+import com.google.common.primitives.UnsignedBytes;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.*;
+import org.xbill.DNS.utils.base32;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class NsecCacheTest {
+
+    private static final byte[] SALT = new byte[]{(byte) 0xAB, (byte) 0xCD};
+
+    private long nanos;
+    private NsecCache testObj;
+    private Name zone;
+    private RRset soaSet;
+
+    @Before
+    public void setUp() throws Exception {
+        Ticker ticker = new Ticker() {
+            @Override
+            public long read() {
+                return nanos;
+            }
+        };
+        this.nanos = 0;
+        this.testObj = new NsecCache(10, 100, ticker);
+
+        this.zone = new Name("domain.com.");
+        this.soaSet = new RRset(new SOARecord(this.zone, DClass.IN, 3600L, new Name("ns1.domain.com."),
+                new Name("admin.domain.com."), 1L, 7200L, 3600L, 1209600L, 300L));
+    }
+
+    private CacheKey key(String name, int type) throws TextParseException {
+        return new CacheKey(new Name(name), type, DClass.IN);
+    }
+
+    private RRset nsec(String owner, String next, int... types) throws TextParseException {
+        return new RRset(new NSECRecord(new Name(owner), DClass.IN, 3600L, new Name(next), types));
+    }
+
+    private void putNsecZone() throws TextParseException {
+        this.testObj.put(new RRset[]{this.soaSet,
+                nsec("domain.com.", "_btc._wallet.domain.com.", Type.SOA, Type.NS, Type.NSEC, Type.RRSIG),
+                nsec("_btc._wallet.domain.com.", "sub.domain.com.", Type.TXT, Type.NSEC, Type.RRSIG),
+                nsec("sub.domain.com.", "domain.com.", Type.NS, Type.NSEC)});
+    }
+
+    private void putNsec3Zone(int flags, String... names) throws Exception {
+        final NSEC3Record parameters = new NSEC3Record(this.zone, DClass.IN, 3600L, NSEC3Record.Digest.SHA1, flags, 5,
+                SALT, new byte[20], new int[0]);
+        List<byte[]> hashes = new ArrayList<byte[]>();
+        for (String name : names) {
+            hashes.add(parameters.hashName(new Name(name)));
+        }
+        Collections.sort(hashes, UnsignedBytes.lexicographicalComparator());
+
+        List<RRset> sets = new ArrayList<RRset>();
+        sets.add(this.soaSet);
+        base32 b32 = new base32(base32.Alphabet.BASE32HEX, false, true);
+        for (int i = 0; i < hashes.size(); i++) {
+            Name owner = new Name(b32.toString(hashes.get(i)), this.zone);
+            sets.add(new RRset(new NSEC3Record(owner, DClass.IN, 3600L, NSEC3Record.Digest.SHA1, flags, 5, SALT,
+                    hashes.get((i + 1) % hashes.size()), new int[]{Type.TXT})));
+        }
+        this.testObj.put(sets.toArray(new RRset[sets.size()]));
+    }
+
+    @Test
+    public void nsecNxDomain() throws Exception {
+        putNsecZone();
+
+        CachedAnswer answer = this.testObj.synthesize(key("_doge._wallet.domain.com.", Type.TXT));
+        assertNotNull(answer);
+        assertTrue(answer.isNxDomain());
+        assertNull(answer.getValue());
+        assertEquals(300000L, answer.getExpiresAt());
+        // SOA, NSEC covering the name and NSEC covering the wildcard
+        assertEquals(3, answer.getRecords().length);
+    }
+
+    @Test
+    public void nsecNoData() throws Exception {
+        putNsecZone();
+
+        CachedAnswer answer = this.testObj.synthesize(key("_btc._wallet.domain.com.", Type.A));
+        assertNotNull(answer);
+        assertTrue(answer.isNegative());
+        assertFalse(answer.isNxDomain());
+        assertEquals(Rcode.NOERROR, answer.getRcode());
+    }
+
+    @Test
+    public void nsecExistingName() throws Exception {
+        putNsecZone();
+
+        assertNull(this.testObj.synthesize(key("_btc._wallet.domain.com.", Type.TXT)));
+    }
+
+    @Test
+    public void nsecEmptyNonTerminal() throws Exception {
+        putNsecZone();
+
+        assertNull(this.testObj.synthesize(key("_wallet.domain.com.", Type.TXT)));
+    }
+
+    @Test
+    public void nsecBelowDelegation() throws Exception {
+        putNsecZone();
+
+        assertNull(this.testObj.synthesize(key("_btc._wallet.sub.domain.com.", Type.TXT)));
+        assertNull(this.testObj.synthesize(key("sub.domain.com.", Type.TXT)));
+    }
+
+    @Test
+    public void nsecOtherZone() throws Exception {
+        putNsecZone();
+
+        assertNull(this.testObj.synthesize(key("_btc._wallet.other.com.", Type.TXT)));
+    }
+
+    @Test
+    public void nsecExpires() throws Exception {
+        putNsecZone();
+
+        this.nanos += TimeUnit.SECONDS.toNanos(300);
+        assertNull(this.testObj.synthesize(key("_doge._wallet.domain.com.", Type.TXT)));
+    }
+
+    @Test
+    public void notCachedWithoutSoa() throws Exception {
+        this.testObj.put(new RRset[]{nsec("domain.com.", "_btc._wallet.domain.com.", Type.SOA, Type.NS)});
+
+        assertEquals(0, this.testObj.size());
+        assertNull(this.testObj.synthesize(key("a.domain.com.", Type.TXT)));
+    }
+
+    @Test
+    public void nsec3NxDomain() throws Exception {
+        putNsec3Zone(0, "domain.com.", "_wallet.domain.com.", "_btc._wallet.domain.com.");
+
+        CachedAnswer answer = this.testObj.synthesize(key("_doge._wallet.domain.com.", Type.TXT));
+        assertNotNull(answer);
+        assertTrue(answer.isNxDomain());
+    }
+
+    @Test
+    public void nsec3NoData() throws Exception {
+        putNsec3Zone(0, "domain.com.", "_wallet.domain.com.", "_btc._wallet.domain.com.");
+
+        CachedAnswer answer = this.testObj.synthesize(key("_btc._wallet.domain.com.", Type.A));
+        assertNotNull(answer);
+        assertEquals(Rcode.NOERROR, answer.getRcode());
+        assertNull(this.testObj.synthesize(key("_btc._wallet.domain.com.", Type.TXT)));
+    }
+
+    @Test
+    public void nsec3OptOutNotUsed() throws Exception {
+        putNsec3Zone(NSEC3Record.Flags.OPT_OUT, "domain.com.", "_wallet.domain.com.", "_btc._wallet.domain.com.");
+
+        assertNull(this.testObj.synthesize(key("_doge._wallet.domain.com.", Type.TXT)));
+    }
+
+    @Test
+    public void nsec3MissingAncestor() throws Exception {
+        putNsec3Zone(0, "domain.com.", "_btc.domain.com.");
+
+        // The closest encloser is the apex, _wallet.domain.com. does not exist
+        CachedAnswer answer = this.testObj.synthesize(key("_doge._wallet.domain.com.", Type.TXT));
+        assertNotNull(answer);
+        assertTrue(answer.isNxDomain());
+    }
+}
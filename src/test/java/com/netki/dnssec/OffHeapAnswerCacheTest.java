@@ -0,0 +1,153 @@
+package com.netki.dnssec;
+
+import com.google.common.base.Ticker;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class OffHeapAnswerCacheTest {
+
+    private long nanos;
+    private Ticker ticker;
+    private OffHeapAnswerCache testObj;
+    private CacheKey key;
+    private RRset answerSet;
+
+    @Before
+    public void setUp() throws Exception {
+        this.ticker = new Ticker() {
+            @Override
+            public long read() {
+                return nanos;
+            }
+        };
+        this.nanos = 0;
+        this.testObj = new OffHeapAnswerCache(64 * 1024, 4096, 3600, this.ticker);
+
+        Name name = new Name("_btc._wallet.domain.com.");
+        this.key = new CacheKey(name, Type.TXT, DClass.IN);
+        this.answerSet = new RRset(new TXTRecord(name, DClass.IN, 300L, "value"));
+    }
+
+    private CacheKey walletKey(int i) throws TextParseException {
+        return new CacheKey(new Name("_btc._wallet.user" + i + ".domain.com."), Type.TXT, DClass.IN);
+    }
+
+    private RRset walletSet(CacheKey key, String value) {
+        return new RRset(new TXTRecord(key.getName(), DClass.IN, 300L, value));
+    }
+
+    @Test
+    public void putAndGet() throws Exception {
+        this.testObj.put(this.key, "value", new RRset[]{this.answerSet}, 50L);
+
+        CachedAnswer answer = this.testObj.get(this.key);
+        assertNotNull(answer);
+        assertEquals("value", answer.getValue());
+        assertEquals(1, answer.getRecords().length);
+        assertEquals(this.answerSet.first(), answer.getRecords()[0]);
+        assertEquals(300000L, answer.getExpiresAt());
+        assertEquals(50L, answer.getFetchMillis());
+        assertEquals(1, this.testObj.size());
+
+        // Names are compared case insensitively
+        assertNotNull(this.testObj.get(new CacheKey(new Name("_BTC._wallet.DOMAIN.com."), Type.TXT, DClass.IN)));
+        assertNull(this.testObj.get(new CacheKey(this.key.getName(), Type.A, DClass.IN)));
+    }
+
+    @Test
+    public void putReplacesAnswer() {
+        this.testObj.put(this.key, "value", new RRset[]{this.answerSet}, 50L);
+        this.testObj.put(this.key, "other", new RRset[]{this.answerSet}, 50L);
+
+        assertEquals("other", this.testObj.get(this.key).getValue());
+        assertEquals(1, this.testObj.size());
+    }
+
+    @Test
+    public void negativeAnswer() throws Exception {
+        SOARecord soa = new SOARecord(new Name("domain.com."), DClass.IN, 600L, new Name("ns.domain.com."),
+                new Name("admin.domain.com."), 1L, 3600L, 600L, 86400L, 120L);
+        this.testObj.putNegative(this.key, Rcode.NXDOMAIN, new RRset[0], new RRset[]{new RRset(soa)}, 20L);
+
+        CachedAnswer answer = this.testObj.get(this.key);
+        assertNotNull(answer);
+        assertTrue(answer.isNxDomain());
+        assertNull(answer.getValue());
+        assertEquals(120000L, answer.getExpiresAt());
+    }
+
+    @Test
+    public void expiresAfterTtl() {
+        this.testObj.put(this.key, "value", new RRset[]{this.answerSet}, 50L);
+
+        this.nanos += TimeUnit.SECONDS.toNanos(300);
+        assertNull(this.testObj.get(this.key));
+        assertEquals(0, this.testObj.size());
+    }
+
+    @Test
+    public void serveStale() {
+        this.testObj.setStaleRetention(60000L);
+        this.testObj.put(this.key, "value", new RRset[]{this.answerSet}, 50L);
+        this.nanos += TimeUnit.SECONDS.toNanos(300);
+
+        CachedAnswer stale = this.testObj.getStale(this.key, 60000L);
+        assertNotNull(stale);
+        this.testObj.putStale(this.key, stale, 30000L);
+
+        CachedAnswer answer = this.testObj.get(this.key);
+        assertNotNull(answer);
+        assertTrue(answer.isStale());
+        assertEquals("value", answer.getValue());
+    }
+
+    @Test
+    public void evictsOldestSlabsWithinBudget() throws Exception {
+        for (int i = 0; i < 2000; i++) {
+            CacheKey walletKey = walletKey(i);
+            this.testObj.put(walletKey, "value" + i, new RRset[]{walletSet(walletKey, "value" + i)}, 10L);
+        }
+
+        assertTrue(this.testObj.getAllocatedBytes() <= 64 * 1024);
+        assertTrue(this.testObj.size() < 2000);
+        assertEquals(this.testObj.size(), this.testObj.entries().size());
+        assertNull(this.testObj.get(walletKey(0)));
+        assertEquals("value1999", this.testObj.get(walletKey(1999)).getValue());
+    }
+
+    @Test
+    public void indexGrows() throws Exception {
+        OffHeapAnswerCache largeCache = new OffHeapAnswerCache(8 * 1024 * 1024, 1024 * 1024, 3600, this.ticker);
+        for (int i = 0; i < 5000; i++) {
+            CacheKey walletKey = walletKey(i);
+            largeCache.put(walletKey, "value" + i, new RRset[]{walletSet(walletKey, "value" + i)}, 10L);
+        }
+
+        assertEquals(5000, largeCache.size());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals("value" + i, largeCache.get(walletKey(i)).getValue());
+        }
+    }
+
+    @Test
+    public void restoreKeepsExistingAnswer() {
+        this.testObj.put(this.key, "value", new RRset[]{this.answerSet}, 50L);
+        this.testObj.restore(this.key, new CachedAnswer("restored", Rcode.NOERROR, new Record[0], 0, 1000L, 0));
+
+        assertEquals("value", this.testObj.get(this.key).getValue());
+    }
+
+    @Test
+    public void clear() {
+        this.testObj.put(this.key, "value", new RRset[]{this.answerSet}, 50L);
+        this.testObj.clear();
+
+        assertNull(this.testObj.get(this.key));
+        assertEquals(0, this.testObj.size());
+    }
+}
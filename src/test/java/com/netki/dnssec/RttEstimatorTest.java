@@ -0,0 +1,60 @@
+package com.netki.dnssec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RttEstimatorTest {
+
+    private RttEstimator testObj;
+
+    @Before
+    public void setUp() {
+        this.testObj = new RttEstimator();
+    }
+
+    @Test
+    public void initialTimeout() {
+        assertFalse(this.testObj.isMeasured());
+        assertEquals(RttEstimator.INITIAL_TIMEOUT, this.testObj.getTimeout(10000));
+        assertEquals(500, this.testObj.getTimeout(500));
+    }
+
+    @Test
+    public void timeoutFollowsRtt() {
+        this.testObj.sample(TimeUnit.MILLISECONDS.toNanos(100));
+        // SRTT 100, RTTVAR 50
+        assertEquals(100.0, this.testObj.getSmoothedRtt(), 0.001);
+        assertEquals(300, this.testObj.getTimeout(10000));
+
+        for (int i = 0; i < 50; i++) {
+            this.testObj.sample(TimeUnit.MILLISECONDS.toNanos(100));
+        }
+        assertEquals(100.0, this.testObj.getSmoothedRtt(), 0.001);
+        assertEquals(101, this.testObj.getTimeout(10000), 1);
+    }
+
+    @Test
+    public void minimumTimeout() {
+        for (int i = 0; i < 50; i++) {
+            this.testObj.sample(TimeUnit.MICROSECONDS.toNanos(500));
+        }
+        assertEquals(RttEstimator.MINIMUM_TIMEOUT, this.testObj.getTimeout(10000));
+    }
+
+    @Test
+    public void backoffDoublesUntilSample() {
+        this.testObj.sample(TimeUnit.MILLISECONDS.toNanos(100));
+        this.testObj.backoff();
+        assertEquals(600, this.testObj.getTimeout(10000));
+        this.testObj.backoff();
+        assertEquals(1200, this.testObj.getTimeout(10000));
+        assertEquals(1000, this.testObj.getTimeout(1000));
+
+        this.testObj.sample(TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(this.testObj.getTimeout(10000) < 600);
+    }
+}
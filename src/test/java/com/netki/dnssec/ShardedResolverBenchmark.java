@@ -0,0 +1,173 @@
+package com.netki.dnssec;
+
+import com.netki.dns.DNSBootstrapService;
+import com.netki.exceptions.DNSSECException;
+import org.xbill.DNS.*;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures DNSSECResolver lookups per second for an increasing number of threads, with one shared shard and with a
+ * shard per thread (see DNSSECResolver.setShards()). Queries go to a stub DNS server on the loopback interface, with
+ * the answer cache disabled, so every lookup runs through an UpstreamPool and ValidatingResolver. The stub serves
+ * example.com signed with a key that is the only trust anchor, so every lookup validates as secure; a run fails if
+ * any lookup does not.
+ *
+ * Scaling is bounded by the number of cores, which the stub server shares with the resolver.
+ *
+ * Run with: java -cp target/test-classes:target/classes:... com.netki.dnssec.ShardedResolverBenchmark [seconds] [threads]
+ */
+public class ShardedResolverBenchmark {
+
+    private static final int ZONES = 64;
+    private static final int NAMES = 1024;
+    private static final Name ZONE = Name.fromConstantString("example.com.");
+
+    private static DNSKEYRecord zoneKey;
+    private static KeyPair zoneKeyPair;
+    private static TrustAnchors trustAnchors;
+
+    // Signed TXT RRsets served by the stub, by name
+    private static final ConcurrentMap<Name, Record[]> signedAnswers = new ConcurrentHashMap<Name, Record[]>();
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int cores = Runtime.getRuntime().availableProcessors();
+        int maximumThreads = args.length > 1 ? Integer.parseInt(args[1]) : cores;
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        zoneKeyPair = generator.generateKeyPair();
+        zoneKey = new DNSKEYRecord(ZONE, DClass.IN, 3600, DNSKEYRecord.Flags.ZONE_KEY | DNSKEYRecord.Flags.SEP_KEY,
+                DNSKEYRecord.Protocol.DNSSEC, DNSSEC.Algorithm.RSASHA256, zoneKeyPair.getPublic());
+        trustAnchors = TrustAnchors.fromString(zoneKey.toString());
+
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        for (int i = 0; i < Math.max(2, maximumThreads); i++) {
+            startStubServer(socket);
+        }
+
+        System.out.println(cores + " cores");
+        System.out.println("threads  1 shard q/s  sharded q/s  speedup");
+        for (int threads = 1; threads <= maximumThreads; threads *= 2) {
+            // Warm up
+            run(socket.getLocalPort(), threads, 1, 1);
+            double shared = run(socket.getLocalPort(), threads, 1, seconds);
+            double sharded = run(socket.getLocalPort(), threads, threads, seconds);
+            System.out.println(String.format("%7d  %11.0f  %11.0f  %6.2fx", threads, shared, sharded, sharded / shared));
+        }
+        socket.close();
+    }
+
+    private static double run(int port, int threads, int shards, int seconds) throws Exception {
+        SimpleResolver simpleResolver = new SimpleResolver("127.0.0.1");
+        simpleResolver.setPort(port);
+        final DNSSECResolver resolver = new DNSSECResolver(new DNSBootstrapService());
+        resolver.setShards(shards);
+        resolver.setSimpleResolver(simpleResolver);
+        resolver.setAnswerCache(new AnswerCache(0, AnswerCache.DEFAULT_MAXIMUM_TTL));
+        resolver.setTrustAnchorManager(new TrustAnchorManager(trustAnchors));
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        final AtomicLong lookups = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (long i = 0; System.nanoTime() < deadline; i++) {
+                            try {
+                                if (resolver.resolve("w" + thread + "-" + (i % NAMES) + ".z" + (i % ZONES) + ".example.com", Type.TXT) == null) {
+                                    failures.incrementAndGet();
+                                }
+                            } catch (DNSSECException e) {
+                                failures.incrementAndGet();
+                            }
+                            lookups.incrementAndGet();
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        resolver.close();
+        if (failures.get() > 0) {
+            throw new IllegalStateException(failures.get() + " of " + lookups.get() + " lookups did not validate");
+        }
+        return lookups.get() / (double) seconds;
+    }
+
+    private static void startStubServer(final DatagramSocket socket) {
+        Thread server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[512];
+                while (true) {
+                    try {
+                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                        socket.receive(packet);
+                        Message query = new Message(packet.getData());
+                        Message response = new Message(query.getHeader().getID());
+                        response.getHeader().setFlag(Flags.QR);
+                        Record question = query.getQuestion();
+                        response.addRecord(question, Section.QUESTION);
+                        Record[] answer = null;
+                        if (question.getType() == Type.TXT) {
+                            answer = signedAnswer(question.getName());
+                        } else if (question.getType() == Type.DNSKEY && question.getName().equals(ZONE)) {
+                            answer = sign(zoneKey);
+                        }
+                        if (answer != null) {
+                            for (Record record : answer) {
+                                response.addRecord(record, Section.ANSWER);
+                            }
+                        }
+                        byte[] wire = response.toWire();
+                        socket.send(new DatagramPacket(wire, wire.length, packet.getSocketAddress()));
+                    } catch (SocketException e) {
+                        return;
+                    } catch (Exception ignore) {
+                    }
+                }
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+    }
+
+    /**
+     * Get the signed TXT RRset of a name, signing it once so the stub spends little time per query
+     */
+    private static Record[] signedAnswer(Name name) throws Exception {
+        Record[] answer = signedAnswers.get(name);
+        if (answer == null) {
+            answer = sign(new TXTRecord(name, DClass.IN, 300, "benchmark"));
+            signedAnswers.putIfAbsent(name, answer);
+        }
+        return answer;
+    }
+
+    private static Record[] sign(Record record) throws Exception {
+        RRset set = new RRset(record);
+        long now = System.currentTimeMillis();
+        RRSIGRecord signature = DNSSEC.sign(set, zoneKey, zoneKeyPair.getPrivate(),
+                new Date(now - TimeUnit.HOURS.toMillis(1)), new Date(now + TimeUnit.DAYS.toMillis(1)));
+        return new Record[]{record, signature};
+    }
+}
@@ -0,0 +1,297 @@
+package com.netki.dnssec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TcpTransportTest {
+
+    private ServerSocket server;
+    private TcpTransport testObj;
+    private final AtomicInteger connections = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        this.server = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+        this.server.setSoTimeout(5000);
+        this.testObj = new TcpTransport((InetSocketAddress) this.server.getLocalSocketAddress(), 60000);
+        this.testObj.setTimeout(5);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.testObj.close();
+        this.server.close();
+    }
+
+    private Message query(String name) throws TextParseException {
+        return Message.newQuery(Record.newRecord(new Name(name), Type.TXT, DClass.IN));
+    }
+
+    private static Message read(DataInputStream in) throws Exception {
+        byte[] wire = new byte[in.readUnsignedShort()];
+        in.readFully(wire);
+        return new Message(wire);
+    }
+
+    private static void write(DataOutputStream out, Message query, int keepalive) throws Exception {
+        Message response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.addRecord(query.getQuestion(), Section.QUESTION);
+        Name name = query.getQuestion().getName();
+        response.addRecord(new TXTRecord(name, DClass.IN, 300L, name.toString()), Section.ANSWER);
+        if (keepalive >= 0) {
+            List<EDNSOption> options = Collections.<EDNSOption>singletonList(
+                    new GenericEDNSOption(11, new byte[]{(byte) (keepalive >>> 8), (byte) keepalive}));
+            response.addRecord(new OPTRecord(1280, 0, 0, 0, options), Section.ADDITIONAL);
+        }
+        byte[] wire = response.toWire();
+        out.writeShort(wire.length);
+        out.write(wire);
+        out.flush();
+    }
+
+    /**
+     * Accept one connection, read count queries, check they carry edns-tcp-keepalive, and answer them in reverse
+     */
+    private Thread serve(final int count, final int keepalive, final boolean closeAfter) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = server.accept();
+                    connections.incrementAndGet();
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    List<Message> queries = new ArrayList<Message>();
+                    for (int i = 0; i < count; i++) {
+                        Message query = read(in);
+                        if (query.getOPT() == null || query.getOPT().getOptions(11).isEmpty()) {
+                            return;
+                        }
+                        queries.add(query);
+                    }
+                    for (int i = count - 1; i >= 0; i--) {
+                        write(out, queries.get(i), keepalive);
+                    }
+                    if (closeAfter) {
+                        socket.close();
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void pipelinesOutOfOrderResponses() throws Exception {
+        final int count = 4;
+        Thread server = serve(count, -1, false);
+        ExecutorService executor = Executors.newFixedThreadPool(count);
+        try {
+            List<Future<Message>> responses = new ArrayList<Future<Message>>();
+            for (int i = 0; i < count; i++) {
+                final Message query = query("name" + i + ".domain.com.");
+                responses.add(executor.submit(new Callable<Message>() {
+                    @Override
+                    public Message call() throws Exception {
+                        return testObj.send(query);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < count; i++) {
+                Message response = responses.get(i).get(5, TimeUnit.SECONDS);
+                assertEquals("\"name" + i + ".domain.com.\"", response.getSectionArray(Section.ANSWER)[0].rdataToString());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        server.join();
+        assertEquals(1, this.connections.get());
+        assertTrue(this.testObj.isConnected());
+    }
+
+    @Test
+    public void restoresId() throws Exception {
+        Thread server = serve(1, -1, false);
+        Message query = query("_btc._wallet.domain.com.");
+
+        Message response = this.testObj.send(query);
+        server.join();
+
+        assertEquals(query.getHeader().getID(), response.getHeader().getID());
+    }
+
+    @Test
+    public void closesIdleConnectionAtServerKeepalive() throws Exception {
+        // Server asks for a 200ms idle timeout
+        Thread server = serve(1, 2, false);
+        this.testObj.send(query("_btc._wallet.domain.com."));
+        server.join();
+        assertTrue(this.testObj.isConnected());
+
+        Thread.sleep(1000);
+        assertFalse(this.testObj.isConnected());
+    }
+
+    @Test
+    public void closesConnectionAtZeroKeepalive() throws Exception {
+        // Server asks for the connection to be closed once idle
+        Thread server = serve(1, 0, false);
+        this.testObj.send(query("_btc._wallet.domain.com."));
+        server.join();
+
+        Thread.sleep(500);
+        assertFalse(this.testObj.isConnected());
+    }
+
+    @Test
+    public void readsFrameSplitAcrossIdleTimeout() throws Exception {
+        this.testObj.close();
+        this.testObj = new TcpTransport((InetSocketAddress) this.server.getLocalSocketAddress(), 200);
+        this.testObj.setTimeout(5);
+        Thread responder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = server.accept();
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    Message query = read(in);
+                    Message response = new Message(query.getHeader().getID());
+                    response.getHeader().setFlag(Flags.QR);
+                    response.addRecord(query.getQuestion(), Section.QUESTION);
+                    response.addRecord(new TXTRecord(query.getQuestion().getName(), DClass.IN, 300L, "split"),
+                            Section.ANSWER);
+                    byte[] wire = response.toWire();
+
+                    // The first byte of the length, then the rest after the client's idle timeout
+                    out.write(wire.length >>> 8);
+                    out.flush();
+                    Thread.sleep(500);
+                    out.write(wire.length & 0xFF);
+                    out.write(wire);
+                    out.flush();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        responder.start();
+
+        Message response = this.testObj.send(query("_btc._wallet.domain.com."));
+        responder.join();
+
+        assertEquals("\"split\"", response.getSectionArray(Section.ANSWER)[0].rdataToString());
+    }
+
+    @Test
+    public void reconnectsAfterServerClose() throws Exception {
+        Thread server = serve(1, -1, true);
+        this.testObj.send(query("name0.domain.com."));
+        server.join();
+
+        server = serve(1, -1, false);
+        Message response = this.testObj.send(query("name1.domain.com."));
+        server.join();
+
+        assertEquals("\"name1.domain.com.\"", response.getSectionArray(Section.ANSWER)[0].rdataToString());
+        assertEquals(2, this.connections.get());
+    }
+
+    @Test
+    public void reconnectsToNewPort() throws Exception {
+        Thread server = serve(1, -1, false);
+        this.testObj.send(query("name0.domain.com."));
+        server.join();
+
+        ServerSocket oldServer = this.server;
+        this.server = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+        this.server.setSoTimeout(5000);
+        try {
+            this.testObj.setPort(this.server.getLocalPort());
+            server = serve(1, -1, false);
+            Message response = this.testObj.send(query("name1.domain.com."));
+            server.join();
+
+            assertEquals("\"name1.domain.com.\"", response.getSectionArray(Section.ANSWER)[0].rdataToString());
+            assertEquals(2, this.connections.get());
+        } finally {
+            oldServer.close();
+        }
+    }
+
+    @Test
+    public void ignoresResponseWithWrongTsig() throws Exception {
+        final TSIG key = new TSIG(TSIG.HMAC_SHA256, "key.", "c2VjcmV0c2VjcmV0c2VjcmV0c2VjcmV0");
+        final TSIG wrongKey = new TSIG(TSIG.HMAC_SHA256, "key.", "Zm9yZ2VkZm9yZ2VkZm9yZ2VkZm9yZ2Vk");
+        this.testObj.setTSIGKey(key);
+        Thread responder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = server.accept();
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    Message query = read(in);
+                    writeSigned(out, query, "forged", wrongKey);
+                    writeSigned(out, query, "authentic", key);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        responder.start();
+
+        Message response = this.testObj.send(query("_btc._wallet.domain.com."));
+        responder.join();
+
+        assertEquals("\"authentic\"", response.getSectionArray(Section.ANSWER)[0].rdataToString());
+    }
+
+    private static void writeSigned(DataOutputStream out, Message query, String text, TSIG key) throws Exception {
+        Message response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.addRecord(query.getQuestion(), Section.QUESTION);
+        response.addRecord(new TXTRecord(query.getQuestion().getName(), DClass.IN, 300L, text), Section.ANSWER);
+        response.setTSIG(key, Rcode.NOERROR, query.getTSIG());
+        byte[] wire = response.toWire();
+        out.writeShort(wire.length);
+        out.write(wire);
+        out.flush();
+    }
+
+    @Test
+    public void keepaliveTimeout() throws Exception {
+        Message response = new Message();
+        assertEquals(-1, TcpTransport.keepaliveTimeout(response));
+
+        List<EDNSOption> options = Collections.<EDNSOption>singletonList(
+                new GenericEDNSOption(11, new byte[]{0x01, 0x2C}));
+        response.addRecord(new OPTRecord(1280, 0, 0, 0, options), Section.ADDITIONAL);
+        assertEquals(30000L, TcpTransport.keepaliveTimeout(response));
+    }
+}
@@ -0,0 +1,248 @@
+package com.netki.dnssec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.spongycastle.asn1.x500.X500Name;
+import org.spongycastle.asn1.x509.Extension;
+import org.spongycastle.asn1.x509.GeneralName;
+import org.spongycastle.asn1.x509.GeneralNames;
+import org.spongycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.spongycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.spongycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.xbill.DNS.*;
+
+import javax.net.ssl.*;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TlsTransportTest {
+
+    private static final char[] PASSWORD = "password".toCharArray();
+
+    private X509Certificate certificate;
+    private SSLServerSocket server;
+    private SSLSocketFactory clientFactory;
+    private TlsTransport testObj;
+    private final List<SSLSession> sessions = Collections.synchronizedList(new ArrayList<SSLSession>());
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keys = generator.generateKeyPair();
+        this.certificate = generateCertificate(keys, new GeneralNames(new GeneralName[]{
+                new GeneralName(GeneralName.dNSName, "dns.example"),
+                new GeneralName(GeneralName.dNSName, "*.resolver.example"),
+                new GeneralName(GeneralName.iPAddress, "127.0.0.1")}));
+
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        keyStore.load(null, null);
+        keyStore.setKeyEntry("server", keys.getPrivate(), PASSWORD, new Certificate[]{this.certificate});
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, PASSWORD);
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keyManagers.getKeyManagers(), null, null);
+
+        KeyStore trustStore = KeyStore.getInstance("JKS");
+        trustStore.load(null, null);
+        trustStore.setCertificateEntry("server", this.certificate);
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(trustStore);
+        SSLContext clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, trustManagers.getTrustManagers(), null);
+        this.clientFactory = clientContext.getSocketFactory();
+
+        this.server = (SSLServerSocket) serverContext.getServerSocketFactory().createServerSocket(0, 10,
+                InetAddress.getByName("127.0.0.1"));
+        // Session ID resumption (RFC 5246) makes resumed sessions visible to the server
+        this.server.setEnabledProtocols(new String[]{"TLSv1.2"});
+        this.server.setSoTimeout(5000);
+        this.testObj = newTransport("127.0.0.1");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.testObj.close();
+        this.server.close();
+    }
+
+    private TlsTransport newTransport(String authenticationName) {
+        TlsTransport transport = new TlsTransport((InetSocketAddress) this.server.getLocalSocketAddress(),
+                authenticationName, this.clientFactory, 60000);
+        transport.setTimeout(5);
+        return transport;
+    }
+
+    private static X509Certificate generateCertificate(KeyPair keys, GeneralNames names) throws Exception {
+        X500Name name = new X500Name("CN=dns.example");
+        Date notBefore = new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1));
+        Date notAfter = new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1));
+        JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(name, BigInteger.ONE, notBefore,
+                notAfter, name, keys.getPublic());
+        builder.addExtension(Extension.subjectAlternativeName, false, names);
+        return new JcaX509CertificateConverter().getCertificate(
+                builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(keys.getPrivate())));
+    }
+
+    private Message query(String name) throws TextParseException {
+        return Message.newQuery(Record.newRecord(new Name(name), Type.TXT, DClass.IN));
+    }
+
+    /**
+     * Accept one connection, read count queries and answer them in reverse
+     */
+    private Thread serve(final int count, final boolean closeAfter) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SSLSocket socket = (SSLSocket) server.accept();
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    sessions.add(socket.getSession());
+                    List<Message> queries = new ArrayList<Message>();
+                    for (int i = 0; i < count; i++) {
+                        byte[] wire = new byte[in.readUnsignedShort()];
+                        in.readFully(wire);
+                        queries.add(new Message(wire));
+                    }
+                    for (int i = count - 1; i >= 0; i--) {
+                        Message query = queries.get(i);
+                        Message response = new Message(query.getHeader().getID());
+                        response.getHeader().setFlag(Flags.QR);
+                        response.addRecord(query.getQuestion(), Section.QUESTION);
+                        Name name = query.getQuestion().getName();
+                        response.addRecord(new TXTRecord(name, DClass.IN, 300L, name.toString()), Section.ANSWER);
+                        byte[] wire = response.toWire();
+                        out.writeShort(wire.length);
+                        out.write(wire);
+                        out.flush();
+                    }
+                    if (closeAfter) {
+                        socket.close();
+                    }
+                } catch (IOException ignore) {
+                    // Handshake rejected by the client
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void pipelinesOverOneConnection() throws Exception {
+        final int count = 4;
+        Thread server = serve(count, false);
+        ExecutorService executor = Executors.newFixedThreadPool(count);
+        try {
+            List<Future<Message>> responses = new ArrayList<Future<Message>>();
+            for (int i = 0; i < count; i++) {
+                final Message query = query("name" + i + ".domain.com.");
+                responses.add(executor.submit(new Callable<Message>() {
+                    @Override
+                    public Message call() throws Exception {
+                        return testObj.send(query);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < count; i++) {
+                Message response = responses.get(i).get(5, TimeUnit.SECONDS);
+                assertEquals("\"name" + i + ".domain.com.\"", response.getSectionArray(Section.ANSWER)[0].rdataToString());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        server.join();
+        assertEquals(1, this.sessions.size());
+        assertTrue(this.testObj.isConnected());
+    }
+
+    @Test
+    public void resumesSessionOnReconnect() throws Exception {
+        Thread server = serve(1, true);
+        this.testObj.send(query("name0.domain.com."));
+        server.join();
+
+        server = serve(1, false);
+        Message response = this.testObj.send(query("name1.domain.com."));
+        server.join();
+
+        assertEquals("\"name1.domain.com.\"", response.getSectionArray(Section.ANSWER)[0].rdataToString());
+        assertEquals(2, this.sessions.size());
+        assertArrayEquals(this.sessions.get(0).getId(), this.sessions.get(1).getId());
+    }
+
+    @Test
+    public void handshakeNotBoundByQueryTimeout() throws Exception {
+        // A query timeout sized for one round-trip, and a server slow to complete the handshake
+        this.testObj.setTimeout(0, 200);
+        final Thread[] server = new Thread[1];
+        Thread delayed = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(500);
+                    server[0] = serve(1, false);
+                    server[0].join();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        delayed.start();
+
+        Message response = this.testObj.send(query("_btc._wallet.domain.com."));
+        delayed.join();
+
+        assertEquals("\"_btc._wallet.domain.com.\"", response.getSectionArray(Section.ANSWER)[0].rdataToString());
+    }
+
+    @Test
+    public void rejectsCertificateForOtherName() throws Exception {
+        this.testObj.close();
+        this.testObj = newTransport("other.example");
+        Thread server = serve(1, false);
+        try {
+            this.testObj.send(query("name0.domain.com."));
+            fail("Certificate for another name accepted");
+        } catch (SSLPeerUnverifiedException expected) {
+        }
+        server.join();
+        assertFalse(this.testObj.isConnected());
+    }
+
+    @Test
+    public void matchesName() throws Exception {
+        assertTrue(TlsTransport.matchesName(this.certificate, "dns.example"));
+        assertTrue(TlsTransport.matchesName(this.certificate, "DNS.example."));
+        assertTrue(TlsTransport.matchesName(this.certificate, "one.resolver.example"));
+        assertTrue(TlsTransport.matchesName(this.certificate, "127.0.0.1"));
+        assertFalse(TlsTransport.matchesName(this.certificate, "resolver.example"));
+        assertFalse(TlsTransport.matchesName(this.certificate, "two.one.resolver.example"));
+        assertFalse(TlsTransport.matchesName(this.certificate, "other.example"));
+        assertFalse(TlsTransport.matchesName(this.certificate, "127.0.0.2"));
+    }
+}
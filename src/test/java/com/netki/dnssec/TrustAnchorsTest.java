@@ -0,0 +1,139 @@
+package com.netki.dnssec;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TrustAnchorsTest {
+
+    private KeyPair keyPair;
+    private DNSKEYRecord ksk;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        this.keyPair = generator.generateKeyPair();
+        this.ksk = new DNSKEYRecord(Name.root, DClass.IN, 172800L, DNSKEYRecord.Flags.ZONE_KEY | DNSKEYRecord.Flags.SEP_KEY,
+                DNSKEYRecord.Protocol.DNSSEC, DNSSEC.Algorithm.RSASHA256, this.keyPair.getPublic());
+    }
+
+    @Test
+    public void defaultAnchors() {
+        TrustAnchors anchors = TrustAnchors.getDefault();
+        assertSame(anchors, TrustAnchors.getDefault());
+        assertEquals(3, anchors.getRecords().size());
+
+        boolean has20326 = false;
+        for (Record record : anchors.getRecords()) {
+            assertEquals(Type.DS, record.getType());
+            assertEquals(Name.root, record.getName());
+            if (((DSRecord) record).getFootprint() == 20326) has20326 = true;
+        }
+        assertTrue(has20326);
+    }
+
+    @Test
+    public void fromStringRejectsNonAnchorRecords() {
+        try {
+            TrustAnchors.fromString(". IN A 127.0.0.1\n");
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Trust anchors can only be DS or DNSKEY records"));
+        }
+    }
+
+    @Test
+    public void fromStringRejectsEmpty() {
+        try {
+            TrustAnchors.fromString("");
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("No trust anchors found", e.getMessage());
+        }
+    }
+
+    @Test
+    public void addAndRemoveKey() {
+        TrustAnchors anchors = TrustAnchors.getDefault();
+        assertFalse(anchors.isTrusted(this.ksk));
+
+        TrustAnchors added = anchors.withKey(this.ksk);
+        assertNotSame(anchors, added);
+        assertTrue(added.isTrusted(this.ksk));
+        assertEquals(4, added.getRecords().size());
+        assertSame(added, added.withKey(this.ksk));
+
+        TrustAnchors removed = added.withoutKey(this.ksk);
+        assertFalse(removed.isTrusted(this.ksk));
+        assertEquals(3, removed.getRecords().size());
+    }
+
+    @Test
+    public void writeAndReadFile() throws Exception {
+        File file = File.createTempFile("anchors", ".txt");
+        file.deleteOnExit();
+
+        TrustAnchors anchors = TrustAnchors.getDefault().withKey(this.ksk);
+        anchors.writeTo(file);
+
+        TrustAnchors read = TrustAnchors.fromFile(file);
+        assertEquals(anchors.getRecords().size(), read.getRecords().size());
+        assertTrue(read.isTrusted(this.ksk));
+    }
+
+    @Test
+    public void rolloverAddsKeyAfterHoldDown() {
+        TrustAnchorManager manager = new TrustAnchorManager(TrustAnchors.getDefault());
+        manager.setHoldDownTime(TimeUnit.DAYS.toMillis(30));
+        RRset keySet = new RRset(this.ksk);
+
+        manager.processKeySet(Name.root, keySet, 0);
+        assertFalse(manager.getTrustAnchors().isTrusted(this.ksk));
+
+        manager.processKeySet(Name.root, keySet, TimeUnit.DAYS.toMillis(29));
+        assertFalse(manager.getTrustAnchors().isTrusted(this.ksk));
+
+        manager.processKeySet(Name.root, keySet, TimeUnit.DAYS.toMillis(30));
+        assertTrue(manager.getTrustAnchors().isTrusted(this.ksk));
+    }
+
+    @Test
+    public void rolloverRestartsHoldDownWhenKeyDisappears() {
+        TrustAnchorManager manager = new TrustAnchorManager(TrustAnchors.getDefault());
+        RRset keySet = new RRset(this.ksk);
+
+        manager.processKeySet(Name.root, keySet, 0);
+        manager.processKeySet(Name.root, new RRset(), TimeUnit.DAYS.toMillis(10));
+        manager.processKeySet(Name.root, keySet, TimeUnit.DAYS.toMillis(31));
+        assertFalse(manager.getTrustAnchors().isTrusted(this.ksk));
+    }
+
+    @Test
+    public void rolloverRemovesSelfSignedRevokedKey() throws Exception {
+        TrustAnchorManager manager = new TrustAnchorManager(TrustAnchors.getDefault().withKey(this.ksk));
+
+        DNSKEYRecord revoked = new DNSKEYRecord(Name.root, DClass.IN, 172800L,
+                this.ksk.getFlags() | DNSKEYRecord.Flags.REVOKE, DNSKEYRecord.Protocol.DNSSEC, DNSSEC.Algorithm.RSASHA256,
+                this.keyPair.getPublic());
+        RRset keySet = new RRset(revoked);
+
+        // Unsigned revocation is ignored
+        manager.processKeySet(Name.root, keySet, 0);
+        assertTrue(manager.getTrustAnchors().isTrusted(this.ksk));
+
+        long now = System.currentTimeMillis();
+        keySet.addRR(DNSSEC.sign(keySet, revoked, this.keyPair.getPrivate(), new Date(now - 60000L), new Date(now + 3600000L)));
+        manager.processKeySet(Name.root, keySet, 0);
+        assertFalse(manager.getTrustAnchors().isTrusted(this.ksk));
+    }
+}
@@ -0,0 +1,463 @@
+package com.netki.dnssec;
+
+import com.google.common.base.Ticker;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.xbill.DNS.*;
+
+import java.io.IOException;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class UpstreamPoolTest {
+
+    private long nanos;
+    private Ticker ticker;
+    private Resolver primary;
+    private Resolver backup;
+    private UpstreamPool testObj;
+    private Message query;
+
+    @Before
+    public void setUp() throws Exception {
+        this.ticker = new Ticker() {
+            @Override
+            public long read() {
+                return nanos;
+            }
+        };
+        this.nanos = 0;
+        this.primary = mock(Resolver.class);
+        this.backup = mock(Resolver.class);
+
+        Map<String, Resolver> servers = new LinkedHashMap<String, Resolver>();
+        servers.put("10.0.0.1", this.primary);
+        servers.put("8.8.8.8", this.backup);
+        this.testObj = new UpstreamPool(servers, this.ticker);
+        this.query = Message.newQuery(Record.newRecord(new Name("wallet.domain.com."), Type.TXT, DClass.IN));
+    }
+
+    private Answer<Message> respond(final int rcode, final long millis) {
+        return new Answer<Message>() {
+            @Override
+            public Message answer(InvocationOnMock invocation) throws Throwable {
+                nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+                Message response = new Message();
+                response.getHeader().setRcode(rcode);
+                return response;
+            }
+        };
+    }
+
+    @Test
+    public void usesConfiguredOrderUntilMeasured() throws Exception {
+        when(this.primary.send(any(Message.class))).thenAnswer(respond(Rcode.NOERROR, 10));
+
+        assertEquals(Rcode.NOERROR, this.testObj.send(this.query).getRcode());
+
+        verify(this.primary).send(this.query);
+        verify(this.backup, never()).send(any(Message.class));
+        assertEquals(Arrays.asList("10.0.0.1", "8.8.8.8"), this.testObj.getRankedServers());
+    }
+
+    @Test
+    public void failsOverWithinQuery() throws Exception {
+        when(this.primary.send(any(Message.class))).thenThrow(new SocketTimeoutException("timed out"));
+        when(this.backup.send(any(Message.class))).thenAnswer(respond(Rcode.NOERROR, 10));
+
+        assertEquals(Rcode.NOERROR, this.testObj.send(this.query).getRcode());
+
+        // The failed server is ranked behind the one that answered, for following queries only
+        assertEquals(Arrays.asList("8.8.8.8", "10.0.0.1"), this.testObj.getRankedServers());
+        assertTrue(this.testObj.isAvailable("10.0.0.1"));
+    }
+
+    @Test
+    public void failsOverOnServfail() throws Exception {
+        when(this.primary.send(any(Message.class))).thenAnswer(respond(Rcode.SERVFAIL, 10));
+        when(this.backup.send(any(Message.class))).thenAnswer(respond(Rcode.NOERROR, 10));
+
+        assertEquals(Rcode.NOERROR, this.testObj.send(this.query).getRcode());
+        verify(this.backup).send(this.query);
+    }
+
+    @Test
+    public void servfailDoesNotOpenCircuit() throws Exception {
+        when(this.primary.send(any(Message.class))).thenAnswer(respond(Rcode.SERVFAIL, 10));
+        when(this.backup.send(any(Message.class))).thenAnswer(respond(Rcode.SERVFAIL, 10));
+
+        // A burst of queries for one broken zone
+        for (int i = 0; i < 2 * UpstreamPool.DEFAULT_MINIMUM_QUERIES; i++) {
+            assertEquals(Rcode.SERVFAIL, this.testObj.send(this.query).getRcode());
+        }
+
+        assertTrue(this.testObj.isAvailable("10.0.0.1"));
+        assertTrue(this.testObj.isAvailable("8.8.8.8"));
+        verify(this.backup, times(2 * UpstreamPool.DEFAULT_MINIMUM_QUERIES)).send(this.query);
+    }
+
+    @Test
+    public void allServersFail() throws Exception {
+        when(this.primary.send(any(Message.class))).thenThrow(new SocketTimeoutException("timed out"));
+        when(this.backup.send(any(Message.class))).thenThrow(new IOException("unreachable"));
+
+        try {
+            this.testObj.send(this.query);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("unreachable", e.getMessage());
+        }
+    }
+
+    @Test
+    public void ranksByLatency() throws Exception {
+        when(this.primary.send(any(Message.class))).thenAnswer(respond(Rcode.NOERROR, 900));
+        when(this.backup.send(any(Message.class))).thenAnswer(respond(Rcode.NOERROR, 20));
+
+        // The slow primary falls behind the unmeasured backup, which then measures faster
+        for (int i = 0; i < 10; i++) {
+            this.testObj.send(this.query);
+        }
+
+        assertEquals(Arrays.asList("8.8.8.8", "10.0.0.1"), this.testObj.getRankedServers());
+        verify(this.backup, atLeastOnce()).send(this.query);
+    }
+
+    @Test
+    public void downServerProbedAndReadmitted() throws Exception {
+        when(this.primary.send(any(Message.class))).thenThrow(new PortUnreachableException("unreachable"));
+        when(this.backup.send(any(Message.class))).thenAnswer(respond(Rcode.REFUSED, 10));
+
+        for (int i = 0; i < UpstreamPool.DEFAULT_MINIMUM_QUERIES; i++) {
+            assertEquals(Rcode.REFUSED, this.testObj.send(this.query).getRcode());
+        }
+        assertFalse(this.testObj.isAvailable("10.0.0.1"));
+        assertFalse(this.testObj.isAvailable("8.8.8.8"));
+
+        // With every server down all are tried, and a server answering again is re-admitted
+        reset(this.backup);
+        when(this.backup.send(any(Message.class))).thenAnswer(respond(Rcode.NOERROR, 10));
+        this.testObj.send(this.query);
+        assertTrue(this.testObj.isAvailable("8.8.8.8"));
+
+        // Down servers are then not queried, and not probed before their backoff elapses
+        this.testObj.send(this.query);
+        this.testObj.probe();
+        verify(this.primary, times(UpstreamPool.DEFAULT_MINIMUM_QUERIES + 1)).send(any(Message.class));
+
+        // A failed probe keeps the server down
+        this.nanos += TimeUnit.MILLISECONDS.toNanos(UpstreamPool.INITIAL_BACKOFF);
+        this.testObj.probe();
+        assertFalse(this.testObj.isAvailable("10.0.0.1"));
+
+        reset(this.primary);
+        when(this.primary.send(any(Message.class))).thenAnswer(respond(Rcode.NOERROR, 10));
+        this.testObj.probe();
+        assertFalse(this.testObj.isAvailable("10.0.0.1"));
+
+        this.nanos += TimeUnit.MILLISECONDS.toNanos(2 * UpstreamPool.INITIAL_BACKOFF);
+        this.testObj.probe();
+        assertTrue(this.testObj.isAvailable("10.0.0.1"));
+        this.testObj.close();
+    }
+
+    @Test
+    public void circuitOpensOnFailureRatio() throws Exception {
+        this.testObj.setCircuitBreaker(0.5, 1);
+        when(this.primary.send(any(Message.class))).thenAnswer(respond(Rcode.NOERROR, 10))
+                .thenAnswer(respond(Rcode.NOERROR, 10))
+                .thenThrow(new PortUnreachableException("unreachable"));
+        when(this.backup.send(any(Message.class))).thenAnswer(respond(Rcode.NOERROR, 100));
+
+        // 2 successes then failures: the circuit opens once half of the primary's queries failed
+        for (int i = 0; i < 4; i++) {
+            assertEquals(Rcode.NOERROR, this.testObj.send(this.query).getRcode());
+        }
+        assertFalse(this.testObj.isAvailable("10.0.0.1"));
+
+        // While open, live queries skip the primary without waiting on it
+        for (int i = 0; i < 5; i++) {
+            this.testObj.send(this.query);
+        }
+        verify(this.primary, times(4)).send(any(Message.class));
+
+        // Once half-open, one live query is let through; its failure opens the circuit again
+        this.nanos += TimeUnit.MILLISECONDS.toNanos(UpstreamPool.INITIAL_BACKOFF);
+        assertTrue(this.testObj.isAvailable("10.0.0.1"));
+        this.testObj.send(this.query);
+        verify(this.primary, times(5)).send(any(Message.class));
+        assertFalse(this.testObj.isAvailable("10.0.0.1"));
+    }
+
+    @Test
+    public void settingsAppliedToAllServers() {
+        this.testObj.setEDNS(0);
+
+        verify(this.primary).setEDNS(0);
+        verify(this.backup).setEDNS(0);
+    }
+
+    @Test
+    public void retransmitsWithAdaptiveTimeout() throws Exception {
+        when(this.primary.send(any(Message.class))).thenAnswer(respond(Rcode.NOERROR, 20));
+        for (int i = 0; i < 20; i++) {
+            this.testObj.send(this.query);
+        }
+        long timeout = this.testObj.getTimeout("10.0.0.1");
+        assertTrue(timeout >= RttEstimator.MINIMUM_TIMEOUT && timeout < 100);
+        verify(this.primary).setTimeout(1, 0);
+        verify(this.primary).setTimeout(0, (int) timeout);
+
+        // A lost query is retransmitted to the same server with a doubled timeout
+        reset(this.primary);
+        when(this.primary.send(any(Message.class))).thenThrow(new SocketTimeoutException("timed out"))
+                .thenAnswer(respond(Rcode.NOERROR, 20));
+        assertEquals(Rcode.NOERROR, this.testObj.send(this.query).getRcode());
+        verify(this.primary).setTimeout(0, (int) (2 * timeout));
+        verify(this.primary, times(2)).send(this.query);
+        verify(this.backup, never()).send(any(Message.class));
+    }
+
+    @Test
+    public void passesTimeoutWithEachQuery() throws Exception {
+        TimeoutResolver server = mock(TimeoutResolver.class);
+        this.testObj = new UpstreamPool(Collections.<String, Resolver>singletonMap("10.0.0.1", server), this.ticker);
+        when(server.send(any(Message.class), anyLong())).thenThrow(new SocketTimeoutException("timed out"))
+                .thenAnswer(new Answer<Message>() {
+                    @Override
+                    public Message answer(InvocationOnMock invocation) throws Throwable {
+                        nanos += TimeUnit.MILLISECONDS.toNanos(20);
+                        return new Message();
+                    }
+                });
+
+        assertEquals(Rcode.NOERROR, this.testObj.send(this.query).getRcode());
+
+        // The retransmit's doubled timeout goes with that query only, the server's shared timeout is never set
+        verify(server).send(this.query, 1000L);
+        verify(server).send(this.query, 2000L);
+        verify(server, never()).setTimeout(anyInt(), anyInt());
+    }
+
+    @Test
+    public void timeoutBoundedByConfiguredTimeout() throws Exception {
+        this.testObj.setTimeout(0, 300);
+        assertEquals(300, this.testObj.getTimeout("10.0.0.1"));
+        assertEquals(-1, this.testObj.getTimeout("10.9.9.9"));
+    }
+
+    @Test
+    public void hedgesSlowQuery() throws Exception {
+        this.testObj.setHedging(true, 0.95, 1.0);
+        when(this.primary.send(any(Message.class))).thenAnswer(respond(Rcode.NOERROR, 10));
+        for (int i = 0; i < 20; i++) {
+            this.testObj.send(this.query);
+        }
+        assertEquals(0, this.testObj.getHedgedQueries());
+
+        // The primary stalls past the 95th percentile, the backup answers and the primary query is cancelled
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        reset(this.primary);
+        when(this.primary.send(any(Message.class))).thenAnswer(new Answer<Message>() {
+            @Override
+            public Message answer(InvocationOnMock invocation) throws Throwable {
+                try {
+                    new CountDownLatch(1).await();
+                } finally {
+                    cancelled.countDown();
+                }
+                return null;
+            }
+        });
+        when(this.backup.send(any(Message.class))).thenAnswer(respond(Rcode.NOERROR, 10));
+
+        assertEquals(Rcode.NOERROR, this.testObj.send(this.query).getRcode());
+        assertEquals(1, this.testObj.getHedgedQueries());
+        assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+        assertTrue(this.testObj.isAvailable("10.0.0.1"));
+        this.testObj.close();
+    }
+
+    @Test
+    public void hedgedLookupRetriedWithSlowerSignedAnswer() throws Exception {
+        this.testObj.setHedging(true, 0.95, 1.0);
+        when(this.primary.send(any(Message.class))).thenAnswer(respond(Rcode.NOERROR, 10));
+        for (int i = 0; i < 20; i++) {
+            this.testObj.send(this.query);
+        }
+
+        // The primary's signed answer is slow, the hedged query to the backup gets an unsigned answer first
+        Name name = this.query.getQuestion().getName();
+        TXTRecord txt = new TXTRecord(name, DClass.IN, 300L, "text");
+        final Message unsigned = new Message();
+        unsigned.addRecord(txt, Section.ANSWER);
+        final Message signed = new Message();
+        signed.addRecord(txt, Section.ANSWER);
+        signed.addRecord(new RRSIGRecord(name, DClass.IN, 300L, Type.TXT, DNSSEC.Algorithm.RSASHA256, 300L,
+                new Date(), new Date(), 12345, new Name("domain.com."), new byte[]{1}), Section.ANSWER);
+        final CountDownLatch release = new CountDownLatch(1);
+        reset(this.primary);
+        when(this.primary.send(any(Message.class))).thenAnswer(new Answer<Message>() {
+            @Override
+            public Message answer(InvocationOnMock invocation) throws Throwable {
+                release.await();
+                return signed;
+            }
+        });
+        when(this.backup.send(any(Message.class))).thenAnswer(new Answer<Message>() {
+            @Override
+            public Message answer(InvocationOnMock invocation) throws Throwable {
+                nanos += TimeUnit.MILLISECONDS.toNanos(50);
+                return unsigned;
+            }
+        });
+
+        this.testObj.beginLookup();
+        assertSame(unsigned, this.testObj.send(this.query));
+        assertEquals(1, this.testObj.getHedgedQueries());
+
+        // The unsigned answer failed validation, the retry is answered by the primary query still in flight
+        assertTrue(this.testObj.retryLookup());
+        release.countDown();
+        Message retry = Message.newQuery(this.query.getQuestion());
+        assertSame(signed, this.testObj.send(retry));
+        assertEquals(retry.getHeader().getID(), signed.getHeader().getID());
+        this.testObj.endLookup(true);
+
+        verify(this.primary, times(1)).send(any(Message.class));
+        verify(this.backup, times(1)).send(any(Message.class));
+
+        // The backup's answer failed validation where the primary's did not
+        assertEquals(Arrays.asList("10.0.0.1", "8.8.8.8"), this.testObj.getRankedServers());
+        this.testObj.close();
+    }
+
+    @Test
+    public void hedgeRateCapped() throws Exception {
+        this.testObj.setHedging(true, 0.5, 0);
+        when(this.primary.send(any(Message.class))).thenAnswer(respond(Rcode.NOERROR, 1));
+        for (int i = 0; i < 20; i++) {
+            this.testObj.send(this.query);
+        }
+
+        reset(this.primary);
+        when(this.primary.send(any(Message.class))).thenAnswer(new Answer<Message>() {
+            @Override
+            public Message answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(50);
+                return respond(Rcode.NOERROR, 50).answer(invocation);
+            }
+        });
+
+        assertEquals(Rcode.NOERROR, this.testObj.send(this.query).getRcode());
+        assertEquals(0, this.testObj.getHedgedQueries());
+        verify(this.backup, never()).send(any(Message.class));
+        this.testObj.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void hedgePercentileValidated() {
+        this.testObj.setHedging(true, 1.5, 0.05);
+    }
+
+    @Test
+    public void rejectsQueriesOverConcurrencyLimits() throws Exception {
+        this.testObj.setConcurrencyLimiting(true, 0);
+        final CountDownLatch sent = new CountDownLatch(2 * ConcurrencyLimiter.INITIAL_LIMIT);
+        final CountDownLatch answer = new CountDownLatch(1);
+        Answer<Message> stalled = new Answer<Message>() {
+            @Override
+            public Message answer(InvocationOnMock invocation) throws Throwable {
+                sent.countDown();
+                answer.await();
+                return new Message();
+            }
+        };
+        when(this.primary.send(any(Message.class))).thenAnswer(stalled);
+        when(this.backup.send(any(Message.class))).thenAnswer(stalled);
+
+        // Queries beyond the primary's limit spill over to the backup, and beyond both limits are rejected
+        ExecutorService executor = Executors.newCachedThreadPool();
+        for (int i = 0; i < 2 * ConcurrencyLimiter.INITIAL_LIMIT; i++) {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        testObj.send(query);
+                    } catch (IOException ignore) {
+                    }
+                }
+            });
+        }
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        verify(this.primary, times(ConcurrencyLimiter.INITIAL_LIMIT)).send(this.query);
+        verify(this.backup, times(ConcurrencyLimiter.INITIAL_LIMIT)).send(this.query);
+
+        assertFalse(this.testObj.pollRejected());
+        try {
+            this.testObj.send(this.query);
+            fail("Expected UpstreamSaturatedException");
+        } catch (UpstreamSaturatedException e) {
+            assertTrue(this.testObj.pollRejected());
+            assertFalse(this.testObj.pollRejected());
+            assertEquals(1, this.testObj.getRejectedQueries());
+        }
+
+        answer.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        this.testObj.send(this.query);
+    }
+
+    @Test
+    public void queuedQueryWaitsForCapacity() throws Exception {
+        this.testObj = new UpstreamPool(Collections.singletonMap("10.0.0.1", this.primary), this.ticker);
+        this.testObj.setConcurrencyLimiting(true, TimeUnit.SECONDS.toMillis(5));
+        final CountDownLatch sent = new CountDownLatch(ConcurrencyLimiter.INITIAL_LIMIT);
+        final CountDownLatch answer = new CountDownLatch(1);
+        when(this.primary.send(any(Message.class))).thenAnswer(new Answer<Message>() {
+            @Override
+            public Message answer(InvocationOnMock invocation) throws Throwable {
+                sent.countDown();
+                answer.await();
+                return new Message();
+            }
+        });
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        for (int i = 0; i <= ConcurrencyLimiter.INITIAL_LIMIT; i++) {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        testObj.send(query);
+                    } catch (IOException ignore) {
+                    }
+                }
+            });
+        }
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        verify(this.primary, times(ConcurrencyLimiter.INITIAL_LIMIT)).send(this.query);
+
+        // The query over the limit is sent once a slot frees up
+        answer.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        verify(this.primary, times(ConcurrencyLimiter.INITIAL_LIMIT + 1)).send(this.query);
+        assertEquals(0, this.testObj.getRejectedQueries());
+    }
+}